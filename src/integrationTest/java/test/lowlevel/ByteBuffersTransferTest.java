@@ -0,0 +1,284 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.lowlevel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ibis.constellation.Activity;
+import ibis.constellation.ActivityIdentifier;
+import ibis.constellation.Constellation;
+import ibis.constellation.ConstellationConfiguration;
+import ibis.constellation.ConstellationFactory;
+import ibis.constellation.ConstellationProperties;
+import ibis.constellation.Context;
+import ibis.constellation.Event;
+import ibis.constellation.StealStrategy;
+import ibis.constellation.impl.DistributedConstellation;
+import ibis.constellation.util.ByteBuffers;
+import ibis.constellation.util.ReceiveBuffers;
+
+/**
+ * Sends an event with a byte buffer from one node to an activity on another node, and checks which bytes arrive where.
+ */
+public class ByteBuffersTransferTest {
+
+    private static final int SIZE = 1000;
+    private static final int POSITION = 100;
+    private static final int LIMIT = 300;
+
+    static class Payload implements Serializable, ByteBuffers {
+
+        private static final long serialVersionUID = 1L;
+
+        transient ByteBuffer buffer;
+
+        Payload(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void pushByteBuffers(List<ByteBuffer> list) {
+            list.add(buffer);
+        }
+
+        @Override
+        public void popByteBuffers(List<ByteBuffer> list) {
+            buffer = list.remove(0);
+        }
+    }
+
+    static class Receiver extends Activity {
+
+        private static final long serialVersionUID = 1L;
+
+        private ByteBuffer received;
+
+        Receiver() {
+            super(new Context("B"), false, true);
+        }
+
+        @Override
+        public int initialize(Constellation c) {
+            return SUSPEND;
+        }
+
+        @Override
+        public synchronized int process(Constellation c, Event e) {
+            received = ((Payload) e.getData()).buffer;
+            notifyAll();
+            return FINISH;
+        }
+
+        @Override
+        public void cleanup(Constellation c) {
+            ReceiveBuffers.unregister(identifier());
+        }
+
+        synchronized ByteBuffer waitForBuffer() throws InterruptedException {
+            while (received == null) {
+                wait();
+            }
+            return received;
+        }
+    }
+
+    static class Sender extends Activity {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ActivityIdentifier target;
+
+        private final transient ByteBuffer buffer;
+
+        Sender(ActivityIdentifier target, ByteBuffer buffer) {
+            super(new Context("A"), false, false);
+            this.target = target;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int initialize(Constellation c) {
+            c.send(new Event(identifier(), target, new Payload(buffer)));
+            return FINISH;
+        }
+
+        @Override
+        public int process(Constellation c, Event e) {
+            return FINISH;
+        }
+
+        @Override
+        public void cleanup(Constellation c) {
+            // nothing
+        }
+    }
+
+    private static ConstellationConfiguration[] configs() {
+        return new ConstellationConfiguration[] {
+                new ConstellationConfiguration(new Context("A"), StealStrategy.SMALLEST, StealStrategy.BIGGEST,
+                        StealStrategy.BIGGEST),
+                new ConstellationConfiguration(new Context("B"), StealStrategy.SMALLEST, StealStrategy.BIGGEST,
+                        StealStrategy.BIGGEST) };
+    }
+
+    private static ByteBuffer source() {
+        ByteBuffer b = ByteBuffer.allocateDirect(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            b.put(i, (byte) i);
+        }
+        b.position(POSITION);
+        b.limit(LIMIT);
+        return b;
+    }
+
+    private static ByteBuffer transfer(Constellation[] c, ByteBuffer destination) throws Exception {
+        for (Constellation tmp : c) {
+            tmp.activate();
+        }
+
+        Receiver r = new Receiver();
+        ActivityIdentifier id = c[1].submit(r);
+        if (destination != null) {
+            // Must be registered before the event arrives.
+            ReceiveBuffers.register(id, destination);
+        }
+        ByteBuffer source = source();
+        c[0].submit(new Sender(id, source));
+
+        ByteBuffer result = r.waitForBuffer();
+
+        // The buffer of the sender is left alone.
+        assertEquals(POSITION, source.position());
+        assertEquals(LIMIT, source.limit());
+
+        for (Constellation tmp : c) {
+            tmp.done();
+        }
+        return result;
+    }
+
+    private static void checkRemaining(ByteBuffer b) {
+        assertEquals(0, b.position());
+        assertEquals(LIMIT - POSITION, b.limit());
+        for (int i = 0; i < LIMIT - POSITION; i++) {
+            assertEquals((byte) (i + POSITION), b.get(i));
+        }
+    }
+
+    private static Constellation[] nio(Properties p, int nodes) throws Exception {
+        p.put(ConstellationProperties.S_COMMUNICATION, "nio");
+        p.put(ConstellationProperties.S_NIO_REGISTRY, Files.createTempDirectory("nio-registry").toString());
+        Constellation[] c = new Constellation[nodes];
+        for (int i = 0; i < nodes; i++) {
+            c[i] = new DistributedConstellation(new ConstellationProperties(p), configs()).getConstellation();
+        }
+        return c;
+    }
+
+    @After
+    public void tearDown() {
+        ReceiveBuffers.clear();
+    }
+
+    @Test
+    public void wholeCapacity() throws Exception {
+        ByteBuffer b = transfer(ConstellationFactory.createLocalConstellations(new Properties(), 2, configs()), null);
+        assertEquals(0, b.position());
+        assertEquals(SIZE, b.limit());
+        assertEquals((byte) 7, b.get(7));
+    }
+
+    @Test
+    public void remainingIntoRegisteredBuffer() throws Exception {
+        Properties p = new Properties();
+        p.put(ConstellationProperties.S_BYTEBUFFERS_REMAINING, "true");
+        ByteBuffer destination = ByteBuffer.allocateDirect(SIZE);
+
+        ByteBuffer b = transfer(ConstellationFactory.createLocalConstellations(p, 2, configs()), destination);
+
+        assertSame(destination, b);
+        checkRemaining(b);
+    }
+
+    @Test
+    public void remainingOverSockets() throws Exception {
+        Properties p = new Properties();
+        p.put(ConstellationProperties.S_BYTEBUFFERS_REMAINING, "true");
+
+        ByteBuffer b = transfer(nio(p, 2), null);
+
+        checkRemaining(b);
+    }
+
+    @Test
+    public void remainingOverSocketsIntoRegisteredBuffer() throws Exception {
+        Properties p = new Properties();
+        p.put(ConstellationProperties.S_BYTEBUFFERS_REMAINING, "true");
+        ByteBuffer destination = ByteBuffer.allocateDirect(SIZE);
+
+        ByteBuffer b = transfer(nio(p, 2), destination);
+
+        assertSame(destination, b);
+        checkRemaining(b);
+    }
+
+    @Test
+    public void registeredBufferTooSmall() throws Exception {
+        ByteBuffer destination = ByteBuffer.allocateDirect(10);
+
+        ByteBuffer b = transfer(nio(new Properties(), 2), destination);
+
+        assertNotSame(destination, b);
+        assertEquals(SIZE, b.limit());
+    }
+
+    @Test
+    public void compressed() throws Exception {
+        Properties p = new Properties();
+        p.put(ConstellationProperties.S_BYTEBUFFERS_REMAINING, "true");
+        p.put(ConstellationProperties.S_COMPRESSION, "deflate");
+        p.put(ConstellationProperties.S_COMPRESSION_THRESHOLD, "0");
+
+        ByteBuffer b = transfer(ConstellationFactory.createLocalConstellations(p, 2, configs()), null);
+
+        checkRemaining(b);
+    }
+
+    @Test
+    public void compressedOverSocketsIntoRegisteredBuffer() throws Exception {
+        Properties p = new Properties();
+        p.put(ConstellationProperties.S_BYTEBUFFERS_REMAINING, "true");
+        p.put(ConstellationProperties.S_COMPRESSION, "deflate");
+        p.put(ConstellationProperties.S_COMPRESSION_THRESHOLD, "0");
+        ByteBuffer destination = ByteBuffer.allocateDirect(SIZE);
+
+        ByteBuffer b = transfer(nio(p, 2), destination);
+
+        assertSame(destination, b);
+        checkRemaining(b);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.lowlevel;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Properties;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.constellation.Constellation;
+import ibis.constellation.ConstellationConfiguration;
+import ibis.constellation.ConstellationFactory;
+import ibis.constellation.Context;
+import ibis.constellation.StealStrategy;
+import ibis.constellation.util.SingleEventCollector;
+
+/**
+ * Runs divide-and-conquer on several distributed constellations within this JVM, connected by an in-process network.
+ */
+public class DivideAndConquerLocalTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(DivideAndConquerLocalTest.class);
+
+    private long runTest(int branch, int depth, int nodes, int executors, Properties p) throws Exception {
+
+        long start = System.nanoTime();
+
+        ConstellationConfiguration config = new ConstellationConfiguration(new Context("DC"), StealStrategy.SMALLEST,
+                StealStrategy.BIGGEST, StealStrategy.BIGGEST);
+
+        ConstellationConfiguration[] configs = new ConstellationConfiguration[executors];
+        for (int i = 0; i < executors; i++) {
+            configs[i] = config;
+        }
+
+        final Constellation[] c = ConstellationFactory.createLocalConstellations(p, nodes, configs);
+
+        for (Constellation tmp : c) {
+            tmp.activate();
+        }
+
+        SingleEventCollector a = new SingleEventCollector(new Context("DC"));
+
+        c[0].submit(a);
+        c[0].submit(new DivideAndConquerClean(a.identifier(), branch, depth));
+
+        long result = (Long) a.waitForEvent().getData();
+
+        long end = System.nanoTime();
+
+        logger.info("D&C(" + branch + ", " + depth + ") on " + nodes + " local nodes = " + result + " total time = "
+                + Math.round((end - start) / 1000000.0) / 1000.0 + " sec");
+
+        // The master must be done first, since the other nodes wait for it.
+        for (Constellation tmp : c) {
+            tmp.done();
+        }
+
+        return result;
+    }
+
+    private static long count(int branch, int depth) {
+        long count = 0;
+        for (int i = 0; i <= depth; i++) {
+            count += Math.pow(branch, i);
+        }
+        return count;
+    }
+
+    @Test
+    public void twoNodes() throws Exception {
+        assertEquals(count(2, 10), runTest(2, 10, 2, 1, new Properties()));
+    }
+
+    @Test
+    public void fourNodesWithLatency() throws Exception {
+        Properties p = new Properties();
+        p.put("ibis.constellation.local.latency", "200");
+        p.put("ibis.constellation.local.bandwidth", "100");
+        assertEquals(count(2, 10), runTest(2, 10, 4, 2, p));
+    }
+}
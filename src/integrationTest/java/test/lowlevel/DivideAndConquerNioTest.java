@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.lowlevel;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Files;
+import java.util.Properties;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.constellation.Constellation;
+import ibis.constellation.ConstellationConfiguration;
+import ibis.constellation.ConstellationProperties;
+import ibis.constellation.Context;
+import ibis.constellation.StealStrategy;
+import ibis.constellation.impl.DistributedConstellation;
+import ibis.constellation.util.SingleEventCollector;
+
+/**
+ * Runs divide-and-conquer on several distributed constellations within this JVM, connected by the socket channel based
+ * communication layer over the loopback interface, or through shared memory.
+ */
+public class DivideAndConquerNioTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(DivideAndConquerNioTest.class);
+
+    private long runTest(int branch, int depth, int nodes, int executors, Properties p) throws Exception {
+
+        long start = System.nanoTime();
+
+        ConstellationConfiguration config = new ConstellationConfiguration(new Context("DC"), StealStrategy.SMALLEST,
+                StealStrategy.BIGGEST, StealStrategy.BIGGEST);
+
+        ConstellationConfiguration[] configs = new ConstellationConfiguration[executors];
+        for (int i = 0; i < executors; i++) {
+            configs[i] = config;
+        }
+
+        p.put(ConstellationProperties.S_COMMUNICATION, "nio");
+        p.put(ConstellationProperties.S_NIO_REGISTRY, Files.createTempDirectory("nio-registry").toString());
+
+        final Constellation[] c = new Constellation[nodes];
+        for (int i = 0; i < nodes; i++) {
+            // The first node to join becomes the master.
+            c[i] = new DistributedConstellation(new ConstellationProperties(p), configs).getConstellation();
+        }
+
+        for (Constellation tmp : c) {
+            tmp.activate();
+        }
+
+        SingleEventCollector a = new SingleEventCollector(new Context("DC"));
+
+        c[0].submit(a);
+        c[0].submit(new DivideAndConquerClean(a.identifier(), branch, depth));
+
+        long result = (Long) a.waitForEvent().getData();
+
+        long end = System.nanoTime();
+
+        logger.info("D&C(" + branch + ", " + depth + ") on " + nodes + " nio nodes = " + result + " total time = "
+                + Math.round((end - start) / 1000000.0) / 1000.0 + " sec");
+
+        // The master must be done first, since the other nodes wait for it.
+        for (Constellation tmp : c) {
+            tmp.done();
+        }
+
+        return result;
+    }
+
+    private static long count(int branch, int depth) {
+        long count = 0;
+        for (int i = 0; i <= depth; i++) {
+            count += Math.pow(branch, i);
+        }
+        return count;
+    }
+
+    @Test
+    public void twoNodes() throws Exception {
+        assertEquals(count(2, 10), runTest(2, 10, 2, 1, new Properties()));
+    }
+
+    @Test
+    public void fourNodesAggregated() throws Exception {
+        Properties p = new Properties();
+        p.put(ConstellationProperties.S_AGGREGATE_SIZE, "8");
+        assertEquals(count(2, 10), runTest(2, 10, 4, 2, p));
+    }
+
+    @Test
+    public void fourNodesSharedMemory() throws Exception {
+        Properties p = new Properties();
+        p.put(ConstellationProperties.S_NIO_SHM, "true");
+        // Small rings, so that writers regularly wait for readers.
+        p.put(ConstellationProperties.S_NIO_SHM_SIZE, "4096");
+        assertEquals(count(2, 10), runTest(2, 10, 4, 2, p));
+    }
+
+    @Test
+    public void fourNodesCompressed() throws Exception {
+        Properties p = new Properties();
+        p.put(ConstellationProperties.S_COMPRESSION, "deflate");
+        // Compress every message, including the small ones.
+        p.put(ConstellationProperties.S_COMPRESSION_THRESHOLD, "0");
+        assertEquals(count(2, 10), runTest(2, 10, 4, 2, p));
+    }
+}
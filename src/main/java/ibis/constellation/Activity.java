@@ -65,6 +65,8 @@ public abstract class Activity implements Serializable {
 
     private ActivityIdentifier identifier;
 
+    private Affinity affinity;
+
     /**
      * Create an Activity with a specified context, and indicate if this Activity may be stolen by other Constellations, and if it
      * expects to receive Events.
@@ -139,6 +141,33 @@ public abstract class Activity implements Serializable {
         return identifier;
     }
 
+    /**
+     * Sets the {@link Affinity} of this Activity, which tells where it would preferably run. This is only a hint for stealing,
+     * see {@link Affinity}. The affinity must be set before the Activity is submitted.
+     *
+     * @param affinity
+     *            the affinity, or <code>null</code> for none
+     * @throws IllegalStateException
+     *             when the Activity has already been submitted
+     */
+    public void setAffinity(Affinity affinity) {
+
+        if (identifier != null) {
+            throw new IllegalStateException("Affinity must be set before the Activity is submitted");
+        }
+
+        this.affinity = affinity;
+    }
+
+    /**
+     * Returns the {@link Affinity} of this Activity, or <code>null</code> if it has none.
+     *
+     * @return the {@link Affinity} of this Activity or <code>null</code>.
+     */
+    public Affinity getAffinity() {
+        return affinity;
+    }
+
     /**
      * Returns the {@link AbstractContext} of this Activity.
      *
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation;
+
+import java.io.Serializable;
+
+import ibis.constellation.impl.ConstellationIdentifierImpl;
+
+/**
+ * An <code>Affinity</code> tells where an {@link Activity} would preferably run, for instance because its input data already
+ * lives there. It names either a node, or a single worker (an executor) of a node, by the {@link ConstellationIdentifier} of
+ * that worker, as returned by {@link Constellation#identifier()} in the activities running on it.
+ *
+ * When handing out activities to thieves, a constellation first gives activities without affinity, or with an affinity that
+ * matches the thief. A weak affinity is only a preference: when nothing else is left, the activity may still be stolen by
+ * anyone. An activity with a strong affinity stays where it is, unless it has been waiting to be stolen for longer than the
+ * "affinity.timeout" property allows.
+ */
+public final class Affinity implements Serializable {
+
+    private static final long serialVersionUID = -2370947415936152216L;
+
+    private final ConstellationIdentifierImpl target;
+    private final boolean worker;
+    private final boolean strong;
+
+    private Affinity(ConstellationIdentifier target, boolean worker, boolean strong) {
+
+        if (target == null) {
+            throw new IllegalArgumentException("Affinity must have a target");
+        }
+
+        if (!(target instanceof ConstellationIdentifierImpl)) {
+            throw new IllegalArgumentException("Unknown ConstellationIdentifier implementation");
+        }
+
+        this.target = (ConstellationIdentifierImpl) target;
+        this.worker = worker;
+        this.strong = strong;
+    }
+
+    /**
+     * Creates an affinity for the node of the specified worker. Any worker of that node matches.
+     *
+     * @param target
+     *            the identifier of a worker of the node
+     * @param strong
+     *            whether the affinity is strong
+     * @return the affinity
+     * @throws IllegalArgumentException
+     *             when the target is <code>null</code> or not returned by the constellation system
+     */
+    public static Affinity node(ConstellationIdentifier target, boolean strong) {
+        return new Affinity(target, false, strong);
+    }
+
+    /**
+     * Creates an affinity for the specified worker. Only that worker matches.
+     *
+     * @param target
+     *            the identifier of the worker
+     * @param strong
+     *            whether the affinity is strong
+     * @return the affinity
+     * @throws IllegalArgumentException
+     *             when the target is <code>null</code> or not returned by the constellation system
+     */
+    public static Affinity worker(ConstellationIdentifier target, boolean strong) {
+        return new Affinity(target, true, strong);
+    }
+
+    /**
+     * Returns the identifier of the worker this affinity was created for.
+     *
+     * @return the target of this affinity
+     */
+    public ConstellationIdentifier getTarget() {
+        return target;
+    }
+
+    /**
+     * Returns whether this affinity names a single worker, instead of a node.
+     *
+     * @return whether this is a worker affinity
+     */
+    public boolean isWorker() {
+        return worker;
+    }
+
+    /**
+     * Returns whether this affinity is strong.
+     *
+     * @return whether this affinity is strong
+     */
+    public boolean isStrong() {
+        return strong;
+    }
+
+    /**
+     * Returns whether the specified worker matches this affinity: it is the target worker, or it runs on the target node.
+     *
+     * @param c
+     *            the identifier of the worker
+     * @return whether the worker matches
+     */
+    public boolean matches(ConstellationIdentifier c) {
+        if (worker) {
+            return target.equals(c);
+        }
+        return c instanceof ConstellationIdentifierImpl && ((ConstellationIdentifierImpl) c).getNodeId() == target.getNodeId();
+    }
+
+    @Override
+    public int hashCode() {
+        return target.hashCode() ^ (worker ? 1 : 0) ^ (strong ? 2 : 0);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        Affinity other = (Affinity) obj;
+        return target.equals(other.target) && worker == other.worker && strong == other.strong;
+    }
+
+    @Override
+    public String toString() {
+        return (strong ? "strong " : "weak ") + (worker ? "worker " + target : "node " + Integer.toHexString(target.getNodeId()));
+    }
+}
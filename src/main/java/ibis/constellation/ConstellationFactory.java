@@ -20,6 +20,7 @@ import java.util.Properties;
 import ibis.constellation.impl.DistributedConstellation;
 import ibis.constellation.impl.MultiThreadedConstellation;
 import ibis.constellation.impl.SingleThreadedConstellation;
+import ibis.constellation.impl.pool.communication.local.LocalNetwork;
 
 /**
  * The <code>ConstellationFactory</code> provides several static methods to create a {@link Constellation} instance.
@@ -174,6 +175,61 @@ public class ConstellationFactory {
         return createConstellation(needsDistributed, props, e);
     }
 
+    /**
+     * Creates a number of distributed constellation instances within this JVM, which communicate through an in-process network
+     * instead of Ibis. This allows distributed runs, for instance in tests, without a registry server. The first instance is the
+     * master. The latency and bandwidth of the simulated network are taken from the "local.latency" and "local.bandwidth"
+     * properties.
+     *
+     * All instances must be activated, and eventually be done. As on a real network, an instance that is not the master only
+     * returns from {@link Constellation#done()} once the master is done, so these calls must be made from separate threads, or
+     * the master must be done first. The same holds for {@link Constellation#activate()} in a closed pool.
+     *
+     * @param p
+     *            the properties
+     * @param nodes
+     *            the number of constellation instances
+     * @param e
+     *            the executors of each instance
+     * @return the constellation instances, ordered by rank
+     * @throws IllegalArgumentException
+     *             thrown when no executors are supplied, the number of instances is smaller than 1, or in case of incorrect
+     *             property values.
+     * @throws ConstellationCreationException
+     *             thrown when a constellation instance could not be created for some reason.
+     */
+    public static Constellation[] createLocalConstellations(Properties p, int nodes, ConstellationConfiguration... e)
+            throws ConstellationCreationException {
+
+        ConstellationProperties props;
+
+        if (p instanceof ConstellationProperties) {
+            props = (ConstellationProperties) p;
+        } else {
+            props = new ConstellationProperties(p);
+        }
+
+        if (e == null || e.length == 0) {
+            throw new IllegalArgumentException("Need at least one Constellation configuration!");
+        }
+
+        for (ConstellationConfiguration tmp : e) {
+            if (tmp == null) {
+                throw new IllegalArgumentException("Constellation configuration may not be null");
+            }
+        }
+
+        LocalNetwork network = new LocalNetwork(nodes, props.LOCAL_LATENCY, props.LOCAL_BANDWIDTH);
+
+        Constellation[] result = new Constellation[nodes];
+
+        for (int i = 0; i < nodes; i++) {
+            result[i] = new DistributedConstellation(props, network, e).getConstellation();
+        }
+
+        return result;
+    }
+
     /**
      * Creates a constellation instance, using the specified executors and properties.
      *
@@ -53,6 +53,16 @@ public class ConstellationProperties extends Properties {
 
     public final String STEALSTRATEGY;
 
+    /**
+     * The "stealing.groupSize" property is an integer property only used with the "mw" steal strategy. When larger than 0, the
+     * nodes are organized in a tree in which every node has at most this many children, rooted at the master. Steal requests go
+     * to the parent node, and only climb further up the tree when the parent has no work. When 0, all steal requests go to the
+     * master directly. The default value is 0.
+     */
+    public static final String S_STEALSTRATEGY_GROUPSIZE = S_STEALSTRATEGY + ".groupSize";
+
+    public final int STEALSTRATEGY_GROUPSIZE;
+
     private static final String S_REMOTESTEAL_PREFIX = S_PREFIX + "remotesteal.";
 
     private static final String S_STEAL_PREFIX = S_PREFIX + "steal.";
@@ -155,9 +165,292 @@ public class ConstellationProperties extends Properties {
     /** Value of the "steal.size" property. */
     public final int STEAL_SIZE;
 
-    /** Value of the "steal.size" property. */
+    /** Value of the "remotesteal.size" property. */
     public final int REMOTESTEAL_SIZE;
 
+    /**
+     * The "steal.adaptive" property is a boolean property indicating whether the number of activities handed out per steal
+     * request should adapt to the situation instead of being fixed by "steal.size". When set, a victim hands out a share of
+     * the activities it has queued for the requested context, which grows with the number of idle executors of the thief
+     * (half of the queue for a single idle thief). The steal size then acts as a lower bound. The default is "false".
+     */
+    public static final String S_STEAL_ADAPTIVE = S_STEAL_PREFIX + "adaptive";
+
+    /** Value of the "steal.adaptive" property. */
+    public final boolean STEAL_ADAPTIVE;
+
+    /**
+     * The "remotesteal.budget" property is an integer property, specifying the maximum (estimated) size in bytes of the
+     * activities in a single remote steal reply. A reply always contains at least one activity, if any was stolen. A value of 0
+     * means no limit. The default is "1048576".
+     */
+    public static final String S_REMOTESTEAL_BUDGET = S_REMOTESTEAL_PREFIX + "budget";
+
+    /** Value of the "remotesteal.budget" property. */
+    public final int REMOTESTEAL_BUDGET;
+
+    /**
+     * The "remotesteal.victim" property is a string property defining how the node to send a remote steal request to is selected,
+     * when the "stealing" property is "pool". There are two: <br>
+     * "random" indicates: select a random member of the steal pool <br>
+     * "adaptive" indicates: prefer members that recently had work and are quick to reach, based on steal replies and regular
+     * round trip time measurements, with some randomness left for fairness. <br>
+     * The default value is: "random".
+     */
+    public static final String S_REMOTESTEAL_VICTIM = S_REMOTESTEAL_PREFIX + "victim";
+
+    /** Value of the "remotesteal.victim" property. */
+    public final String REMOTESTEAL_VICTIM;
+
+    /**
+     * The "remotesteal.hops" property is an integer property, specifying how many times a remote steal request may be forwarded
+     * to another node, when the "stealing" property is "pool". A node that cannot satisfy a remote steal request forwards it to a
+     * member of the steal pool that has not seen the request yet (selected as specified by the "remotesteal.victim" property),
+     * instead of replying. Only the node that finally handles the request replies to the thief. The default is "0", which
+     * disables forwarding.
+     */
+    public static final String S_REMOTESTEAL_HOPS = S_REMOTESTEAL_PREFIX + "hops";
+
+    /** Value of the "remotesteal.hops" property. */
+    public final int REMOTESTEAL_HOPS;
+
+    /**
+     * The "remotesteal.lowWaterMark" property is an integer property, specifying the number of queued activities below which a
+     * node starts stealing from other nodes before its executors run out of work. The queued activities of all executors of the
+     * node are counted, as far as they match the context of the executor doing the check. At most one such early steal is
+     * outstanding per steal pool and context. A value of 0 disables this. The default is "0".
+     */
+    public static final String S_REMOTESTEAL_LOW_WATER_MARK = S_REMOTESTEAL_PREFIX + "lowWaterMark";
+
+    /** Value of the "remotesteal.lowWaterMark" property. */
+    public final int REMOTESTEAL_LOW_WATER_MARK;
+
+    /**
+     * The "remotesteal.pushThreshold" property is an integer property, specifying the number of queued stealable activities above
+     * which a node pushes work to nodes that advertised that they are idle, instead of waiting for them to steal it. Nodes
+     * advertise that they are idle to one member of the steal pool they steal from at a time, so that only one node pushes work
+     * to them. A value of 0 disables both the pushing and the advertisements. The default is "0".
+     */
+    public static final String S_REMOTESTEAL_PUSH_THRESHOLD = S_REMOTESTEAL_PREFIX + "pushThreshold";
+
+    /** Value of the "remotesteal.pushThreshold" property. */
+    public final int REMOTESTEAL_PUSH_THRESHOLD;
+
+    /**
+     * The "affinity.timeout" property is an integer property, specifying how long an activity with a strong
+     * {@link ibis.constellation.Affinity} is kept from thieves that do not match it, in milliseconds. After that, it may be
+     * stolen like an activity with a weak affinity. A value of 0 keeps such activities from those thieves forever. The default
+     * is "1000".
+     */
+    public static final String S_AFFINITY_TIMEOUT = S_PREFIX + "affinity.timeout";
+
+    /** Value of the "affinity.timeout" property. */
+    public final int AFFINITY_TIMEOUT;
+
+    /**
+     * The "routeCache.size" property is an integer property, specifying how many locations of activities that were stolen or
+     * relocated each node remembers. Events for those activities are sent to the remembered location directly, instead of via
+     * the node the activity was created on. A value of 0 disables the cache. The default is "1024".
+     */
+    public static final String S_ROUTE_CACHE_SIZE = S_PREFIX + "routeCache.size";
+
+    /** Value of the "routeCache.size" property. */
+    public final int ROUTE_CACHE_SIZE;
+
+    /**
+     * The "loadSummaries" property is a boolean property indicating whether nodes piggyback a summary of their load (queued
+     * activities per context and idle executors) on the steal requests, steal replies and event messages they send, so that other
+     * nodes can maintain a table of the load of the nodes they communicate with. The default is "false".
+     */
+    public static final String S_LOAD_SUMMARIES = S_PREFIX + "loadSummaries";
+
+    /** Value of the "loadSummaries" property. */
+    public final boolean LOAD_SUMMARIES;
+
+    /**
+     * The "aggregate.size" property is an integer property specifying the maximum number of small messages (event messages and
+     * idle advertisements) that are combined into a single network message to the same node. A value of 0 or 1 disables
+     * aggregation. The default is "0".
+     */
+    public static final String S_AGGREGATE_SIZE = S_PREFIX + "aggregate.size";
+
+    /** Value of the "aggregate.size" property. */
+    public final int AGGREGATE_SIZE;
+
+    /**
+     * The "aggregate.delay" property is an integer property specifying the maximum time, in microseconds, that a small message
+     * is held back to be combined with others, when aggregation is enabled. The default is "100".
+     */
+    public static final String S_AGGREGATE_DELAY = S_PREFIX + "aggregate.delay";
+
+    /** Value of the "aggregate.delay" property. */
+    public final int AGGREGATE_DELAY;
+
+    /**
+     * The "sendQueue.depth" property is an integer property specifying the maximum number of messages waiting in the send queue
+     * of a single node. When it is larger than 0, messages are queued per destination node and written by separate writer
+     * threads, so that the sending thread does not wait for connection setup or slow peers. The default is "0", which sends
+     * messages on the calling thread.
+     */
+    public static final String S_SENDQUEUE_DEPTH = S_PREFIX + "sendQueue.depth";
+
+    /** Value of the "sendQueue.depth" property. */
+    public final int SENDQUEUE_DEPTH;
+
+    /**
+     * The "sendQueue.writers" property is an integer property specifying the number of writer threads draining the send queues.
+     * The default is "2".
+     */
+    public static final String S_SENDQUEUE_WRITERS = S_PREFIX + "sendQueue.writers";
+
+    /** Value of the "sendQueue.writers" property. */
+    public final int SENDQUEUE_WRITERS;
+
+    /**
+     * The "sendQueue.block" property is a boolean property determining what happens when a send queue is full. When set, the
+     * sending thread waits until there is room. Otherwise, the send fails right away, and the message is dealt with like any
+     * message that could not be sent (for instance, the work in a steal reply is reclaimed). The default is "true".
+     */
+    public static final String S_SENDQUEUE_BLOCK = S_PREFIX + "sendQueue.block";
+
+    /** Value of the "sendQueue.block" property. */
+    public final boolean SENDQUEUE_BLOCK;
+
+    /**
+     * The "dispatch.threads" property is an integer property specifying the number of threads delivering received messages.
+     * When it is larger than 0, the receiving thread only reads and queues messages, and steal requests and steal replies from
+     * one node are delivered before other messages from other nodes. Messages from the same node are always delivered in order.
+     * The default is "0", which delivers messages on the receiving thread. The "nio" communication layer uses at least one
+     * thread, as its selector thread never delivers messages itself.
+     */
+    public static final String S_DISPATCH_THREADS = S_PREFIX + "dispatch.threads";
+
+    /** Value of the "dispatch.threads" property. */
+    public final int DISPATCH_THREADS;
+
+    /**
+     * The "dispatch.depth" property is an integer property specifying the maximum number of received messages waiting to be
+     * delivered. When this number is reached, receipt of messages waits (the "nio" communication layer stops reading until the
+     * dispatcher threads catch up). The default is "1024".
+     */
+    public static final String S_DISPATCH_DEPTH = S_PREFIX + "dispatch.depth";
+
+    /** Value of the "dispatch.depth" property. */
+    public final int DISPATCH_DEPTH;
+
+    /**
+     * The "local.latency" property is an integer property specifying the latency, in microseconds, of the links between the
+     * nodes of an in-process network, as created by {@link ConstellationFactory#createLocalConstellations}. The default is "0".
+     */
+    public static final String S_LOCAL_LATENCY = S_PREFIX + "local.latency";
+
+    /** Value of the "local.latency" property. */
+    public final int LOCAL_LATENCY;
+
+    /**
+     * The "local.bandwidth" property is an integer property specifying the bandwidth, in megabytes per second, of the links
+     * between the nodes of an in-process network. The default is "0", which stands for an unlimited bandwidth.
+     */
+    public static final String S_LOCAL_BANDWIDTH = S_PREFIX + "local.bandwidth";
+
+    /** Value of the "local.bandwidth" property. */
+    public final int LOCAL_BANDWIDTH;
+
+    /**
+     * The "communication" property is a string property selecting the communication layer of a distributed run. Possible values
+     * are "ibis", which uses the Ibis Portability Layer, and "nio", which uses plain socket channels and is meant for clusters of
+     * processes on a single host. The default is "ibis".
+     */
+    public static final String S_COMMUNICATION = S_PREFIX + "communication";
+
+    /** Value of the "communication" property. */
+    public final String COMMUNICATION;
+
+    /**
+     * The "nio.registry" property is a string property specifying the directory in which the nodes of a run using the "nio"
+     * communication layer register themselves. Runs may use the same directory one after the other, as the master removes the
+     * files of a run when it terminates, but not at the same time. The default is a directory in the temporary directory, named
+     * after the "ibis.pool.name" property.
+     */
+    public static final String S_NIO_REGISTRY = S_PREFIX + "nio.registry";
+
+    /** Value of the "nio.registry" property. */
+    public final String NIO_REGISTRY;
+
+    /**
+     * The "nio.host" property is a string property specifying the address on which the "nio" communication layer accepts
+     * connections. The default is "127.0.0.1".
+     */
+    public static final String S_NIO_HOST = S_PREFIX + "nio.host";
+
+    /** Value of the "nio.host" property. */
+    public final String NIO_HOST;
+
+    /**
+     * The "nio.shm" property is a boolean property indicating whether the "nio" communication layer sends messages to nodes on the
+     * same host through shared memory, instead of through a socket. The default is "false".
+     */
+    public static final String S_NIO_SHM = S_PREFIX + "nio.shm";
+
+    /** Value of the "nio.shm" property. */
+    public final boolean NIO_SHM;
+
+    /**
+     * The "nio.shm.directory" property is a string property specifying the directory in which the shared memory buffers are
+     * created. It should be a memory based file system. The default is "/dev/shm", or the temporary directory when that does not
+     * exist.
+     */
+    public static final String S_NIO_SHM_DIRECTORY = S_PREFIX + "nio.shm.directory";
+
+    /** Value of the "nio.shm.directory" property. */
+    public final String NIO_SHM_DIRECTORY;
+
+    /**
+     * The "nio.shm.size" property is an integer property specifying the size in bytes of the shared memory buffer from one node
+     * to another. The default is "1048576".
+     */
+    public static final String S_NIO_SHM_SIZE = S_PREFIX + "nio.shm.size";
+
+    /** Value of the "nio.shm.size" property. */
+    public final int NIO_SHM_SIZE;
+
+    /**
+     * The "byteBuffers.remaining" property is a boolean property indicating whether only the bytes between the position and the
+     * limit of a {@link ibis.constellation.util.ByteBuffers byte buffer} are sent to another node. When false, the whole
+     * capacity of every byte buffer is sent. The default is "false".
+     */
+    public static final String S_BYTEBUFFERS_REMAINING = S_PREFIX + "byteBuffers.remaining";
+
+    /** Value of the "byteBuffers.remaining" property. */
+    public final boolean BYTEBUFFERS_REMAINING;
+
+    /**
+     * The "compression" property is a string property selecting how the contents of messages and their byte buffers are
+     * compressed before they are sent to another node. Possible values are "none" and "deflate". The default is "none".
+     */
+    public static final String S_COMPRESSION = S_PREFIX + "compression";
+
+    /** Value of the "compression" property. */
+    public final String COMPRESSION;
+
+    /**
+     * The "compression.threshold" property is an integer property specifying the size in bytes from which the encoded contents
+     * of a message, or a byte buffer, are compressed. The default is "4096".
+     */
+    public static final String S_COMPRESSION_THRESHOLD = S_PREFIX + "compression.threshold";
+
+    /** Value of the "compression.threshold" property. */
+    public final int COMPRESSION_THRESHOLD;
+
+    /**
+     * The "compression.level" property is an integer property specifying the compression level, from 0 (none) to 9 (best), or -1
+     * for the default level of the algorithm. The default is "1", which is the fastest.
+     */
+    public static final String S_COMPRESSION_LEVEL = S_PREFIX + "compression.level";
+
+    /** Value of the "compression.level" property. */
+    public final int COMPRESSION_LEVEL;
+
     /**
      * The "steal.ignoreEmptyReplies" property is a boolean property determining whether empty steal replies should be given or
      * not. The default is "false".
@@ -243,7 +536,36 @@ public class ConstellationProperties extends Properties {
         STEAL_IGNORE_EMPTY_REPLIES = getBooleanProperty(S_STEAL_IGNORE_EMPTY_REPLIES, false);
         STEAL_SIZE = getIntProperty(S_STEAL_SIZE, 1);
         REMOTESTEAL_SIZE = getIntProperty(S_REMOTESTEAL_SIZE, 1);
+        STEAL_ADAPTIVE = getBooleanProperty(S_STEAL_ADAPTIVE, false);
+        REMOTESTEAL_BUDGET = getIntProperty(S_REMOTESTEAL_BUDGET, 1024 * 1024);
+        REMOTESTEAL_LOW_WATER_MARK = getIntProperty(S_REMOTESTEAL_LOW_WATER_MARK, 0);
+        REMOTESTEAL_PUSH_THRESHOLD = getIntProperty(S_REMOTESTEAL_PUSH_THRESHOLD, 0);
+        AFFINITY_TIMEOUT = getIntProperty(S_AFFINITY_TIMEOUT, 1000);
+        ROUTE_CACHE_SIZE = getIntProperty(S_ROUTE_CACHE_SIZE, 1024);
+        LOAD_SUMMARIES = getBooleanProperty(S_LOAD_SUMMARIES, false);
+        AGGREGATE_SIZE = getIntProperty(S_AGGREGATE_SIZE, 0);
+        AGGREGATE_DELAY = getIntProperty(S_AGGREGATE_DELAY, 100);
+        SENDQUEUE_DEPTH = getIntProperty(S_SENDQUEUE_DEPTH, 0);
+        SENDQUEUE_WRITERS = getIntProperty(S_SENDQUEUE_WRITERS, 2);
+        SENDQUEUE_BLOCK = getBooleanProperty(S_SENDQUEUE_BLOCK, true);
+        DISPATCH_THREADS = getIntProperty(S_DISPATCH_THREADS, 0);
+        DISPATCH_DEPTH = getIntProperty(S_DISPATCH_DEPTH, 1024);
+        LOCAL_LATENCY = getIntProperty(S_LOCAL_LATENCY, 0);
+        LOCAL_BANDWIDTH = getIntProperty(S_LOCAL_BANDWIDTH, 0);
+        COMMUNICATION = getProperty(S_COMMUNICATION, "ibis");
+        NIO_REGISTRY = getProperty(S_NIO_REGISTRY);
+        NIO_HOST = getProperty(S_NIO_HOST, "127.0.0.1");
+        NIO_SHM = getBooleanProperty(S_NIO_SHM, false);
+        NIO_SHM_DIRECTORY = getProperty(S_NIO_SHM_DIRECTORY, "/dev/shm");
+        NIO_SHM_SIZE = getIntProperty(S_NIO_SHM_SIZE, 1024 * 1024);
+        BYTEBUFFERS_REMAINING = getBooleanProperty(S_BYTEBUFFERS_REMAINING, false);
+        COMPRESSION = getProperty(S_COMPRESSION, "none");
+        COMPRESSION_THRESHOLD = getIntProperty(S_COMPRESSION_THRESHOLD, 4096);
+        COMPRESSION_LEVEL = getIntProperty(S_COMPRESSION_LEVEL, 1);
+        REMOTESTEAL_VICTIM = getProperty(S_REMOTESTEAL_VICTIM, "random");
+        REMOTESTEAL_HOPS = getIntProperty(S_REMOTESTEAL_HOPS, 0);
         STEALSTRATEGY = getProperty(S_STEALSTRATEGY, "pool");
+        STEALSTRATEGY_GROUPSIZE = getIntProperty(S_STEALSTRATEGY_GROUPSIZE, 0);
         REMOTESTEAL_TIMEOUT = getIntProperty(S_REMOTESTEAL_TIMEOUT, 5000);
         QUEUED_JOB_LIMIT = getIntProperty(S_QUEUED_JOB_LIMIT, 100);
         if (logger.isInfoEnabled()) {
@@ -265,7 +587,36 @@ public class ConstellationProperties extends Properties {
             logger.info("STEAL_IGNORE_EMPTY_REPLIES = " + STEAL_IGNORE_EMPTY_REPLIES);
             logger.info("STEAL_SIZE = " + STEAL_SIZE);
             logger.info("REMOTESTEAL_SIZE = " + REMOTESTEAL_SIZE);
+            logger.info("STEAL_ADAPTIVE = " + STEAL_ADAPTIVE);
+            logger.info("REMOTESTEAL_BUDGET = " + REMOTESTEAL_BUDGET);
+            logger.info("REMOTESTEAL_LOW_WATER_MARK = " + REMOTESTEAL_LOW_WATER_MARK);
+            logger.info("REMOTESTEAL_PUSH_THRESHOLD = " + REMOTESTEAL_PUSH_THRESHOLD);
+            logger.info("AFFINITY_TIMEOUT = " + AFFINITY_TIMEOUT);
+            logger.info("ROUTE_CACHE_SIZE = " + ROUTE_CACHE_SIZE);
+            logger.info("LOAD_SUMMARIES = " + LOAD_SUMMARIES);
+            logger.info("AGGREGATE_SIZE = " + AGGREGATE_SIZE);
+            logger.info("AGGREGATE_DELAY = " + AGGREGATE_DELAY);
+            logger.info("SENDQUEUE_DEPTH = " + SENDQUEUE_DEPTH);
+            logger.info("SENDQUEUE_WRITERS = " + SENDQUEUE_WRITERS);
+            logger.info("SENDQUEUE_BLOCK = " + SENDQUEUE_BLOCK);
+            logger.info("DISPATCH_THREADS = " + DISPATCH_THREADS);
+            logger.info("DISPATCH_DEPTH = " + DISPATCH_DEPTH);
+            logger.info("LOCAL_LATENCY = " + LOCAL_LATENCY);
+            logger.info("LOCAL_BANDWIDTH = " + LOCAL_BANDWIDTH);
+            logger.info("COMMUNICATION = " + COMMUNICATION);
+            logger.info("NIO_REGISTRY = " + NIO_REGISTRY);
+            logger.info("NIO_HOST = " + NIO_HOST);
+            logger.info("NIO_SHM = " + NIO_SHM);
+            logger.info("NIO_SHM_DIRECTORY = " + NIO_SHM_DIRECTORY);
+            logger.info("NIO_SHM_SIZE = " + NIO_SHM_SIZE);
+            logger.info("BYTEBUFFERS_REMAINING = " + BYTEBUFFERS_REMAINING);
+            logger.info("COMPRESSION = " + COMPRESSION);
+            logger.info("COMPRESSION_THRESHOLD = " + COMPRESSION_THRESHOLD);
+            logger.info("COMPRESSION_LEVEL = " + COMPRESSION_LEVEL);
+            logger.info("REMOTESTEAL_VICTIM = " + REMOTESTEAL_VICTIM);
+            logger.info("REMOTESTEAL_HOPS = " + REMOTESTEAL_HOPS);
             logger.info("STEALSTRATEGY = " + STEALSTRATEGY);
+            logger.info("STEALSTRATEGY_GROUPSIZE = " + STEALSTRATEGY_GROUPSIZE);
             logger.info("REMOTESTEAL_TIMEOUT = " + REMOTESTEAL_TIMEOUT);
             logger.info("QUEUED_JOB_LIMIT = " + QUEUED_JOB_LIMIT);
         }
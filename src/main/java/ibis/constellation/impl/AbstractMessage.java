@@ -28,6 +28,9 @@ public abstract class AbstractMessage implements Serializable {
 
     private transient boolean stale = false;
 
+    /** Load summary of the sending node, if any, piggybacked on the message. */
+    private LoadSummary load;
+
     protected AbstractMessage(final ConstellationIdentifierImpl source, final ConstellationIdentifierImpl target) {
         this.source = source;
         this.target = target;
@@ -59,6 +62,14 @@ public abstract class AbstractMessage implements Serializable {
         return old;
     }
 
+    public synchronized void setLoad(LoadSummary load) {
+        this.load = load;
+    }
+
+    public synchronized LoadSummary getLoad() {
+        return load;
+    }
+
     public ActivityIdentifierImpl targetActivity() {
         return null;
     }
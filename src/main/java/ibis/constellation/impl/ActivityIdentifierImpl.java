@@ -66,6 +66,15 @@ public final class ActivityIdentifierImpl implements ActivityIdentifier, Seriali
         return CID;
     }
 
+    /**
+     * Returns the sequence number of this activity on the constellation that created it.
+     *
+     * @return the sequence number.
+     */
+    long getSequenceNumber() {
+        return AID;
+    }
+
     /**
      * Checks if this activity identifier is actually generated by a constellation. If not, it throws an
      * {@link IllegalArgumentException}.
@@ -15,8 +15,12 @@
  */
 package ibis.constellation.impl;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -24,10 +28,12 @@ import org.slf4j.LoggerFactory;
 
 import ibis.constellation.AbstractContext;
 import ibis.constellation.Activity;
+import ibis.constellation.Affinity;
 import ibis.constellation.Constellation;
 import ibis.constellation.Event;
 import ibis.constellation.impl.util.CircularBuffer;
 import ibis.constellation.util.ByteBuffers;
+import ibis.constellation.util.ReceiveBuffers;
 
 public class ActivityRecord implements Serializable, ByteBuffers {
 
@@ -41,65 +47,126 @@ public class ActivityRecord implements Serializable, ByteBuffers {
     private static final int DONE = 5;
     private static final int ERROR = Integer.MAX_VALUE;
 
-    private final Activity activity;
-    private final ActivityIdentifierImpl identifier;
+    // Rough size of a serialized record without its byte buffers, used by estimatedSize().
+    private static final int ESTIMATED_OBJECT_SIZE = 512;
 
-    private final AbstractContext context;
+    // Written by writeObject, so that a codec registered for the class of the activity is used.
+    private transient Activity activity;
+    private ActivityIdentifierImpl identifier;
 
-    private final boolean mayBeStolen;
+    private AbstractContext context;
 
-    private final CircularBuffer<EventWrapper> queue;
+    private boolean mayBeStolen;
+    private boolean expectsEvents;
+    private Affinity affinity;
+
+    // When this record was created or arrived at this node, used to let strongly affine activities go after a while.
+    private transient long since;
+
+    // Allocated lazily when the first event arrives, and kept when the record is recycled.
+    private CircularBuffer<Event> queue;
     private int state = INITIALIZING;
 
+    // The queued event holding the receive buffers of this activity, and the token under which it holds them. Only one event
+    // can hold them at a time.
+    private transient Event receiveEvent;
+    private transient long receiveToken;
+
     private boolean stolen = false;
     private boolean relocated = false;
     private boolean remote = false;
 
-    private static class EventWrapper implements ByteBuffers, Serializable {
-
-        private static final long serialVersionUID = 1051677223714686496L;
+    // The constellations this activity left, which forward events to it until it has finished. Allocated lazily.
+    private ArrayList<ConstellationIdentifierImpl> forwarders;
 
-        public final Event event;
+    ActivityRecord(Activity activity, ActivityIdentifierImpl id) {
+        init(activity, id);
+    }
 
-        public EventWrapper(Event event) {
-            this.event = event;
-        }
+    /**
+     * (Re-)initializes this record for the specified activity. Used by the constructor, and by {@link ActivityRecordCache} when a
+     * record of a finished activity is reused.
+     *
+     * @param activity
+     *            the activity
+     * @param id
+     *            the identifier of the activity
+     */
+    void init(Activity activity, ActivityIdentifierImpl id) {
+        this.activity = activity;
+        this.identifier = id;
+        this.context = activity.getContext();
+        this.mayBeStolen = activity.mayBeStolen();
+        this.expectsEvents = activity.expectsEvents();
+        this.affinity = activity.getAffinity();
+        since = System.nanoTime();
+
+        state = INITIALIZING;
+        stolen = false;
+        relocated = false;
+        remote = false;
+        forwarders = null;
+        receiveEvent = null;
+        receiveToken = 0;
+    }
 
-        @Override
-        public void pushByteBuffers(List<ByteBuffer> list) {
-            Object tmp = event.getData();
+    /**
+     * Drops all references held by this record, so that it can be kept in an {@link ActivityRecordCache} without keeping the
+     * activity alive.
+     */
+    void clear() {
+        activity = null;
+        identifier = null;
+        context = null;
+        affinity = null;
+        forwarders = null;
+        receiveEvent = null;
 
-            if (tmp != null && tmp instanceof ByteBuffers) {
-                ((ByteBuffers) tmp).pushByteBuffers(list);
+        if (queue != null) {
+            while (queue.size() > 0) {
+                queue.removeFirst();
             }
         }
+    }
 
-        @Override
-        public void popByteBuffers(List<ByteBuffer> list) {
-            Object tmp = event.getData();
-
-            if (tmp != null && tmp instanceof ByteBuffers) {
-                ((ByteBuffers) tmp).popByteBuffers(list);
-            }
+    /**
+     * Queues a received event, which holds the receive buffers of this activity under the specified token. The buffers are
+     * released once the event is processed.
+     *
+     * @param e
+     *            the event
+     * @param receiveToken
+     *            the token from {@link ReceiveBuffers#acquire}, or 0 if the event holds no receive buffers
+     */
+    public void enqueue(Event e, long receiveToken) {
+        enqueue(e);
+
+        if (receiveToken != 0) {
+            this.receiveToken = receiveToken;
+            receiveEvent = e;
         }
     }
 
-    ActivityRecord(Activity activity, ActivityIdentifierImpl id) {
-        this.activity = activity;
-        this.identifier = id;
-        this.context = activity.getContext();
-        this.mayBeStolen = activity.mayBeStolen();
+    private void releaseReceiveBuffers(Event e) {
+        if (receiveEvent == e) {
+            releaseReceiveBuffers();
+        }
+    }
 
-        if (activity.expectsEvents()) {
-            queue = new CircularBuffer<EventWrapper>(4);
-        } else {
-            queue = null;
+    /**
+     * Releases the receive buffers held by a queued event, for instance because the record leaves this node.
+     */
+    void releaseReceiveBuffers() {
+        if (receiveEvent != null) {
+            ReceiveBuffers.release(identifier, receiveToken);
+            receiveEvent = null;
+            receiveToken = 0;
         }
     }
 
     public void enqueue(Event e) {
 
-        if (queue == null) {
+        if (!expectsEvents) {
             throw new IllegalStateException("Activity does not expect events");
         }
 
@@ -112,29 +179,33 @@ public class ActivityRecord implements Serializable, ByteBuffers {
                     "Cannot deliver an event to a finished activity! " + activity + " (event from " + e.getSource() + ")");
         }
 
-        queue.insertLast(new EventWrapper(e));
+        if (queue == null) {
+            queue = new CircularBuffer<Event>(4);
+        }
+
+        queue.insertLast(e);
     }
 
     public Event dequeue() {
 
-        if (queue == null) {
+        if (!expectsEvents) {
             throw new IllegalStateException("Activity does not expect events");
         }
 
-        if (queue.size() == 0) {
+        if (queue == null || queue.size() == 0) {
             return null;
         }
 
-        return queue.removeFirst().event;
+        return queue.removeFirst();
     }
 
     public int pendingEvents() {
 
-        if (queue == null) {
+        if (!expectsEvents) {
             throw new IllegalStateException("Activity does not expect events");
         }
 
-        return queue.size();
+        return queue == null ? 0 : queue.size();
     }
 
     public ActivityIdentifierImpl identifier() {
@@ -173,6 +244,58 @@ public class ActivityRecord implements Serializable, ByteBuffers {
         return relocated;
     }
 
+    /**
+     * Registers that the specified constellation forwards events to this activity, because the activity left it.
+     *
+     * @param cid
+     *            the constellation
+     */
+    public void addForwarder(ConstellationIdentifierImpl cid) {
+        if (forwarders == null) {
+            forwarders = new ArrayList<ConstellationIdentifierImpl>(2);
+        } else if (forwarders.contains(cid)) {
+            return;
+        }
+        forwarders.add(cid);
+    }
+
+    /**
+     * Registers that the specified constellation no longer forwards events to this activity, because the activity was returned
+     * to it.
+     *
+     * @param cid
+     *            the constellation
+     */
+    public void removeForwarder(ConstellationIdentifierImpl cid) {
+        if (forwarders != null && forwarders.remove(cid) && forwarders.isEmpty()) {
+            forwarders = null;
+        }
+    }
+
+    /**
+     * Returns the constellations that forward events to this activity, and forgets them.
+     *
+     * @return the forwarding constellations, or <code>null</code> if there are none
+     */
+    public List<ConstellationIdentifierImpl> takeForwarders() {
+        List<ConstellationIdentifierImpl> tmp = forwarders;
+        forwarders = null;
+        return tmp;
+    }
+
+    public Affinity getAffinity() {
+        return affinity;
+    }
+
+    /**
+     * Returns the time this record was created, or arrived at this node, as given by {@link System#nanoTime()}.
+     *
+     * @return the time this record has been here since
+     */
+    public long getSince() {
+        return since;
+    }
+
     public boolean isRestrictedToLocal() {
         return !mayBeStolen;
     }
@@ -242,6 +365,7 @@ public class ActivityRecord implements Serializable, ByteBuffers {
                 }
 
                 nextState = activity.process(c, e);
+                releaseReceiveBuffers(e);
 
                 if (nextState == Activity.SUSPEND) {
                     // We only suspend the job if there are no pending events.
@@ -318,7 +442,13 @@ public class ActivityRecord implements Serializable, ByteBuffers {
     @Override
     public void pushByteBuffers(List<ByteBuffer> list) {
         if (queue != null) {
-            queue.pushByteBuffers(list);
+            for (int i = 0; i < queue.size(); i++) {
+                Object tmp = queue.get(i).getData();
+
+                if (tmp != null && tmp instanceof ByteBuffers) {
+                    ((ByteBuffers) tmp).pushByteBuffers(list);
+                }
+            }
         }
         if (activity != null && activity instanceof ByteBuffers) {
             ((ByteBuffers) activity).pushByteBuffers(list);
@@ -328,13 +458,52 @@ public class ActivityRecord implements Serializable, ByteBuffers {
     @Override
     public void popByteBuffers(List<ByteBuffer> list) {
         if (queue != null) {
-            queue.popByteBuffers(list);
+            for (int i = 0; i < queue.size(); i++) {
+                Object tmp = queue.get(i).getData();
+
+                if (tmp != null && tmp instanceof ByteBuffers) {
+                    ((ByteBuffers) tmp).popByteBuffers(list);
+                }
+            }
         }
         if (activity != null && activity instanceof ByteBuffers) {
             ((ByteBuffers) activity).popByteBuffers(list);
         }
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        MessageCodec.writePayload(out, activity);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        activity = (Activity) MessageCodec.readPayload(in);
+        since = System.nanoTime();
+    }
+
+    /**
+     * Returns an estimate of the number of bytes needed to send this record to another node. The byte buffers of the activity
+     * and its pending events are counted exactly, the serialized objects are counted as a fixed amount.
+     *
+     * @return the estimated size in bytes
+     */
+    long estimatedSize() {
+
+        long size = ESTIMATED_OBJECT_SIZE;
+
+        if (activity instanceof ByteBuffers || (queue != null && queue.size() > 0)) {
+            ArrayList<ByteBuffer> list = new ArrayList<ByteBuffer>();
+            pushByteBuffers(list);
+
+            for (ByteBuffer b : list) {
+                size += b.capacity();
+            }
+        }
+
+        return size;
+    }
+
     //    public Activity getActivity() {
     //        return activity;
     //    }
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import ibis.constellation.Activity;
+
+/**
+ * A bounded free list of {@link ActivityRecord}s of finished activities, so that they can be reused for new activities. Each
+ * executor has its own cache, which is only accessed by the executor thread. This class is therefore not thread-safe.
+ */
+class ActivityRecordCache {
+
+    /** The default maximum number of records kept. */
+    static final int DEFAULT_SIZE = 64;
+
+    private final ActivityRecord[] free;
+
+    private int count;
+
+    private long created;
+    private long reused;
+
+    ActivityRecordCache(int size) {
+        free = new ActivityRecord[size];
+    }
+
+    ActivityRecordCache() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * Returns an initialized record for the specified activity, reusing a cached one when available.
+     *
+     * @param activity
+     *            the activity
+     * @param id
+     *            the identifier of the activity
+     * @return the activity record
+     */
+    ActivityRecord get(Activity activity, ActivityIdentifierImpl id) {
+
+        if (count == 0) {
+            created++;
+            return new ActivityRecord(activity, id);
+        }
+
+        ActivityRecord ar = free[--count];
+        free[count] = null;
+        ar.init(activity, id);
+        reused++;
+        return ar;
+    }
+
+    /**
+     * Returns the record of a finished activity to the cache. The record may no longer be referenced by the caller.
+     *
+     * @param ar
+     *            the record to recycle
+     * @return whether the record was added to the cache
+     */
+    boolean put(ActivityRecord ar) {
+
+        if (!ar.isDone()) {
+            throw new IllegalStateException("INTERNAL ERROR: recycling activity record that is not done");
+        }
+
+        if (count == free.length) {
+            return false;
+        }
+
+        ar.clear();
+        free[count++] = ar;
+        return true;
+    }
+
+    int size() {
+        return count;
+    }
+
+    long getCreated() {
+        return created;
+    }
+
+    long getReused() {
+        return reused;
+    }
+}
@@ -16,7 +16,6 @@
 package ibis.constellation.impl;
 
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Random;
 
 import org.slf4j.Logger;
@@ -37,6 +36,7 @@ import ibis.constellation.OrContext;
 import ibis.constellation.StealPool;
 import ibis.constellation.impl.pool.Pool;
 import ibis.constellation.impl.pool.PoolCreationFailedException;
+import ibis.constellation.impl.pool.communication.CommunicationLayerFactory;
 import ibis.constellation.impl.util.Profiling;
 
 /**
@@ -70,6 +70,9 @@ public class DistributedConstellation {
     /** Don't steal (no-)steal strategy. */
     private static final int STEAL_NONE = 3;
 
+    /** Maximum number of times a remote steal request may be forwarded. */
+    private final int REMOTE_STEAL_HOPS;
+
     /** Whether remote steals are to be throttled. */
     private final boolean REMOTE_STEAL_THROTTLE;
 
@@ -79,6 +82,30 @@ public class DistributedConstellation {
     /** Timeout for remote steal attempts. */
     private final long REMOTE_STEAL_TIMEOUT;
 
+    /** Minimum time between two idle advertisements of the same executor, in milliseconds. */
+    private static final long IDLE_ADVERTISE_INTERVAL = 1000;
+
+    /** Whether idle executors are advertised, so that overloaded nodes can push work to them. */
+    private final boolean PUSH_WORK;
+
+    /** Idle advertisements of remote executors. */
+    private final IdleNodes idleNodes = new IdleNodes(2 * IDLE_ADVERTISE_INTERVAL);
+
+    /** Time of the last idle advertisement, per local executor. */
+    private final HashMap<ConstellationIdentifierImpl, Long> advertised = new HashMap<ConstellationIdentifierImpl, Long>();
+
+    /** Minimum time between two computations of our load summary, in milliseconds. */
+    private static final long LOAD_REFRESH_INTERVAL = 10;
+
+    /** Whether load summaries are piggybacked on outgoing messages. */
+    private final boolean LOAD_SUMMARIES;
+
+    /** The most recent load summaries of other nodes. */
+    private final LoadTable loadTable = new LoadTable();
+
+    /** Our most recent load summary. */
+    private volatile LoadSummary currentLoad;
+
     /** Whether we have been activated. */
     private boolean active;
 
@@ -183,167 +210,86 @@ public class DistributedConstellation {
     /**
      * A <code>DeliveryThread</code> is a thread object dealing with delayed delivery of event messages.
      *
-     * Internally, the delivery thread uses two linked lists which are used to add messages that are to be sent. Only one of these
-     * is used to append messages to, the other is used to actually send messages out. When the delivery thread wakes up, it
-     * switches the lists, so that new messages get appended to the other list, while the first list gets processed.
+     * Messages that could not be delivered are kept in per-destination queues (see {@link PendingEventQueues}). The delivery
+     * thread sleeps until one of these queues is due, which is immediately when the rank of the destination gets resolved or a
+     * message to it gets through, and only after a (bounded) backoff when sending to it failed.
      */
     private class DeliveryThread extends Thread {
 
-        /** The minimum delay. */
+        /** The minimum delay after a failed send. */
         private final static long MIN_DELAY = 50;
 
-        /** The maximum delay. */
+        /** The maximum delay after failed sends. */
         private final static long MAX_DELAY = MIN_DELAY * 16;
 
-        /** Event message list for incoming messages. */
-        private LinkedList<EventMessage> incoming = new LinkedList<EventMessage>();
-
-        /**
-         * Event message list for messages about to be sent. Only to be touched by the delivery thread.
-         */
-        private LinkedList<EventMessage> outgoing = new LinkedList<EventMessage>();
+        /** The delay after which a rank lookup is retried, in case the lookup reply got lost. */
+        private final static long LOOKUP_DELAY = MAX_DELAY;
 
-        /** Messages that could not be sent yet. */
-        private final LinkedList<EventMessage> old = new LinkedList<EventMessage>();
+        /** The number of consecutive send failures after which we start complaining. */
+        private final static int WARN_FAILURES = 10;
 
-        /** The current deadline. */
-        private long deadline = 0;
+        /** The number of consecutive send failures after which the work in a waiting steal reply is reclaimed. */
+        private final static int STEAL_REPLY_FAILURES = 4;
 
-        /** The current delay. */
-        private long currentDelay = MIN_DELAY;
+        private final PendingEventQueues pending = new PendingEventQueues(MIN_DELAY, MAX_DELAY, LOOKUP_DELAY);
 
         /**
-         * Creates and starts a <code>Delivery</code> object as a daemon thread.
+         * Creates a <code>DeliveryThread</code> object as a daemon thread.
          */
         DeliveryThread() {
             super("EventMessage DeliveryThread");
             setDaemon(true);
-            deadline = System.currentTimeMillis() + MIN_DELAY;
-        }
-
-        /**
-         * Appends an event message to the incoming queue.
-         *
-         * It also resets the deadline when it is higher than the minimum delay.
-         *
-         * @param m
-         *            the event message to append.
-         */
-        private synchronized void enqueue(EventMessage m) {
-            incoming.addLast(m);
-
-            // reset the deadline when new messages have been added.
-            currentDelay = MIN_DELAY;
-            long tmp = System.currentTimeMillis() + currentDelay;
-
-            if (tmp < deadline) {
-                deadline = tmp;
-                notifyAll();
-            }
         }
 
         /**
-         * Swaps the incoming and outgoing lists.
+         * Sends out the pending messages for the specified node, in order, until a send fails.
          *
-         * The outgoing list is supposed to be empty so can serve as new incoming list. Note that the delivery thread is the only
-         * one touching the outgoing list.
-         *
-         * @return the new outgoing list.
+         * @param rank
+         *            the rank of the node
          */
-        private synchronized LinkedList<EventMessage> swap() {
-            LinkedList<EventMessage> tmp = incoming;
-            incoming = outgoing;
-            outgoing = tmp;
-            assert (incoming.size() == 0);
+        private void flush(int rank) {
 
-            return tmp;
-        }
+            AbstractMessage m = pending.peek(rank);
 
-        /**
-         * Makes the delivery thread wait until the current deadline.
-         */
-        private synchronized void waitForDeadline() {
+            while (m != null) {
 
-            long t = deadline - System.currentTimeMillis();
+                final boolean sent;
 
-            while (t > 0) {
-                try {
-                    wait(t);
-                } catch (Exception e) {
-                    // ignore
+                if (m instanceof StealReply) {
+                    sent = pool.forward((StealReply) m);
+                } else {
+                    sent = pool.forward((EventMessage) m);
                 }
 
-                t = deadline - System.currentTimeMillis();
-            }
-        }
-
-        /**
-         * Determines the new deadline. Needs to be synchronized because {@link #enqueue(EventMessage)} also uses
-         * {@link #currentDelay} and {@link #deadline}.
-         */
-        private synchronized void determineDeadline() {
+                if (!sent) {
+                    boolean unresolved = !pool.isKnown(m.target);
+                    int failures = pending.failed(rank, unresolved, System.currentTimeMillis());
 
-            currentDelay = currentDelay * 2;
-
-            if (currentDelay > MAX_DELAY) {
-                currentDelay = MAX_DELAY;
-            }
-
-            deadline += currentDelay;
-        }
-
-        /**
-         * Tries to send all event messages from the specified list.
-         *
-         * When a message is sent successfully, it is removed from the list.
-         *
-         * @param l
-         *            the list of event messages
-         * @return the number of event messages successfully sent.
-         */
-        private int attemptSend(LinkedList<EventMessage> l) {
-
-            final int size = l.size();
-
-            if (size == 0) {
-                return 0;
-            }
-
-            for (int i = 0; i < size; i++) {
-                EventMessage m = l.removeFirst();
+                    if (m instanceof StealReply && failures >= STEAL_REPLY_FAILURES) {
+                        // Do not keep the work from others any longer.
+                        pending.remove(rank);
+                        stealReplyNotSent((StealReply) m);
+                        m = pending.peek(rank);
+                        continue;
+                    }
 
-                if (!handleApplicationMessage(m, false)) {
-                    l.addLast(m);
+                    if (failures >= WARN_FAILURES && logger.isWarnEnabled()) {
+                        logger.warn("Failed to deliver message to remote constellation " + m.target + " " + failures
+                                + " times (will retry)");
+                    }
+                    return;
                 }
-            }
 
-            return (size - l.size());
+                pending.remove(rank);
+                m = pending.peek(rank);
+            }
         }
 
         @Override
         public void run() {
 
             while (true) {
-
-                waitForDeadline();
-
-                // First try to send any old messages that are still pending.
-                attemptSend(old);
-
-                // Next, get any new messages we've obtained and try to send
-                // them.
-                LinkedList<EventMessage> incoming = swap();
-                attemptSend(incoming);
-
-                if (incoming.size() > 0) {
-                    // If we have any new message left, they are now appended to
-                    // old
-                    old.addAll(incoming);
-                    incoming.clear();
-                }
-
-                // Increment the delay and determine new deadline
-                determineDeadline();
+                flush(pending.waitForDue());
             }
         }
     }
@@ -433,6 +379,26 @@ public class DistributedConstellation {
      */
     public DistributedConstellation(ConstellationProperties props, ConstellationConfiguration[] c)
             throws ConstellationCreationException {
+        this(props, null, c);
+    }
+
+    /**
+     * Creates a <code>DistributedConstellation</code> that communicates through a communication layer created by the specified
+     * factory, for instance a node of a {@link ibis.constellation.impl.pool.communication.local.LocalNetwork}.
+     *
+     * @param props
+     *            the properties to use
+     * @param network
+     *            creates the communication layer, or <code>null</code> for the Ibis based communication layer
+     * @param c
+     *            the constellation configurations to use.
+     * @throws ConstellationCreationException
+     *             is thrown when the communication pool could not be created for some reason
+     * @throws IllegalArgumentException
+     *             is thrown when a property value is not recognized
+     */
+    public DistributedConstellation(ConstellationProperties props, CommunicationLayerFactory network,
+            ConstellationConfiguration[] c) throws ConstellationCreationException {
 
         String stealName = props.STEALSTRATEGY;
 
@@ -451,6 +417,12 @@ public class DistributedConstellation {
 
         REMOTE_STEAL_TIMEOUT = props.REMOTESTEAL_TIMEOUT;
 
+        REMOTE_STEAL_HOPS = props.REMOTESTEAL_HOPS;
+
+        PUSH_WORK = props.REMOTESTEAL_PUSH_THRESHOLD > 0;
+
+        LOAD_SUMMARIES = props.LOAD_SUMMARIES;
+
         PROFILE = props.PROFILE;
 
         PROFILE_OUTPUT = props.PROFILE_OUTPUT;
@@ -459,12 +431,13 @@ public class DistributedConstellation {
 
         // Init communication here...
         try {
-            pool = new Pool(this, props);
+            // Created before the pool, which may report resolved ranks right away.
+            delivery = new DeliveryThread();
+            pool = new Pool(this, props, network);
             cidFactory = new ConstellationIdentifierFactory(pool.getRank());
             identifier = cidFactory.generateConstellationIdentifier();
             profiling = new Profiling(pool.getId());
 
-            delivery = new DeliveryThread();
             delivery.start();
 
             if (logger.isInfoEnabled()) {
@@ -651,6 +624,63 @@ public class DistributedConstellation {
         subConstellation.deliverEventMessage(re);
     }
 
+    /**
+     * Returns whether an event message that arrives from another node will be delivered to its target activity here, so that its
+     * byte buffers may be read into the receive buffers of that activity.
+     *
+     * @param m
+     *            the event message
+     * @return whether the target activity is here
+     */
+    public boolean isDeliveredHere(EventMessage m) {
+        return subConstellation.isDeliveredHere(m);
+    }
+
+    /**
+     * Deals with a location update delivered by the network (i.e. another node), by passing it on to the sub-constellation below.
+     *
+     * @param lu
+     *            the location update.
+     */
+    public void deliverLocationUpdate(LocationUpdate lu) {
+        subConstellation.deliverLocationUpdate(lu);
+    }
+
+    /**
+     * Sends a location update from the sub-constellation below to another node. Location updates are only hints, so one that
+     * cannot be sent is dropped.
+     *
+     * @param lu
+     *            the location update.
+     */
+    public void handleLocationUpdate(LocationUpdate lu) {
+        if (!pool.forward(lu) && logger.isDebugEnabled()) {
+            logger.debug("Failed to forward " + lu + " (dropped)");
+        }
+    }
+
+    /**
+     * Attempts to forward a remote steal request that the sub-constellation below cannot satisfy to another node, instead of
+     * replying to it.
+     *
+     * @param sr
+     *            the steal request.
+     * @return whether the request was forwarded, in which case we must not reply to it.
+     */
+    public boolean forwardStealRequest(StealRequest sr) {
+
+        if (stealStrategy == STEAL_MASTER) {
+            // Climb the master-worker tree, if there is one.
+            return !pool.isTerminated() && pool.forwardUpTree(sr);
+        }
+
+        if (stealStrategy != STEAL_POOL || sr.getHops() >= REMOTE_STEAL_HOPS || pool.isTerminated()) {
+            return false;
+        }
+
+        return pool.forwardStealRequest(sr.pool.randomlySelectPool(random), sr);
+    }
+
     private boolean dropSteal(StealRequest sr) {
         if (stealStrategy == STEAL_NONE) {
             // drop steal request
@@ -703,6 +733,41 @@ public class DistributedConstellation {
             }
         }
 
+        sendStealRequest(sr, sp);
+    }
+
+    /**
+     * Deals with an early steal request from the sub-constellation below, sent because the amount of queued work dropped below
+     * the low-water mark.
+     *
+     * Unlike a regular steal request, this one is always throttled, also when remote steal throttling is off: it is only sent
+     * when there is no steal outstanding for the same steal pool and context. A regular steal request (when throttled) will in
+     * turn not be sent while a prefetch is outstanding.
+     *
+     * @param sr
+     *            the steal request.
+     */
+    public void prefetchSteal(StealRequest sr) {
+
+        if (dropSteal(sr)) {
+            return;
+        }
+
+        StealPool sp = sr.pool.randomlySelectPool(random);
+
+        if (setPendingSteal(sp, sr.context, true)) {
+            return;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("D PREFETCH steal request from child " + sr.source + " to pool " + sp.getTag());
+        }
+
+        sendStealRequest(sr, sp);
+    }
+
+    private void sendStealRequest(StealRequest sr, StealPool sp) {
+
         if (stealStrategy == STEAL_MASTER) {
             if (pool.forwardToMaster(sr)) {
                 if (logger.isDebugEnabled()) {
@@ -722,9 +787,127 @@ public class DistributedConstellation {
                 // Could not send steal request, so reset slot
                 setPendingSteal(sp, sr.context, false);
             }
+
+            if (PUSH_WORK) {
+                advertiseIdle(sr, sp);
+            }
         } else {
             logger.error("D STEAL REQUEST unknown stealStrategy strategy " + stealStrategy);
         }
+
+        // An executor is running out of work, so don't hold back any messages.
+        pool.flush();
+    }
+
+    private void advertiseIdle(StealRequest sr, StealPool sp) {
+
+        final long now = System.currentTimeMillis();
+
+        synchronized (advertised) {
+            Long last = advertised.get(sr.source);
+
+            if (last != null && now - last.longValue() < IDLE_ADVERTISE_INTERVAL) {
+                return;
+            }
+
+            advertised.put(sr.source, now);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("D IDLE advertisement for child " + sr.source + " to POOL " + sp.getTag());
+        }
+
+        pool.advertiseIdle(sp, sr);
+    }
+
+    /**
+     * Deals with an idle advertisement delivered by the network (i.e. another node), by remembering it until work is pushed to the
+     * advertised executor, or the advertisement expires.
+     *
+     * @param sr
+     *            the steal request of the idle executor.
+     */
+    public void deliverIdleAdvertisement(StealRequest sr) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("D REMOTE IDLE advertisement from constellation " + sr.source + " context " + sr.context);
+        }
+
+        idleNodes.add(sr, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the oldest idle advertisement of a remote executor that has not expired yet, for pushing work to it. If no work is
+     * pushed after all, it should be handed back with {@link #returnIdleNode(IdleNodes.Advertisement)}.
+     *
+     * @return the advertisement, or <code>null</code> if there is none.
+     */
+    IdleNodes.Advertisement takeIdleNode() {
+        if (idleNodes.isEmpty()) {
+            return null;
+        }
+        return idleNodes.take(System.currentTimeMillis());
+    }
+
+    /**
+     * Hands back an idle advertisement obtained with {@link #takeIdleNode()} to which no work was pushed.
+     *
+     * @param a
+     *            the advertisement.
+     */
+    void returnIdleNode(IdleNodes.Advertisement a) {
+        idleNodes.offer(a);
+    }
+
+    /**
+     * Returns the table with the most recent load summaries of other nodes, as piggybacked on the messages they sent us. The
+     * table is only filled when load summaries are enabled.
+     *
+     * @return the load table.
+     */
+    public LoadTable getLoadTable() {
+        return loadTable;
+    }
+
+    /**
+     * Piggybacks our load summary on a message that is about to be sent to another node, if load summaries are enabled.
+     *
+     * @param m
+     *            the message.
+     */
+    public void attachLoad(AbstractMessage m) {
+
+        if (!LOAD_SUMMARIES || subConstellation == null) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+
+        LoadSummary tmp = currentLoad;
+
+        if (tmp == null || now - tmp.getTimestamp() >= LOAD_REFRESH_INTERVAL) {
+            tmp = subConstellation.loadSummary(pool.getRank(), now);
+            currentLoad = tmp;
+        }
+
+        m.setLoad(tmp);
+    }
+
+    /**
+     * Merges the load summary piggybacked on a message received from another node, if any, into the load table.
+     *
+     * @param m
+     *            the message.
+     */
+    public void gotLoad(AbstractMessage m) {
+
+        final LoadSummary tmp = m.getLoad();
+
+        if (tmp != null) {
+            if (logger.isTraceEnabled()) {
+                logger.trace("D got " + tmp);
+            }
+            loadTable.merge(tmp);
+        }
     }
 
     /**
@@ -751,7 +934,12 @@ public class DistributedConstellation {
         // }
         assert (!cidFactory.isLocal(target));
 
-        if (pool.forward(m)) {
+        final PendingEventQueues pending = delivery.pending;
+
+        // Messages for a node that still has pending messages are queued behind those, to preserve their order.
+        final boolean queued = pending.hasPending(target.getNodeId());
+
+        if (!queued && pool.forward(m)) {
             return true;
         }
 
@@ -759,7 +947,15 @@ public class DistributedConstellation {
             if (logger.isDebugEnabled()) {
                 logger.debug("Failed to forward message to remote constellation " + target + " (will retry!)");
             }
-            delivery.enqueue(m);
+
+            final boolean unresolved = !queued && !pool.isKnown(target);
+
+            pending.add(m, unresolved, System.currentTimeMillis());
+
+            if (unresolved && pool.isKnown(target)) {
+                // The rank got resolved while we were adding the message.
+                pending.ready(target.getNodeId());
+            }
             return true;
         }
 
@@ -769,6 +965,51 @@ public class DistributedConstellation {
         return false;
     }
 
+    /**
+     * Deals with an event message that was held back by the communication layer to be combined with other messages, and could not
+     * be sent after all. It is retried like any other event message that could not be sent.
+     *
+     * @param m
+     *            the event message
+     */
+    public void eventNotSent(EventMessage m) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Failed to send aggregated message to remote constellation " + m.target + " (will retry!)");
+        }
+
+        delivery.pending.add(m, false, System.currentTimeMillis());
+    }
+
+    /**
+     * Deals with a steal reply that was queued by the communication layer and could not be sent after all. Any work in it is
+     * reclaimed, as if the send had failed right away.
+     *
+     * @param m
+     *            the steal reply
+     */
+    public void stealReplyNotSent(StealReply m) {
+        if (m.isEmpty()) {
+            return;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Failed to send queued steal reply to " + m.target + " (reclaiming work)");
+        }
+
+        subConstellation.reclaim(m.getWork());
+    }
+
+    /**
+     * Informs this constellation that the node with the specified rank has become reachable, because its rank was resolved. Any
+     * event messages waiting for this node are sent out right away.
+     *
+     * @param rank
+     *            the rank of the node
+     */
+    public void rankResolved(int rank) {
+        delivery.pending.ready(rank);
+    }
+
     /**
      * Receives a steal reply from below, and forwards it to the pool.
      *
@@ -788,7 +1029,27 @@ public class DistributedConstellation {
         // Sanity check
         assert (!cidFactory.isLocal(target));
 
-        if (!pool.forward(m)) {
+        if (pool.forward(m)) {
+            // The connection works, so any pending messages for this node can go out now.
+            delivery.pending.ready(target.getNodeId());
+
+            if (!m.isEmpty()) {
+                // No need to push work to it anymore.
+                idleNodes.remove(target);
+            }
+        } else if (!m.isEmpty() && !pool.isKnown(target)) {
+            // The rank of the thief, which may have sent its request through another node, is being resolved. Let the
+            // reply wait for it for a while, instead of reclaiming the work right away.
+            if (logger.isDebugEnabled()) {
+                logger.debug("Steal reply to " + target + " waits for its rank to be resolved");
+            }
+            delivery.pending.add(m, true, System.currentTimeMillis());
+
+            if (pool.isKnown(target)) {
+                // The rank got resolved while we were adding the reply.
+                delivery.pending.ready(target.getNodeId());
+            }
+        } else {
             // If the send fails we reclaim the work.
 
             if (!m.isEmpty()) {
@@ -20,6 +20,7 @@ import java.util.List;
 
 import ibis.constellation.Event;
 import ibis.constellation.util.ByteBuffers;
+import ibis.constellation.util.ReceiveBuffers;
 
 public class EventMessage extends AbstractMessage implements ByteBuffers {
 
@@ -27,6 +28,12 @@ public class EventMessage extends AbstractMessage implements ByteBuffers {
 
     public final Event event;
 
+    /** Whether this message was forwarded, because its target activity was no longer where the message was sent. */
+    private boolean redirected = false;
+
+    /** The token under which the receive buffers of the target activity are held by this message, or 0. */
+    private transient long receiveToken = 0;
+
     public EventMessage(final ConstellationIdentifierImpl source, final ConstellationIdentifierImpl target, final Event e) {
         super(source, target);
         
@@ -37,6 +44,41 @@ public class EventMessage extends AbstractMessage implements ByteBuffers {
         this.event = e;
     }
 
+    public synchronized void setRedirected() {
+        redirected = true;
+    }
+
+    public synchronized boolean isRedirected() {
+        return redirected;
+    }
+
+    public synchronized void setReceiveToken(long token) {
+        receiveToken = token;
+    }
+
+    /**
+     * Returns the token under which this message holds the receive buffers of its target activity, and hands that token over to
+     * the caller, which becomes responsible for releasing the buffers.
+     *
+     * @return the token, or 0 if the message holds no receive buffers
+     */
+    public synchronized long takeReceiveToken() {
+        long token = receiveToken;
+        receiveToken = 0;
+        return token;
+    }
+
+    /**
+     * Releases the receive buffers of the target activity held by this message, if any. Called when the message is passed on to
+     * another node after all.
+     */
+    public void releaseReceiveBuffers() {
+        long token = takeReceiveToken();
+        if (token != 0) {
+            ReceiveBuffers.release(event.getTarget(), token);
+        }
+    }
+
     @Override
     public String toString() {
         return "EventMessage: " + super.toString();
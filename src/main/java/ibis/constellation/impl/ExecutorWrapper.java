@@ -32,6 +32,7 @@ import ibis.constellation.Event;
 import ibis.constellation.NoSuitableExecutorException;
 import ibis.constellation.StealPool;
 import ibis.constellation.StealStrategy;
+import ibis.constellation.impl.util.ActivityFilter;
 import ibis.constellation.impl.util.CircularBuffer;
 import ibis.constellation.impl.util.SimpleWorkQueue;
 import ibis.constellation.impl.util.WorkQueue;
@@ -66,6 +67,9 @@ public class ExecutorWrapper implements Constellation {
     private CircularBuffer<ActivityRecord> runnable = new CircularBuffer<ActivityRecord>(1);
     private CircularBuffer<ActivityRecord> relocated = new CircularBuffer<ActivityRecord>(1);
 
+    // Records of finished activities, reused for new submissions from the executor thread.
+    private final ActivityRecordCache recordCache = new ActivityRecordCache();
+
     private long activityCounter = 0;
 
     private final TimerImpl initializeTimer;
@@ -191,7 +195,9 @@ public class ExecutorWrapper implements Constellation {
         ActivityIdentifierImpl id = createActivityID(activity.expectsEvents());
         activity.setIdentifier(id);
 
-        ActivityRecord ar = new ActivityRecord(activity, id);
+        // The record cache is only touched by our own executor thread. Submissions from elsewhere (e.g. the main program)
+        // get a fresh record.
+        ActivityRecord ar = Thread.currentThread() == parent ? recordCache.get(activity, id) : new ActivityRecord(activity, id);
 
         boolean match = ContextMatch.match(myContext, activity.getContext());
 
@@ -285,12 +291,25 @@ public class ExecutorWrapper implements Constellation {
     }
 
     public boolean queueEvent(Event e) {
+        return queueEvent(e, 0);
+    }
+
+    /**
+     * Queues a received event for its target activity, if that activity is here.
+     *
+     * @param e
+     *            the event
+     * @param receiveToken
+     *            the token under which the event holds the receive buffers of its target, or 0
+     * @return whether the event was queued
+     */
+    public boolean queueEvent(Event e, long receiveToken) {
 
         ActivityRecord ar = lookup.get(e.getTarget());
 
         if (ar != null) {
 
-            ar.enqueue(e);
+            ar.enqueue(e, receiveToken);
 
             boolean change = ar.setRunnable();
 
@@ -306,8 +325,50 @@ public class ExecutorWrapper implements Constellation {
         return false;
     }
 
+    /**
+     * Returns the number of queued activities that may be stolen by a thief with the specified context.
+     *
+     * @param context
+     *            the context of the thief
+     * @param allowRestricted
+     *            whether the thief may steal restricted activities
+     * @return the (approximate) number of activities that may be stolen
+     */
+    protected int stealableCount(AbstractContext context, boolean allowRestricted) {
+        int count = fresh.size(context);
+
+        if (allowRestricted) {
+            count += restricted.size(context);
+        }
+
+        return count;
+    }
+
     protected ActivityRecord[] steal(AbstractContext context, StealStrategy s, boolean allowRestricted, int count,
             ConstellationIdentifier source) {
+        return steal(context, s, allowRestricted, count, source, null);
+    }
+
+    /**
+     * Steals activities that pass one of the specified filters. The filters are tried in order, and later filters are only used
+     * when the earlier ones did not yield enough activities.
+     *
+     * @param context
+     *            the context of the thief
+     * @param s
+     *            the steal strategy
+     * @param allowRestricted
+     *            whether the thief may steal restricted activities
+     * @param count
+     *            the maximum number of activities
+     * @param source
+     *            the thief
+     * @param filters
+     *            the filters, or <code>null</code> to accept all activities
+     * @return the stolen activities, followed by <code>null</code>s, or <code>null</code> when nothing was stolen
+     */
+    protected ActivityRecord[] steal(AbstractContext context, StealStrategy s, boolean allowRestricted, int count,
+            ConstellationIdentifier source, ActivityFilter[] filters) {
 
         steals++;
 
@@ -320,11 +381,22 @@ public class ExecutorWrapper implements Constellation {
 
         int r = 0;
 
-        if (allowRestricted) {
-            r = restricted.steal(context, s, result, 0, count);
-        }
-        if (r < count) {
-            r += fresh.steal(context, s, result, r, count - r);
+        if (filters == null) {
+            if (allowRestricted) {
+                r = restricted.steal(context, s, result, 0, count);
+            }
+            if (r < count) {
+                r += fresh.steal(context, s, result, r, count - r);
+            }
+        } else {
+            for (int i = 0; i < filters.length && r < count; i++) {
+                if (allowRestricted) {
+                    r += restricted.steal(context, s, filters[i], result, r, count - r);
+                }
+                if (r < count) {
+                    r += fresh.steal(context, s, filters[i], result, r, count - r);
+                }
+            }
         }
 
         if (r != 0) {
@@ -366,6 +438,10 @@ public class ExecutorWrapper implements Constellation {
             runnable.insertFirst(tmp);
         } else if (tmp.isDone()) {
             cancel(tmp.identifier());
+            if (parent != null) {
+                parent.activityFinished(tmp);
+            }
+            recordCache.put(tmp);
         }
 
     }
@@ -410,6 +486,10 @@ public class ExecutorWrapper implements Constellation {
         return wrongContextSubmitted;
     }
 
+    public long getActivityRecordsReused() {
+        return recordCache.getReused();
+    }
+
     public long getMessagesInternal() {
         return messagesInternal;
     }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An <code>IdleNodes</code> object holds the steal requests with which remote constellations advertised that they are idle, so
+ * that work can be pushed to them without waiting for them to steal it. There is at most one advertisement per remote
+ * constellation; a newer one replaces the older one. Advertisements expire after a timeout, and are handed out oldest first.
+ */
+class IdleNodes {
+
+    /** An advertisement of an idle constellation. */
+    static class Advertisement {
+
+        final StealRequest request;
+
+        /** Time at which the advertisement expires, in milliseconds. */
+        final long deadline;
+
+        Advertisement(StealRequest request, long deadline) {
+            this.request = request;
+            this.deadline = deadline;
+        }
+    }
+
+    /** Time after which an advertisement expires. */
+    private final long timeout;
+
+    private final LinkedHashMap<ConstellationIdentifierImpl, Advertisement> idle;
+
+    /** Number of advertisements, for a quick check without locking. */
+    private volatile int count = 0;
+
+    IdleNodes(long timeout) {
+        this.timeout = timeout;
+        this.idle = new LinkedHashMap<ConstellationIdentifierImpl, Advertisement>();
+    }
+
+    /**
+     * Returns whether there are no (possibly expired) advertisements.
+     *
+     * @return whether there are no advertisements
+     */
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Adds an advertisement, replacing any previous one of the same constellation.
+     *
+     * @param sr
+     *            the steal request of the idle constellation
+     * @param now
+     *            the current time, in milliseconds
+     */
+    synchronized void add(StealRequest sr, long now) {
+        offer(new Advertisement(sr, now + timeout));
+    }
+
+    /**
+     * Re-adds an advertisement handed out by {@link #take(long)} that was not used, unless a newer one was added in the meantime.
+     *
+     * @param a
+     *            the advertisement
+     */
+    synchronized void offer(Advertisement a) {
+
+        Advertisement old = idle.remove(a.request.source);
+
+        // Put last, so that the others are handed out first.
+        idle.put(a.request.source, old != null && old.deadline > a.deadline ? old : a);
+        count = idle.size();
+    }
+
+    /**
+     * Removes the advertisement of a constellation, for instance because it is known to have work now.
+     *
+     * @param cid
+     *            the identifier of the constellation
+     */
+    synchronized void remove(ConstellationIdentifierImpl cid) {
+        idle.remove(cid);
+        count = idle.size();
+    }
+
+    /**
+     * Removes and returns the oldest advertisement that has not expired yet. Expired advertisements are dropped.
+     *
+     * @param now
+     *            the current time, in milliseconds
+     * @return the advertisement, or <code>null</code> if there is none.
+     */
+    synchronized Advertisement take(long now) {
+
+        Advertisement result = null;
+
+        Iterator<Map.Entry<ConstellationIdentifierImpl, Advertisement>> it = idle.entrySet().iterator();
+
+        while (result == null && it.hasNext()) {
+            Advertisement a = it.next().getValue();
+
+            if (a.deadline > now) {
+                result = a;
+            }
+
+            it.remove();
+        }
+
+        count = idle.size();
+        return result;
+    }
+
+    synchronized int size() {
+        return idle.size();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import ibis.constellation.Context;
+
+/**
+ * A <code>LoadSummary</code> is a compact description of the load of a node at a certain time: the number of queued activities
+ * per context, and the number of idle executors. Contexts are identified by the hash code of their name. Load summaries are
+ * piggybacked on the steal requests, steal replies and event messages a node sends, so they are serialized compactly, using a
+ * variable length encoding for the small numbers.
+ */
+public final class LoadSummary implements Serializable {
+
+    private static final long serialVersionUID = -1790366738254931716L;
+
+    private transient int rank;
+
+    private transient long timestamp;
+
+    private transient int idleWorkers;
+
+    private transient int[] contextIds;
+
+    private transient int[] queued;
+
+    /**
+     * Creates a load summary.
+     *
+     * @param rank
+     *            the rank of the node
+     * @param timestamp
+     *            the time of the summary, in milliseconds, according to the clock of the node
+     * @param idleWorkers
+     *            the number of idle executors
+     * @param contextIds
+     *            the context identifiers, as obtained with {@link #contextId(String)}
+     * @param queued
+     *            the number of queued activities per context
+     * @throws IllegalArgumentException
+     *             when the context identifiers and queue lengths do not match
+     */
+    public LoadSummary(int rank, long timestamp, int idleWorkers, int[] contextIds, int[] queued) {
+
+        if (contextIds.length != queued.length) {
+            throw new IllegalArgumentException("Context identifiers and queue lengths do not match");
+        }
+
+        this.rank = rank;
+        this.timestamp = timestamp;
+        this.idleWorkers = idleWorkers;
+        this.contextIds = contextIds;
+        this.queued = queued;
+    }
+
+    /**
+     * Returns the identifier used for the context with the specified name.
+     *
+     * @param name
+     *            the context name
+     * @return the context identifier
+     */
+    public static int contextId(String name) {
+        return name.hashCode();
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getIdleWorkers() {
+        return idleWorkers;
+    }
+
+    /**
+     * Returns the number of queued activities for the specified context.
+     *
+     * @param context
+     *            the context
+     * @return the number of queued activities, or 0 if the context is unknown.
+     */
+    public int getQueued(Context context) {
+        return getQueued(contextId(context.getName()));
+    }
+
+    /**
+     * Returns the number of queued activities for the specified context identifier.
+     *
+     * @param contextId
+     *            the context identifier
+     * @return the number of queued activities, or 0 if the context is unknown.
+     */
+    public int getQueued(int contextId) {
+        for (int i = 0; i < contextIds.length; i++) {
+            if (contextIds[i] == contextId) {
+                return queued[i];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the total number of queued activities.
+     *
+     * @return the number of queued activities
+     */
+    public int getQueued() {
+        int result = 0;
+        for (int q : queued) {
+            result += q;
+        }
+        return result;
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    /**
+     * Writes this load summary in its compact form.
+     *
+     * @param out
+     *            the output to write to
+     * @throws IOException
+     *             when writing fails
+     */
+    void writeTo(DataOutput out) throws IOException {
+        writeVarInt(out, rank);
+        out.writeLong(timestamp);
+        writeVarInt(out, idleWorkers);
+        writeVarInt(out, contextIds.length);
+        for (int i = 0; i < contextIds.length; i++) {
+            out.writeInt(contextIds[i]);
+            writeVarInt(out, queued[i]);
+        }
+    }
+
+    private void readFields(DataInput in) throws IOException {
+        rank = readVarInt(in);
+        timestamp = in.readLong();
+        idleWorkers = readVarInt(in);
+        int n = readVarInt(in);
+        contextIds = new int[n];
+        queued = new int[n];
+        for (int i = 0; i < n; i++) {
+            contextIds[i] = in.readInt();
+            queued[i] = readVarInt(in);
+        }
+    }
+
+    /**
+     * Reads a load summary written by {@link #writeTo(DataOutput)}.
+     *
+     * @param in
+     *            the input to read from
+     * @return the load summary
+     * @throws IOException
+     *             when reading fails
+     */
+    static LoadSummary readFrom(DataInput in) throws IOException {
+        LoadSummary result = new LoadSummary(0, 0, 0, new int[0], new int[0]);
+        result.readFields(in);
+        return result;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        writeTo(out);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        readFields(in);
+    }
+
+    @Override
+    public String toString() {
+        return "LoadSummary: rank = " + rank + ", time = " + timestamp + ", idle = " + idleWorkers + ", contexts = "
+                + Arrays.toString(contextIds) + ", queued = " + Arrays.toString(queued);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A <code>LoadTable</code> holds the most recent load summary received from each node. Summaries of the same node are ordered by
+ * their timestamps, which are taken from the clock of that node only, so clock differences between nodes do not matter.
+ */
+public class LoadTable {
+
+    private final ConcurrentHashMap<Integer, LoadSummary> table = new ConcurrentHashMap<Integer, LoadSummary>();
+
+    /**
+     * Merges a load summary into the table: it replaces the summary of the same node, unless that one is newer.
+     *
+     * @param summary
+     *            the load summary
+     * @return whether the table changed
+     */
+    public boolean merge(LoadSummary summary) {
+
+        final Integer key = summary.getRank();
+
+        while (true) {
+            LoadSummary old = table.putIfAbsent(key, summary);
+
+            if (old == null) {
+                return true;
+            }
+
+            if (old.getTimestamp() >= summary.getTimestamp()) {
+                return false;
+            }
+
+            if (table.replace(key, old, summary)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the most recent load summary of the specified node.
+     *
+     * @param rank
+     *            the rank of the node
+     * @return the load summary, or <code>null</code> if none was received.
+     */
+    public LoadSummary get(int rank) {
+        return table.get(rank);
+    }
+
+    /**
+     * Removes the load summary of the specified node, for instance because it left.
+     *
+     * @param rank
+     *            the rank of the node
+     */
+    public void remove(int rank) {
+        table.remove(rank);
+    }
+
+    /**
+     * Returns the most recent load summaries of all nodes.
+     *
+     * @return the load summaries
+     */
+    public ArrayList<LoadSummary> getAll() {
+        return new ArrayList<LoadSummary>(table.values());
+    }
+
+    public int size() {
+        return table.size();
+    }
+}
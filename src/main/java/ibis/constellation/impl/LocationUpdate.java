@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+/**
+ * Tells a constellation where an activity is located now. It is sent to the sender of an event that had to be forwarded to
+ * reach its target, so that the sender can send later events to the target directly. When the activity has finished, it is
+ * sent without a location to every constellation that forwards events to it, so that they can forget about it.
+ */
+public class LocationUpdate extends AbstractMessage {
+
+    private static final long serialVersionUID = 3785401178519224907L;
+
+    public final ActivityIdentifierImpl activity;
+
+    /** The current location of the activity, or <code>null</code> when it has finished. */
+    public final ConstellationIdentifierImpl location;
+
+    public LocationUpdate(final ConstellationIdentifierImpl source, final ConstellationIdentifierImpl target,
+            final ActivityIdentifierImpl activity, final ConstellationIdentifierImpl location) {
+        super(source, target);
+
+        checkNull(target, "target may not be null");
+        checkNull(activity, "activity may not be null");
+
+        this.activity = activity;
+        this.location = location;
+    }
+
+    /**
+     * Returns whether this update tells that the activity has finished.
+     *
+     * @return whether the activity has finished
+     */
+    public boolean isFinished() {
+        return location == null;
+    }
+
+    @Override
+    public ActivityIdentifierImpl targetActivity() {
+        return activity;
+    }
+
+    @Override
+    public String toString() {
+        return "LocationUpdate: " + activity + " at " + (location == null ? "none (finished)" : location.toString()) + "; "
+                + super.toString();
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import ibis.constellation.AbstractContext;
+import ibis.constellation.ActivityIdentifier;
+import ibis.constellation.Context;
+import ibis.constellation.Event;
+import ibis.constellation.OrContext;
+import ibis.constellation.StealPool;
+import ibis.constellation.StealStrategy;
+import ibis.constellation.util.Codec;
+import ibis.constellation.util.CodecRegistry;
+
+/**
+ * A hand-written binary encoding of the internal message types, which avoids the class descriptors and object graph bookkeeping
+ * of object serialization for the message headers. User payloads, the activities in steal replies and the data of events, are
+ * written with the {@link Codec} registered for their class, or with object serialization when there is none.
+ *
+ * Small integers that are usually small (sizes, counts, ranks) are written with a variable length encoding.
+ */
+public final class MessageCodec {
+
+    private static final byte NULL = 0;
+
+    private static final byte CONTEXT = 1;
+    private static final byte CONTEXT_UNBOUNDED = 2;
+    private static final byte OR_CONTEXT = 3;
+
+    private static final byte SMALLEST = 1;
+    private static final byte BIGGEST = 2;
+
+    private static final byte POOL_TAG = 1;
+    private static final byte POOL_SET = 2;
+
+    private MessageCodec() {
+        // not used
+    }
+
+    public static void writeVarInt(ObjectOutput out, int value) throws IOException {
+        LoadSummary.writeVarInt(out, value);
+    }
+
+    public static int readVarInt(ObjectInput in) throws IOException {
+        return LoadSummary.readVarInt(in);
+    }
+
+    private static void writeIdentifier(ObjectOutput out, ConstellationIdentifierImpl cid) throws IOException {
+        if (cid == null) {
+            out.writeBoolean(false);
+            return;
+        }
+        out.writeBoolean(true);
+        writeVarInt(out, cid.getNodeId());
+        writeVarInt(out, cid.getLocalId());
+    }
+
+    private static ConstellationIdentifierImpl readIdentifier(ObjectInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        int nodeId = readVarInt(in);
+        return new ConstellationIdentifierImpl(nodeId, readVarInt(in));
+    }
+
+    private static void writeActivityIdentifier(ObjectOutput out, ActivityIdentifier id) throws IOException {
+        if (id == null) {
+            out.writeBoolean(false);
+            return;
+        }
+        ActivityIdentifierImpl tmp = (ActivityIdentifierImpl) id;
+        out.writeBoolean(true);
+        writeIdentifier(out, tmp.getOrigin());
+        out.writeLong(tmp.getSequenceNumber());
+        out.writeBoolean(tmp.expectsEvents());
+    }
+
+    private static ActivityIdentifierImpl readActivityIdentifier(ObjectInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        ConstellationIdentifierImpl cid = readIdentifier(in);
+        long aid = in.readLong();
+        return ActivityIdentifierImpl.createActivityIdentifier(cid, aid, in.readBoolean());
+    }
+
+    private static void writeContext(ObjectOutput out, Context c) throws IOException {
+        if (c.getRangeStart() == Long.MIN_VALUE && c.getRangeEnd() == Long.MAX_VALUE) {
+            out.writeByte(CONTEXT_UNBOUNDED);
+            out.writeUTF(c.getName());
+        } else {
+            out.writeByte(CONTEXT);
+            out.writeUTF(c.getName());
+            out.writeLong(c.getRangeStart());
+            out.writeLong(c.getRangeEnd());
+        }
+    }
+
+    private static void writeContext(ObjectOutput out, AbstractContext context) throws IOException {
+        if (context == null) {
+            out.writeByte(NULL);
+        } else if (context instanceof Context) {
+            writeContext(out, (Context) context);
+        } else if (context instanceof OrContext) {
+            OrContext or = (OrContext) context;
+            out.writeByte(OR_CONTEXT);
+            writeVarInt(out, or.size());
+            for (Context c : or) {
+                writeContext(out, c);
+            }
+        } else {
+            throw new IOException("Unknown context type " + context.getClass().getName());
+        }
+    }
+
+    private static AbstractContext readContext(ObjectInput in) throws IOException {
+        byte type = in.readByte();
+
+        switch (type) {
+        case NULL:
+            return null;
+        case CONTEXT_UNBOUNDED:
+            return new Context(in.readUTF());
+        case CONTEXT:
+            String name = in.readUTF();
+            long start = in.readLong();
+            return new Context(name, start, in.readLong());
+        case OR_CONTEXT:
+            Context[] contexts = new Context[readVarInt(in)];
+            for (int i = 0; i < contexts.length; i++) {
+                AbstractContext c = readContext(in);
+                if (!(c instanceof Context)) {
+                    throw new IOException("Malformed OrContext");
+                }
+                contexts[i] = (Context) c;
+            }
+            return new OrContext(contexts);
+        default:
+            throw new IOException("Unknown context type " + type);
+        }
+    }
+
+    private static void writeStrategy(ObjectOutput out, StealStrategy s) throws IOException {
+        out.writeByte(s == null ? NULL : (s.equals(StealStrategy.BIGGEST) ? BIGGEST : SMALLEST));
+    }
+
+    private static StealStrategy readStrategy(ObjectInput in) throws IOException {
+        byte type = in.readByte();
+        return type == NULL ? null : (type == BIGGEST ? StealStrategy.BIGGEST : StealStrategy.SMALLEST);
+    }
+
+    private static void writePool(ObjectOutput out, StealPool pool) throws IOException {
+        if (pool == null) {
+            out.writeByte(NULL);
+        } else if (pool.getTag() != null) {
+            out.writeByte(POOL_TAG);
+            out.writeUTF(pool.getTag());
+        } else {
+            StealPool[] set = pool.set();
+            out.writeByte(POOL_SET);
+            writeVarInt(out, set.length);
+            for (StealPool p : set) {
+                out.writeUTF(p.getTag());
+            }
+        }
+    }
+
+    private static StealPool pool(String tag) {
+        // Reuse the well-known pools instead of creating copies.
+        if (tag.equals(StealPool.WORLD.getTag())) {
+            return StealPool.WORLD;
+        }
+        if (tag.equals(StealPool.NONE.getTag())) {
+            return StealPool.NONE;
+        }
+        return new StealPool(tag);
+    }
+
+    private static StealPool readPool(ObjectInput in) throws IOException {
+        byte type = in.readByte();
+
+        switch (type) {
+        case NULL:
+            return null;
+        case POOL_TAG:
+            return pool(in.readUTF());
+        case POOL_SET:
+            StealPool[] set = new StealPool[readVarInt(in)];
+            for (int i = 0; i < set.length; i++) {
+                set[i] = pool(in.readUTF());
+            }
+            return StealPool.merge(set);
+        default:
+            throw new IOException("Unknown steal pool type " + type);
+        }
+    }
+
+    /**
+     * Writes a user payload, with the codec registered for its class in the {@link CodecRegistry}, or with object serialization
+     * when there is none.
+     *
+     * @param out
+     *            the output to write to
+     * @param data
+     *            the payload, may be <code>null</code>
+     * @throws IOException
+     *             when writing fails
+     */
+    @SuppressWarnings("unchecked")
+    public static void writePayload(ObjectOutput out, Object data) throws IOException {
+        int id = data == null ? 0 : CodecRegistry.getId(data.getClass());
+        writeVarInt(out, id);
+        if (id == 0) {
+            out.writeObject(data);
+        } else {
+            ((Codec<Object>) CodecRegistry.getCodec(id)).write(out, data);
+        }
+    }
+
+    /**
+     * Reads a user payload written by {@link #writePayload(ObjectOutput, Object)}.
+     *
+     * @param in
+     *            the input to read from
+     * @return the payload
+     * @throws IOException
+     *             when reading fails, or when the payload was written with a codec that is not registered here
+     * @throws ClassNotFoundException
+     *             when the class of a serialized object cannot be found
+     */
+    public static Object readPayload(ObjectInput in) throws IOException, ClassNotFoundException {
+        int id = readVarInt(in);
+        if (id == 0) {
+            return in.readObject();
+        }
+        Codec<?> codec = CodecRegistry.getCodec(id);
+        if (codec == null) {
+            throw new IOException("No codec registered with identifier " + id);
+        }
+        return codec.read(in);
+    }
+
+    private static void writeHeader(ObjectOutput out, AbstractMessage m) throws IOException {
+        writeIdentifier(out, m.source);
+        writeIdentifier(out, m.target);
+    }
+
+    private static void writeLoad(ObjectOutput out, AbstractMessage m) throws IOException {
+        LoadSummary load = m.getLoad();
+        out.writeBoolean(load != null);
+        if (load != null) {
+            load.writeTo(out);
+        }
+    }
+
+    private static void readLoad(ObjectInput in, AbstractMessage m) throws IOException {
+        if (in.readBoolean()) {
+            m.setLoad(LoadSummary.readFrom(in));
+        }
+    }
+
+    /**
+     * Writes a steal request.
+     *
+     * @param out
+     *            the output to write to
+     * @param sr
+     *            the steal request
+     * @throws IOException
+     *             when writing fails
+     */
+    public static void writeStealRequest(ObjectOutput out, StealRequest sr) throws IOException {
+        writeHeader(out, sr);
+        writeContext(out, sr.context);
+        writeStrategy(out, sr.localStrategy);
+        writeStrategy(out, sr.constellationStrategy);
+        writeStrategy(out, sr.remoteStrategy);
+        writePool(out, sr.pool);
+        writeVarInt(out, sr.size);
+        writeVarInt(out, sr.idleSiblings);
+        writeVarInt(out, sr.getRequestId());
+        int[] visited = sr.getVisited();
+        writeVarInt(out, visited.length);
+        for (int r : visited) {
+            writeVarInt(out, r);
+        }
+        writeLoad(out, sr);
+    }
+
+    /**
+     * Reads a steal request written by {@link #writeStealRequest(ObjectOutput, StealRequest)}.
+     *
+     * @param in
+     *            the input to read from
+     * @return the steal request
+     * @throws IOException
+     *             when reading fails
+     */
+    public static StealRequest readStealRequest(ObjectInput in) throws IOException {
+        ConstellationIdentifierImpl source = readIdentifier(in);
+        ConstellationIdentifierImpl target = readIdentifier(in);
+        AbstractContext context = readContext(in);
+        StealStrategy local = readStrategy(in);
+        StealStrategy constellation = readStrategy(in);
+        StealStrategy remote = readStrategy(in);
+        StealPool pool = readPool(in);
+        int size = readVarInt(in);
+        int idleSiblings = readVarInt(in);
+        int requestId = readVarInt(in);
+
+        StealRequest sr;
+
+        try {
+            sr = new StealRequest(source, context, local, constellation, remote, pool, size, idleSiblings);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed steal request", e);
+        }
+
+        sr.setRequestId(requestId);
+
+        int hops = readVarInt(in);
+        for (int i = 0; i < hops; i++) {
+            sr.forwardedBy(readVarInt(in));
+        }
+        if (target != null) {
+            sr.setTarget(target);
+        }
+        readLoad(in, sr);
+        sr.setRemote();
+        return sr;
+    }
+
+    /**
+     * Writes a steal reply. The stolen activity records are written with object serialization, and write their activities with
+     * {@link #writePayload(ObjectOutput, Object)}.
+     *
+     * @param out
+     *            the output to write to
+     * @param sr
+     *            the steal reply
+     * @throws IOException
+     *             when writing fails
+     */
+    public static void writeStealReply(ObjectOutput out, StealReply sr) throws IOException {
+        writeHeader(out, sr);
+        writePool(out, sr.getPool());
+        writeContext(out, sr.getContext());
+        writeVarInt(out, sr.getRequestId());
+        out.writeObject(sr.getWork());
+        writeLoad(out, sr);
+    }
+
+    /**
+     * Reads a steal reply written by {@link #writeStealReply(ObjectOutput, StealReply)}.
+     *
+     * @param in
+     *            the input to read from
+     * @return the steal reply
+     * @throws IOException
+     *             when reading fails
+     * @throws ClassNotFoundException
+     *             when a class of a stolen activity cannot be found
+     */
+    public static StealReply readStealReply(ObjectInput in) throws IOException, ClassNotFoundException {
+        ConstellationIdentifierImpl source = readIdentifier(in);
+        ConstellationIdentifierImpl target = readIdentifier(in);
+        StealPool pool = readPool(in);
+        AbstractContext context = readContext(in);
+        int requestId = readVarInt(in);
+        ActivityRecord[] work = (ActivityRecord[]) in.readObject();
+        StealReply sr = new StealReply(source, target, pool, context, work);
+        sr.setRequestId(requestId);
+        readLoad(in, sr);
+        return sr;
+    }
+
+    /**
+     * Writes an event message. The data of the event is written with {@link #writePayload(ObjectOutput, Object)}.
+     *
+     * @param out
+     *            the output to write to
+     * @param m
+     *            the event message
+     * @throws IOException
+     *             when writing fails
+     */
+    public static void writeEventMessage(ObjectOutput out, EventMessage m) throws IOException {
+        writeHeader(out, m);
+        writeActivityIdentifier(out, m.event.getSource());
+        writeActivityIdentifier(out, m.event.getTarget());
+        writePayload(out, m.event.getData());
+        out.writeBoolean(m.isRedirected());
+        writeLoad(out, m);
+    }
+
+    /**
+     * Reads an event message written by {@link #writeEventMessage(ObjectOutput, EventMessage)}.
+     *
+     * @param in
+     *            the input to read from
+     * @return the event message
+     * @throws IOException
+     *             when reading fails
+     * @throws ClassNotFoundException
+     *             when the class of the event data cannot be found
+     */
+    public static EventMessage readEventMessage(ObjectInput in) throws IOException, ClassNotFoundException {
+        ConstellationIdentifierImpl source = readIdentifier(in);
+        ConstellationIdentifierImpl target = readIdentifier(in);
+        ActivityIdentifierImpl eventSource = readActivityIdentifier(in);
+        ActivityIdentifierImpl eventTarget = readActivityIdentifier(in);
+        Object data = readPayload(in);
+        EventMessage m = new EventMessage(source, target, new Event(eventSource, eventTarget, data));
+        if (in.readBoolean()) {
+            m.setRedirected();
+        }
+        readLoad(in, m);
+        return m;
+    }
+
+    /**
+     * Writes a location update.
+     *
+     * @param out
+     *            the output to write to
+     * @param m
+     *            the location update
+     * @throws IOException
+     *             when writing fails
+     */
+    public static void writeLocationUpdate(ObjectOutput out, LocationUpdate m) throws IOException {
+        writeHeader(out, m);
+        writeActivityIdentifier(out, m.activity);
+        writeIdentifier(out, m.location);
+        writeLoad(out, m);
+    }
+
+    /**
+     * Reads a location update written by {@link #writeLocationUpdate(ObjectOutput, LocationUpdate)}.
+     *
+     * @param in
+     *            the input to read from
+     * @return the location update
+     * @throws IOException
+     *             when reading fails
+     */
+    public static LocationUpdate readLocationUpdate(ObjectInput in) throws IOException {
+        ConstellationIdentifierImpl source = readIdentifier(in);
+        ConstellationIdentifierImpl target = readIdentifier(in);
+        ActivityIdentifierImpl activity = readActivityIdentifier(in);
+        ConstellationIdentifierImpl location = readIdentifier(in);
+
+        LocationUpdate m;
+
+        try {
+            m = new LocationUpdate(source, target, activity, location);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed location update", e);
+        }
+
+        readLoad(in, m);
+        return m;
+    }
+}
@@ -15,6 +15,8 @@
  */
 package ibis.constellation.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Random;
 
@@ -60,6 +62,20 @@ public class MultiThreadedConstellation {
 
     private final int localStealSize;
 
+    private final int remoteStealSize;
+
+    private final long remoteStealBudget;
+
+    private final boolean adaptiveSteal;
+
+    private final int lowWaterMark;
+
+    private final int pushThreshold;
+
+    private final SubmitRoutingTable routing;
+
+    private final RouteCache routes;
+
     private final Profiling profiling;
 
     private final Facade facade = new Facade();
@@ -148,9 +164,16 @@ public class MultiThreadedConstellation {
         PROFILE_OUTPUT = properties.PROFILE_OUTPUT;
 
         localStealSize = properties.STEAL_SIZE;
+        remoteStealSize = properties.REMOTESTEAL_SIZE;
+        remoteStealBudget = properties.REMOTESTEAL_BUDGET;
+        adaptiveSteal = properties.STEAL_ADAPTIVE;
+        lowWaterMark = properties.REMOTESTEAL_LOW_WATER_MARK;
+        pushThreshold = properties.REMOTESTEAL_PUSH_THRESHOLD;
+        routes = new RouteCache(properties.ROUTE_CACHE_SIZE);
 
         if (logger.isInfoEnabled()) {
             logger.info("MultiThreaded: steal size set to " + localStealSize);
+            logger.info("MultiThreaded: remote steal size set to " + remoteStealSize);
             logger.info("Starting MultiThreadedConstellation " + identifier);
         }
 
@@ -183,6 +206,14 @@ public class MultiThreadedConstellation {
             }
         }
 
+        AbstractContext[] contexts = new AbstractContext[workerCount];
+
+        for (int i = 0; i < workerCount; i++) {
+            contexts[i] = workers[i].getContext();
+        }
+
+        routing = new SubmitRoutingTable(contexts, belongsTo);
+
         myContext = mergeContext();
 
         if (parent != null) {
@@ -196,56 +227,118 @@ public class MultiThreadedConstellation {
         return profiling;
     }
 
-    private int next = 0;
+    public ActivityIdentifier performSubmit(Activity activity) throws NoSuitableExecutorException {
 
-    public synchronized ActivityIdentifier performSubmit(Activity activity) throws NoSuitableExecutorException {
+        int index = routing.select(activity.getContext(), callingWorker());
 
-        for (int i = 0; i < workerCount; i++) {
-            // Round robin submit (for testing)
-            int index = next++;
-            next = next % workerCount;
-            SingleThreadedConstellation e = workers[index];
+        if (index < 0) {
+            if (logger.isInfoEnabled()) {
+                logger.info("No local executor for this activity (no identifier yet)");
+            }
 
-            if (ContextMatch.match(e.getContext(), activity.getContext())) {
-                return e.performSubmit(activity);
+            if (parent == null) {
+                throw new NoSuitableExecutorException("submit: no suitable executor found");
             }
-        }
-        if (logger.isInfoEnabled()) {
-            logger.info("No local executor for this activity (no identifier yet)");
-        }
 
-        if (parent == null) {
-            throw new NoSuitableExecutorException("submit: no suitable executor found");
+            // Prefer a worker with WORLD stealpool
+            index = routing.selectFallback();
         }
 
-        // Try to find a worker with WORLD stealpool
-        for (int i = 0; i < workerCount; i++) {
-            int index = next++;
-            next = next % workerCount;
-            SingleThreadedConstellation e = workers[index];
+        return workers[index].performSubmit(activity);
+    }
 
-            if (e.belongsTo().isWorld()) {
-                return e.performSubmit(activity);
-            }
-        }
+    /**
+     * Returns the rank of the worker that is calling us, or -1 if the current thread is not one of our workers.
+     */
+    private int callingWorker() {
+        Thread t = Thread.currentThread();
 
-        int i = next++;
-        next = next % workerCount;
-        return workers[i].performSubmit(activity);
+        if (t instanceof SingleThreadedConstellation) {
+            int rank = ((SingleThreadedConstellation) t).getRank();
 
+            if (rank >= 0 && rank < workerCount && workers[rank] == t) {
+                return rank;
+            }
+        }
+        return -1;
     }
 
     public void performSend(Event e) {
 
-        // Since we don't known where the target activity is located, we simply
+        // Unless we have learned where the target activity is located, we simply
         // send the message to it's parent constellation (which may be local).
-        handleEventMessage(new EventMessage(identifier, ((ActivityIdentifierImpl) e.getTarget()).getOrigin(), e));
+        final ActivityIdentifierImpl target = (ActivityIdentifierImpl) e.getTarget();
+
+        ConstellationIdentifierImpl cid = routes.get(target);
+
+        if (cid == null) {
+            cid = target.getOrigin();
+        }
+
+        handleEventMessage(new EventMessage(identifier, cid, e));
+    }
+
+    /**
+     * Returns the last known location of the specified activity, as learned from location updates.
+     *
+     * @param aid
+     *            the activity
+     * @return the location, or <code>null</code> if it is not known
+     */
+    ConstellationIdentifierImpl lookupRoute(ActivityIdentifierImpl aid) {
+        return routes.get(aid);
+    }
+
+    /**
+     * Handles a location update sent by one of our children, which may be for a local or a remote constellation.
+     *
+     * @param lu
+     *            the location update
+     */
+    public void handleLocationUpdate(LocationUpdate lu) {
+
+        if (cidFactory.isLocal(lu.target)) {
+            deliverLocationUpdate(lu);
+        } else if (parent != null) {
+            parent.handleLocationUpdate(lu);
+        }
+    }
+
+    /**
+     * Deals with a location update for one of our children. The location of the activity is remembered for all children. When
+     * the activity has finished, it is forgotten, and the child that forwarded events to it may drop its forwarding entry.
+     *
+     * @param lu
+     *            the location update
+     */
+    public void deliverLocationUpdate(LocationUpdate lu) {
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("M " + lu);
+        }
+
+        if (!lu.isFinished()) {
+            routes.put(lu.activity, lu.location);
+            return;
+        }
+
+        routes.remove(lu.activity);
+
+        SingleThreadedConstellation st = getWorker(lu.target);
+
+        if (st != null) {
+            st.forget(lu.activity);
+        }
     }
 
     public void performCancel(ActivityIdentifier aid) {
         logger.error("INTERNAL ERROR: cancel not implemented!");
     }
 
+    SingleThreadedConstellation[] getWorkers() {
+        return workers;
+    }
+
     private SingleThreadedConstellation getWorker(ConstellationIdentifier cid) {
 
         for (SingleThreadedConstellation b : workers) {
@@ -297,6 +390,7 @@ public class MultiThreadedConstellation {
 
                 // The activity has been relocated or stolen, so try again
                 m.setTarget(cid);
+                m.setRedirected();
                 handleEventMessage(m);
             }
         } else {
@@ -342,7 +436,9 @@ public class MultiThreadedConstellation {
         final int rnd = selectRandomWorker();
         final int rank = c.getRank();
 
-        final ActivityRecord[] result = new ActivityRecord[localStealSize];
+        final int idleSiblings = adaptiveSteal ? countIdleWorkers(c) : 0;
+
+        final ActivityRecord[] result = adaptiveSteal ? null : new ActivityRecord[localStealSize];
 
         for (int i = 0; i < workerCount; i++) {
 
@@ -350,11 +446,21 @@ public class MultiThreadedConstellation {
 
             if (!tmp.equals(c) && poolMatrix[rank][tmp.getRank()]) {
 
-                final int size = tmp.attemptSteal(result, context, c.getConstellationStealStrategy(), pool, c.identifier(),
-                        localStealSize, true);
+                if (adaptiveSteal) {
+                    // The victim decides how much we get.
+                    final ActivityRecord[] tmpResult = tmp.attemptSteal(context, c.getConstellationStealStrategy(), pool,
+                            c.identifier(), localStealSize, idleSiblings, true);
 
-                if (size > 0) {
-                    return result;
+                    if (tmpResult != null) {
+                        return tmpResult;
+                    }
+                } else {
+                    final int size = tmp.attemptSteal(result, context, c.getConstellationStealStrategy(), pool,
+                            c.identifier(), localStealSize, true);
+
+                    if (size > 0) {
+                        return result;
+                    }
                 }
             }
         }
@@ -362,10 +468,12 @@ public class MultiThreadedConstellation {
         // If this fails, we do a remote steal followed by an enqueued steal at
         // a random suitable peer.
         final StealRequest sr = new StealRequest(c.identifier(), context, c.getLocalStealStrategy(),
-                c.getConstellationStealStrategy(), c.getRemoteStealStrategy(), pool, stealSize);
+                c.getConstellationStealStrategy(), c.getRemoteStealStrategy(), pool, stealSize, idleSiblings);
 
         if (parent != null) {
-            parent.handleStealRequest(sr);
+            // Remote steals have their own size, as a round trip to another node is much more expensive.
+            parent.handleStealRequest(new StealRequest(c.identifier(), context, c.getLocalStealStrategy(),
+                    c.getConstellationStealStrategy(), c.getRemoteStealStrategy(), pool, remoteStealSize, idleSiblings));
         }
 
         for (int i = 0; i < workerCount; i++) {
@@ -381,6 +489,165 @@ public class MultiThreadedConstellation {
         return null;
     }
 
+    /**
+     * Checks whether the work queued in this constellation that the specified worker could run has dropped below the low-water
+     * mark, and if so, asks our parent to steal some remotely on behalf of this worker before anyone runs out of work.
+     *
+     * @param c
+     *            the worker doing the check
+     */
+    public void checkLowWaterMark(final SingleThreadedConstellation c) {
+
+        if (parent == null || c.stealsFrom().isNone()) {
+            return;
+        }
+
+        final AbstractContext context = c.getContext();
+
+        int work = 0;
+
+        for (int i = 0; i < workerCount; i++) {
+            work += workers[i].queuedWork(context);
+
+            if (work >= lowWaterMark) {
+                return;
+            }
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("M queued work " + work + " below low-water mark " + lowWaterMark + ", prefetching for " + c.identifier());
+        }
+
+        parent.prefetchSteal(new StealRequest(c.identifier(), context, c.getLocalStealStrategy(),
+                c.getConstellationStealStrategy(), c.getRemoteStealStrategy(), c.stealsFrom(), remoteStealSize));
+    }
+
+    /**
+     * Pushes work to a remote executor that advertised that it is idle, if we have more stealable work for it than the push
+     * threshold. Called periodically by the workers while they have work.
+     *
+     * @param c
+     *            the worker doing the check
+     */
+    public void checkPushWork(final SingleThreadedConstellation c) {
+
+        if (parent == null) {
+            return;
+        }
+
+        final IdleNodes.Advertisement a = parent.takeIdleNode();
+
+        if (a == null) {
+            return;
+        }
+
+        final StealRequest sr = a.request;
+
+        int work = 0;
+
+        for (int i = 0; i < workerCount && work <= pushThreshold + sr.size; i++) {
+            if (sr.pool.overlap(workers[i].belongsTo())) {
+                work += workers[i].queuedWork(sr.context);
+            }
+        }
+
+        if (work > pushThreshold) {
+
+            final int count = Math.min(sr.size, work - pushThreshold);
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("M queued work " + work + " above push threshold " + pushThreshold + ", pushing " + count
+                        + " job(s) to " + sr.source);
+            }
+
+            if (replyWithWork(sr, selectRandomWorker(), count)) {
+                return;
+            }
+        }
+
+        parent.returnIdleNode(a);
+    }
+
+    /**
+     * Computes a summary of the load of this constellation: the number of idle workers and, per context name, the number of
+     * activities queued at the workers that can run that context.
+     *
+     * @param rank
+     *            the rank of this node
+     * @param now
+     *            the current time, in milliseconds
+     * @return the load summary
+     */
+    public LoadSummary loadSummary(final int rank, final long now) {
+
+        int names = 0;
+
+        for (int i = 0; i < workerCount; i++) {
+            final AbstractContext context = workers[i].getContext();
+            names += context instanceof OrContext ? ((OrContext) context).size() : 1;
+        }
+
+        int idle = 0;
+        int count = 0;
+        final int[] ids = new int[names];
+        final int[] queued = new int[names];
+
+        for (int i = 0; i < workerCount; i++) {
+
+            final SingleThreadedConstellation w = workers[i];
+
+            if (w.isIdle()) {
+                idle++;
+            }
+
+            final AbstractContext context = w.getContext();
+
+            if (context instanceof Context) {
+                count = addLoad(ids, queued, count, (Context) context, w.queuedWork(context));
+            } else if (context instanceof OrContext) {
+                // Count each activity under a context it matches. An activity that matches several of them is counted once,
+                // under the first, by never handing out more than the total for the whole OrContext.
+                int left = w.queuedWork(context);
+
+                for (Context c : (OrContext) context) {
+                    final int q = Math.min(w.queuedWork(c), left);
+                    count = addLoad(ids, queued, count, c, q);
+                    left -= q;
+                }
+            }
+        }
+
+        return new LoadSummary(rank, now, idle, Arrays.copyOf(ids, count), Arrays.copyOf(queued, count));
+    }
+
+    private static int addLoad(int[] ids, int[] queued, int count, Context c, int q) {
+
+        final int id = LoadSummary.contextId(c.getName());
+
+        for (int i = 0; i < count; i++) {
+            if (ids[i] == id) {
+                queued[i] += q;
+                return count;
+            }
+        }
+
+        ids[count] = id;
+        queued[count] = q;
+        return count + 1;
+    }
+
+    private int countIdleWorkers(final SingleThreadedConstellation c) {
+        int count = 0;
+
+        for (int i = 0; i < workerCount; i++) {
+            if (workers[i] != c && workers[i].isIdle()) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
     public ConstellationIdentifierFactory getConstellationIdentifierFactory() {
         return cidFactory;
     }
@@ -450,6 +717,11 @@ public class MultiThreadedConstellation {
             u.performDone();
         }
 
+        if (logger.isInfoEnabled()) {
+            logger.info("Route cache: " + routes.size() + " locations, " + routes.getHits() + " hits, " + routes.getMisses()
+                    + " misses");
+        }
+
         if (PROFILE && parent == null) {
             if (logger.isInfoEnabled()) {
                 logger.info("Printing statistics");
@@ -467,56 +739,177 @@ public class MultiThreadedConstellation {
 
         final int rnd = selectRandomWorker();
 
-        // First attempt to satisfy the request without bothering anyone
+        // First attempt to satisfy the request without bothering anyone.
+        if (replyWithWork(sr, rnd, sr.size)) {
+            return;
+        }
+
+        // No job was found. If allowed, pass the request on to another node.
+        if (parent.forwardStealRequest(sr)) {
+            return;
+        }
+
+        // Let's just post a request at a random location.
         for (int i = 0; i < workerCount; i++) {
 
             SingleThreadedConstellation tmp = workers[(rnd + i) % workerCount];
 
             StealPool p = tmp.belongsTo();
 
+            if (sr.pool.overlap(p) && tmp.getWrapper().getJobLimit() > 0) {
+                tmp.deliverStealRequest(sr);
+                return;
+            }
+        }
+
+        // No steal request was posted either. Apparently, we are not able to
+        // fulfill this request in the first place! Let's send an empty
+        // reply....
+        parent.handleStealReply(new StealReply(identifier, sr, (ActivityRecord[]) null));
+    }
+
+    /**
+     * Gathers jobs for a remote steal request from as many workers as needed to fill it, as long as the estimated size of the
+     * reply stays within the budget, and sends them to the thief.
+     *
+     * @param sr
+     *            the steal request
+     * @param rnd
+     *            the worker to start with
+     * @param count
+     *            the maximum number of jobs to send
+     * @return whether any work was found
+     */
+    private boolean replyWithWork(final StealRequest sr, final int rnd, final int count) {
+
+        final ArrayList<SingleThreadedConstellation> owners = new ArrayList<SingleThreadedConstellation>(count);
+
+        final ActivityRecord[] work = gatherWork(sr, rnd, count, owners);
+
+        if (work == null) {
+            return false;
+        }
+
+        // We've managed to find some work!
+        if (!parent.handleStealReply(new StealReply(identifier, sr, work))) {
+            for (int i = 0; i < work.length; i++) {
+                owners.get(i).reclaim(new ActivityRecord[] { work[i] });
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Gathers at most <code>count</code> jobs for a remote steal request from as many workers as needed, as long as the
+     * estimated size of the jobs stays within the budget. Workers with adaptive steal sizes may hand out more jobs than asked
+     * for; the jobs that do not fit are returned to them.
+     *
+     * @param sr
+     *            the steal request
+     * @param rnd
+     *            the worker to start with
+     * @param count
+     *            the maximum number of jobs
+     * @param owners
+     *            receives the worker each job was stolen from
+     * @return the jobs, or <code>null</code> if no work was found
+     */
+    ActivityRecord[] gatherWork(final StealRequest sr, final int rnd, final int count,
+            final ArrayList<SingleThreadedConstellation> owners) {
+
+        final ArrayList<ActivityRecord> gathered = new ArrayList<ActivityRecord>(count);
+        long bytes = 0;
+
+        for (int i = 0; i < workerCount && gathered.size() < count; i++) {
+
+            SingleThreadedConstellation tmp = workers[(rnd + i) % workerCount];
+
+            StealPool p = tmp.belongsTo();
+
             if (sr.pool.overlap(p)) {
                 // We're allowed to steal!
 
                 if (logger.isDebugEnabled()) {
                     logger.debug("Found steal target: " + tmp.identifier() + ", pool = " + p);
                 }
-                ActivityRecord[] result = tmp.attemptSteal(sr.context, sr.remoteStrategy, sr.pool, sr.source, sr.size, false);
 
-                if (result != null) {
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("... and got a job!");
-                    }
-                    // We've managed to find some work!
-                    if (!parent.handleStealReply(new StealReply(identifier, sr.source, sr.pool, sr.context, result))) {
-                        tmp.reclaim(result);
-                    }
+                final int needed = count - gathered.size();
 
-                    return;
-                } else {
+                ActivityRecord[] result = tmp.attemptSteal(sr.context, sr.remoteStrategy, sr.pool, sr.source, needed,
+                        sr.idleSiblings, false);
+
+                if (result == null) {
                     if (logger.isDebugEnabled()) {
                         logger.debug("... but no jobs available!");
                     }
+                    continue;
+                }
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("... and got " + result.length + " job(s)!");
+                }
+
+                boolean full = false;
+
+                for (int j = 0; j < result.length; j++) {
+
+                    final long size = remoteStealBudget > 0 ? result[j].estimatedSize() : 0;
+
+                    if (gathered.size() >= count
+                            || (!gathered.isEmpty() && remoteStealBudget > 0 && bytes + size > remoteStealBudget)) {
+                        // Too many, or over budget, return the rest to where it came from.
+                        tmp.reclaim(Arrays.copyOfRange(result, j, result.length));
+                        full = true;
+                        break;
+                    }
+
+                    bytes += size;
+                    gathered.add(result[j]);
+                    owners.add(tmp);
+                }
+
+                if (full) {
+                    break;
                 }
             }
         }
 
-        // No job was found. Let's just post a request at a random location.
-        for (int i = 0; i < workerCount; i++) {
+        if (gathered.isEmpty()) {
+            return null;
+        }
 
-            SingleThreadedConstellation tmp = workers[(rnd + i) % workerCount];
+        return gathered.toArray(new ActivityRecord[gathered.size()]);
+    }
 
-            StealPool p = tmp.belongsTo();
+    /**
+     * Reclaims work of a steal reply that could not be sent. Every activity is returned to the executor it was stolen from.
+     *
+     * @param work
+     *            the activities to reclaim
+     */
+    public void reclaim(ActivityRecord[] work) {
+        for (ActivityRecord ar : work) {
+            if (ar == null) {
+                continue;
+            }
 
-            if (sr.pool.overlap(p) && tmp.getWrapper().getJobLimit() > 0) {
-                tmp.deliverStealRequest(sr);
-                return;
+            SingleThreadedConstellation owner = null;
+
+            for (SingleThreadedConstellation w : workers) {
+                if (w.hasExported(ar.identifier())) {
+                    owner = w;
+                    break;
+                }
             }
-        }
 
-        // No steal request was posted either. Apparently, we are not able to
-        // fulfill this request in the first place! Let's send an empty
-        // reply....
-        parent.handleStealReply(new StealReply(identifier, sr.source, sr.pool, sr.context, (ActivityRecord) null));
+            if (owner == null) {
+                logger.warn("Cannot find the executor " + ar.identifier() + " was stolen from (selecting random executor)");
+                owner = workers[selectRandomWorker()];
+            }
+
+            owner.reclaim(new ActivityRecord[] { ar });
+        }
     }
 
     public void deliverStealReply(StealReply sr) {
@@ -555,6 +948,7 @@ public class MultiThreadedConstellation {
 
         // The activity is no longer at the expected location.
         am.setTarget(cid);
+        am.setRedirected();
 
         if (cidFactory.isLocal(cid)) {
             // It has been relocated
@@ -569,11 +963,25 @@ public class MultiThreadedConstellation {
             cid = st.deliverEventMessage(am);
 
         } else {
-            // it has been exported
+            // it has been exported, so the message must not hold the receive buffers of its target here
+            am.releaseReceiveBuffers();
             parent.handleApplicationMessage(am, true);
         }
     }
 
+    /**
+     * Returns whether an event message that arrived from another node would be delivered to its target activity here, rather than
+     * forwarded.
+     *
+     * @param m
+     *            the event message
+     * @return whether the target activity is here
+     */
+    public boolean isDeliveredHere(EventMessage m) {
+        SingleThreadedConstellation st = getWorker(m.target);
+        return st != null && st.isDeliveredHere((ActivityIdentifierImpl) m.event.getTarget());
+    }
+
     public Constellation getConstellation() {
         return facade;
 
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * A <code>PendingEventQueues</code> object holds the event messages that could not be delivered to a remote constellation yet,
+ * in a separate queue per destination node. Messages in the same queue are delivered in order. Steal replies that wait for the
+ * rank of their destination to be resolved are kept in these queues as well.
+ *
+ * A queue is either blocked on a rank lookup, or on a failed send. A queue that is blocked on a rank lookup is flushed as soon as
+ * the rank is resolved (see {@link #ready(int)}), with a slow retry as safety net in case the lookup reply is lost. A queue that
+ * is blocked on a failed send is retried with an exponential, bounded backoff, or as soon as a connection to the destination
+ * turns out to work.
+ *
+ * There is a single consumer (see {@link #waitForDue()}) which flushes the queues. A queue is only removed once it is empty,
+ * so {@link #hasPending(int)} remains true while it is being flushed.
+ */
+class PendingEventQueues {
+
+    /** The pending messages for a single destination node. */
+    private static class Destination {
+
+        final int rank;
+
+        final ArrayDeque<AbstractMessage> queue = new ArrayDeque<AbstractMessage>();
+
+        /** Number of consecutive send failures. */
+        int failures;
+
+        /** Time at which the queue should be flushed. */
+        long deadline;
+
+        Destination(int rank) {
+            this.rank = rank;
+        }
+    }
+
+    /** Initial delay after a send failure. */
+    private final long minDelay;
+
+    /** Maximum delay after send failures. */
+    private final long maxDelay;
+
+    /** Delay before retrying a rank lookup. */
+    private final long lookupDelay;
+
+    private final HashMap<Integer, Destination> destinations = new HashMap<Integer, Destination>();
+
+    /** Number of destinations with pending messages. Read without locking as a fast path. */
+    private volatile int pending = 0;
+
+    PendingEventQueues(long minDelay, long maxDelay, long lookupDelay) {
+        this.minDelay = minDelay;
+        this.maxDelay = maxDelay;
+        this.lookupDelay = lookupDelay;
+    }
+
+    /**
+     * Returns whether there are pending messages for the specified node. New messages for this node must then be appended with
+     * {@link #add(AbstractMessage, boolean, long)} to preserve their order.
+     *
+     * @param rank
+     *            the rank of the node
+     * @return whether there are pending messages for the node
+     */
+    boolean hasPending(int rank) {
+        if (pending == 0) {
+            return false;
+        }
+
+        synchronized (this) {
+            return destinations.containsKey(rank);
+        }
+    }
+
+    /**
+     * Appends a message to the queue of its destination.
+     *
+     * @param m
+     *            the message
+     * @param unresolved
+     *            whether the message could not be sent because the rank of the destination is unknown
+     * @param now
+     *            the current time
+     */
+    synchronized void add(AbstractMessage m, boolean unresolved, long now) {
+
+        final int rank = m.target.getNodeId();
+
+        Destination d = destinations.get(rank);
+
+        if (d == null) {
+            d = new Destination(rank);
+            destinations.put(rank, d);
+            pending = destinations.size();
+            schedule(d, unresolved, now);
+        }
+
+        d.queue.addLast(m);
+    }
+
+    private void schedule(Destination d, boolean unresolved, long now) {
+
+        d.failures++;
+
+        if (unresolved) {
+            d.deadline = now + lookupDelay;
+        } else {
+            d.deadline = now + Math.min(maxDelay, minDelay << Math.min(d.failures - 1, 30));
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Signals that the condition blocking the queue of the specified node has cleared, for example because its rank was resolved
+     * or a message was successfully sent to it. The queue becomes due immediately.
+     *
+     * @param rank
+     *            the rank of the node
+     */
+    void ready(int rank) {
+
+        if (pending == 0) {
+            return;
+        }
+
+        synchronized (this) {
+            Destination d = destinations.get(rank);
+
+            if (d != null && d.deadline > 0) {
+                d.deadline = 0;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the first pending message for the specified node, without removing it.
+     *
+     * @param rank
+     *            the rank of the node
+     * @return the first pending message, or <code>null</code> if there is none
+     */
+    synchronized AbstractMessage peek(int rank) {
+        Destination d = destinations.get(rank);
+        return d == null ? null : d.queue.peekFirst();
+    }
+
+    /**
+     * Removes the first pending message for the specified node after it has been sent. The queue is removed when it becomes
+     * empty.
+     *
+     * @param rank
+     *            the rank of the node
+     */
+    synchronized void remove(int rank) {
+        Destination d = destinations.get(rank);
+
+        if (d == null) {
+            return;
+        }
+
+        d.queue.pollFirst();
+        d.failures = 0;
+
+        if (d.queue.isEmpty()) {
+            destinations.remove(rank);
+            pending = destinations.size();
+        }
+    }
+
+    /**
+     * Reschedules the queue of the specified node after an attempt to send its first message failed.
+     *
+     * @param rank
+     *            the rank of the node
+     * @param unresolved
+     *            whether the rank of the node is still unknown
+     * @param now
+     *            the current time
+     * @return the number of consecutive send failures
+     */
+    synchronized int failed(int rank, boolean unresolved, long now) {
+        Destination d = destinations.get(rank);
+
+        if (d == null) {
+            return 0;
+        }
+
+        schedule(d, unresolved, now);
+        return d.failures;
+    }
+
+    /**
+     * Returns the rank of a node whose queue is due, and marks it as being flushed.
+     *
+     * @param now
+     *            the current time
+     * @return the rank of the node, or -1 if no queue is due
+     */
+    synchronized int nextDue(long now) {
+        for (Destination d : destinations.values()) {
+            if (d.deadline <= now) {
+                d.deadline = Long.MAX_VALUE;
+                return d.rank;
+            }
+        }
+        return -1;
+    }
+
+    private long firstDeadline() {
+        long result = Long.MAX_VALUE;
+
+        for (Destination d : destinations.values()) {
+            result = Math.min(result, d.deadline);
+        }
+
+        return result;
+    }
+
+    /**
+     * Blocks until the queue of some node is due, and returns its rank.
+     *
+     * @return the rank of the node
+     */
+    synchronized int waitForDue() {
+
+        while (true) {
+            long now = System.currentTimeMillis();
+
+            int rank = nextDue(now);
+
+            if (rank >= 0) {
+                return rank;
+            }
+
+            long deadline = firstDeadline();
+
+            try {
+                if (deadline == Long.MAX_VALUE) {
+                    wait();
+                } else {
+                    wait(deadline - now);
+                }
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Returns the total number of pending messages.
+     *
+     * @return the number of pending messages
+     */
+    synchronized int size() {
+        int result = 0;
+
+        for (Destination d : destinations.values()) {
+            result += d.queue.size();
+        }
+        return result;
+    }
+}
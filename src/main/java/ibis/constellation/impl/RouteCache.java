@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the locations of activities that left the constellation they were created on, learned from
+ * {@link LocationUpdate}s. When full, the least recently used location is forgotten. A location may be out of date; an event
+ * sent to it is forwarded or sent back to the origin of the activity as usual. This class is thread-safe.
+ */
+class RouteCache {
+
+    private final int capacity;
+
+    private final LinkedHashMap<ActivityIdentifierImpl, ConstellationIdentifierImpl> routes;
+
+    private long hits;
+    private long misses;
+
+    RouteCache(final int capacity) {
+
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Route cache size may not be negative: " + capacity);
+        }
+
+        this.capacity = capacity;
+
+        routes = new LinkedHashMap<ActivityIdentifierImpl, ConstellationIdentifierImpl>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ActivityIdentifierImpl, ConstellationIdentifierImpl> eldest) {
+                return size() > RouteCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the last known location of the specified activity.
+     *
+     * @param activity
+     *            the activity
+     * @return the location, or <code>null</code> if it is not known
+     */
+    synchronized ConstellationIdentifierImpl get(final ActivityIdentifierImpl activity) {
+
+        if (capacity == 0) {
+            return null;
+        }
+
+        final ConstellationIdentifierImpl cid = routes.get(activity);
+
+        if (cid == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+
+        return cid;
+    }
+
+    /**
+     * Remembers the location of the specified activity.
+     *
+     * @param activity
+     *            the activity
+     * @param location
+     *            its location
+     */
+    synchronized void put(final ActivityIdentifierImpl activity, final ConstellationIdentifierImpl location) {
+        if (capacity > 0) {
+            routes.put(activity, location);
+        }
+    }
+
+    /**
+     * Forgets the location of the specified activity, if known.
+     *
+     * @param activity
+     *            the activity
+     */
+    synchronized void remove(final ActivityIdentifierImpl activity) {
+        routes.remove(activity);
+    }
+
+    synchronized int size() {
+        return routes.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -31,6 +32,7 @@ import org.slf4j.LoggerFactory;
 import ibis.constellation.AbstractContext;
 import ibis.constellation.Activity;
 import ibis.constellation.ActivityIdentifier;
+import ibis.constellation.Affinity;
 import ibis.constellation.Constellation;
 import ibis.constellation.ConstellationConfiguration;
 import ibis.constellation.ConstellationCreationException;
@@ -39,10 +41,12 @@ import ibis.constellation.Event;
 import ibis.constellation.NoSuitableExecutorException;
 import ibis.constellation.StealPool;
 import ibis.constellation.StealStrategy;
+import ibis.constellation.impl.util.ActivityFilter;
 import ibis.constellation.impl.util.CircularBuffer;
 import ibis.constellation.impl.util.Profiling;
 import ibis.constellation.impl.util.SimpleWorkQueue;
 import ibis.constellation.impl.util.WorkQueue;
+import ibis.constellation.util.ReceiveBuffers;
 
 public class SingleThreadedConstellation extends Thread {
 
@@ -57,6 +61,9 @@ public class SingleThreadedConstellation extends Thread {
 
     private final ExecutorWrapper wrapper;
 
+    // Serializes submissions through performSubmit, which may be called by several threads at once.
+    private final Object submitLock = new Object();
+
     public ExecutorWrapper getWrapper() {
         return wrapper;
     }
@@ -112,6 +119,55 @@ public class SingleThreadedConstellation extends Thread {
     private final int stealSize;
     private final int stealDelay;
 
+    private final boolean adaptiveSteal;
+    private final long remoteStealBudget;
+
+    // How long strongly affine activities are kept from thieves that do not match, in nanoseconds. 0 means forever.
+    private final long affinityTimeout;
+
+    /**
+     * Selects the affine activities that may go to a thief. The preferred ones have an affinity that matches the thief. The
+     * others are weakly affine, or have been here longer than the affinity timeout.
+     */
+    private static final class AffinityFilter implements ActivityFilter {
+
+        private final ConstellationIdentifierImpl thief;
+        private final boolean preferred;
+        private final long timeout;
+        private final long now = System.nanoTime();
+
+        AffinityFilter(final ConstellationIdentifierImpl thief, final boolean preferred, final long timeout) {
+            this.thief = thief;
+            this.preferred = preferred;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public boolean accept(final ActivityRecord a) {
+            final Affinity affinity = a.getAffinity();
+
+            if (affinity == null || affinity.matches(thief)) {
+                return true;
+            }
+
+            if (preferred) {
+                return false;
+            }
+
+            return !affinity.isStrong() || (timeout > 0 && now - a.getSince() >= timeout);
+        }
+    }
+
+    // Set by our own thread while it is looking for work, read by our parent.
+    private volatile boolean idle = false;
+
+    // Number of processed activities between checks of the low-water mark and push threshold of the node.
+    private static final int PREFETCH_CHECK_INTERVAL = 16;
+
+    private final boolean checkLowWaterMark;
+    private final boolean checkPushWork;
+    private int processedSinceCheck = 0;
+
     private long nextStealDeadline;
 
     private PendingRequests incoming = new PendingRequests();
@@ -214,6 +270,17 @@ public class SingleThreadedConstellation extends Thread {
             logger.info("SingleThreaded: steal size set to " + stealSize);
         }
 
+        adaptiveSteal = props.STEAL_ADAPTIVE;
+        remoteStealBudget = props.REMOTESTEAL_BUDGET;
+        affinityTimeout = props.AFFINITY_TIMEOUT * 1000000L;
+
+        if (logger.isInfoEnabled()) {
+            logger.info("SingleThreaded: adaptive steal set to " + adaptiveSteal + ", remote steal budget " + remoteStealBudget);
+        }
+
+        checkLowWaterMark = parent != null && props.REMOTESTEAL_LOW_WATER_MARK > 0;
+        checkPushWork = parent != null && props.REMOTESTEAL_PUSH_THRESHOLD > 0;
+
         ignoreEmptyStealReplies = props.STEAL_IGNORE_EMPTY_REPLIES;
 
         if (logger.isInfoEnabled()) {
@@ -243,6 +310,15 @@ public class SingleThreadedConstellation extends Thread {
         return rank;
     }
 
+    /**
+     * Returns whether this constellation is currently out of work.
+     *
+     * @return whether this constellation is idle
+     */
+    public boolean isIdle() {
+        return idle;
+    }
+
     public StealPool belongsTo() {
         return myPool;
     }
@@ -278,8 +354,12 @@ public class SingleThreadedConstellation extends Thread {
          * MultiThreadedConstellation then picks a specific
          * SingleThreadedConstellation, and the activity should be submitted to
          * its wrapper, because this executor may not be able to steal.
+         * The wrapper is not thread-safe, and the MultiThreadedConstellation
+         * does not serialize submitters, so we do it here.
          */
-        return wrapper.submit(activity);
+        synchronized (submitLock) {
+            return wrapper.submit(activity);
+        }
     }
 
     public ActivityIdentifierImpl doSubmit(final ActivityRecord ar, final AbstractContext c, final ActivityIdentifierImpl id) {
@@ -360,6 +440,13 @@ public class SingleThreadedConstellation extends Thread {
 
     public ActivityRecord[] attemptSteal(final AbstractContext context, final StealStrategy s, final StealPool pool,
             final ConstellationIdentifierImpl source, final int size, final boolean local) {
+        return attemptSteal(context, s, pool, source, size, 0, local);
+    }
+
+    public ActivityRecord[] attemptSteal(final AbstractContext context, final StealStrategy s, final StealPool pool,
+            final ConstellationIdentifierImpl source, final int requested, final int idleSiblings, final boolean local) {
+
+        final int size = adaptiveSteal ? StealSize.share(requested, stealableCount(context, local), idleSiblings) : requested;
 
         final ActivityRecord[] result = new ActivityRecord[size];
 
@@ -372,18 +459,62 @@ public class SingleThreadedConstellation extends Thread {
         return trim(result, count);
     }
 
-    private int localSteal(final AbstractContext context, final StealStrategy s, final ActivityRecord[] result, final int o, final int size) {
+    private synchronized int stealableCount(final AbstractContext context, final boolean local) {
+        int count = wrongContext.size(context) + fresh.size(context);
+
+        if (local) {
+            count += restrictedWrongContext.size(context) + restricted.size(context) + stolen.size(context);
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the number of activities queued at this constellation (including its executor) that may match the specified
+     * context.
+     *
+     * @param context
+     *            the context to match
+     * @return the (approximate) number of matching activities
+     */
+    public int queuedWork(final AbstractContext context) {
+        return stealableCount(context, true) + wrapper.stealableCount(context, true);
+    }
+
+    /**
+     * Returns the records in <code>a</code> that do not fit in the remote steal budget to our queues.
+     *
+     * @return the number of records left in <code>a</code>
+     */
+    private int applyRemoteStealBudget(final ActivityRecord[] a, final int count) {
+
+        final int keep = StealSize.fitBudget(a, count, remoteStealBudget);
+
+        if (keep < count) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Remote steal budget exceeded, keeping " + (count - keep) + " of " + count + " stolen jobs");
+            }
+
+            reclaim(Arrays.copyOfRange(a, keep, count));
+            Arrays.fill(a, keep, count, null);
+        }
+
+        return keep;
+    }
+
+    private int localSteal(final AbstractContext context, final StealStrategy s, final ActivityFilter f, final ActivityRecord[] result,
+            final int o, final int size) {
         int offset = o;
         if (offset < size) {
-            offset += restrictedWrongContext.steal(context, s, result, offset, size - offset);
+            offset += restrictedWrongContext.steal(context, s, f, result, offset, size - offset);
         }
 
         if (offset < size) {
-            offset += restricted.steal(context, s, result, offset, size - offset);
+            offset += restricted.steal(context, s, f, result, offset, size - offset);
         }
 
         if (offset < size) {
-            offset += stolen.steal(context, s, result, offset, size - offset);
+            offset += stolen.steal(context, s, f, result, offset, size - offset);
         }
 
         return offset;
@@ -406,21 +537,34 @@ public class SingleThreadedConstellation extends Thread {
             return 0;
         }
 
-        // First steal from the activities that I cannot run myself.
-        final int fromWrong = wrongContext.steal(context, s, tmp, 0, size);
-        int offset = fromWrong;
+        int fromWrong = 0;
+        int fromFresh = 0;
+        int offset = 0;
 
-        if (local && offset < size) {
-            // Only peers from our own constellation are allowed to steal
-            // restricted or stolen jobs.
-            offset = localSteal(context, s, tmp, offset, size);
-        }
+        // Hand out activities without affinity, or with an affinity that matches the thief, before any other. Then those that
+        // are only weakly affine, or that have been waiting for too long.
+        final AffinityFilter[] filters = new AffinityFilter[] { new AffinityFilter(src, true, affinityTimeout),
+                new AffinityFilter(src, false, affinityTimeout) };
 
-        // Anyone may steal a fresh job
-        int fromFresh = 0;
-        if (offset < size) {
-            fromFresh = fresh.steal(context, s, tmp, offset, size - offset);
-            offset += fromFresh;
+        for (int i = 0; i < filters.length && offset < size; i++) {
+
+            // First steal from the activities that I cannot run myself.
+            final int n = wrongContext.steal(context, s, filters[i], tmp, offset, size - offset);
+            fromWrong += n;
+            offset += n;
+
+            if (local && offset < size) {
+                // Only peers from our own constellation are allowed to steal
+                // restricted or stolen jobs.
+                offset = localSteal(context, s, filters[i], tmp, offset, size);
+            }
+
+            // Anyone may steal a fresh job
+            if (offset < size) {
+                final int m = fresh.steal(context, s, filters[i], tmp, offset, size - offset);
+                fromFresh += m;
+                offset += m;
+            }
         }
 
         if (offset == 0) {
@@ -428,6 +572,10 @@ public class SingleThreadedConstellation extends Thread {
             return 0;
         }
 
+        if (!local) {
+            offset = applyRemoteStealBudget(tmp, offset);
+        }
+
         if (logger.isDebugEnabled()) {
             logger.debug("Stole " + offset + " jobs from " + identifier + ": " + fromWrong + " from wrongContext, " + fromFresh
                     + " from fresh");
@@ -448,7 +596,9 @@ public class SingleThreadedConstellation extends Thread {
 
         for (int i = 0; i < len; i++) {
             if (ar[i] != null) {
+                ar[i].releaseReceiveBuffers();
                 lookup.remove(ar[i].identifier());
+                ar[i].addForwarder(identifier);
 
                 if (isLocal) {
                     ar[i].setRelocated(true);
@@ -558,7 +708,19 @@ public class SingleThreadedConstellation extends Thread {
         }
     }
 
-    public synchronized ConstellationIdentifierImpl deliverEventMessage(final EventMessage m) {
+    /**
+     * Returns whether an event message for the specified activity would be delivered here, rather than forwarded to where the
+     * activity went.
+     *
+     * @param target
+     *            the target activity of the event
+     * @return whether the activity is here, or in the queues of our executor
+     */
+    synchronized boolean isDeliveredHere(final ActivityIdentifierImpl target) {
+        return lookup.containsKey(target) || !(relocatedActivities.containsKey(target) || exportedActivities.containsKey(target));
+    }
+
+    public ConstellationIdentifierImpl deliverEventMessage(final EventMessage m) {
         // A message from above. The target must be local (in one of my queues,
         // or in the queues of the executor) or its new location must be known
         // locally.
@@ -580,31 +742,92 @@ public class SingleThreadedConstellation extends Thread {
         final Event e = m.event;
         final ActivityIdentifierImpl target = (ActivityIdentifierImpl) e.getTarget();
 
-        final ActivityRecord tmp = lookup.get(target);
+        synchronized (this) {
+
+            final ActivityRecord tmp = lookup.get(target);
+
+            if (tmp == null) {
+
+                // If not, it may have been relocated
+                ConstellationIdentifierImpl cid = relocatedActivities.get(target);
+
+                if (cid != null) {
+                    return cid;
+                }
+
+                // If not, it may have been stolen
+                cid = exportedActivities.get(target);
+
+                if (cid != null) {
+                    return cid;
+                }
+
+                // If not, it should be in the queue of my executor
+                postEventMessage(m);
+                return null;
+            }
 
-        if (tmp != null) {
             // We found the destination activity and enqueue the event for it.
-            tmp.enqueue(e);
-            return null;
+            tmp.enqueue(e, m.takeReceiveToken());
         }
 
-        // If not, it may have been relocated
-        ConstellationIdentifierImpl cid = relocatedActivities.get(target);
+        sendLocationUpdate(m);
+        return null;
+    }
+
+    /**
+     * Tells the sender of an event message that was forwarded to reach its target activity here where that activity is, so that
+     * it can send later events here directly.
+     *
+     * @param m
+     *            the delivered event message
+     */
+    private void sendLocationUpdate(final EventMessage m) {
 
-        if (cid != null) {
-            return cid;
+        if (parent == null || !m.isRedirected() || identifier.equals(m.source)) {
+            return;
         }
 
-        // If not, it may have been stolen
-        cid = exportedActivities.get(target);
+        final ActivityIdentifierImpl target = (ActivityIdentifierImpl) m.event.getTarget();
+
+        parent.handleLocationUpdate(new LocationUpdate(identifier, m.source, target, identifier));
+    }
+
+    /**
+     * Removes the receive buffers of the specified activity, and tells the constellations that forward events to it, because it
+     * left them, that it has finished.
+     *
+     * @param ar
+     *            the activity record of the finished activity
+     */
+    void activityFinished(final ActivityRecord ar) {
+
+        ReceiveBuffers.unregister(ar.identifier());
 
-        if (cid != null) {
-            return cid;
+        final List<ConstellationIdentifierImpl> forwarders = ar.takeForwarders();
+
+        if (forwarders == null) {
+            return;
         }
 
-        // If not, it should be in the queue of my executor
-        postEventMessage(m);
-        return null;
+        for (final ConstellationIdentifierImpl cid : forwarders) {
+            if (parent == null) {
+                forget(ar.identifier());
+            } else {
+                parent.handleLocationUpdate(new LocationUpdate(identifier, cid, ar.identifier(), null));
+            }
+        }
+    }
+
+    /**
+     * Drops the forwarding entry for the specified activity, which has finished elsewhere.
+     *
+     * @param aid
+     *            the activity
+     */
+    void forget(final ActivityIdentifierImpl aid) {
+        exportedActivities.remove(aid);
+        relocatedActivities.remove(aid);
     }
 
     public boolean isMaster() {
@@ -614,6 +837,12 @@ public class SingleThreadedConstellation extends Thread {
     public void handleEvent(final Event e) {
         // An event pushed up by our executor. We know the
         // executor itself does not contain the target activity
+        handleEvent(e, null);
+    }
+
+    private void handleEvent(final Event e, final EventMessage resent) {
+        // When the event is resent because it could not be delivered here,
+        // the route cache is not used, as it may have brought the event here.
 
         ConstellationIdentifierImpl cid = null;
 
@@ -626,7 +855,7 @@ public class SingleThreadedConstellation extends Thread {
 
             if (tmp != null) {
                 // It is, so enqueue it and return.
-                tmp.enqueue(e);
+                tmp.enqueue(e, resent == null ? 0 : resent.takeReceiveToken());
                 return;
             }
 
@@ -638,19 +867,40 @@ public class SingleThreadedConstellation extends Thread {
                 cid = relocatedActivities.get(target);
             }
 
+            if (cid == null && resent == null && parent != null) {
+                // If not, we may have learned where it went
+                cid = parent.lookupRoute(target);
+
+                if (identifier.equals(cid)) {
+                    // Out of date, as it is not here.
+                    cid = null;
+                }
+            }
+
             if (cid == null) {
                 // If not, we simply send the event to the parent
                 cid = target.getOrigin();
             }
         }
 
+        if (resent != null) {
+            // The event leaves, so it must not hold the receive buffers of its target here.
+            resent.releaseReceiveBuffers();
+        }
+
         if (cid.equals(identifier)) {
             // the target is local, which means we have lost a local activity
             logger.error("Activity " + e.getTarget() + " does no longer exist! (event dropped)");
             return;
         }
 
-        parent.handleEventMessage(new EventMessage(identifier, cid, e));
+        if (resent == null) {
+            parent.handleEventMessage(new EventMessage(identifier, cid, e));
+        } else {
+            final EventMessage m = new EventMessage(resent.source, cid, e);
+            m.setRedirected();
+            parent.handleEventMessage(m);
+        }
     }
 
     public synchronized final void signal() {
@@ -715,7 +965,11 @@ public class SingleThreadedConstellation extends Thread {
 
     private void processRemoteMessages() {
         for (final EventMessage m : processing.deliveredApplicationMessages) {
-            if (!wrapper.queueEvent(m.event)) {
+            final long token = m.takeReceiveToken();
+            if (wrapper.queueEvent(m.event, token)) {
+                sendLocationUpdate(m);
+            } else {
+                m.setReceiveToken(token);
                 // Failed to deliver event locally. Check if the activity is
                 // now in one of the local queues. If not, return to parent.
                 if (logger.isInfoEnabled()) {
@@ -723,12 +977,23 @@ public class SingleThreadedConstellation extends Thread {
                             + " / " + m.event.getTarget() + " (resending)");
                 }
 
-                handleEvent(m.event);
+                handleEvent(m.event, m);
             }
         }
         processing.deliveredApplicationMessages.clear();
     }
 
+    /**
+     * Returns whether the specified activity was stolen from this constellation by another node.
+     *
+     * @param id
+     *            the activity identifier
+     * @return whether the activity was exported
+     */
+    boolean hasExported(ActivityIdentifierImpl id) {
+        return exportedActivities.containsKey(id);
+    }
+
     /**
      * Reclaim is used to re-insert activities into the queue whenever a steal reply failed to be sent.
      *
@@ -750,10 +1015,13 @@ public class SingleThreadedConstellation extends Thread {
                 if (ar.isRelocated()) {
                     // We should unset the relocation flag if an activity is returned.
                     ar.setRelocated(false);
+                    ar.removeForwarder(identifier);
                     relocated.remove(ar);
+                    relocatedActivities.remove(ar.identifier());
                 } else if (ar.isStolen()) {
                     // We should unset the stolen flag if an activity is returned.
                     ar.setStolen(false);
+                    ar.removeForwarder(identifier);
                     exportedActivities.remove(ar.identifier());
                 }
 
@@ -777,37 +1045,66 @@ public class SingleThreadedConstellation extends Thread {
         }
     }
 
-    private void processStealRequests() {
-
-        final Collection<StealRequest> requests = processing.stealRequests.values();
+    /**
+     * Takes the activities for a posted steal request from the queues of our executor, and registers them as leaving. As in
+     * {@link #attemptSteal(ActivityRecord[], AbstractContext, StealStrategy, StealPool, ConstellationIdentifierImpl, int, boolean)},
+     * activities without an affinity or with an affinity matching the thief go first, and strongly affine activities only go
+     * once the affinity timeout has expired.
+     *
+     * @param s
+     *            the steal request
+     * @return the activities, possibly followed by <code>null</code>s, or <code>null</code> when there are none
+     */
+    synchronized ActivityRecord[] stealFromExecutor(final StealRequest s) {
 
-        for (final StealRequest s : requests) {
+        // We grab the lock here to prevent other threads (from above) from doing a lookup in the
+        // relocated/exported tables while we are removing activities from the executor's queue.
 
-            ActivityRecord[] a = null;
+        final StealStrategy tmp = s.isLocal() ? s.constellationStrategy : s.remoteStrategy;
 
-            synchronized (this) {
+        int size = s.size;
 
-                // We grab the lock here to prevent other threads (from above) from doing a lookup in the
-                // relocated/exported tables while we are removing activities from the executor's queue.
+        if (adaptiveSteal) {
+            size = StealSize.share(size, wrapper.stealableCount(s.context, s.isLocal()), s.idleSiblings);
+        }
 
-                final StealStrategy tmp = s.isLocal() ? s.constellationStrategy : s.remoteStrategy;
+        final ActivityFilter[] filters = new ActivityFilter[] { new AffinityFilter(s.source, true, affinityTimeout),
+                new AffinityFilter(s.source, false, affinityTimeout) };
 
-                // NOTE: a is allowed to be null
-                a = wrapper.steal(s.context, tmp, s.isLocal(), s.size, s.source);
+        ActivityRecord[] a = wrapper.steal(s.context, tmp, s.isLocal(), size, s.source, filters);
 
-                if (a != null) {
-                    // We have a result. Register the leaving activities.
-                    registerLeavingActivities(a, a.length, s.source, s.isLocal());
-                }
+        if (a != null && !s.isLocal()) {
+            int count = 0;
+            while (count < a.length && a[count] != null) {
+                count++;
             }
+            a = trim(a, applyRemoteStealBudget(a, count));
+        }
+
+        if (a != null) {
+            // We have a result. Register the leaving activities.
+            registerLeavingActivities(a, a.length, s.source, s.isLocal());
+        }
+
+        return a;
+    }
+
+    private void processStealRequests() {
+
+        final Collection<StealRequest> requests = processing.stealRequests.values();
+
+        for (final StealRequest s : requests) {
+
+            // NOTE: a is allowed to be null
+            final ActivityRecord[] a = stealFromExecutor(s);
 
             if (a != null) {
-                if (!parent.handleStealReply(this, new StealReply(wrapper.identifier(), s.source, s.pool, s.context, a))) {
+                if (!parent.handleStealReply(this, new StealReply(wrapper.identifier(), s, a))) {
                     reclaim(a);
                 }
             } else if (!ignoreEmptyStealReplies) {
                 // No result, but we send a reply anyway.
-                parent.handleStealReply(this, new StealReply(wrapper.identifier(), s.source, s.pool, s.context, a));
+                parent.handleStealReply(this, new StealReply(wrapper.identifier(), s, a));
             } else {
                 // No result, and we're not supposed to tell anyone
                 if (logger.isDebugEnabled()) {
@@ -918,9 +1215,23 @@ public class SingleThreadedConstellation extends Thread {
 
         if (wrapper.process() || pushWorkToExecutor(wrapper.getLocalStealStrategy())) {
             // Either we processed an activity, or we pushed one to the wrapper.
+            if (idle) {
+                idle = false;
+            }
+            if ((checkLowWaterMark || checkPushWork) && ++processedSinceCheck >= PREFETCH_CHECK_INTERVAL) {
+                processedSinceCheck = 0;
+                if (checkLowWaterMark) {
+                    parent.checkLowWaterMark(this);
+                }
+                if (checkPushWork) {
+                    parent.checkPushWork(this);
+                }
+            }
             return false;
         }
 
+        idle = true;
+
         if (parent == null || stealsFrom() == StealPool.NONE) {
             // Cannot steal, either because there is no-one to steal from, or because of the NONE stealpool.
             waitForRequest();
@@ -993,6 +1304,8 @@ public class SingleThreadedConstellation extends Thread {
 
         final long wrongContextSubmitted = wrapper.getWrongContextSubmitted();
 
+        final long recordsReused = wrapper.getActivityRecordsReused();
+
         final long steals = wrapper.getSteals() + this.steals;
         final long stealSuccessIn = wrapper.getStealSuccess() + this.stealSuccess;
         final long stolen = wrapper.getStolen() + this.stolenJobs;
@@ -1031,6 +1344,7 @@ public class SingleThreadedConstellation extends Thread {
 
             out.println(" Activities");
             out.println("   submitted       : " + activitiesSubmitted);
+            out.println("   records reused  : " + recordsReused);
             if (PROFILE) {
                 out.println("   invoked         : " + activitiesInvoked + " (" + fact + " /act)");
             }
@@ -31,6 +31,9 @@ public class StealReply extends AbstractMessage implements ByteBuffers {
     private final AbstractContext context;
     private final ActivityRecord[] work;
 
+    // The identifier of the request this is a reply to, or 0 if unknown.
+    private int requestId;
+
     public StealReply(final ConstellationIdentifierImpl source, final ConstellationIdentifierImpl target, final StealPool pool,
             final AbstractContext context, final ActivityRecord work) {
 
@@ -54,6 +57,19 @@ public class StealReply extends AbstractMessage implements ByteBuffers {
         this.context = context;
     }
 
+    public StealReply(final ConstellationIdentifierImpl source, final StealRequest request, final ActivityRecord[] work) {
+        this(source, request.source, request.pool, request.context, work);
+        this.requestId = request.getRequestId();
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(final int requestId) {
+        this.requestId = requestId;
+    }
+
     public boolean isEmpty() {
         return (work == null || work.length == 0);
     }
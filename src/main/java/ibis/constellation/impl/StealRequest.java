@@ -15,6 +15,8 @@
  */
 package ibis.constellation.impl;
 
+import java.util.Arrays;
+
 import ibis.constellation.AbstractContext;
 import ibis.constellation.StealPool;
 import ibis.constellation.StealStrategy;
@@ -29,13 +31,27 @@ public class StealRequest extends AbstractMessage {
     public final StealStrategy remoteStrategy;
     public final StealPool pool;
     public final int size;
+    // Number of idle executors in the constellation of the thief, besides the thief itself.
+    public final int idleSiblings;
 
     // Note allowRestricted is set to false when the StealRequest traverses the network.
     private transient boolean isLocal;
 
+    // Ranks of the nodes that forwarded this request because they had no work, in order.
+    private int[] visited = new int[0];
+
+    // Identifies this request at the thief, echoed in the reply. Zero if the thief does not need to match the reply.
+    private int requestId;
+
     public StealRequest(final ConstellationIdentifierImpl source, final AbstractContext context,
             final StealStrategy localStrategy, final StealStrategy constellationStrategy, final StealStrategy remoteStrategy,
             final StealPool pool, final int size) {
+        this(source, context, localStrategy, constellationStrategy, remoteStrategy, pool, size, 0);
+    }
+
+    public StealRequest(final ConstellationIdentifierImpl source, final AbstractContext context,
+            final StealStrategy localStrategy, final StealStrategy constellationStrategy, final StealStrategy remoteStrategy,
+            final StealPool pool, final int size, final int idleSiblings) {
 
         super(source);
 
@@ -51,6 +67,7 @@ public class StealRequest extends AbstractMessage {
         this.remoteStrategy = remoteStrategy;
         this.pool = pool;
         this.size = size;
+        this.idleSiblings = idleSiblings;
 
         isLocal = true;
     }
@@ -62,4 +79,73 @@ public class StealRequest extends AbstractMessage {
     public boolean isLocal() {
         return isLocal;
     }
+
+    /**
+     * Records that the node with the specified rank forwards this request to another node.
+     *
+     * @param rank
+     *            the rank of the forwarding node
+     */
+    public void forwardedBy(final int rank) {
+        visited = Arrays.copyOf(visited, visited.length + 1);
+        visited[visited.length - 1] = rank;
+    }
+
+    /**
+     * Returns the number of times this request has been forwarded.
+     *
+     * @return the number of hops
+     */
+    public int getHops() {
+        return visited.length;
+    }
+
+    /**
+     * Returns whether the node with the specified rank has already seen this request, either as thief or as forwarder.
+     *
+     * @param rank
+     *            the rank of the node
+     * @return whether the node has seen this request
+     */
+    public boolean isVisited(final int rank) {
+
+        if (source.getNodeId() == rank) {
+            return true;
+        }
+
+        for (int r : visited) {
+            if (r == rank) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the ranks of the nodes that forwarded this request, in order.
+     *
+     * @return the ranks of the forwarding nodes
+     */
+    public int[] getVisited() {
+        return visited.clone();
+    }
+
+    /**
+     * Sets the identifier with which the thief matches the reply to this request.
+     *
+     * @param requestId
+     *            the identifier, a positive number
+     */
+    public void setRequestId(final int requestId) {
+        this.requestId = requestId;
+    }
+
+    /**
+     * Returns the identifier with which the thief matches the reply to this request.
+     *
+     * @return the identifier, or 0 if it was not set
+     */
+    public int getRequestId() {
+        return requestId;
+    }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+/**
+ * Helper methods to determine how many activities a victim hands out in response to a steal request.
+ */
+final class StealSize {
+
+    private StealSize() {
+        // prevent instantiation
+    }
+
+    /**
+     * Returns the number of activities to hand out when adaptive stealing is enabled. The thief and its idle siblings together
+     * get a share of the matching queue of the victim proportional to their number, so a single idle thief gets half of the
+     * queue. The result is never smaller than the requested size.
+     *
+     * @param requested
+     *            the number of activities requested by the thief
+     * @param depth
+     *            the number of queued activities of the victim that match the context of the thief
+     * @param idleSiblings
+     *            the number of idle executors in the constellation of the thief, besides the thief itself
+     * @return the number of activities to hand out
+     */
+    static int share(int requested, int depth, int idleSiblings) {
+
+        if (depth <= requested) {
+            return requested;
+        }
+
+        long thieves = Math.max(0, idleSiblings) + 1L;
+        long share = (depth * thieves) / (thieves + 1);
+
+        return (int) Math.max(requested, share);
+    }
+
+    /**
+     * Returns how many of the first <code>count</code> records in <code>a</code> fit in the specified budget. The first record
+     * always fits, so that a steal reply always makes progress.
+     *
+     * @param a
+     *            the stolen records
+     * @param count
+     *            the number of valid records in <code>a</code>
+     * @param budget
+     *            the budget in bytes, or 0 for no limit
+     * @return the number of records that fit
+     */
+    static int fitBudget(ActivityRecord[] a, int count, long budget) {
+
+        if (budget <= 0 || count <= 1) {
+            return count;
+        }
+
+        long total = a[0].estimatedSize();
+
+        for (int i = 1; i < count; i++) {
+            total += a[i].estimatedSize();
+
+            if (total > budget) {
+                return i;
+            }
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import ibis.constellation.AbstractContext;
+import ibis.constellation.Context;
+import ibis.constellation.OrContext;
+import ibis.constellation.StealPool;
+
+/**
+ * A <code>SubmitRoutingTable</code> maps the context of a submitted activity to the workers of a
+ * {@link MultiThreadedConstellation} that can run it.
+ *
+ * The table is built once, from the contexts of the workers, and is read-only afterwards, so it can be used by any number of
+ * submitting threads without locking. Each submitting thread has its own round-robin cursor.
+ */
+class SubmitRoutingTable {
+
+    /** A (name, range) pair of a worker context, and the worker it belongs to. */
+    private static final class Route {
+
+        final int worker;
+        final long start;
+        final long end;
+
+        Route(int worker, long start, long end) {
+            this.worker = worker;
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean overlaps(Context c) {
+            return !(end < c.getRangeStart() || c.getRangeEnd() < start);
+        }
+    }
+
+    /** Per-thread round-robin state, plus scratch space to collect candidates without allocating. */
+    private static final class Cursor {
+
+        int next;
+        final int[] candidates;
+        final boolean[] seen;
+
+        Cursor(int workers) {
+            candidates = new int[workers];
+            seen = new boolean[workers];
+        }
+    }
+
+    private final int workerCount;
+
+    /** Routes per context name. */
+    private final Map<String, Route[]> routes = new HashMap<String, Route[]>();
+
+    /** Workers that belong to the WORLD steal pool, used when no worker matches. */
+    private final int[] worldWorkers;
+
+    private final ThreadLocal<Cursor> cursor = new ThreadLocal<Cursor>() {
+        @Override
+        protected Cursor initialValue() {
+            return new Cursor(workerCount);
+        }
+    };
+
+    SubmitRoutingTable(AbstractContext[] contexts, StealPool[] belongsTo) {
+
+        workerCount = contexts.length;
+
+        HashMap<String, ArrayList<Route>> tmp = new HashMap<String, ArrayList<Route>>();
+
+        for (int i = 0; i < workerCount; i++) {
+            if (contexts[i] instanceof Context) {
+                addRoute(tmp, i, (Context) contexts[i]);
+            } else {
+                for (Context c : (OrContext) contexts[i]) {
+                    addRoute(tmp, i, c);
+                }
+            }
+        }
+
+        for (Map.Entry<String, ArrayList<Route>> e : tmp.entrySet()) {
+            routes.put(e.getKey(), e.getValue().toArray(new Route[e.getValue().size()]));
+        }
+
+        int count = 0;
+        int[] world = new int[workerCount];
+
+        for (int i = 0; i < workerCount; i++) {
+            if (belongsTo[i].isWorld()) {
+                world[count++] = i;
+            }
+        }
+
+        worldWorkers = new int[count];
+        System.arraycopy(world, 0, worldWorkers, 0, count);
+    }
+
+    private static void addRoute(HashMap<String, ArrayList<Route>> map, int worker, Context c) {
+
+        ArrayList<Route> l = map.get(c.getName());
+
+        if (l == null) {
+            l = new ArrayList<Route>();
+            map.put(c.getName(), l);
+        }
+
+        l.add(new Route(worker, c.getRangeStart(), c.getRangeEnd()));
+    }
+
+    private int collect(Context c, Cursor cur, int n) {
+
+        Route[] r = routes.get(c.getName());
+
+        if (r == null) {
+            return n;
+        }
+
+        for (Route route : r) {
+            if (!cur.seen[route.worker] && route.overlaps(c)) {
+                cur.seen[route.worker] = true;
+                cur.candidates[n++] = route.worker;
+            }
+        }
+
+        return n;
+    }
+
+    private int nextIndex(Cursor cur, int n) {
+        int index = cur.next++ % n;
+
+        if (cur.next < 0) {
+            cur.next = 0;
+        }
+
+        return index;
+    }
+
+    /**
+     * Selects a worker that can run an activity with the specified context. The preferred worker is selected when it matches,
+     * otherwise the matching workers are used in a (per-thread) round-robin fashion.
+     *
+     * @param c
+     *            the context of the activity
+     * @param preferred
+     *            the index of the preferred worker, or -1
+     * @return the index of the selected worker, or -1 when no worker matches
+     */
+    int select(AbstractContext c, int preferred) {
+
+        Cursor cur = cursor.get();
+
+        int n = 0;
+
+        if (c instanceof Context) {
+            n = collect((Context) c, cur, 0);
+        } else if (c instanceof OrContext) {
+            for (Context tmp : (OrContext) c) {
+                n = collect(tmp, cur, n);
+            }
+        }
+
+        if (n == 0) {
+            return -1;
+        }
+
+        int result = -1;
+
+        for (int i = 0; i < n; i++) {
+            cur.seen[cur.candidates[i]] = false;
+
+            if (cur.candidates[i] == preferred) {
+                result = preferred;
+            }
+        }
+
+        if (result == -1) {
+            result = cur.candidates[nextIndex(cur, n)];
+        }
+
+        return result;
+    }
+
+    /**
+     * Selects a worker for an activity that no worker can run. Workers belonging to the WORLD steal pool are preferred, as the
+     * activity is most likely to be stolen from there.
+     *
+     * @return the index of the selected worker
+     */
+    int selectFallback() {
+
+        Cursor cur = cursor.get();
+
+        if (worldWorkers.length > 0) {
+            return worldWorkers[nextIndex(cur, worldWorkers.length)];
+        }
+
+        return nextIndex(cur, workerCount);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+import ibis.constellation.impl.pool.communication.NodeIdentifier;
+
+/**
+ * Selects victims that are likely to have work and are cheap to reach.
+ *
+ * For each node, an exponentially weighted moving average is kept of the fraction of steal replies that contained work, and of
+ * the round trip time (from ping/pong exchanges and from the time it took to get a steal reply). Replies are matched to their
+ * requests by the identifier echoed in the reply, so a round trip is only measured when the node the request was sent to replied
+ * itself, and requests that are never answered expire. A victim is selected at random,
+ * with a probability proportional to its success rate divided by its round trip time. To remain fair, and to notice when a node
+ * gets work again, a uniformly random victim is selected every now and then, and no node ever gets a zero probability.
+ */
+class AdaptiveVictimSelector implements VictimSelector {
+
+    /** Fraction of selections that ignores the statistics. */
+    static final double EXPLORE = 0.1;
+
+    /** Weight of a new sample in the moving averages. */
+    static final double ALPHA = 0.25;
+
+    /** Success rate assumed for a node we know nothing about. */
+    static final double INITIAL_SUCCESS = 0.5;
+
+    /** Lower bound on the success rate, so no node is ruled out completely. */
+    static final double MIN_SUCCESS = 0.02;
+
+    /** Round trip time assumed for a node we have no measurement for, in nanoseconds. */
+    static final double DEFAULT_RTT = 1000000.0;
+
+    /** Minimum time between two pings to the same node, in nanoseconds. */
+    static final long PING_INTERVAL = 10000000000L;
+
+    /** Time after which an unanswered steal request is forgotten, in nanoseconds. */
+    static final long REQUEST_TIMEOUT = 10000000000L;
+
+    private static class NodeStats {
+
+        double success = INITIAL_SUCCESS;
+        double rtt = -1;
+        long lastPing = Long.MIN_VALUE;
+
+        double weight() {
+            return Math.max(success, MIN_SUCCESS) / (rtt > 0 ? rtt : DEFAULT_RTT);
+        }
+
+        void addRoundTrip(double sample) {
+            rtt = rtt < 0 ? sample : (1.0 - ALPHA) * rtt + ALPHA * sample;
+        }
+    }
+
+    private static class Outstanding {
+
+        final NodeIdentifier node;
+        final long sent;
+
+        Outstanding(NodeIdentifier node, long sent) {
+            this.node = node;
+            this.sent = sent;
+        }
+    }
+
+    private final HashMap<NodeIdentifier, NodeStats> stats = new HashMap<NodeIdentifier, NodeStats>();
+
+    // Outstanding steal requests by identifier, in the order in which they were sent.
+    private final LinkedHashMap<Integer, Outstanding> outstanding = new LinkedHashMap<Integer, Outstanding>();
+
+    private final Random random;
+
+    private double[] weights = new double[0];
+
+    AdaptiveVictimSelector(Random random) {
+        this.random = random;
+    }
+
+    private NodeStats get(NodeIdentifier node) {
+        NodeStats s = stats.get(node);
+
+        if (s == null) {
+            s = new NodeStats();
+            stats.put(node, s);
+        }
+        return s;
+    }
+
+    @Override
+    public synchronized NodeIdentifier select(List<NodeIdentifier> members, NodeIdentifier local) {
+
+        final int size = members.size();
+
+        if (weights.length < size) {
+            weights = new double[size];
+        }
+
+        double total = 0;
+        int candidates = 0;
+
+        for (int i = 0; i < size; i++) {
+            NodeIdentifier id = members.get(i);
+
+            if (id.equals(local)) {
+                weights[i] = 0;
+            } else {
+                weights[i] = get(id).weight();
+                total += weights[i];
+                candidates++;
+            }
+        }
+
+        if (candidates == 0) {
+            return null;
+        }
+
+        if (random.nextDouble() < EXPLORE) {
+            // Select uniformly among the candidates.
+            int n = random.nextInt(candidates);
+
+            for (int i = 0; i < size; i++) {
+                if (weights[i] > 0 && n-- == 0) {
+                    return members.get(i);
+                }
+            }
+        }
+
+        double r = random.nextDouble() * total;
+
+        for (int i = 0; i < size; i++) {
+            if (weights[i] > 0) {
+                r -= weights[i];
+
+                if (r < 0) {
+                    return members.get(i);
+                }
+            }
+        }
+
+        // Rounding errors, return the last candidate.
+        for (int i = size - 1; i >= 0; i--) {
+            if (weights[i] > 0) {
+                return members.get(i);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public synchronized void stealRequestSent(int requestId, NodeIdentifier node, long now) {
+        expire(now);
+        outstanding.put(requestId, new Outstanding(node, now));
+    }
+
+    @Override
+    public synchronized void stealReplyReceived(int requestId, NodeIdentifier node, boolean success, long now) {
+        NodeStats s = get(node);
+
+        s.success = (1.0 - ALPHA) * s.success + ALPHA * (success ? 1.0 : 0.0);
+
+        Outstanding o = requestId == 0 ? null : outstanding.remove(requestId);
+
+        if (o == null) {
+            // Pushed work, or a request that expired.
+            return;
+        }
+
+        if (o.node.equals(node)) {
+            s.addRoundTrip(now - o.sent);
+        } else {
+            // The victim had no work and forwarded the request.
+            NodeStats v = get(o.node);
+            v.success = (1.0 - ALPHA) * v.success;
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Outstanding> it = outstanding.values().iterator();
+
+        while (it.hasNext()) {
+            if (now - it.next().sent < REQUEST_TIMEOUT) {
+                return;
+            }
+            it.remove();
+        }
+    }
+
+    @Override
+    public synchronized void roundTrip(NodeIdentifier node, long nanos) {
+        get(node).addRoundTrip(nanos);
+    }
+
+    @Override
+    public synchronized boolean shouldPing(NodeIdentifier node, long now) {
+        NodeStats s = get(node);
+
+        if (s.lastPing == Long.MIN_VALUE || now - s.lastPing >= PING_INTERVAL) {
+            s.lastPing = now;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the current success rate estimate for the specified node. For testing.
+     */
+    synchronized double getSuccess(NodeIdentifier node) {
+        return get(node).success;
+    }
+
+    /**
+     * Returns the number of steal requests that have not been answered or expired yet. For testing.
+     */
+    synchronized int getOutstanding() {
+        return outstanding.size();
+    }
+
+    /**
+     * Returns the current round trip time estimate for the specified node in nanoseconds, or -1 if unknown. For testing.
+     */
+    synchronized double getRoundTrip(NodeIdentifier node) {
+        return get(node).rtt;
+    }
+}
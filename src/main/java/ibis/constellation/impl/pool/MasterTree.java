@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool;
+
+/**
+ * The tree used by the hierarchical master-worker steal strategy. Nodes are placed in a tree by rank, in which every node has at
+ * most <code>groupSize</code> children: the parent of rank <code>r</code> is rank <code>(r - 1) / groupSize</code>. Rank 0 is
+ * the root of this tree, and has the master as its parent. The master itself may have any rank; it never forwards a steal
+ * request, so following parents always ends at the master.
+ */
+class MasterTree {
+
+    private MasterTree() {
+        // not used
+    }
+
+    /**
+     * Returns the rank of the parent of the specified rank, or -1 when the parent is the master.
+     *
+     * @param rank
+     *            the rank of the node
+     * @param groupSize
+     *            the maximum number of children of a node
+     * @return the rank of the parent, or -1
+     * @throws IllegalArgumentException
+     *             when the rank is negative or the group size is not positive
+     */
+    static int parent(int rank, int groupSize) {
+
+        if (rank < 0 || groupSize <= 0) {
+            throw new IllegalArgumentException("Illegal rank " + rank + " or group size " + groupSize);
+        }
+
+        if (rank == 0) {
+            return -1;
+        }
+
+        return (rank - 1) / groupSize;
+    }
+
+    /**
+     * Returns the depth of the specified rank in the tree, where rank 0 has depth 1 (the master having depth 0).
+     *
+     * @param rank
+     *            the rank of the node
+     * @param groupSize
+     *            the maximum number of children of a node
+     * @return the depth
+     */
+    static int depth(int rank, int groupSize) {
+
+        int depth = 1;
+
+        for (int r = parent(rank, groupSize); r >= 0; r = parent(r, groupSize)) {
+            depth++;
+        }
+
+        return depth;
+    }
+}
@@ -15,29 +15,50 @@
  */
 package ibis.constellation.impl.pool;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ibis.constellation.ActivityIdentifier;
 import ibis.constellation.ConstellationProperties;
 import ibis.constellation.StealPool;
 import ibis.constellation.impl.AbstractMessage;
 import ibis.constellation.impl.ConstellationIdentifierImpl;
 import ibis.constellation.impl.DistributedConstellation;
 import ibis.constellation.impl.EventMessage;
+import ibis.constellation.impl.LocationUpdate;
+import ibis.constellation.impl.MessageCodec;
 import ibis.constellation.impl.StealReply;
 import ibis.constellation.impl.StealRequest;
 import ibis.constellation.impl.pool.communication.CommunicationLayer;
+import ibis.constellation.impl.pool.communication.CommunicationLayerFactory;
+import ibis.constellation.impl.pool.communication.InboundDispatcher;
 import ibis.constellation.impl.pool.communication.Message;
 import ibis.constellation.impl.pool.communication.NodeIdentifier;
 import ibis.constellation.impl.pool.communication.ibis.CommunicationLayerImpl;
+import ibis.constellation.impl.pool.communication.nio.NioCommunicationLayer;
 import ibis.constellation.impl.util.Profiling;
 import ibis.constellation.impl.util.TimeSyncInfo;
+import ibis.constellation.util.ByteBufferCache;
+import ibis.constellation.util.ByteBuffers;
+import ibis.constellation.util.CodecRegistry;
+import ibis.constellation.util.ReceiveBuffers;
 
 public class Pool {
 
@@ -50,10 +71,15 @@ public class Pool {
     private static final byte OPCODE_POOL_REGISTER_REQUEST = 43;
     private static final byte OPCODE_POOL_UPDATE_REQUEST = 44;
     private static final byte OPCODE_POOL_UPDATE_REPLY = 45;
+    private static final byte OPCODE_POOL_DELTA = 46;
 
     private static final byte OPCODE_RANK_REGISTER_REQUEST = 53;
     private static final byte OPCODE_RANK_LOOKUP_REQUEST = 54;
     private static final byte OPCODE_RANK_LOOKUP_REPLY = 55;
+    private static final byte OPCODE_RANK_TABLE = 56;
+
+    /** Minimum time between two lookup requests for the same rank, in milliseconds. */
+    private static final long LOOKUP_TIMEOUT = 1000;
 
     private static final byte OPCODE_REQUEST_TIME = 63;
     private static final byte OPCODE_SEND_TIME = 64;
@@ -68,9 +94,23 @@ public class Pool {
     private static final byte OPCODE_PING = 100;
     private static final byte OPCODE_PONG = 101;
 
+    private static final byte OPCODE_IDLE = 102;
+    private static final byte OPCODE_LOCATION = 103;
+    private static final byte OPCODE_CODECS_REQUEST = 104;
+    private static final byte OPCODE_CODECS = 105;
+
+    /** Time to wait for the codec identifiers of the master before asking again, in milliseconds. */
+    private static final long CODECS_TIMEOUT = 5000;
+
+    /** Number of times the codec identifiers are requested from the master before giving up. */
+    private static final int CODECS_TRIES = 6;
+
     private DistributedConstellation owner;
 
-    private final ConcurrentHashMap<Integer, NodeIdentifier> locationCache = new ConcurrentHashMap<Integer, NodeIdentifier>();
+    private final RankTable locationCache = new RankTable(LOOKUP_TIMEOUT);
+
+    /** Sends the ranks of joining nodes to the other nodes; only used by the master. */
+    private RankDistributor distributor;
 
     private final NodeIdentifier local;
     private final NodeIdentifier master;
@@ -87,13 +127,31 @@ public class Pool {
 
     private final TimeSyncInfo syncInfo;
 
+    private final VictimSelector victims;
+
+    /** Maximum number of children of a node in the master-worker tree, or 0 when steal requests go to the master directly. */
+    private final int masterGroupSize;
+
+    // Remote steal statistics, to compare victim selection and forwarding settings.
+    private final AtomicLong stealRequestsSent = new AtomicLong();
+    private final AtomicLong stealRequestsForwarded = new AtomicLong();
+    private final AtomicLong stealRepliesReceived = new AtomicLong();
+    private final AtomicLong stealRepliesWithWork = new AtomicLong();
+
+    // Identifies our own steal requests, so the replies can be matched to them.
+    private final AtomicInteger stealRequestIds = new AtomicInteger();
+
     class PoolUpdater extends Thread {
 
         private static final long MIN_DELAY = 1000;
         private static final long MAX_DELAY = 10000;
         private static final long INCR_DELAY = 1000;
 
+        // Pool masters push membership changes, so full updates are only requested as a fallback, in case a change was lost.
+        private static final long UPDATE_DELAY = 30000;
+
         private long deadline = 0;
+        private long updateDeadline = 0;
         private long currentDelay = MIN_DELAY;
         private boolean done;
 
@@ -174,6 +232,15 @@ public class Pool {
             }
         }
 
+        private void sendPings() {
+
+            String[] pools = getTags();
+
+            for (String pool : pools) {
+                pingMembers(pool);
+            }
+        }
+
         private void waitUntilDeadLine() {
 
             long sleep = deadline - System.currentTimeMillis();
@@ -207,11 +274,16 @@ public class Pool {
                 long now = System.currentTimeMillis();
 
                 if (now >= deadline) {
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("PoolUpdater requesting updates");
+                    if (now >= updateDeadline) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("PoolUpdater requesting updates");
+                        }
+
+                        sendUpdateRequests();
+                        updateDeadline = now + UPDATE_DELAY;
                     }
 
-                    sendUpdateRequests();
+                    sendPings();
                     deadline = now + currentDelay;
                 }
 
@@ -221,8 +293,18 @@ public class Pool {
     }
 
     private HashMap<String, PoolInfo> pools = new HashMap<String, PoolInfo>();
+
+    /** The nodes following each pool we are the master of, which get pushed membership changes. */
+    private final HashMap<String, HashSet<NodeIdentifier>> followers = new HashMap<String, HashSet<NodeIdentifier>>();
+
+    /**
+     * Membership changes received for pools that we have not received a full update of yet, by tag. Guarded by the lock on
+     * <code>pools</code>. An entry exists from the moment we start following a pool until its first full update is applied.
+     */
+    private final HashMap<String, ArrayList<PoolDelta>> earlyDeltas = new HashMap<String, ArrayList<PoolDelta>>();
     private PoolUpdater updater = new PoolUpdater();
     private boolean gotRelease;
+    private boolean gotCodecs;
     private boolean gotAnswer;
     private boolean gotPong;
     private final ConstellationProperties properties;
@@ -239,6 +321,23 @@ public class Pool {
 
     public Pool(final DistributedConstellation owner, final ConstellationProperties properties)
             throws PoolCreationFailedException {
+        this(owner, properties, null);
+    }
+
+    /**
+     * Creates a pool that communicates through a communication layer created by the specified factory.
+     *
+     * @param owner
+     *            the distributed constellation owning this pool
+     * @param properties
+     *            the properties
+     * @param factory
+     *            creates the communication layer, or <code>null</code> for the one selected by the "communication" property
+     * @throws PoolCreationFailedException
+     *             when the communication layer could not be created
+     */
+    public Pool(final DistributedConstellation owner, final ConstellationProperties properties,
+            final CommunicationLayerFactory factory) throws PoolCreationFailedException {
 
         this.owner = owner;
         closedPool = properties.CLOSED;
@@ -248,19 +347,56 @@ public class Pool {
             properties.setProperty("ibis.pool.size", "" + properties.POOLSIZE);
         }
 
-        comm = new CommunicationLayerImpl(properties, this);
+        String victimName = properties.REMOTESTEAL_VICTIM;
+
+        if (victimName.equalsIgnoreCase("random")) {
+            victims = new RandomVictimSelector(random);
+        } else if (victimName.equalsIgnoreCase("adaptive")) {
+            victims = new AdaptiveVictimSelector(random);
+        } else {
+            logger.error("Unknown victim selection: " + victimName);
+            throw new IllegalArgumentException("Unknown victim selection: " + victimName);
+        }
+
+        masterGroupSize = Math.max(0, properties.STEALSTRATEGY_GROUPSIZE);
+
+        if (factory != null) {
+            comm = factory.create(properties, this);
+        } else if (properties.COMMUNICATION.equalsIgnoreCase("ibis")) {
+            comm = new CommunicationLayerImpl(properties, this);
+        } else if (properties.COMMUNICATION.equalsIgnoreCase("nio")) {
+            comm = new NioCommunicationLayer(properties, this);
+        } else {
+            logger.error("Unknown communication layer: " + properties.COMMUNICATION);
+            throw new IllegalArgumentException("Unknown communication layer: " + properties.COMMUNICATION);
+        }
         local = comm.getMyIdentifier();
         master = comm.getMaster();
         rank = comm.getRank();
         isMaster = local.equals(master);
-        locationCache.put(rank, local);
+        locationCache.register(rank, local);
+
+        if (logger.isInfoEnabled() && masterGroupSize > 0 && !isMaster) {
+            logger.info("Master-worker tree: parent of rank " + rank + " is " + MasterTree.parent(rank, masterGroupSize)
+                    + " (-1 is the master), depth " + MasterTree.depth(rank, masterGroupSize));
+        }
 
         // Register my rank at the master
         if (!isMaster) {
             doForward(master, OPCODE_RANK_REGISTER_REQUEST, new RankInfo(rank, local));
+            // Make sure we use the same codec identifiers as the master.
+            doForward(master, OPCODE_CODECS_REQUEST, null);
             syncInfo = null;
         } else {
             syncInfo = new TimeSyncInfo(master.name());
+
+            distributor = new RankDistributor(locationCache, local) {
+                @Override
+                protected void send(NodeIdentifier dest, RankInfo[] ranks) {
+                    doForward(dest, OPCODE_RANK_TABLE, ranks);
+                }
+            };
+            distributor.start();
         }
 
         // Start the updater thread...
@@ -288,6 +424,10 @@ public class Pool {
             logger.info("Activating POOL on " + local);
         }
 
+        if (!isMaster) {
+            awaitCodecs();
+        }
+
         if (closedPool) {
             if (isMaster()) {
                 for (NodeIdentifier id : ids) {
@@ -342,8 +482,18 @@ public class Pool {
     }
 
     public void terminate() throws IOException {
+        if (logger.isInfoEnabled()) {
+            long success = stealRepliesWithWork.get();
+            logger.info("Remote steals: sent " + stealRequestsSent.get() + ", forwarded " + stealRequestsForwarded.get()
+                    + ", replies " + stealRepliesReceived.get() + ", with work " + success + ", messages per successful steal "
+                    + (success == 0 ? "-" : "" + ((double) (stealRequestsSent.get() + stealRequestsForwarded.get()
+                            + stealRepliesReceived.get()) / success)));
+        }
         comm.terminate();
         updater.done();
+        if (distributor != null) {
+            distributor.done();
+        }
         terminated = true;
     }
 
@@ -398,6 +548,9 @@ public class Pool {
             cleanup = true;
         }
         updater.done();
+        if (distributor != null) {
+            distributor.done();
+        }
         comm.cleanup();
     }
 
@@ -409,11 +562,26 @@ public class Pool {
         return isMaster;
     }
 
+    /**
+     * Returns whether the node on which the specified constellation runs is known, that is, whether messages to it can be sent
+     * without a rank lookup.
+     *
+     * @param cid
+     *            the constellation identifier
+     * @return whether the node is known
+     */
+    public boolean isKnown(ConstellationIdentifierImpl cid) {
+        return locationCache.contains(cid.getNodeId());
+    }
+
     private NodeIdentifier translate(ConstellationIdentifierImpl cid) {
         return lookupRank(cid.getNodeId());
     }
 
     private boolean doForward(NodeIdentifier dest, byte opcode, Object data) {
+        if (data instanceof AbstractMessage) {
+            owner.attachLoad((AbstractMessage) data);
+        }
         Message m = new Message(opcode, data);
         synchronized (this) {
             if (cleanup) {
@@ -435,6 +603,10 @@ public class Pool {
         return forward(em, OPCODE_EVENT_MESSAGE);
     }
 
+    public boolean forward(LocationUpdate lu) {
+        return forward(lu, OPCODE_LOCATION);
+    }
+
     private boolean forward(AbstractMessage m, byte opcode) {
 
         ConstellationIdentifierImpl target = m.target;
@@ -459,8 +631,59 @@ public class Pool {
         return doForward(id, opcode, m);
     }
 
+    /**
+     * Sends a steal request towards the master. When a master-worker tree is used, it is sent to our parent in the tree, otherwise
+     * it is sent to the master directly.
+     *
+     * @param m
+     *            the steal request
+     * @return whether the request was sent
+     */
     public boolean forwardToMaster(StealRequest m) {
-        return doForward(master, OPCODE_STEAL_REQUEST, m);
+        stealRequestsSent.incrementAndGet();
+        return doForward(towardsMaster(), OPCODE_STEAL_REQUEST, m);
+    }
+
+    /**
+     * Passes a steal request that we cannot satisfy on to our parent in the master-worker tree.
+     *
+     * @param m
+     *            the steal request
+     * @return whether the request was forwarded, which is never the case on the master, or when no master-worker tree is used
+     */
+    public boolean forwardUpTree(StealRequest m) {
+
+        if (isMaster || masterGroupSize == 0) {
+            return false;
+        }
+
+        m.forwardedBy(rank);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Forwarding steal request from " + m.source + " up the tree, hops = " + m.getHops());
+        }
+
+        stealRequestsForwarded.incrementAndGet();
+
+        return doForward(towardsMaster(), OPCODE_STEAL_REQUEST, m);
+    }
+
+    private NodeIdentifier towardsMaster() {
+
+        if (masterGroupSize == 0 || isMaster) {
+            return master;
+        }
+
+        int parent = MasterTree.parent(rank, masterGroupSize);
+
+        if (parent < 0) {
+            return master;
+        }
+
+        NodeIdentifier id = lookupRank(parent);
+
+        // Skip our parent while its rank is not known yet.
+        return id == null ? master : id;
     }
 
     private void registerRank(RankInfo info) {
@@ -468,12 +691,16 @@ public class Pool {
     }
 
     private void registerRank(int rank, NodeIdentifier id) {
-        NodeIdentifier old = locationCache.put(rank, id);
+        NodeIdentifier old = locationCache.register(rank, id);
 
         if (logger.isInfoEnabled() && old == null) {
             logger.info("Register rank " + rank + ", id = " + id);
         }
 
+        if (old == null) {
+            owner.rankResolved(rank);
+        }
+
         // sanity check
         if (old != null && !old.equals(id)) {
             logger.error("Location cache overwriting rank " + rank + " with different id! " + old + " != " + id, new Throwable());
@@ -484,17 +711,51 @@ public class Pool {
         registerRank(cid.getNodeId(), id);
     }
 
+    private void registerRanks(RankInfo[] table) {
+        for (RankInfo info : table) {
+            registerRank(info);
+        }
+    }
+
     private void unregisterRankMaster(RankInfo info) {
         // Send leave notification to all members
-        for (NodeIdentifier entry : locationCache.values()) {
+        for (NodeIdentifier entry : locationCache.nodes()) {
             if (entry != local) {
                 doForward(entry, OPCODE_LEAVE_POOL, info);
             }
         }
     }
 
+    /**
+     * Removes a node that left from the pools we are the master of, and stops pushing changes to it.
+     *
+     * @param id
+     *            the node
+     */
+    private void removeFromPools(NodeIdentifier id) {
+
+        removeFollower(id);
+
+        ArrayList<PoolInfo> tmp;
+
+        synchronized (pools) {
+            tmp = new ArrayList<PoolInfo>(pools.values());
+        }
+
+        for (PoolInfo info : tmp) {
+            if (local.equals(info.getMaster())) {
+                pushDelta(info.removeMember(id));
+            }
+        }
+    }
+
     private void unregisterRank(RankInfo info) {
         NodeIdentifier old = locationCache.remove(info.rank);
+        owner.getLoadTable().remove(info.rank);
+
+        if (old != null) {
+            removeFromPools(old);
+        }
 
         // Notify all members of pool of unregister rank if master
         // Collect acknowledgements from all members
@@ -523,8 +784,12 @@ public class Pool {
             return tmp;
         }
 
-        // Forward a request to the master for the id of rank
-        doForward(master, OPCODE_RANK_LOOKUP_REQUEST, new RankInfo(rank, local));
+        // The master pushes all ranks to us, so a miss normally means that the update is still underway. Only ask the master
+        // if we did not do so recently, to avoid flooding it with lookups.
+        if (locationCache.shouldLookup(rank, System.currentTimeMillis())) {
+            // Forward a request to the master for the id of rank
+            doForward(master, OPCODE_RANK_LOOKUP_REQUEST, new RankInfo(rank, local));
+        }
 
         return null;
     }
@@ -580,7 +845,13 @@ public class Pool {
     }
 
     private void gotStealRequest(StealRequest m, NodeIdentifier source) {
-        registerRank(m.source, source);
+        if (m.getHops() == 0) {
+            // A forwarded request does not come from the node of the thief.
+            registerRank(m.source, source);
+        } else {
+            // But we may have to reply to it, so make sure its rank gets resolved.
+            lookupRank(m.source.getNodeId());
+        }
 
         if (logger.isTraceEnabled()) {
             logger.trace("POOL RECEIVE StealRequest from " + m.source);
@@ -590,6 +861,67 @@ public class Pool {
         owner.deliverRemoteStealRequest(m);
     }
 
+    private void gotIdle(StealRequest m, NodeIdentifier source) {
+        registerRank(m.source, source);
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("POOL RECEIVE idle advertisement from " + m.source);
+        }
+
+        m.setRemote();
+        owner.deliverIdleAdvertisement(m);
+    }
+
+    /**
+     * Waits for the codec identifiers of the master, which were requested when the pool was created. The request is sent again
+     * when no reply arrives in time, as it may have been lost while the master was still starting up.
+     *
+     * @throws IllegalStateException
+     *             when no reply arrived after {@link #CODECS_TRIES} requests
+     */
+    private void awaitCodecs() {
+        for (int tries = 1;; tries++) {
+            final long deadline = System.currentTimeMillis() + CODECS_TIMEOUT;
+
+            synchronized (this) {
+                long left = CODECS_TIMEOUT;
+                while (!gotCodecs && left > 0) {
+                    try {
+                        wait(left);
+                    } catch (Throwable e) {
+                        // ignore
+                    }
+                    left = deadline - System.currentTimeMillis();
+                }
+                if (gotCodecs) {
+                    return;
+                }
+            }
+
+            if (tries == CODECS_TRIES) {
+                throw new IllegalStateException("No codec identifiers received from master " + master + " after " + tries
+                        + " requests");
+            }
+
+            logger.warn("No codec identifiers received from master " + master + " yet, requesting them again");
+            doForward(master, OPCODE_CODECS_REQUEST, null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void gotCodecs(Object data) {
+        Map<Integer, String> mapping = (Map<Integer, String>) data;
+
+        if (CodecRegistry.adopt(mapping)) {
+            logger.warn("Codec registrations differ from those of the master, using the identifiers of the master: " + mapping);
+        }
+
+        synchronized (this) {
+            gotCodecs = true;
+            notifyAll();
+        }
+    }
+
     private synchronized void gotRelease() {
         gotRelease = true;
         notifyAll();
@@ -607,6 +939,13 @@ public class Pool {
     private void gotStealReply(StealReply m, NodeIdentifier source) {
         registerRank(m.source, source);
 
+        victims.stealReplyReceived(m.getRequestId(), source, !m.isEmpty(), System.nanoTime());
+
+        stealRepliesReceived.incrementAndGet();
+        if (!m.isEmpty()) {
+            stealRepliesWithWork.incrementAndGet();
+        }
+
         if (logger.isTraceEnabled()) {
             logger.trace("POOL RECEIVE StealReply from " + m.source);
         }
@@ -628,6 +967,14 @@ public class Pool {
         owner.deliverRemoteEvent(m);
     }
 
+    private void gotLocation(LocationUpdate m) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("POOL RECEIVE " + m);
+        }
+
+        owner.deliverLocationUpdate(m);
+    }
+
     public void upcall(NodeIdentifier source, Message rm) {
 
         byte opcode = rm.opcode;
@@ -637,12 +984,22 @@ public class Pool {
             logger.debug(getString(opcode, "Got") + " from " + source.name());
         }
 
+        if (data instanceof AbstractMessage) {
+            owner.gotLoad((AbstractMessage) data);
+        }
+
         switch (opcode) {
         case OPCODE_NOTHING:
             break;
         case OPCODE_RELEASE:
             gotRelease();
             break;
+        case OPCODE_CODECS_REQUEST:
+            doForward(source, OPCODE_CODECS, CodecRegistry.getMapping());
+            break;
+        case OPCODE_CODECS:
+            gotCodecs(data);
+            break;
         case OPCODE_SEND_TIME:
             sendTime(((Long) data).longValue(), source);
             return;
@@ -653,9 +1010,14 @@ public class Pool {
             doForward(source, OPCODE_SEND_TIME, new Long(System.nanoTime()));
             break;
         case OPCODE_PING:
-            doForward(source, OPCODE_PONG, null);
+            // Echo the timestamp, if any, so that the sender can determine the round trip time.
+            doForward(source, OPCODE_PONG, data);
             break;
         case OPCODE_PONG:
+            if (data != null) {
+                victims.roundTrip(source, System.nanoTime() - ((Long) data).longValue());
+                break;
+            }
             synchronized (this) {
                 gotPong = true;
                 notifyAll();
@@ -664,6 +1026,9 @@ public class Pool {
         case OPCODE_STEAL_REQUEST:
             gotStealRequest((StealRequest) data, source);
             break;
+        case OPCODE_IDLE:
+            gotIdle((StealRequest) data, source);
+            break;
 
         case OPCODE_STEAL_REPLY:
             gotStealReply((StealReply) data, source);
@@ -673,6 +1038,10 @@ public class Pool {
             gotEvent((EventMessage) data);
             break;
 
+        case OPCODE_LOCATION:
+            gotLocation((LocationUpdate) data);
+            break;
+
         case OPCODE_POOL_REGISTER_REQUEST:
             performRegisterWithPool((PoolRegisterRequest) data);
             break;
@@ -685,8 +1054,15 @@ public class Pool {
             updater.enqueueUpdate((PoolInfo) data);
             break;
 
+        case OPCODE_POOL_DELTA:
+            gotPoolDelta((PoolDelta) data);
+            break;
+
         case OPCODE_RANK_REGISTER_REQUEST:
             registerRank((RankInfo) data);
+            if (isMaster) {
+                distributor.add((RankInfo) data);
+            }
             if (!closedPool) {
                 getTimeOfOther(source);
             }
@@ -700,6 +1076,10 @@ public class Pool {
             lookupRankRequest((RankInfo) data);
             break;
 
+        case OPCODE_RANK_TABLE:
+            registerRanks((RankInfo[]) data);
+            break;
+
         case OPCODE_LEAVE_POOL:
             unregisterRank((RankInfo) data);
             break;
@@ -710,6 +1090,11 @@ public class Pool {
         }
     }
 
+    private int nextRequestId() {
+        // Positive, so it is cheap to encode, and never 0, which means unknown.
+        return (stealRequestIds.incrementAndGet() & 0x3fffffff) + 1;
+    }
+
     public boolean randomForwardToPool(StealPool pool, StealRequest sr) {
 
         // NOTE: We know the pool is not NULL or NONE, and not a set
@@ -724,29 +1109,147 @@ public class Pool {
             return false;
         }
 
-        NodeIdentifier id = info.selectRandom(random);
+        // The selector never returns the local node, as long as there is a choice, because
+        // returning false here hampers the remote steal throttle mechanism.
+        NodeIdentifier id = info.select(victims, local);
 
         if (id == null) {
-            logger.warn("Failed to randomly select node in pool " + pool.getTag());
+            if (info.nMembers() > 1) {
+                logger.warn("Failed to select node in pool " + pool.getTag());
+            }
             return false;
         }
 
-        // If the chosen id is the local one, don't just return false, because
-        // this hampers the remote steal throttle mechanism. Just try again to
-        // select a node, as long as there is a choice.
-        while (id == null || id.equals(local)) {
-            if (info.nMembers() <= 1) {
-                return false;
-            }
-            id = info.selectRandom(random);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending steal request to " + id.name());
+        }
+
+        if (sr.getHops() == 0) {
+            sr.setRequestId(nextRequestId());
+            victims.stealRequestSent(sr.getRequestId(), id, System.nanoTime());
+        }
+        stealRequestsSent.incrementAndGet();
+
+        return doForward(id, OPCODE_STEAL_REQUEST, sr);
+    }
+
+    /**
+     * Forwards a remote steal request that we cannot satisfy to another member of the specified pool, that has not seen the
+     * request yet.
+     *
+     * @param pool
+     *            the steal pool to select the next victim from
+     * @param sr
+     *            the steal request
+     * @return whether the request was forwarded
+     */
+    public boolean forwardStealRequest(StealPool pool, StealRequest sr) {
+
+        PoolInfo info = null;
+
+        synchronized (pools) {
+            info = pools.get(pool.getTag());
+        }
+
+        if (info == null) {
+            return false;
+        }
+
+        ArrayList<NodeIdentifier> excluded = new ArrayList<NodeIdentifier>();
+
+        addExcluded(excluded, sr.source.getNodeId());
+
+        for (int r : sr.getVisited()) {
+            addExcluded(excluded, r);
         }
 
+        NodeIdentifier id = info.select(victims, local, excluded);
+
+        if (id == null) {
+            return false;
+        }
+
+        sr.forwardedBy(rank);
+
         if (logger.isDebugEnabled()) {
-            logger.debug("Sending steal request to " + id.name());
+            logger.debug("Forwarding steal request from " + sr.source + " to " + id.name() + ", hops = " + sr.getHops());
         }
+
+        stealRequestsForwarded.incrementAndGet();
+
         return doForward(id, OPCODE_STEAL_REQUEST, sr);
     }
 
+    private void addExcluded(ArrayList<NodeIdentifier> excluded, int rank) {
+        NodeIdentifier id = locationCache.get(rank);
+
+        if (id != null) {
+            excluded.add(id);
+        }
+    }
+
+    /**
+     * Advertises to another member of the specified pool that a constellation is idle, so that it may push work to it. Only a
+     * single member is selected, in the same way as the victim of a steal request, so at most one node pushes work in response to
+     * an advertisement. As advertisements are repeated while the constellation stays idle, other members get their turn.
+     *
+     * @param pool
+     *            the steal pool
+     * @param sr
+     *            the steal request of the idle constellation
+     */
+    public void advertiseIdle(StealPool pool, StealRequest sr) {
+
+        PoolInfo info;
+
+        synchronized (pools) {
+            info = pools.get(pool.getTag());
+        }
+
+        if (info == null) {
+            return;
+        }
+
+        NodeIdentifier id = info.select(victims, local);
+
+        if (id != null && !id.equals(local)) {
+            doForward(id, OPCODE_IDLE, sr);
+        }
+    }
+
+    /**
+     * Sends a ping to the members of the specified pool for which the victim selector wants a round trip time measurement.
+     *
+     * @param tag
+     *            the pool tag
+     */
+    private void pingMembers(String tag) {
+
+        PoolInfo info;
+
+        synchronized (pools) {
+            info = pools.get(tag);
+        }
+
+        if (info == null) {
+            return;
+        }
+
+        ArrayList<NodeIdentifier> members;
+
+        synchronized (info) {
+            members = new ArrayList<NodeIdentifier>(info.getMembers());
+        }
+
+        for (NodeIdentifier id : members) {
+            long now = System.nanoTime();
+
+            if (!id.equals(local) && victims.shouldPing(id, now)) {
+                doForward(id, OPCODE_PING, Long.valueOf(now));
+            }
+        }
+    }
+
     private void performRegisterWithPool(PoolRegisterRequest request) {
 
         PoolInfo tmp = null;
@@ -764,7 +1267,104 @@ public class Pool {
             return;
         }
 
-        tmp.addMember(request.source);
+        pushDelta(tmp.addMember(request.source));
+    }
+
+    private boolean addFollower(String tag, NodeIdentifier id) {
+        synchronized (followers) {
+            HashSet<NodeIdentifier> tmp = followers.get(tag);
+
+            if (tmp == null) {
+                tmp = new HashSet<NodeIdentifier>();
+                followers.put(tag, tmp);
+            }
+
+            if (!tmp.add(id)) {
+                return false;
+            }
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Node " + id + " follows pool " + tag);
+        }
+        return true;
+    }
+
+    private void removeFollower(NodeIdentifier id) {
+        synchronized (followers) {
+            for (HashSet<NodeIdentifier> tmp : followers.values()) {
+                tmp.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Sends a membership change of a pool we are the master of to all nodes following the pool.
+     *
+     * @param delta
+     *            the change, or <code>null</code> if nothing changed
+     */
+    private void pushDelta(PoolDelta delta) {
+
+        if (delta == null) {
+            return;
+        }
+
+        ArrayList<NodeIdentifier> targets;
+
+        synchronized (followers) {
+            HashSet<NodeIdentifier> tmp = followers.get(delta.tag);
+
+            if (tmp == null) {
+                return;
+            }
+
+            targets = new ArrayList<NodeIdentifier>(tmp);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Pushing " + delta + " to " + targets.size() + " followers");
+        }
+
+        for (NodeIdentifier id : targets) {
+            doForward(id, OPCODE_POOL_DELTA, delta);
+        }
+    }
+
+    private void gotPoolDelta(PoolDelta delta) {
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Received " + delta);
+        }
+
+        boolean applied;
+
+        // Also lock the pools, so that a concurrent full update does not undo the change.
+        synchronized (pools) {
+            PoolInfo tmp = pools.get(delta.tag);
+            ArrayList<PoolDelta> early = earlyDeltas.get(delta.tag);
+
+            if (tmp == null || tmp.isDummy() || early != null) {
+                // The master may push changes before its reply to our update request arrives. Keep them until it does.
+                if (early == null) {
+                    early = new ArrayList<PoolDelta>();
+                    earlyDeltas.put(delta.tag, early);
+                }
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Keeping " + delta + " until the first update of the pool arrives");
+                }
+                early.add(delta);
+                return;
+            }
+
+            applied = tmp.apply(delta);
+        }
+
+        if (!applied) {
+            // We missed a change, so get the complete pool.
+            requestUpdate(delta.tag);
+        }
     }
 
     private void performUpdateRequest(PoolUpdateRequest request) {
@@ -780,7 +1380,11 @@ public class Pool {
             return;
         }
 
-        if (tmp.currentTimeStamp() > request.timestamp) {
+        // From now on, membership changes are pushed to the requester. A new follower always gets a reply, as it keeps the
+        // changes it receives until then.
+        boolean first = addFollower(request.tag, request.source);
+
+        if (first || tmp.currentTimeStamp() > request.timestamp) {
             synchronized (tmp) {
                 // Copy to avoid ConcurrentModificationException.
                 tmp = new PoolInfo(tmp);
@@ -926,9 +1530,16 @@ public class Pool {
 
             synchronized (pools) {
                 pools.put(tag, new PoolInfo(tag, id, false));
+
+                if (!earlyDeltas.containsKey(tag)) {
+                    earlyDeltas.put(tag, new ArrayList<PoolDelta>());
+                }
             }
 
             updater.addTag(tag);
+
+            // Get the members right away, which also makes the pool master push changes to us.
+            requestUpdate(tag);
         } catch (IOException e) {
             logger.warn("Failed to register pool " + tag, e);
         }
@@ -936,6 +1547,8 @@ public class Pool {
 
     private void performUpdate(PoolInfo info) {
 
+        boolean applied;
+
         synchronized (pools) {
             PoolInfo tmp = pools.get(info.getTag());
 
@@ -946,8 +1559,39 @@ public class Pool {
 
             if (info.currentTimeStamp() > tmp.currentTimeStamp()) {
                 pools.put(info.getTag(), info);
+                tmp = info;
+            }
+
+            applied = replay(tmp, earlyDeltas.remove(info.getTag()));
+        }
+
+        if (!applied) {
+            requestUpdate(info.getTag());
+        }
+    }
+
+    /**
+     * Applies the membership changes that arrived before the first full update of a pool, in the order in which they arrived.
+     * Changes that are included in the update already are skipped.
+     *
+     * @param info
+     *            the pool
+     * @param deltas
+     *            the changes, or <code>null</code> if there are none
+     * @return whether all changes could be applied, or a change is missing
+     */
+    static boolean replay(PoolInfo info, List<PoolDelta> deltas) {
+
+        if (deltas == null) {
+            return true;
+        }
+
+        for (PoolDelta delta : deltas) {
+            if (!info.apply(delta)) {
+                return false;
             }
         }
+        return true;
     }
 
     private void requestUpdate(String tag) {
@@ -981,6 +1625,396 @@ public class Pool {
         }
     }
 
+    /**
+     * Returns whether messages with the specified opcode may be held back to be combined with other messages to the same node.
+     * This holds for small messages for which some extra latency does not matter (so not for pings, which measure latency), and
+     * which are either retried when sending them fails (event messages), or are not essential.
+     *
+     * @param opcode
+     *            the opcode
+     * @return whether the message may be aggregated
+     */
+    public static boolean mayAggregate(byte opcode) {
+        switch (opcode) {
+        case OPCODE_EVENT_MESSAGE:
+        case OPCODE_IDLE:
+        case OPCODE_LOCATION:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Returns the priority with which a received message with the specified opcode is delivered, when received messages are
+     * queued. Steal requests, steal replies and pings (which measure latency) go first, event messages last.
+     *
+     * @param opcode
+     *            the opcode
+     * @return the priority, as defined by {@link InboundDispatcher}
+     */
+    public static int priority(byte opcode) {
+        switch (opcode) {
+        case OPCODE_STEAL_REQUEST:
+        case OPCODE_STEAL_REPLY:
+        case OPCODE_IDLE:
+        case OPCODE_PING:
+        case OPCODE_PONG:
+            return InboundDispatcher.PRIORITY_HIGH;
+        case OPCODE_EVENT_MESSAGE:
+            return InboundDispatcher.PRIORITY_LOW;
+        default:
+            return InboundDispatcher.PRIORITY_NORMAL;
+        }
+    }
+
+    /**
+     * Writes the contents of a message with the compact binary encoding for its opcode. Java serialization is only used for
+     * node identifiers and user data, and for the rare messages that have no compact encoding (pool update replies and
+     * profiling data).
+     *
+     * @param out
+     *            the output to write to
+     * @param opcode
+     *            the opcode of the message
+     * @param data
+     *            the contents of the message, not <code>null</code>
+     * @throws IOException
+     *             when writing fails
+     */
+    public static void encode(ObjectOutput out, byte opcode, Object data) throws IOException {
+        switch (opcode) {
+        case OPCODE_EVENT_MESSAGE:
+            MessageCodec.writeEventMessage(out, (EventMessage) data);
+            return;
+        case OPCODE_STEAL_REQUEST:
+        case OPCODE_IDLE:
+            MessageCodec.writeStealRequest(out, (StealRequest) data);
+            return;
+        case OPCODE_STEAL_REPLY:
+            MessageCodec.writeStealReply(out, (StealReply) data);
+            return;
+        case OPCODE_LOCATION:
+            MessageCodec.writeLocationUpdate(out, (LocationUpdate) data);
+            return;
+        case OPCODE_RANK_REGISTER_REQUEST:
+        case OPCODE_RANK_LOOKUP_REQUEST:
+        case OPCODE_RANK_LOOKUP_REPLY:
+        case OPCODE_LEAVE_POOL:
+            writeRankInfo(out, (RankInfo) data);
+            return;
+        case OPCODE_RANK_TABLE:
+            RankInfo[] table = (RankInfo[]) data;
+            MessageCodec.writeVarInt(out, table.length);
+            for (RankInfo info : table) {
+                writeRankInfo(out, info);
+            }
+            return;
+        case OPCODE_POOL_REGISTER_REQUEST:
+            PoolRegisterRequest request = (PoolRegisterRequest) data;
+            out.writeObject(request.source);
+            out.writeUTF(request.tag);
+            return;
+        case OPCODE_POOL_UPDATE_REQUEST:
+            PoolUpdateRequest update = (PoolUpdateRequest) data;
+            out.writeObject(update.source);
+            out.writeUTF(update.tag);
+            out.writeLong(update.timestamp);
+            return;
+        case OPCODE_POOL_DELTA:
+            PoolDelta delta = (PoolDelta) data;
+            out.writeUTF(delta.tag);
+            out.writeLong(delta.base);
+            out.writeLong(delta.timestamp);
+            out.writeObject(delta.member);
+            out.writeBoolean(delta.added);
+            return;
+        case OPCODE_PING:
+        case OPCODE_PONG:
+        case OPCODE_SEND_TIME:
+            out.writeLong((Long) data);
+            return;
+        default:
+            out.writeObject(data);
+            return;
+        }
+    }
+
+    /**
+     * Reads the contents of a message written by {@link #encode(ObjectOutput, byte, Object)}.
+     *
+     * @param in
+     *            the input to read from
+     * @param opcode
+     *            the opcode of the message
+     * @return the contents of the message
+     * @throws IOException
+     *             when reading fails
+     * @throws ClassNotFoundException
+     *             when the class of a serialized object cannot be found
+     */
+    public static Object decode(ObjectInput in, byte opcode) throws IOException, ClassNotFoundException {
+        switch (opcode) {
+        case OPCODE_EVENT_MESSAGE:
+            return MessageCodec.readEventMessage(in);
+        case OPCODE_STEAL_REQUEST:
+        case OPCODE_IDLE:
+            return MessageCodec.readStealRequest(in);
+        case OPCODE_STEAL_REPLY:
+            return MessageCodec.readStealReply(in);
+        case OPCODE_LOCATION:
+            return MessageCodec.readLocationUpdate(in);
+        case OPCODE_RANK_REGISTER_REQUEST:
+        case OPCODE_RANK_LOOKUP_REQUEST:
+        case OPCODE_RANK_LOOKUP_REPLY:
+        case OPCODE_LEAVE_POOL:
+            return readRankInfo(in);
+        case OPCODE_RANK_TABLE:
+            RankInfo[] table = new RankInfo[MessageCodec.readVarInt(in)];
+            for (int i = 0; i < table.length; i++) {
+                table[i] = readRankInfo(in);
+            }
+            return table;
+        case OPCODE_POOL_REGISTER_REQUEST:
+            return new PoolRegisterRequest((NodeIdentifier) in.readObject(), in.readUTF());
+        case OPCODE_POOL_UPDATE_REQUEST:
+            NodeIdentifier source = (NodeIdentifier) in.readObject();
+            String tag = in.readUTF();
+            return new PoolUpdateRequest(source, tag, in.readLong());
+        case OPCODE_POOL_DELTA:
+            String deltaTag = in.readUTF();
+            long base = in.readLong();
+            long timestamp = in.readLong();
+            NodeIdentifier member = (NodeIdentifier) in.readObject();
+            return new PoolDelta(deltaTag, base, timestamp, member, in.readBoolean());
+        case OPCODE_PING:
+        case OPCODE_PONG:
+        case OPCODE_SEND_TIME:
+            return in.readLong();
+        default:
+            return in.readObject();
+        }
+    }
+
+    /**
+     * Collects the byte buffers to send with a message. The buffers of the contents are not changed; the returned buffers are
+     * views on them, covering the bytes to send.
+     *
+     * @param contents
+     *            the contents of the message
+     * @param remaining
+     *            whether to send only the bytes between position and limit of each buffer, instead of its whole capacity
+     * @return the views on the byte buffers, in the order in which they are to be sent
+     */
+    public static ArrayList<ByteBuffer> sendBuffers(ByteBuffers contents, boolean remaining) {
+        ArrayList<ByteBuffer> list = new ArrayList<ByteBuffer>();
+        contents.pushByteBuffers(list);
+        for (int i = 0; i < list.size(); i++) {
+            ByteBuffer b = list.get(i).duplicate();
+            if (!remaining) {
+                b.limit(b.capacity());
+                b.position(0);
+            }
+            list.set(i, b);
+        }
+        return list;
+    }
+
+    /**
+     * Encodes the contents of a message that is held back to be sent later, and copies its byte buffers, so that the data of the
+     * application may be reused or changed as soon as the send returns. The communication layer then writes
+     * {@link Message#encoded} and {@link Message#buffers} instead of encoding the contents itself.
+     *
+     * @param m
+     *            the message
+     * @param remaining
+     *            whether only the remaining bytes of the byte buffers are sent, as in {@link #sendBuffers(ByteBuffers, boolean)}
+     * @throws IOException
+     *             when encoding fails
+     */
+    public static void detach(Message m, boolean remaining) throws IOException {
+        if (m.contents == null || m.encoded != null) {
+            return;
+        }
+
+        m.encoded = encode(m.opcode, m.contents);
+
+        if (m.contents instanceof ByteBuffers) {
+            ArrayList<ByteBuffer> list = sendBuffers((ByteBuffers) m.contents, remaining);
+            for (int i = 0; i < list.size(); i++) {
+                ByteBuffer b = list.get(i);
+                ByteBuffer copy = b.isDirect() ? ByteBuffer.allocateDirect(b.remaining()) : ByteBuffer.allocate(b.remaining());
+                copy.put(b);
+                copy.flip();
+                list.set(i, copy);
+            }
+            m.buffers = list;
+        }
+    }
+
+    /**
+     * Returns the byte buffers to send for a message: the copies taken by {@link #detach(Message, boolean)}, or else those of its
+     * contents. The buffers returned may be consumed by the caller.
+     *
+     * @param m
+     *            the message, with contents that are {@link ByteBuffers}
+     * @param remaining
+     *            whether only the remaining bytes of the byte buffers are sent, as in {@link #sendBuffers(ByteBuffers, boolean)}
+     * @return the buffers
+     */
+    public static ArrayList<ByteBuffer> sendBuffers(Message m, boolean remaining) {
+        if (m.buffers == null) {
+            return sendBuffers((ByteBuffers) m.contents, remaining);
+        }
+
+        ArrayList<ByteBuffer> list = new ArrayList<ByteBuffer>(m.buffers.size());
+        for (ByteBuffer b : m.buffers) {
+            list.add(b.duplicate());
+        }
+        return list;
+    }
+
+    /**
+     * Obtains the byte buffers into which the byte buffers of a received message are read, as
+     * {@link #receiveBuffers(Object, int[], boolean)} does. The receive buffers of the target activity of an event message are
+     * only used when the event will be delivered to that activity on this node, and not forwarded.
+     *
+     * @param contents
+     *            the decoded contents of the message
+     * @param sizes
+     *            the number of bytes of each byte buffer
+     * @return the buffers
+     */
+    public ArrayList<ByteBuffer> receiveBuffers(Object contents, int[] sizes) {
+        final boolean here = contents instanceof EventMessage && owner != null
+                && owner.isDeliveredHere((EventMessage) contents);
+        return receiveBuffers(contents, sizes, here);
+    }
+
+    /**
+     * Obtains the byte buffers into which the byte buffers of a received message are read. For an event message that is
+     * delivered here, these are the buffers registered with {@link ReceiveBuffers} for its target activity, where they are large
+     * enough and not in use by an earlier event. The message then holds them under the token it gets. Other buffers come from
+     * the {@link ByteBufferCache}. The buffers are positioned at 0, with their limit at the number of bytes to read.
+     *
+     * @param contents
+     *            the decoded contents of the message
+     * @param sizes
+     *            the number of bytes of each byte buffer
+     * @param deliveredHere
+     *            whether an event message will be delivered to its target activity on this node
+     * @return the buffers
+     */
+    public static ArrayList<ByteBuffer> receiveBuffers(Object contents, int[] sizes, boolean deliveredHere) {
+        ByteBuffer[] registered = null;
+        ActivityIdentifier target = null;
+        long token = 0;
+        if (deliveredHere && contents instanceof EventMessage) {
+            target = ((EventMessage) contents).event.getTarget();
+            token = ReceiveBuffers.acquire(target);
+            if (token != 0) {
+                registered = ReceiveBuffers.get(target, token);
+            }
+        }
+        boolean used = false;
+        ArrayList<ByteBuffer> list = new ArrayList<ByteBuffer>(sizes.length);
+        for (int i = 0; i < sizes.length; i++) {
+            ByteBuffer b;
+            if (registered != null && i < registered.length && registered[i].capacity() >= sizes[i]) {
+                b = registered[i];
+                used = true;
+            } else {
+                b = ByteBufferCache.getByteBuffer(sizes[i], false);
+            }
+            b.clear();
+            b.limit(sizes[i]);
+            list.add(b);
+        }
+        if (used) {
+            ((EventMessage) contents).setReceiveToken(token);
+        } else if (token != 0) {
+            ReceiveBuffers.release(target, token);
+        }
+        return list;
+    }
+
+    /**
+     * Encodes the contents of a message into an array, as {@link #encode(ObjectOutput, byte, Object)} does.
+     *
+     * @param opcode
+     *            the opcode of the message
+     * @param data
+     *            the contents of the message, not <code>null</code>
+     * @return the encoded contents
+     * @throws IOException
+     *             when encoding fails
+     */
+    public static byte[] encode(byte opcode, Object data) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(b);
+        encode(out, opcode, data);
+        out.close();
+        return b.toByteArray();
+    }
+
+    /**
+     * Decodes the contents of a message from an array, as {@link #decode(ObjectInput, byte)} does.
+     *
+     * @param opcode
+     *            the opcode of the message
+     * @param data
+     *            the encoded contents
+     * @return the contents of the message
+     * @throws IOException
+     *             when reading fails
+     * @throws ClassNotFoundException
+     *             when the class of a serialized object cannot be found
+     */
+    public static Object decode(byte opcode, byte[] data) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+        Object result = decode(in, opcode);
+        in.close();
+        return result;
+    }
+
+    private static void writeRankInfo(ObjectOutput out, RankInfo info) throws IOException {
+        MessageCodec.writeVarInt(out, info.rank);
+        out.writeObject(info.id);
+    }
+
+    private static RankInfo readRankInfo(ObjectInput in) throws IOException, ClassNotFoundException {
+        int rank = MessageCodec.readVarInt(in);
+        return new RankInfo(rank, (NodeIdentifier) in.readObject());
+    }
+
+    /**
+     * Deals with messages that were held back, to be combined with other messages or to be written by another thread, and turned
+     * out not to be deliverable. Event messages are retried, the work in steal replies is reclaimed, other messages are dropped.
+     *
+     * @param dest
+     *            the destination node
+     * @param messages
+     *            the messages
+     */
+    public void notSent(NodeIdentifier dest, List<Message> messages) {
+        for (Message m : messages) {
+            if (m.opcode == OPCODE_EVENT_MESSAGE) {
+                owner.eventNotSent((EventMessage) m.contents);
+            } else if (m.opcode == OPCODE_STEAL_REPLY) {
+                owner.stealReplyNotSent((StealReply) m.contents);
+            } else if (logger.isDebugEnabled()) {
+                logger.debug("Dropping " + getString(m.opcode, "unsent") + " to " + dest.name());
+            }
+        }
+    }
+
+    /**
+     * Sends any messages that are held back to be combined with other messages.
+     */
+    public void flush() {
+        comm.flush();
+    }
+
     public static String getString(int opcode, String readOrWrite) {
         switch (opcode) {
         case OPCODE_EVENT_MESSAGE:
@@ -995,12 +2029,16 @@ public class Pool {
             return readOrWrite + " pool update request";
         case OPCODE_POOL_UPDATE_REPLY:
             return readOrWrite + " pool update reply";
+        case OPCODE_POOL_DELTA:
+            return readOrWrite + " pool delta";
         case OPCODE_RANK_REGISTER_REQUEST:
             return readOrWrite + " rank register request";
         case OPCODE_RANK_LOOKUP_REQUEST:
             return readOrWrite + " rank lookup request";
         case OPCODE_RANK_LOOKUP_REPLY:
             return readOrWrite + " rank lookup reply";
+        case OPCODE_RANK_TABLE:
+            return readOrWrite + " rank table";
         case OPCODE_PROFILING:
             return readOrWrite + " statistics";
         case OPCODE_REQUEST_TIME:
@@ -1017,6 +2055,14 @@ public class Pool {
             return readOrWrite + " ping";
         case OPCODE_PONG:
             return readOrWrite + " pong";
+        case OPCODE_IDLE:
+            return readOrWrite + " idle advertisement";
+        case OPCODE_LOCATION:
+            return readOrWrite + " location update";
+        case OPCODE_CODECS_REQUEST:
+            return readOrWrite + " codec request";
+        case OPCODE_CODECS:
+            return readOrWrite + " codecs";
 
         default:
             return readOrWrite + " other";
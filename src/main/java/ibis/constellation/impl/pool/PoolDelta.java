@@ -0,0 +1,48 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool;
+
+import java.io.Serializable;
+
+import ibis.constellation.impl.pool.communication.NodeIdentifier;
+
+/**
+ * A single change in the membership of a steal pool, pushed by the pool master to the nodes following the pool. It takes the
+ * pool from timestamp <code>base</code> to timestamp <code>timestamp</code>.
+ */
+class PoolDelta implements Serializable {
+
+    private static final long serialVersionUID = 6115498251763914407L;
+
+    public final String tag;
+    public final long base;
+    public final long timestamp;
+    public final NodeIdentifier member;
+    public final boolean added;
+
+    PoolDelta(String tag, long base, long timestamp, NodeIdentifier member, boolean added) {
+        this.tag = tag;
+        this.base = base;
+        this.timestamp = timestamp;
+        this.member = member;
+        this.added = added;
+    }
+
+    @Override
+    public String toString() {
+        return "PoolDelta: pool " + tag + ", " + base + " -> " + timestamp + (added ? ", added " : ", removed ") + member;
+    }
+}
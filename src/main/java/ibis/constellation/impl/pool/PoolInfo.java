@@ -17,6 +17,7 @@ package ibis.constellation.impl.pool;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import org.slf4j.Logger;
@@ -111,20 +112,54 @@ class PoolInfo implements Serializable {
         return members.size() != 0;
     }
 
-    public synchronized void addMember(NodeIdentifier id) {
+    public synchronized PoolDelta addMember(NodeIdentifier id) {
         if (logger.isInfoEnabled()) {
             logger.info("Adding " + id + " to pool with tag " + tag);
         }
         members.add(id);
         timestamp++;
+        return new PoolDelta(tag, timestamp - 1, timestamp, id, true);
     }
 
-    public synchronized void removeMember(NodeIdentifier id) {
+    public synchronized PoolDelta removeMember(NodeIdentifier id) {
         if (logger.isInfoEnabled()) {
             logger.info("Removing " + id + " from pool with tag " + tag);
         }
-        members.remove(id);
+        if (!members.remove(id)) {
+            return null;
+        }
         timestamp++;
+        return new PoolDelta(tag, timestamp - 1, timestamp, id, false);
+    }
+
+    /**
+     * Applies a membership change pushed by the pool master.
+     *
+     * @param delta
+     *            the change
+     * @return <code>false</code> if an earlier change is missing, so that a full update is needed, <code>true</code> otherwise.
+     */
+    public synchronized boolean apply(PoolDelta delta) {
+
+        if (delta.timestamp <= timestamp) {
+            // Already included, e.g. in a full update.
+            return true;
+        }
+
+        if (delta.base != timestamp) {
+            return false;
+        }
+
+        if (delta.added) {
+            if (!members.contains(delta.member)) {
+                members.add(delta.member);
+            }
+        } else {
+            members.remove(delta.member);
+        }
+
+        timestamp = delta.timestamp;
+        return true;
     }
 
     public synchronized int nMembers() {
@@ -135,6 +170,26 @@ class PoolInfo implements Serializable {
         return timestamp;
     }
 
+    public synchronized NodeIdentifier select(VictimSelector selector, NodeIdentifier local) {
+        NodeIdentifier id = selector.select(members, local);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Selecting " + id + " from list of " + members.size() + " members");
+        }
+        return id;
+    }
+
+    public synchronized NodeIdentifier select(VictimSelector selector, NodeIdentifier local, List<NodeIdentifier> excluded) {
+
+        if (excluded.isEmpty()) {
+            return select(selector, local);
+        }
+
+        ArrayList<NodeIdentifier> tmp = new ArrayList<NodeIdentifier>(members);
+        tmp.removeAll(excluded);
+
+        return selector.select(tmp, local);
+    }
+
     public synchronized NodeIdentifier selectRandom(Random random) {
         NodeIdentifier id = members.get(random.nextInt(members.size()));
         if (logger.isDebugEnabled()) {
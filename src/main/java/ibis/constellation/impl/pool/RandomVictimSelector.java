@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool;
+
+import java.util.List;
+import java.util.Random;
+
+import ibis.constellation.impl.pool.communication.NodeIdentifier;
+
+/**
+ * Selects a uniformly random victim, ignoring any statistics. This is the default.
+ */
+class RandomVictimSelector implements VictimSelector {
+
+    private final Random random;
+
+    RandomVictimSelector(Random random) {
+        this.random = random;
+    }
+
+    @Override
+    public NodeIdentifier select(List<NodeIdentifier> members, NodeIdentifier local) {
+
+        final int size = members.size();
+
+        if (size == 0 || (size == 1 && members.get(0).equals(local))) {
+            return null;
+        }
+
+        NodeIdentifier id = members.get(random.nextInt(size));
+
+        // If the chosen id is the local one, just try again, as there is a choice.
+        while (id.equals(local)) {
+            id = members.get(random.nextInt(size));
+        }
+
+        return id;
+    }
+
+    @Override
+    public void stealRequestSent(int requestId, NodeIdentifier node, long now) {
+        // not used
+    }
+
+    @Override
+    public void stealReplyReceived(int requestId, NodeIdentifier node, boolean success, long now) {
+        // not used
+    }
+
+    @Override
+    public void roundTrip(NodeIdentifier node, long nanos) {
+        // not used
+    }
+
+    @Override
+    public boolean shouldPing(NodeIdentifier node, long now) {
+        return false;
+    }
+}
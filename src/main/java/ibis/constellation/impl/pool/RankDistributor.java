@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.constellation.impl.pool.communication.NodeIdentifier;
+
+/**
+ * Distributes the ranks of nodes that join to all other nodes, on behalf of the master. This is done by a separate thread, so
+ * that the thread receiving the join requests does not have to send a message to every node for each of them. Joins that
+ * arrive while the previous ones are being distributed are combined: each node that was there already gets a single message
+ * with all new ranks, each new node gets the complete rank table.
+ */
+abstract class RankDistributor extends Thread {
+
+    private static final Logger logger = LoggerFactory.getLogger(RankDistributor.class);
+
+    private final RankTable table;
+
+    private final NodeIdentifier local;
+
+    private final ArrayList<RankInfo> joined = new ArrayList<RankInfo>();
+
+    private boolean done;
+
+    RankDistributor(RankTable table, NodeIdentifier local) {
+        super("RankDistributor");
+        setDaemon(true);
+        this.table = table;
+        this.local = local;
+    }
+
+    /**
+     * Sends ranks to a node.
+     *
+     * @param dest
+     *            the node
+     * @param ranks
+     *            the ranks
+     */
+    protected abstract void send(NodeIdentifier dest, RankInfo[] ranks);
+
+    /**
+     * Schedules the rank of a node that just joined, and was registered in the rank table, for distribution.
+     *
+     * @param info
+     *            the rank information of the new node
+     */
+    synchronized void add(RankInfo info) {
+        joined.add(info);
+        notifyAll();
+    }
+
+    synchronized void done() {
+        done = true;
+        notifyAll();
+    }
+
+    private synchronized RankInfo[] waitForJoins() {
+        while (joined.isEmpty() && !done) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+
+        if (done) {
+            return null;
+        }
+
+        RankInfo[] result = joined.toArray(new RankInfo[joined.size()]);
+        joined.clear();
+        return result;
+    }
+
+    /**
+     * Distributes the specified new ranks.
+     *
+     * @param delta
+     *            the ranks of the nodes that joined
+     */
+    void distribute(RankInfo[] delta) {
+
+        HashSet<NodeIdentifier> fresh = new HashSet<NodeIdentifier>();
+
+        for (RankInfo info : delta) {
+            fresh.add(info.id);
+        }
+
+        RankInfo[] all = table.toArray();
+
+        for (RankInfo info : all) {
+            if (!info.id.equals(local) && !fresh.contains(info.id)) {
+                send(info.id, delta);
+            }
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending rank table of " + all.length + " entries to " + delta.length + " new nodes");
+        }
+
+        for (NodeIdentifier id : fresh) {
+            send(id, all);
+        }
+    }
+
+    @Override
+    public void run() {
+        RankInfo[] delta = waitForJoins();
+
+        while (delta != null) {
+            distribute(delta);
+            delta = waitForJoins();
+        }
+    }
+}
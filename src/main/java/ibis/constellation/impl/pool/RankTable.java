@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ibis.constellation.impl.pool.communication.NodeIdentifier;
+
+/**
+ * Maps the ranks of the nodes to their identifiers. The master pushes all ranks to the other nodes, so a missing rank
+ * normally means that an update is still underway. A node then only asks the master about it if it did not do so recently,
+ * to avoid flooding the master with lookups. This class is thread-safe.
+ */
+class RankTable {
+
+    private final ConcurrentHashMap<Integer, NodeIdentifier> ranks = new ConcurrentHashMap<Integer, NodeIdentifier>();
+
+    /** Time at which the last lookup request for a rank was sent, for ranks that are not known yet. */
+    private final ConcurrentHashMap<Integer, Long> pendingLookups = new ConcurrentHashMap<Integer, Long>();
+
+    /** Minimum time between two lookup requests for the same rank, in milliseconds. */
+    private final long lookupTimeout;
+
+    RankTable(long lookupTimeout) {
+        this.lookupTimeout = lookupTimeout;
+    }
+
+    NodeIdentifier get(int rank) {
+        return ranks.get(rank);
+    }
+
+    boolean contains(int rank) {
+        return ranks.containsKey(rank);
+    }
+
+    /**
+     * Registers the identifier of the node with the specified rank.
+     *
+     * @param rank
+     *            the rank
+     * @param id
+     *            the identifier of the node
+     * @return the identifier registered before, or <code>null</code> if the rank was not known yet
+     */
+    NodeIdentifier register(int rank, NodeIdentifier id) {
+        NodeIdentifier old = ranks.put(rank, id);
+
+        if (old == null) {
+            pendingLookups.remove(rank);
+        }
+        return old;
+    }
+
+    NodeIdentifier remove(int rank) {
+        pendingLookups.remove(rank);
+        return ranks.remove(rank);
+    }
+
+    Collection<NodeIdentifier> nodes() {
+        return ranks.values();
+    }
+
+    /**
+     * Returns all known ranks.
+     *
+     * @return the rank table
+     */
+    RankInfo[] toArray() {
+        ArrayList<RankInfo> table = new ArrayList<RankInfo>();
+
+        for (Map.Entry<Integer, NodeIdentifier> entry : ranks.entrySet()) {
+            table.add(new RankInfo(entry.getKey(), entry.getValue()));
+        }
+        return table.toArray(new RankInfo[table.size()]);
+    }
+
+    /**
+     * Returns whether a lookup request for the specified unknown rank should be sent now, that is, whether no request for it
+     * was sent during the lookup timeout. If so, the request is registered as sent.
+     *
+     * @param rank
+     *            the rank
+     * @param now
+     *            the current time, in milliseconds
+     * @return whether a lookup request should be sent
+     */
+    boolean shouldLookup(int rank, long now) {
+
+        if (ranks.containsKey(rank)) {
+            return false;
+        }
+
+        while (true) {
+            Long last = pendingLookups.get(rank);
+
+            if (last == null) {
+                if (pendingLookups.putIfAbsent(rank, now) == null) {
+                    return true;
+                }
+            } else if (now - last.longValue() > lookupTimeout) {
+                if (pendingLookups.replace(rank, last, now)) {
+                    return true;
+                }
+            } else {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool;
+
+import java.util.List;
+
+import ibis.constellation.impl.pool.communication.NodeIdentifier;
+
+/**
+ * A <code>VictimSelector</code> selects the node to send a remote steal request to. Implementations may use the statistics that
+ * the {@link Pool} feeds them about steal replies and round trip times.
+ *
+ * Implementations must be thread-safe.
+ */
+interface VictimSelector {
+
+    /**
+     * Selects a node from the specified members of a pool, other than the local node.
+     *
+     * @param members
+     *            the members of the pool
+     * @param local
+     *            the local node
+     * @return the selected node, or <code>null</code> if there is no suitable node
+     */
+    NodeIdentifier select(List<NodeIdentifier> members, NodeIdentifier local);
+
+    /**
+     * Notifies the selector that a steal request was sent to the specified node.
+     *
+     * @param requestId
+     *            the identifier of the request, which is echoed in the reply
+     * @param node
+     *            the node
+     * @param now
+     *            the current time, as given by {@link System#nanoTime()}
+     */
+    void stealRequestSent(int requestId, NodeIdentifier node, long now);
+
+    /**
+     * Notifies the selector that a steal reply was received from the specified node. The reply need not come from the node the
+     * request was sent to, as requests may be forwarded, and may not belong to any request at all, as work may be pushed to an
+     * idle node.
+     *
+     * @param requestId
+     *            the identifier of the request this is a reply to, or 0 if unknown
+     * @param node
+     *            the node
+     * @param success
+     *            whether the reply contained any work
+     * @param now
+     *            the current time, as given by {@link System#nanoTime()}
+     */
+    void stealReplyReceived(int requestId, NodeIdentifier node, boolean success, long now);
+
+    /**
+     * Notifies the selector of a measured round trip time to the specified node.
+     *
+     * @param node
+     *            the node
+     * @param nanos
+     *            the round trip time in nanoseconds
+     */
+    void roundTrip(NodeIdentifier node, long nanos);
+
+    /**
+     * Returns whether the round trip time to the specified node should be measured (again). If so, the caller is expected to do
+     * so right away.
+     *
+     * @param node
+     *            the node
+     * @param now
+     *            the current time, as given by {@link System#nanoTime()}
+     * @return whether the node should be pinged
+     */
+    boolean shouldPing(NodeIdentifier node, long now);
+}
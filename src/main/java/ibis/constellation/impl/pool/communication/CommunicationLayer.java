@@ -23,6 +23,9 @@ public interface CommunicationLayer {
 
     public boolean sendMessage(NodeIdentifier dest, Message m);
 
+    // Sends any messages that are held back to be combined with others.
+    public void flush();
+
     // Message receipt is implicit, in that the upcall() method of Pool gets
     // called.
 
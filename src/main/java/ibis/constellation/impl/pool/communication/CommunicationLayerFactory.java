@@ -0,0 +1,40 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication;
+
+import ibis.constellation.ConstellationProperties;
+import ibis.constellation.impl.pool.Pool;
+import ibis.constellation.impl.pool.PoolCreationFailedException;
+
+/**
+ * Creates the {@link CommunicationLayer} of a {@link Pool}. When a pool is created without a factory, it uses the
+ * communication layer selected by the "communication" property.
+ */
+public interface CommunicationLayerFactory {
+
+    /**
+     * Creates a communication layer for the specified pool. Received messages are passed to {@link Pool#upcall}.
+     *
+     * @param properties
+     *            the properties of the constellation
+     * @param pool
+     *            the pool
+     * @return the communication layer
+     * @throws PoolCreationFailedException
+     *             when the communication layer could not be created
+     */
+    public CommunicationLayer create(ConstellationProperties properties, Pool pool) throws PoolCreationFailedException;
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.constellation.ConstellationProperties;
+
+/**
+ * Compresses the encoded contents of messages, and each of their byte buffers, when they are large enough to make it worthwhile.
+ * Data smaller than the threshold is sent as is, and so is data that does not get smaller. Compressed data is marked as such on
+ * the wire, so a receiver can decompress it whatever its own settings are.
+ *
+ * The only algorithm is "deflate", from <code>java.util.zip</code>. Deflaters and inflaters are kept per thread. Statistics on
+ * the compression ratio and on the CPU time spent are kept, and logged by {@link #done()}. The CPU time is that of the calling
+ * threads, so that time spent waiting for the processor in a busy node is not counted; it stays 0 when the JVM does not measure
+ * thread CPU time.
+ */
+public class Compression {
+
+    private static final Logger logger = LoggerFactory.getLogger(Compression.class);
+
+    /** Flag of a message with contents. */
+    public static final byte FLAG_CONTENTS = 1;
+
+    /** Flag of a message whose encoded contents are preceded by their length, and may be compressed. */
+    public static final byte FLAG_PACKED = 2;
+
+    /** Flag of a message whose byte buffers are each preceded by their length on the wire, and may be compressed. */
+    public static final byte FLAG_SEGMENTS = 4;
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final boolean enabled;
+
+    private final int threshold;
+
+    private final int level;
+
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(level);
+        }
+    };
+
+    private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong compressTime = new AtomicLong();
+    private final AtomicLong decompressed = new AtomicLong();
+    private final AtomicLong decompressTime = new AtomicLong();
+
+    /**
+     * Creates a compression stage.
+     *
+     * @param algorithm
+     *            the algorithm, "none" or "deflate"
+     * @param threshold
+     *            the size in bytes from which data is compressed
+     * @param level
+     *            the compression level, from 0 to 9, or -1 for the default level
+     * @throws IllegalArgumentException
+     *             when the algorithm is unknown, or the threshold or level is out of range
+     */
+    public Compression(String algorithm, int threshold, int level) {
+        if (algorithm.equalsIgnoreCase("none")) {
+            enabled = false;
+        } else if (algorithm.equalsIgnoreCase("deflate")) {
+            enabled = true;
+        } else {
+            throw new IllegalArgumentException("Unknown compression: " + algorithm);
+        }
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Compression threshold may not be negative: " + threshold);
+        }
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Illegal compression level: " + level);
+        }
+        this.threshold = threshold;
+        this.level = level;
+    }
+
+    /**
+     * Creates the compression stage configured by the "compression" properties.
+     *
+     * @param properties
+     *            the properties
+     */
+    public Compression(ConstellationProperties properties) {
+        this(properties.COMPRESSION, properties.COMPRESSION_THRESHOLD, properties.COMPRESSION_LEVEL);
+    }
+
+    /**
+     * Returns whether data is compressed before sending. Received data is decompressed regardless.
+     *
+     * @return whether compression is enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Compresses part of an array.
+     *
+     * @param data
+     *            the array
+     * @param offset
+     *            the offset of the data in the array
+     * @param length
+     *            the number of bytes
+     * @return the compressed data, or <code>null</code> when the data is to be sent as is
+     */
+    public byte[] compress(byte[] data, int offset, int length) {
+        if (!enabled || length < threshold || length == 0) {
+            skipped.incrementAndGet();
+            return null;
+        }
+
+        long start = cpuTime();
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+
+        // Only worthwhile when the result is smaller.
+        byte[] out = new byte[length - 1];
+        int n = 0;
+        while (!deflater.finished() && n < out.length) {
+            n += deflater.deflate(out, n, out.length - n);
+        }
+        boolean smaller = deflater.finished();
+
+        compressTime.addAndGet(cpuTime() - start);
+
+        if (!smaller) {
+            skipped.incrementAndGet();
+            return null;
+        }
+
+        compressed.incrementAndGet();
+        bytesIn.addAndGet(length);
+        bytesOut.addAndGet(n);
+
+        byte[] result = new byte[n];
+        System.arraycopy(out, 0, result, 0, n);
+        return result;
+    }
+
+    /**
+     * Compresses the bytes between the position and the limit of a byte buffer. The buffer itself is not changed.
+     *
+     * @param b
+     *            the byte buffer
+     * @return the compressed data, or <code>null</code> when the data is to be sent as is
+     */
+    public byte[] compress(ByteBuffer b) {
+        if (!enabled || b.remaining() < threshold || b.remaining() == 0) {
+            skipped.incrementAndGet();
+            return null;
+        }
+        if (b.hasArray()) {
+            return compress(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        }
+        // A deflater only takes arrays.
+        byte[] data = new byte[b.remaining()];
+        b.duplicate().get(data);
+        return compress(data, 0, data.length);
+    }
+
+    /**
+     * Decompresses data.
+     *
+     * @param data
+     *            the compressed data
+     * @param length
+     *            the number of bytes before compression
+     * @return the decompressed data
+     * @throws IOException
+     *             when the data is corrupt
+     */
+    public byte[] decompress(byte[] data, int length) throws IOException {
+        byte[] out = new byte[length];
+
+        long start = cpuTime();
+
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data);
+        int n = 0;
+        try {
+            while (n < length && !inflater.finished()) {
+                int k = inflater.inflate(out, n, length - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += k;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed data", e);
+        }
+
+        decompressTime.addAndGet(cpuTime() - start);
+        decompressed.incrementAndGet();
+
+        if (n != length || !inflater.finished()) {
+            throw new IOException("Compressed data has the wrong length: expected " + length + " bytes");
+        }
+        return out;
+    }
+
+    /**
+     * Decompresses data into a byte buffer. The number of bytes before compression must be the number of bytes remaining in the
+     * buffer. The position of the buffer is advanced to its limit.
+     *
+     * @param data
+     *            the compressed data
+     * @param b
+     *            the byte buffer
+     * @throws IOException
+     *             when the data is corrupt
+     */
+    public void decompress(byte[] data, ByteBuffer b) throws IOException {
+        b.put(decompress(data, b.remaining()));
+    }
+
+    public long getCompressed() {
+        return compressed.get();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /**
+     * Returns the ratio between the sizes before and after compression of the data that was compressed.
+     *
+     * @return the compression ratio, or 0 when nothing was compressed
+     */
+    public double getRatio() {
+        long out = bytesOut.get();
+        return out == 0 ? 0.0 : (double) bytesIn.get() / out;
+    }
+
+    /**
+     * Returns the CPU time spent compressing.
+     *
+     * @return the CPU time in nanoseconds
+     */
+    public long getCompressTime() {
+        return compressTime.get();
+    }
+
+    /**
+     * Returns the CPU time spent decompressing.
+     *
+     * @return the CPU time in nanoseconds
+     */
+    public long getDecompressTime() {
+        return decompressTime.get();
+    }
+
+    /**
+     * Logs the statistics.
+     */
+    public void done() {
+        if (logger.isInfoEnabled() && (enabled || decompressed.get() > 0)) {
+            logger.info("Compression: compressed " + compressed.get() + ", sent as is " + skipped.get() + ", " + bytesIn.get()
+                    + " bytes to " + bytesOut.get() + " (ratio " + String.format("%.2f", getRatio()) + "), compression "
+                    + compressTime.get() / 1000000 + " ms CPU, decompressed " + decompressed.get() + " in "
+                    + decompressTime.get() / 1000000 + " ms CPU");
+        }
+    }
+
+    // Returns the CPU time of the current thread in nanoseconds, or 0 when it is not measured.
+    private static long cpuTime() {
+        long t = threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+        return t < 0 ? 0 : t;
+    }
+}
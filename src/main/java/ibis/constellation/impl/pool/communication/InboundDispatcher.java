@@ -0,0 +1,383 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An <code>InboundDispatcher</code> decouples the receipt of messages from their delivery. The thread receiving a message only
+ * queues it, and a small number of dispatcher threads deliver the messages to a {@link Receiver}. Delivery may have to wait for
+ * the lock of a busy executor, and this way such a wait does not hold up receipt from other nodes.
+ *
+ * Messages from the same node are delivered one at a time, in the order in which they were received, whatever the number of
+ * dispatcher threads, as the protocol depends on that order (for instance, a pool delta must not overtake the pool update it
+ * follows). Priorities only apply across nodes: a dispatcher thread picks the node whose next message has the highest priority,
+ * and the node that has waited longest among those, so that steal requests and steal replies from one node overtake bulk event
+ * messages from another. The total number of queued messages is bounded; when the queues are full, the receiving thread waits,
+ * which slows down the senders as well. A receiving thread that must not wait, such as a selector thread, queues the message
+ * anyway, and uses {@link #isFull()} to stop reading until the queues drain.
+ */
+public class InboundDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(InboundDispatcher.class);
+
+    /** Priority of latency sensitive messages, such as steal requests and steal replies. */
+    public static final int PRIORITY_HIGH = 0;
+
+    /** Priority of other control messages. */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /** Priority of bulk messages, such as event messages. */
+    public static final int PRIORITY_LOW = 2;
+
+    private static final int PRIORITIES = 3;
+
+    /**
+     * Receives the messages from the dispatcher.
+     */
+    public interface Receiver {
+
+        /**
+         * Delivers a message.
+         *
+         * @param source
+         *            the node that sent the message
+         * @param m
+         *            the message
+         */
+        public void deliver(NodeIdentifier source, Message m);
+    }
+
+    /** A received message, with its priority. */
+    private static final class Inbound {
+
+        final Message message;
+
+        final int priority;
+
+        Inbound(Message message, int priority) {
+            this.message = message;
+            this.priority = priority;
+        }
+    }
+
+    /** The messages received from a single node, which are delivered in order. */
+    private static final class Source {
+
+        final NodeIdentifier id;
+
+        final ArrayDeque<Inbound> messages = new ArrayDeque<Inbound>();
+
+        /** Set while the source is waiting for, or being served by, a dispatcher thread. */
+        boolean scheduled;
+
+        /** The message being delivered. */
+        Inbound current;
+
+        Source(NodeIdentifier id) {
+            this.id = id;
+        }
+    }
+
+    private final Receiver receiver;
+
+    private final int depth;
+
+    // All fields below are protected by the lock on queues.
+
+    /** The sources with messages that are not served by a dispatcher thread, by the priority of their next message. */
+    private final ArrayDeque<Source>[] queues;
+
+    /** The sources with queued messages, or a message being delivered. */
+    private final HashMap<NodeIdentifier, Source> sources = new HashMap<NodeIdentifier, Source>();
+
+    private final int[] length = new int[PRIORITIES];
+
+    private final int[] maxLength = new int[PRIORITIES];
+
+    private final long[] dispatched = new long[PRIORITIES];
+
+    private int size = 0;
+
+    private boolean done = false;
+
+    private final Thread[] dispatchers;
+
+    /**
+     * Creates an inbound dispatcher, and starts its dispatcher threads.
+     *
+     * @param receiver
+     *            the receiver of the messages
+     * @param depth
+     *            the maximum number of queued messages
+     * @param threads
+     *            the number of dispatcher threads
+     * @throws IllegalArgumentException
+     *             when the depth or the number of threads is smaller than 1
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public InboundDispatcher(Receiver receiver, int depth, int threads) {
+
+        if (depth < 1 || threads < 1) {
+            throw new IllegalArgumentException("Illegal dispatch parameters: depth " + depth + ", " + threads + " threads");
+        }
+
+        this.receiver = receiver;
+        this.depth = depth;
+
+        queues = new ArrayDeque[PRIORITIES];
+        for (int i = 0; i < PRIORITIES; i++) {
+            queues[i] = new ArrayDeque<Source>();
+        }
+
+        dispatchers = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+            dispatchers[i] = new Thread("InboundDispatcher " + i) {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            };
+            dispatchers[i].setDaemon(true);
+            dispatchers[i].start();
+        }
+    }
+
+    private static void checkPriority(int priority) {
+        if (priority < PRIORITY_HIGH || priority > PRIORITY_LOW) {
+            throw new IllegalArgumentException("Illegal priority " + priority);
+        }
+    }
+
+    /**
+     * Queues a message for delivery, waiting while the queues are full. Once the dispatcher is done, the message is delivered by
+     * the calling thread.
+     *
+     * @param source
+     *            the node that sent the message
+     * @param m
+     *            the message
+     * @param priority
+     *            the priority of the message, one of {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} and {@link #PRIORITY_LOW}
+     * @throws IllegalArgumentException
+     *             when the priority is illegal
+     */
+    public void enqueue(NodeIdentifier source, Message m, int priority) {
+        enqueue(source, m, priority, true);
+    }
+
+    /**
+     * Queues a message for delivery. Once the dispatcher is done, the message is delivered by the calling thread.
+     *
+     * @param source
+     *            the node that sent the message
+     * @param m
+     *            the message
+     * @param priority
+     *            the priority of the message, one of {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} and {@link #PRIORITY_LOW}
+     * @param mayWait
+     *            whether to wait while the queues are full. When <code>false</code>, the message is queued even when this
+     *            exceeds the maximum number of queued messages.
+     * @throws IllegalArgumentException
+     *             when the priority is illegal
+     */
+    public void enqueue(NodeIdentifier source, Message m, int priority, boolean mayWait) {
+
+        checkPriority(priority);
+
+        synchronized (queues) {
+            while (mayWait && !done && size >= depth) {
+                try {
+                    queues.wait();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+
+            if (!done) {
+                Source s = sources.get(source);
+                if (s == null) {
+                    s = new Source(source);
+                    sources.put(source, s);
+                }
+                s.messages.addLast(new Inbound(m, priority));
+                size++;
+                length[priority]++;
+                if (length[priority] > maxLength[priority]) {
+                    maxLength[priority] = length[priority];
+                }
+                if (!s.scheduled) {
+                    s.scheduled = true;
+                    queues[priority].addLast(s);
+                    queues.notifyAll();
+                }
+                return;
+            }
+        }
+
+        receiver.deliver(source, m);
+    }
+
+    /**
+     * Returns whether the maximum number of queued messages is reached.
+     *
+     * @return whether the queues are full
+     */
+    public boolean isFull() {
+        synchronized (queues) {
+            return size >= depth;
+        }
+    }
+
+    /**
+     * Returns the number of messages of the specified priority waiting to be delivered.
+     *
+     * @param priority
+     *            the priority
+     * @return the number of messages
+     */
+    public int getQueueLength(int priority) {
+        checkPriority(priority);
+        synchronized (queues) {
+            return length[priority];
+        }
+    }
+
+    /**
+     * Returns the largest number of messages of the specified priority that were waiting to be delivered at the same time.
+     *
+     * @param priority
+     *            the priority
+     * @return the number of messages
+     */
+    public int getMaxQueueLength(int priority) {
+        checkPriority(priority);
+        synchronized (queues) {
+            return maxLength[priority];
+        }
+    }
+
+    /**
+     * Returns the number of messages of the specified priority that were delivered by the dispatcher threads.
+     *
+     * @param priority
+     *            the priority
+     * @return the number of messages
+     */
+    public long getDispatched(int priority) {
+        checkPriority(priority);
+        synchronized (queues) {
+            return dispatched[priority];
+        }
+    }
+
+    /**
+     * Delivers all queued messages, and stops the dispatcher threads.
+     */
+    public void done() {
+        synchronized (queues) {
+            done = true;
+            queues.notifyAll();
+        }
+
+        for (Thread t : dispatchers) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Inbound dispatch: " + statistics());
+        }
+    }
+
+    private String statistics() {
+        StringBuilder b = new StringBuilder();
+        synchronized (queues) {
+            for (int i = 0; i < PRIORITIES; i++) {
+                b.append(i == PRIORITY_HIGH ? "high" : (i == PRIORITY_NORMAL ? ", normal" : ", low"));
+                b.append(" priority ").append(dispatched[i]).append(" messages, max queue length ").append(maxLength[i]);
+            }
+        }
+        return b.toString();
+    }
+
+    // Returns a source with the message to deliver as current, or null when done and there is nothing left to deliver.
+    private Source next() {
+        synchronized (queues) {
+            while (true) {
+                for (int i = 0; i < PRIORITIES; i++) {
+                    Source s = queues[i].pollFirst();
+                    if (s != null) {
+                        s.current = s.messages.pollFirst();
+                        size--;
+                        length[i]--;
+                        dispatched[i]++;
+                        queues.notifyAll();
+                        return s;
+                    }
+                }
+
+                if (done) {
+                    return null;
+                }
+
+                try {
+                    queues.wait();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    // Schedules the source again if more messages arrived while delivering the last one.
+    private void finished(Source s) {
+        synchronized (queues) {
+            s.current = null;
+            Inbound m = s.messages.peekFirst();
+            if (m == null) {
+                s.scheduled = false;
+                sources.remove(s.id);
+            } else {
+                queues[m.priority].addLast(s);
+                queues.notifyAll();
+            }
+        }
+    }
+
+    private void dispatch() {
+
+        Source s = next();
+
+        while (s != null) {
+            try {
+                receiver.deliver(s.id, s.current.message);
+            } catch (Throwable e) {
+                logger.error("Delivery of message from " + s.id.name() + " failed", e);
+            }
+            finished(s);
+            s = next();
+        }
+    }
+}
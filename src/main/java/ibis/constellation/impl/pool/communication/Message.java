@@ -16,6 +16,8 @@
 package ibis.constellation.impl.pool.communication;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 public class Message implements Serializable {
     /**
@@ -25,6 +27,12 @@ public class Message implements Serializable {
     public byte opcode;
     public Object contents;
 
+    /** The encoded contents, when they were encoded before the message was held back to be sent later, or <code>null</code>. */
+    public transient byte[] encoded;
+
+    /** Copies of the byte buffers of the contents, taken together with {@link #encoded}, or <code>null</code>. */
+    public transient List<ByteBuffer> buffers;
+
     public Message(byte opcode, Object contents) {
         this.opcode = opcode;
         this.contents = contents;
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A <code>MessageAggregator</code> combines small messages to the same destination into a single network message. Messages are
+ * held back until the maximum number of messages is reached, until the maximum delay has passed, or until the aggregator is
+ * flushed explicitly. Messages that may not be held back are sent right away, after any messages held back for the same
+ * destination, so that the order of messages per destination is preserved.
+ *
+ * The actual sending is done by a {@link Sender}, which is also told about held back messages that could not be sent, since
+ * the original sender has already been told they were sent.
+ */
+public class MessageAggregator {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageAggregator.class);
+
+    /**
+     * Sends messages for the aggregator.
+     */
+    public interface Sender {
+
+        /**
+         * Sends the messages, in order, in a single network message.
+         *
+         * @param destination
+         *            the destination node
+         * @param messages
+         *            the messages
+         * @return whether the messages were sent
+         */
+        public boolean send(NodeIdentifier destination, List<Message> messages);
+
+        /**
+         * Deals with held back messages that could not be sent.
+         *
+         * @param destination
+         *            the destination node
+         * @param messages
+         *            the messages
+         */
+        public void failed(NodeIdentifier destination, List<Message> messages);
+    }
+
+    /** The messages held back for a single destination. */
+    private static final class Outbox {
+
+        final NodeIdentifier destination;
+
+        final ArrayList<Message> messages = new ArrayList<Message>();
+
+        /** Time at which the messages must be sent, in nanoseconds. */
+        long deadline;
+
+        Outbox(NodeIdentifier destination) {
+            this.destination = destination;
+        }
+    }
+
+    /** A scheduled flush of an outbox. */
+    private static final class Due {
+
+        final Outbox outbox;
+
+        final long deadline;
+
+        Due(Outbox outbox, long deadline) {
+            this.outbox = outbox;
+            this.deadline = deadline;
+        }
+    }
+
+    private final Sender sender;
+
+    private final int maxMessages;
+
+    private final long maxDelay;
+
+    private final ConcurrentHashMap<NodeIdentifier, Outbox> outboxes = new ConcurrentHashMap<NodeIdentifier, Outbox>();
+
+    /** Scheduled flushes, in order of deadline, since all messages are held back equally long. */
+    private final ArrayDeque<Due> due = new ArrayDeque<Due>();
+
+    private boolean done = false;
+
+    private final Thread flusher;
+
+    /**
+     * Creates a message aggregator, and starts its flusher thread.
+     *
+     * @param sender
+     *            the sender of the (aggregated) messages
+     * @param maxMessages
+     *            the maximum number of messages per network message
+     * @param maxDelay
+     *            the maximum time a message is held back, in nanoseconds
+     * @throws IllegalArgumentException
+     *             when the maximum number of messages is smaller than 2, or the delay is negative
+     */
+    public MessageAggregator(Sender sender, int maxMessages, long maxDelay) {
+
+        if (maxMessages < 2 || maxDelay < 0) {
+            throw new IllegalArgumentException("Illegal aggregation parameters: " + maxMessages + " messages, " + maxDelay + " ns");
+        }
+
+        this.sender = sender;
+        this.maxMessages = maxMessages;
+        this.maxDelay = maxDelay;
+
+        flusher = new Thread("MessageAggregator flusher") {
+            @Override
+            public void run() {
+                flushDue();
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private Outbox getOutbox(NodeIdentifier destination) {
+
+        Outbox o = outboxes.get(destination);
+
+        if (o == null) {
+            o = new Outbox(destination);
+            Outbox tmp = outboxes.putIfAbsent(destination, o);
+            if (tmp != null) {
+                o = tmp;
+            }
+        }
+
+        return o;
+    }
+
+    /**
+     * Sends a message, or holds it back to be sent together with other messages to the same destination.
+     *
+     * @param destination
+     *            the destination node
+     * @param m
+     *            the message
+     * @param aggregate
+     *            whether the message may be held back
+     * @return whether the message was sent or held back
+     */
+    public boolean send(NodeIdentifier destination, Message m, boolean aggregate) {
+
+        final Outbox o = getOutbox(destination);
+
+        synchronized (o) {
+            if (!aggregate) {
+                flush(o);
+                ArrayList<Message> tmp = new ArrayList<Message>(1);
+                tmp.add(m);
+                return sender.send(destination, tmp);
+            }
+
+            o.messages.add(m);
+
+            if (o.messages.size() >= maxMessages) {
+                flush(o);
+            } else if (o.messages.size() == 1) {
+                o.deadline = System.nanoTime() + maxDelay;
+                schedule(new Due(o, o.deadline));
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Sends all messages held back for the specified destination.
+     *
+     * @param destination
+     *            the destination node
+     */
+    public void flush(NodeIdentifier destination) {
+
+        final Outbox o = outboxes.get(destination);
+
+        if (o != null) {
+            synchronized (o) {
+                flush(o);
+            }
+        }
+    }
+
+    /**
+     * Sends all messages held back.
+     */
+    public void flush() {
+        for (Outbox o : outboxes.values()) {
+            synchronized (o) {
+                flush(o);
+            }
+        }
+    }
+
+    /**
+     * Sends all messages held back, and stops the flusher thread.
+     */
+    public void done() {
+        synchronized (due) {
+            done = true;
+            due.notifyAll();
+        }
+        flush();
+    }
+
+    // Must be called while holding the lock on the outbox.
+    private void flush(Outbox o) {
+
+        if (o.messages.isEmpty()) {
+            return;
+        }
+
+        ArrayList<Message> tmp = new ArrayList<Message>(o.messages);
+        o.messages.clear();
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("Sending " + tmp.size() + " aggregated message(s) to " + o.destination);
+        }
+
+        if (!sender.send(o.destination, tmp)) {
+            sender.failed(o.destination, tmp);
+        }
+    }
+
+    private void schedule(Due d) {
+        synchronized (due) {
+            due.addLast(d);
+            if (due.size() == 1) {
+                due.notifyAll();
+            }
+        }
+    }
+
+    private Due nextDue() {
+        synchronized (due) {
+            while (!done) {
+                Due d = due.peekFirst();
+
+                if (d == null) {
+                    try {
+                        due.wait();
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                    continue;
+                }
+
+                long wait = d.deadline - System.nanoTime();
+
+                if (wait <= 0) {
+                    return due.removeFirst();
+                }
+
+                try {
+                    due.wait(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+            return null;
+        }
+    }
+
+    private void flushDue() {
+
+        Due d = nextDue();
+
+        while (d != null) {
+            synchronized (d.outbox) {
+                // Skip if the messages were sent already, and new ones are held back with a later deadline.
+                if (d.outbox.deadline == d.deadline) {
+                    flush(d.outbox);
+                }
+            }
+            d = nextDue();
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <code>SendQueues</code> decouples sending threads from the network. Messages are queued per destination, and written by a
+ * fixed number of writer threads, so that a worker answering a steal request does not wait for connection setup or for a slow
+ * peer. At most one writer serves a destination at any time, and it writes all messages queued for it in one go, so the order
+ * of messages per destination is preserved.
+ *
+ * The number of messages queued per destination is bounded. When a queue is full, the sending thread either waits until there
+ * is room, or the send fails right away. A thread that delivers received messages never waits, as that could stall the peer it
+ * is receiving from, and in turn the writer; when waiting is configured, its messages are queued beyond the bound instead.
+ * Messages that were accepted but could not be written are handed to the
+ * {@link MessageAggregator.Sender#failed(NodeIdentifier, List)} callback, since the sending thread has already been told they
+ * were sent.
+ *
+ * Messages are written after {@link #send(NodeIdentifier, List)} returns, so their contents must not change in the meantime. The
+ * communication layers take care of this by encoding the contents before the messages are queued.
+ */
+public class SendQueues {
+
+    private static final Logger logger = LoggerFactory.getLogger(SendQueues.class);
+
+    /** The messages queued for a single destination. */
+    private static final class Queue {
+
+        final NodeIdentifier destination;
+
+        final ArrayList<Message> messages = new ArrayList<Message>();
+
+        /** Set while the queue is waiting for, or being served by, a writer. */
+        boolean scheduled;
+
+        Queue(NodeIdentifier destination) {
+            this.destination = destination;
+        }
+    }
+
+    private final MessageAggregator.Sender sender;
+
+    private final int depth;
+
+    private final boolean block;
+
+    private final ConcurrentHashMap<NodeIdentifier, Queue> queues = new ConcurrentHashMap<NodeIdentifier, Queue>();
+
+    /** Queues with messages that are not served by a writer yet. */
+    private final ArrayDeque<Queue> ready = new ArrayDeque<Queue>();
+
+    private boolean done = false;
+
+    private final Thread[] writers;
+
+    /**
+     * Creates the send queues, and starts the writer threads.
+     *
+     * @param sender
+     *            writes the messages, and deals with messages that could not be written
+     * @param depth
+     *            the maximum number of messages queued per destination
+     * @param writers
+     *            the number of writer threads
+     * @param block
+     *            whether a sending thread waits when the queue is full, instead of failing
+     * @throws IllegalArgumentException
+     *             when the depth or the number of writers is smaller than 1
+     */
+    public SendQueues(MessageAggregator.Sender sender, int depth, int writers, boolean block) {
+
+        if (depth < 1 || writers < 1) {
+            throw new IllegalArgumentException("Illegal send queue parameters: depth " + depth + ", " + writers + " writers");
+        }
+
+        this.sender = sender;
+        this.depth = depth;
+        this.block = block;
+
+        this.writers = new Thread[writers];
+
+        for (int i = 0; i < writers; i++) {
+            this.writers[i] = new Thread("SendQueues writer " + i) {
+                @Override
+                public void run() {
+                    write();
+                }
+            };
+            this.writers[i].setDaemon(true);
+            this.writers[i].start();
+        }
+    }
+
+    private Queue getQueue(NodeIdentifier destination) {
+
+        Queue q = queues.get(destination);
+
+        if (q == null) {
+            q = new Queue(destination);
+            Queue tmp = queues.putIfAbsent(destination, q);
+            if (tmp != null) {
+                q = tmp;
+            }
+        }
+
+        return q;
+    }
+
+    /**
+     * Queues messages for the specified destination. The messages are written together, in order.
+     *
+     * @param destination
+     *            the destination node
+     * @param messages
+     *            the messages
+     * @return whether the messages were queued; <code>false</code> when the queue is full and the sender should not wait, or
+     *         when the queues are done already
+     */
+    public boolean send(NodeIdentifier destination, List<Message> messages) {
+        return send(destination, messages, true);
+    }
+
+    /**
+     * Queues messages for the specified destination. The messages are written together, in order.
+     *
+     * @param destination
+     *            the destination node
+     * @param messages
+     *            the messages
+     * @param mayWait
+     *            whether the calling thread may wait for room in a full queue; if not, and the queues wait when full, the messages
+     *            are queued beyond the maximum depth
+     * @return whether the messages were queued; <code>false</code> when the queue is full and the sender should not wait, or
+     *         when the queues are done already
+     */
+    public boolean send(NodeIdentifier destination, List<Message> messages, boolean mayWait) {
+
+        final Queue q = getQueue(destination);
+
+        synchronized (q) {
+            // An empty queue always accepts the messages, so that a list larger than the depth can not get stuck.
+            while (!q.messages.isEmpty() && q.messages.size() + messages.size() > depth) {
+                if (!block || isDone()) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Send queue for " + destination + " is full");
+                    }
+                    return false;
+                }
+                if (!mayWait) {
+                    break;
+                }
+                try {
+                    q.wait();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+
+            if (isDone()) {
+                return false;
+            }
+
+            q.messages.addAll(messages);
+
+            if (!q.scheduled) {
+                q.scheduled = true;
+                schedule(q);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the number of messages queued for the specified destination.
+     *
+     * @param destination
+     *            the destination node
+     * @return the number of messages
+     */
+    public int size(NodeIdentifier destination) {
+
+        final Queue q = queues.get(destination);
+
+        if (q == null) {
+            return 0;
+        }
+
+        synchronized (q) {
+            return q.messages.size();
+        }
+    }
+
+    /**
+     * Writes all queued messages, and stops the writer threads. New messages are refused from now on.
+     */
+    public void done() {
+        synchronized (ready) {
+            done = true;
+            ready.notifyAll();
+        }
+
+        for (Thread t : writers) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+
+        // Wake up senders waiting for room, so that they fail.
+        for (Queue q : queues.values()) {
+            synchronized (q) {
+                q.notifyAll();
+            }
+        }
+    }
+
+    private boolean isDone() {
+        synchronized (ready) {
+            return done;
+        }
+    }
+
+    private void schedule(Queue q) {
+        synchronized (ready) {
+            ready.addLast(q);
+            ready.notify();
+        }
+    }
+
+    // Returns null when done and there is nothing left to write.
+    private Queue nextQueue() {
+        synchronized (ready) {
+            while (ready.isEmpty()) {
+                if (done) {
+                    return null;
+                }
+                try {
+                    ready.wait();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+            return ready.removeFirst();
+        }
+    }
+
+    private void write() {
+
+        Queue q = nextQueue();
+
+        while (q != null) {
+
+            ArrayList<Message> tmp;
+
+            synchronized (q) {
+                tmp = new ArrayList<Message>(q.messages);
+                q.messages.clear();
+                q.notifyAll();
+            }
+
+            if (logger.isTraceEnabled()) {
+                logger.trace("Writing " + tmp.size() + " queued message(s) to " + q.destination);
+            }
+
+            if (!sender.send(q.destination, tmp)) {
+                sender.failed(q.destination, tmp);
+            }
+
+            synchronized (q) {
+                if (q.messages.isEmpty()) {
+                    q.scheduled = false;
+                } else {
+                    schedule(q);
+                }
+            }
+
+            q = nextQueue();
+        }
+    }
+}
@@ -18,6 +18,8 @@ package ibis.constellation.impl.pool.communication.ibis;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
@@ -28,9 +30,12 @@ import ibis.constellation.impl.TimerImpl;
 import ibis.constellation.impl.pool.Pool;
 import ibis.constellation.impl.pool.PoolCreationFailedException;
 import ibis.constellation.impl.pool.communication.CommunicationLayer;
+import ibis.constellation.impl.pool.communication.Compression;
+import ibis.constellation.impl.pool.communication.InboundDispatcher;
 import ibis.constellation.impl.pool.communication.Message;
+import ibis.constellation.impl.pool.communication.MessageAggregator;
 import ibis.constellation.impl.pool.communication.NodeIdentifier;
-import ibis.constellation.util.ByteBufferCache;
+import ibis.constellation.impl.pool.communication.SendQueues;
 import ibis.constellation.util.ByteBuffers;
 import ibis.ipl.Ibis;
 import ibis.ipl.IbisCapabilities;
@@ -80,11 +85,30 @@ public class CommunicationLayerImpl implements CommunicationLayer, RegistryEvent
 
     private TimerImpl communicationTimer;
 
+    /** Marks an Ibis message containing multiple messages. Not used as opcode by the pool. */
+    private static final byte OPCODE_BATCH = -1;
+
+    /** Combines small messages, or <code>null</code> when aggregation is disabled. */
+    private final MessageAggregator aggregator;
+
+    /** Queues messages to be written by separate threads, or <code>null</code> when messages are written by the caller. */
+    private final SendQueues queues;
+
+    /** Delivers received messages on separate threads, or <code>null</code> when they are delivered by the receiving thread. */
+    private final InboundDispatcher dispatcher;
+
+    /** Set on threads that deliver received messages, which must never wait for room in a send queue. */
+    private static final ThreadLocal<Boolean> receiving = new ThreadLocal<Boolean>();
+
+    /** Compresses sent data, and decompresses received data. */
+    private final Compression compression;
+
     public CommunicationLayerImpl(final ConstellationProperties properties, Pool pool) throws PoolCreationFailedException {
 
         closedPool = properties.CLOSED;
         this.pool = pool;
         this.properties = properties;
+        this.compression = new Compression(properties);
 
         try {
             ibis = IbisFactory.createIbis(closedPool ? closedIbisCapabilities : openIbisCapabilities, properties, true,
@@ -120,6 +144,19 @@ public class CommunicationLayerImpl implements CommunicationLayer, RegistryEvent
                 rank = (int) ibis.registry().getSequenceNumber("constellation-pool-" + master.toString());
             }
 
+            // The dispatcher must exist before messages can arrive.
+            if (properties.DISPATCH_THREADS > 0) {
+                dispatcher = new InboundDispatcher(new InboundDispatcher.Receiver() {
+                    @Override
+                    public void deliver(NodeIdentifier source, Message m) {
+                        receiving.set(Boolean.TRUE);
+                        CommunicationLayerImpl.this.pool.upcall(source, m);
+                    }
+                }, properties.DISPATCH_DEPTH, properties.DISPATCH_THREADS);
+            } else {
+                dispatcher = null;
+            }
+
             rp = ibis.createReceivePort(portType, "constellation", this);
             rp.enableConnections();
 
@@ -140,6 +177,38 @@ public class CommunicationLayerImpl implements CommunicationLayer, RegistryEvent
             } else {
                 rports = null;
             }
+
+            if (properties.SENDQUEUE_DEPTH > 0) {
+                queues = new SendQueues(new MessageAggregator.Sender() {
+                    @Override
+                    public boolean send(NodeIdentifier destination, List<Message> messages) {
+                        return CommunicationLayerImpl.this.send(destination, messages);
+                    }
+
+                    @Override
+                    public void failed(NodeIdentifier destination, List<Message> messages) {
+                        CommunicationLayerImpl.this.pool.notSent(destination, messages);
+                    }
+                }, properties.SENDQUEUE_DEPTH, properties.SENDQUEUE_WRITERS, properties.SENDQUEUE_BLOCK);
+            } else {
+                queues = null;
+            }
+
+            if (properties.AGGREGATE_SIZE > 1) {
+                aggregator = new MessageAggregator(new MessageAggregator.Sender() {
+                    @Override
+                    public boolean send(NodeIdentifier destination, List<Message> messages) {
+                        return post(destination, messages);
+                    }
+
+                    @Override
+                    public void failed(NodeIdentifier destination, List<Message> messages) {
+                        CommunicationLayerImpl.this.pool.notSent(destination, messages);
+                    }
+                }, properties.AGGREGATE_SIZE, properties.AGGREGATE_DELAY * 1000L);
+            } else {
+                aggregator = null;
+            }
         } catch (Throwable e) {
             if (ibis != null) {
                 try {
@@ -204,6 +273,14 @@ public class CommunicationLayerImpl implements CommunicationLayer, RegistryEvent
 
     @Override
     public void cleanup() {
+        if (aggregator != null) {
+            aggregator.done();
+        }
+
+        if (queues != null) {
+            queues.done();
+        }
+
         // Try to cleanly disconnect all send and receive ports....
         logger.info("disabling receive port");
 
@@ -243,6 +320,12 @@ public class CommunicationLayerImpl implements CommunicationLayer, RegistryEvent
             }
         }
 
+        if (dispatcher != null) {
+            dispatcher.done();
+        }
+
+        compression.done();
+
         logger.info("Ending ibis");
 
         try {
@@ -269,6 +352,46 @@ public class CommunicationLayerImpl implements CommunicationLayer, RegistryEvent
 
     @Override
     public boolean sendMessage(NodeIdentifier destination, Message m) {
+
+        if (aggregator != null || queues != null) {
+            // The message is written later by another thread, so take its contents now.
+            try {
+                Pool.detach(m, properties.BYTEBUFFERS_REMAINING);
+            } catch (IOException e) {
+                logger.warn("Failed to encode message for " + destination, e);
+                return false;
+            }
+        }
+
+        if (aggregator != null) {
+            return aggregator.send(destination, m, Pool.mayAggregate(m.opcode));
+        }
+
+        return post(destination, Collections.singletonList(m));
+    }
+
+    @Override
+    public void flush() {
+        if (aggregator != null) {
+            aggregator.flush();
+        }
+    }
+
+    /**
+     * Queues the messages for a writer thread, or sends them right away when there are no send queues.
+     */
+    private boolean post(NodeIdentifier destination, List<Message> messages) {
+        if (queues != null) {
+            return queues.send(destination, messages, receiving.get() == null);
+        }
+        return send(destination, messages);
+    }
+
+    /**
+     * Sends one or more messages in a single Ibis message. A single message is written as is. Multiple messages are preceded by
+     * {@link #OPCODE_BATCH} and their number.
+     */
+    private boolean send(NodeIdentifier destination, List<Message> messages) {
         SendPort s;
         IbisIdentifier dest = ((NodeIdentifierImpl) destination).getIbisIdentifier();
         try {
@@ -278,41 +401,24 @@ public class CommunicationLayerImpl implements CommunicationLayer, RegistryEvent
             return false;
         }
 
+        final Message first = messages.get(0);
+        final boolean batch = messages.size() > 1;
+
         int eventNo = -1;
         long sz = 0;
         WriteMessage wm = null;
         try {
             wm = s.newMessage();
-            String name = Pool.getString(m.opcode, "write");
-            if (communicationTimer != null && m.contents != null) {
+            String name = batch ? "write batch" : Pool.getString(first.opcode, "write");
+            if (communicationTimer != null && (batch || first.contents != null)) {
                 eventNo = communicationTimer.start(name);
             }
-            wm.writeByte(m.opcode);
-            if (m.contents == null) {
-                wm.writeBoolean(false);
-            } else {
-                wm.writeBoolean(true);
-                wm.writeObject(m.contents);
-                if (m.contents instanceof ByteBuffers) {
-                    wm.flush();
-                    ArrayList<ByteBuffer> list = new ArrayList<ByteBuffer>();
-                    ((ByteBuffers) m.contents).pushByteBuffers(list);
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Writing " + list.size() + " bytebuffers");
-                    }
-                    wm.writeInt(list.size());
-                    for (ByteBuffer b : list) {
-                        b.position(0);
-                        b.limit(b.capacity());
-                        wm.writeInt(b.capacity());
-                    }
-                    for (ByteBuffer b : list) {
-                        wm.writeByteBuffer(b);
-                        if (logger.isDebugEnabled()) {
-                            logger.debug("Wrote bytebuffer of size " + b.capacity());
-                        }
-                    }
-                }
+            if (batch) {
+                wm.writeByte(OPCODE_BATCH);
+                wm.writeInt(messages.size());
+            }
+            for (Message m : messages) {
+                writeMessage(wm, m);
             }
             sz = wm.finish();
             if (eventNo != -1) {
@@ -333,64 +439,183 @@ public class CommunicationLayerImpl implements CommunicationLayer, RegistryEvent
         return true;
     }
 
+    /**
+     * Writes a message: its opcode, its {@link Compression} flags, and its contents if any. Without compression, the contents are
+     * encoded directly into the Ibis message. With compression, or when the contents were encoded already, the encoded contents
+     * and each byte buffer are preceded by their length, and compressed when worthwhile.
+     */
+    private void writeMessage(WriteMessage wm, Message m) throws IOException {
+        wm.writeByte(m.opcode);
+        if (m.contents == null) {
+            wm.writeByte((byte) 0);
+        } else if (compression.isEnabled() || m.encoded != null) {
+            writePacked(wm, m);
+        } else {
+            wm.writeByte(Compression.FLAG_CONTENTS);
+            Pool.encode(new WriteMessageOutput(wm), m.opcode, m.contents);
+            if (m.contents instanceof ByteBuffers) {
+                wm.flush();
+                ArrayList<ByteBuffer> list = Pool.sendBuffers((ByteBuffers) m.contents, properties.BYTEBUFFERS_REMAINING);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Writing " + list.size() + " bytebuffers");
+                }
+                wm.writeInt(list.size());
+                for (ByteBuffer b : list) {
+                    wm.writeInt(b.remaining());
+                }
+                for (ByteBuffer b : list) {
+                    int size = b.remaining();
+                    wm.writeByteBuffer(b);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Wrote bytebuffer of size " + size);
+                    }
+                }
+            }
+        }
+    }
+
+    private void writePacked(WriteMessage wm, Message m) throws IOException {
+        boolean segments = m.contents instanceof ByteBuffers;
+        byte[] data = m.encoded != null ? m.encoded : Pool.encode(m.opcode, m.contents);
+        byte[] packed = compression.compress(data, 0, data.length);
+
+        wm.writeByte((byte) (Compression.FLAG_CONTENTS | Compression.FLAG_PACKED | (segments ? Compression.FLAG_SEGMENTS : 0)));
+        wm.writeInt(data.length);
+        if (packed == null) {
+            wm.writeInt(data.length);
+            wm.writeArray(data);
+        } else {
+            wm.writeInt(packed.length);
+            wm.writeArray(packed);
+        }
+
+        if (segments) {
+            wm.flush();
+            ArrayList<ByteBuffer> list = Pool.sendBuffers(m, properties.BYTEBUFFERS_REMAINING);
+            wm.writeInt(list.size());
+            for (ByteBuffer b : list) {
+                wm.writeInt(b.remaining());
+            }
+            for (ByteBuffer b : list) {
+                byte[] c = compression.compress(b);
+                if (c == null) {
+                    wm.writeInt(b.remaining());
+                    wm.writeByteBuffer(b);
+                } else {
+                    wm.writeInt(c.length);
+                    wm.writeArray(c);
+                }
+            }
+        }
+    }
+
+    private Message readMessage(ReadMessage rm, byte opcode) throws IOException, ClassNotFoundException {
+        Message m = new Message(opcode, null);
+
+        byte flags = rm.readByte();
+
+        if ((flags & Compression.FLAG_CONTENTS) == 0) {
+            return m;
+        }
+
+        try {
+            if ((flags & Compression.FLAG_PACKED) != 0) {
+                int length = rm.readInt();
+                byte[] data = new byte[rm.readInt()];
+                rm.readArray(data);
+                if (data.length < length) {
+                    data = compression.decompress(data, length);
+                }
+                m.contents = Pool.decode(opcode, data);
+            } else {
+                m.contents = Pool.decode(new ReadMessageInput(rm), opcode);
+            }
+        } catch (ClassNotFoundException | IOException e) {
+            logger.error("Got exception while decoding message", e);
+            // Re-throwing the exception will cause Ibis to terminate the connection somewhat gracefully.
+            throw e;
+        }
+        if (m.contents != null && m.contents instanceof ByteBuffers) {
+            int[] sizes = new int[rm.readInt()];
+            if (logger.isDebugEnabled() && sizes.length > 0) {
+                logger.debug("Reading " + sizes.length + " bytebuffers");
+            }
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = rm.readInt();
+            }
+            ArrayList<ByteBuffer> l = pool.receiveBuffers(m.contents, sizes);
+            for (ByteBuffer b : l) {
+                int length = (flags & Compression.FLAG_SEGMENTS) == 0 ? b.remaining() : rm.readInt();
+                if (length < b.remaining()) {
+                    byte[] data = new byte[length];
+                    rm.readArray(data);
+                    compression.decompress(data, b);
+                } else {
+                    rm.readByteBuffer(b);
+                }
+                b.position(0);
+            }
+            ((ByteBuffers) m.contents).popByteBuffers(l);
+        }
+        return m;
+    }
+
     @Override
     public void upcall(ReadMessage rm) throws IOException, ClassNotFoundException {
 
         IbisIdentifier source = rm.origin().ibisIdentifier();
         int timerEvent = -1;
         byte opcode = rm.readByte();
-        boolean hasObject = rm.readBoolean();
 
-        if (communicationTimer != null && hasObject) {
-            timerEvent = communicationTimer.start(Pool.getString(opcode, "read"));
+        Message[] messages;
+
+        if (communicationTimer != null) {
+            timerEvent = communicationTimer.start(opcode == OPCODE_BATCH ? "read batch" : Pool.getString(opcode, "read"));
         }
-        Message m = new Message(opcode, null);
 
-        if (hasObject) {
-            long sz = -1;
-            try {
-                try {
-                    m.contents = rm.readObject();
-                } catch (ClassNotFoundException | IOException e) {
-                    logger.error("Got exception in readObject", e);
-                    // Re-throwing the exception will cause Ibis to terminate the connection somewhat gracefully.
-                    throw e;
-                }
-                if (m.contents != null && m.contents instanceof ByteBuffers) {
-                    int nByteBuffers = rm.readInt();
-                    ArrayList<ByteBuffer> l = new ArrayList<ByteBuffer>();
-                    if (nByteBuffers > 0) {
-                        if (logger.isDebugEnabled()) {
-                            logger.debug("Reading " + nByteBuffers + " bytebuffers");
-                        }
-                        for (int i = 0; i < nByteBuffers; i++) {
-                            int capacity = rm.readInt();
-                            ByteBuffer b = ByteBufferCache.getByteBuffer(capacity, false);
-                            l.add(b);
-                        }
-                        for (ByteBuffer b : l) {
-                            b.position(0);
-                            b.limit(b.capacity());
-                            rm.readByteBuffer(b);
-                        }
-                    }
-                    ((ByteBuffers) m.contents).popByteBuffers(l);
+        long sz = -1;
+        try {
+            if (opcode == OPCODE_BATCH) {
+                // Unpack the batch, and deliver the messages in order.
+                messages = new Message[rm.readInt()];
+                for (int i = 0; i < messages.length; i++) {
+                    messages[i] = readMessage(rm, rm.readByte());
                 }
-                sz = rm.finish();
-            } finally {
-                if (timerEvent != -1) {
-                    if (m.contents == null) {
-                        communicationTimer.cancel(timerEvent);
-                    } else {
-                        communicationTimer.stop(timerEvent);
-                        communicationTimer.addBytes(sz, timerEvent);
-                    }
+            } else {
+                messages = new Message[] { readMessage(rm, opcode) };
+            }
+            sz = rm.finish();
+        } finally {
+            if (timerEvent != -1) {
+                if (sz < 0) {
+                    communicationTimer.cancel(timerEvent);
+                } else {
+                    communicationTimer.stop(timerEvent);
+                    communicationTimer.addBytes(sz, timerEvent);
                 }
             }
-        } else {
-            rm.finish();
         }
-        pool.upcall(new NodeIdentifierImpl(source), m);
+
+        NodeIdentifierImpl id = new NodeIdentifierImpl(source);
+
+        receiving.set(Boolean.TRUE);
+
+        for (Message m : messages) {
+            if (dispatcher != null) {
+                dispatcher.enqueue(id, m, Pool.priority(m.opcode));
+            } else {
+                pool.upcall(id, m);
+            }
+        }
+    }
+
+    /**
+     * Returns the dispatcher delivering received messages, which keeps statistics about its queues.
+     *
+     * @return the dispatcher, or <code>null</code> when received messages are delivered by the receiving thread
+     */
+    public InboundDispatcher getInboundDispatcher() {
+        return dispatcher;
     }
 
     @Override
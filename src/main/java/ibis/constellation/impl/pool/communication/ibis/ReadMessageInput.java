@@ -0,0 +1,152 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication.ibis;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInput;
+
+import ibis.ipl.ReadMessage;
+
+/**
+ * Presents an Ibis {@link ReadMessage} as an {@link ObjectInput}, so that the message codecs can read from it directly.
+ */
+class ReadMessageInput implements ObjectInput {
+
+    private final ReadMessage rm;
+
+    ReadMessageInput(ReadMessage rm) {
+        this.rm = rm;
+    }
+
+    @Override
+    public int read() throws IOException {
+        try {
+            return rm.readByte() & 0xFF;
+        } catch (EOFException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        rm.readArray(b, off, len);
+        return len;
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        rm.readArray(b);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        rm.readArray(b, off, len);
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            rm.readByte();
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        return skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public int available() {
+        return 0;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return rm.readBoolean();
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        return rm.readByte();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return rm.readByte() & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        return rm.readShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return rm.readShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return (char) rm.readShort();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        return rm.readInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return rm.readLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(rm.readInt());
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return rm.readDouble();
+    }
+
+    @Override
+    public String readLine() {
+        throw new UnsupportedOperationException("readLine is not supported");
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return rm.readString();
+    }
+
+    @Override
+    public Object readObject() throws IOException, ClassNotFoundException {
+        return rm.readObject();
+    }
+
+    @Override
+    public void close() {
+        // The message is finished by its owner.
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication.ibis;
+
+import java.io.IOException;
+import java.io.ObjectOutput;
+
+import ibis.ipl.WriteMessage;
+
+/**
+ * Presents an Ibis {@link WriteMessage} as an {@link ObjectOutput}, so that the message codecs can write to it directly.
+ */
+class WriteMessageOutput implements ObjectOutput {
+
+    private final WriteMessage wm;
+
+    WriteMessageOutput(WriteMessage wm) {
+        this.wm = wm;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        wm.writeByte((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        wm.writeArray(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        wm.writeArray(b, off, len);
+    }
+
+    @Override
+    public void writeBoolean(boolean v) throws IOException {
+        wm.writeBoolean(v);
+    }
+
+    @Override
+    public void writeByte(int v) throws IOException {
+        wm.writeByte((byte) v);
+    }
+
+    @Override
+    public void writeShort(int v) throws IOException {
+        wm.writeShort((short) v);
+    }
+
+    @Override
+    public void writeChar(int v) throws IOException {
+        wm.writeShort((short) v);
+    }
+
+    @Override
+    public void writeInt(int v) throws IOException {
+        wm.writeInt(v);
+    }
+
+    @Override
+    public void writeLong(long v) throws IOException {
+        wm.writeLong(v);
+    }
+
+    @Override
+    public void writeFloat(float v) throws IOException {
+        wm.writeInt(Float.floatToIntBits(v));
+    }
+
+    @Override
+    public void writeDouble(double v) throws IOException {
+        wm.writeDouble(v);
+    }
+
+    @Override
+    public void writeBytes(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            wm.writeByte((byte) s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeChars(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            wm.writeShort((short) s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeUTF(String s) throws IOException {
+        wm.writeString(s);
+    }
+
+    @Override
+    public void writeObject(Object obj) throws IOException {
+        wm.writeObject(obj);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        wm.flush();
+    }
+
+    @Override
+    public void close() {
+        // The message is finished by its owner.
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication.local;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.constellation.ConstellationProperties;
+import ibis.constellation.impl.pool.Pool;
+import ibis.constellation.impl.pool.communication.CommunicationLayer;
+import ibis.constellation.impl.pool.communication.Compression;
+import ibis.constellation.impl.pool.communication.Message;
+import ibis.constellation.impl.pool.communication.NodeIdentifier;
+import ibis.constellation.util.ByteBufferCache;
+import ibis.constellation.util.ByteBuffers;
+
+/**
+ * The communication layer of a single node of a {@link LocalNetwork}. Messages are serialized by the sending thread, and
+ * delivered to the pool by a delivery thread of the receiving node, once they have arrived. Like with the Ibis based
+ * communication layer, nothing is delivered before the node is activated.
+ */
+class LocalCommunicationLayer implements CommunicationLayer {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalCommunicationLayer.class);
+
+    /** A message on its way to this node. */
+    private static final class Delivery implements Comparable<Delivery> {
+
+        final NodeIdentifier source;
+        final byte opcode;
+        final byte[] data;
+        final int length;
+        final ArrayList<ByteBuffer> buffers;
+        final int[] sizes;
+        final long arrival;
+        final long sequence;
+
+        Delivery(NodeIdentifier source, byte opcode, byte[] data, int length, ArrayList<ByteBuffer> buffers, int[] sizes,
+                long arrival, long sequence) {
+            this.source = source;
+            this.opcode = opcode;
+            this.data = data;
+            this.length = length;
+            this.buffers = buffers;
+            this.sizes = sizes;
+            this.arrival = arrival;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Delivery other) {
+            if (arrival != other.arrival) {
+                return arrival < other.arrival ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final LocalNetwork network;
+
+    private final int rank;
+
+    private final LocalNodeIdentifier identifier;
+
+    private final ConstellationProperties properties;
+
+    private final Pool pool;
+
+    /** Compresses sent data, and decompresses received data. */
+    private final Compression compression;
+
+    // Protected by the lock on this object.
+    private final PriorityQueue<Delivery> inbox = new PriorityQueue<Delivery>();
+    private long sequence = 0;
+    private boolean active = false;
+    private boolean done = false;
+
+    private final Thread deliverer;
+
+    LocalCommunicationLayer(LocalNetwork network, int rank, ConstellationProperties properties, Pool pool) {
+        this.network = network;
+        this.rank = rank;
+        this.identifier = new LocalNodeIdentifier(rank);
+        this.properties = properties;
+        this.pool = pool;
+        this.compression = new Compression(properties);
+
+        deliverer = new Thread("LocalCommunicationLayer " + rank) {
+            @Override
+            public void run() {
+                deliver();
+            }
+        };
+        deliverer.setDaemon(true);
+        deliverer.start();
+    }
+
+    @Override
+    public NodeIdentifier getMyIdentifier() {
+        return identifier;
+    }
+
+    @Override
+    public boolean sendMessage(NodeIdentifier dest, Message m) {
+
+        LocalCommunicationLayer target = network.getNode(((LocalNodeIdentifier) dest).getRank());
+
+        if (target == null) {
+            if (logger.isInfoEnabled()) {
+                logger.info("Cannot " + Pool.getString(m.opcode, "send") + " to " + dest + ": node is gone");
+            }
+            return false;
+        }
+
+        byte[] data = null;
+        int length = 0;
+        ArrayList<ByteBuffer> buffers = null;
+        int[] sizes = null;
+        long bytes = 1;
+
+        // Compressed data and byte buffers are passed on as they would go over the wire, so the network charges for their
+        // compressed size.
+        if (m.contents != null) {
+            try {
+                data = Pool.encode(m.opcode, m.contents);
+            } catch (IOException e) {
+                logger.warn("Failed to " + Pool.getString(m.opcode, "serialize") + " to " + dest, e);
+                return false;
+            }
+
+            length = data.length;
+            byte[] packed = compression.compress(data, 0, data.length);
+            if (packed != null) {
+                data = packed;
+            }
+
+            bytes += data.length;
+
+            if (m.contents instanceof ByteBuffers) {
+                ArrayList<ByteBuffer> list = Pool.sendBuffers((ByteBuffers) m.contents, properties.BYTEBUFFERS_REMAINING);
+                buffers = new ArrayList<ByteBuffer>(list.size());
+                sizes = new int[list.size()];
+                for (int i = 0; i < sizes.length; i++) {
+                    ByteBuffer b = list.get(i);
+                    sizes[i] = b.remaining();
+                    packed = compression.compress(b);
+                    if (packed != null) {
+                        buffers.add(ByteBuffer.wrap(packed));
+                    } else {
+                        ByteBuffer copy = ByteBufferCache.getByteBuffer(b.remaining(), false);
+                        copy.clear();
+                        copy.put(b);
+                        copy.position(0);
+                        buffers.add(copy);
+                    }
+                    bytes += buffers.get(i).remaining();
+                }
+            }
+        }
+
+        return target.receive(identifier, m.opcode, data, length, buffers, sizes,
+                network.arrival(rank, target.rank, bytes, System.nanoTime()));
+    }
+
+    private synchronized boolean receive(NodeIdentifier source, byte opcode, byte[] data, int length, ArrayList<ByteBuffer> buffers,
+            int[] sizes, long arrival) {
+
+        if (done) {
+            return false;
+        }
+
+        inbox.add(new Delivery(source, opcode, data, length, buffers, sizes, arrival, sequence++));
+        notifyAll();
+        return true;
+    }
+
+    // Returns null when done.
+    private synchronized Delivery next() {
+        while (!done) {
+            Delivery d = active ? inbox.peek() : null;
+
+            if (d == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                continue;
+            }
+
+            long wait = d.arrival - System.nanoTime();
+
+            if (wait <= 0) {
+                return inbox.poll();
+            }
+
+            try {
+                wait(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+        return null;
+    }
+
+    private void deliver() {
+
+        Delivery d = next();
+
+        while (d != null) {
+            Message m = new Message(d.opcode, null);
+
+            try {
+                if (d.data != null) {
+                    byte[] data = d.data.length < d.length ? compression.decompress(d.data, d.length) : d.data;
+                    m.contents = Pool.decode(d.opcode, data);
+
+                    if (m.contents instanceof ByteBuffers) {
+                        ((ByteBuffers) m.contents).popByteBuffers(receive(m.contents, d.buffers, d.sizes));
+                    }
+                }
+                pool.upcall(d.source, m);
+            } catch (Throwable e) {
+                logger.error("Failed to " + Pool.getString(d.opcode, "deliver") + " from " + d.source, e);
+            }
+
+            d = next();
+        }
+    }
+
+    /**
+     * Copies or decompresses the byte buffers that arrived into the buffers in which the receiver wants them. The uncompressed
+     * buffers that arrived go back to the cache.
+     */
+    private ArrayList<ByteBuffer> receive(Object contents, ArrayList<ByteBuffer> arrived, int[] sizes) throws IOException {
+        if (arrived == null) {
+            return new ArrayList<ByteBuffer>();
+        }
+        ArrayList<ByteBuffer> result = pool.receiveBuffers(contents, sizes);
+        for (int i = 0; i < sizes.length; i++) {
+            ByteBuffer b = result.get(i);
+            ByteBuffer a = arrived.get(i);
+            if (a.remaining() < sizes[i]) {
+                compression.decompress(a.array(), b);
+            } else {
+                b.put(a);
+                ByteBufferCache.makeAvailableByteBuffer(a);
+            }
+            b.position(0);
+        }
+        return result;
+    }
+
+    @Override
+    public void flush() {
+        // nothing is held back
+    }
+
+    @Override
+    public NodeIdentifier getMaster() {
+        return new LocalNodeIdentifier(0);
+    }
+
+    @Override
+    public int getRank() {
+        return rank;
+    }
+
+    @Override
+    public int getPoolSize() {
+        return network.size();
+    }
+
+    @Override
+    public void terminate() throws IOException {
+        if (!properties.CLOSED && properties.ALLOW_LEAVING) {
+            pool.notifyLeavingPool();
+            return;
+        }
+
+        if (rank == 0) {
+            network.terminate();
+        } else {
+            network.waitUntilTerminated();
+        }
+    }
+
+    @Override
+    public boolean end() {
+        if (!properties.CLOSED && properties.ALLOW_LEAVING) {
+            network.left(rank);
+            logger.info("Left pool");
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void cleanup() {
+        network.left(rank);
+
+        synchronized (this) {
+            done = true;
+            inbox.clear();
+            notifyAll();
+        }
+
+        try {
+            deliverer.join(10000);
+        } catch (InterruptedException e) {
+            // ignore
+        }
+
+        compression.done();
+    }
+
+    @Override
+    public NodeIdentifier getElectionResult(String electTag, long timeout) throws IOException {
+        return network.getElectionResult(electTag, timeout);
+    }
+
+    @Override
+    public NodeIdentifier elect(String electTag) throws IOException {
+        return network.elect(electTag, identifier);
+    }
+
+    @Override
+    public synchronized void activate() {
+        active = true;
+        notifyAll();
+    }
+
+    @Override
+    public NodeIdentifier[] getNodeIdentifiers() {
+        if (!properties.CLOSED) {
+            return null;
+        }
+        return network.getNodeIdentifiers();
+    }
+
+    @Override
+    public void cleanup(NodeIdentifier node) {
+        // there are no connections to clean up
+    }
+}
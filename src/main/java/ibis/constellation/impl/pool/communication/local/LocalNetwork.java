@@ -0,0 +1,210 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication.local;
+
+import java.util.HashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.constellation.ConstellationProperties;
+import ibis.constellation.impl.pool.Pool;
+import ibis.constellation.impl.pool.PoolCreationFailedException;
+import ibis.constellation.impl.pool.communication.CommunicationLayer;
+import ibis.constellation.impl.pool.communication.CommunicationLayerFactory;
+import ibis.constellation.impl.pool.communication.NodeIdentifier;
+
+/**
+ * A <code>LocalNetwork</code> simulates a pool of nodes within a single JVM, so that distributed runs can be tested without an
+ * Ibis registry server. Every pool created with this network as its {@link CommunicationLayerFactory} becomes a node, and gets
+ * the next rank; the first node is the master.
+ *
+ * Messages are serialized when they are sent and deserialized when they are delivered, exactly like on a real network, so that
+ * nodes never share objects. Each link between two nodes can be given a latency and a bandwidth. A message arrives after the
+ * latency, plus the time needed to transfer its bytes over the link, and messages on the same link are transferred one after the
+ * other.
+ */
+public class LocalNetwork implements CommunicationLayerFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalNetwork.class);
+
+    private final int size;
+
+    /** Latency of a link, in nanoseconds. */
+    private final long latency;
+
+    /** Bandwidth of a link, in bytes per second, or 0 when unlimited. */
+    private final long bandwidth;
+
+    private final LocalCommunicationLayer[] nodes;
+
+    /** Time at which each link is done transferring the previous message, in nanoseconds. */
+    private final long[][] linkFree;
+
+    private final HashMap<String, NodeIdentifier> elections = new HashMap<String, NodeIdentifier>();
+
+    private int joined = 0;
+
+    private boolean terminated = false;
+
+    /**
+     * Creates a local network.
+     *
+     * @param size
+     *            the number of nodes
+     * @param latency
+     *            the latency of a link, in microseconds
+     * @param bandwidth
+     *            the bandwidth of a link, in megabytes per second, or 0 for an unlimited bandwidth
+     * @throws IllegalArgumentException
+     *             when the size is smaller than 1, or the latency or bandwidth is negative
+     */
+    public LocalNetwork(int size, int latency, int bandwidth) {
+
+        if (size < 1 || latency < 0 || bandwidth < 0) {
+            throw new IllegalArgumentException(
+                    "Illegal local network parameters: " + size + " nodes, latency " + latency + ", bandwidth " + bandwidth);
+        }
+
+        this.size = size;
+        this.latency = latency * 1000L;
+        this.bandwidth = bandwidth * 1024L * 1024L;
+
+        nodes = new LocalCommunicationLayer[size];
+        linkFree = new long[size][size];
+    }
+
+    @Override
+    public synchronized CommunicationLayer create(ConstellationProperties properties, Pool pool)
+            throws PoolCreationFailedException {
+
+        if (joined == size) {
+            throw new PoolCreationFailedException("All " + size + " nodes of the local network have joined already");
+        }
+
+        LocalCommunicationLayer node = new LocalCommunicationLayer(this, joined, properties, pool);
+        nodes[joined++] = node;
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Node " + node.getMyIdentifier() + " joined the local network");
+        }
+
+        return node;
+    }
+
+    /**
+     * Returns the number of nodes of this network.
+     *
+     * @return the number of nodes
+     */
+    public int size() {
+        return size;
+    }
+
+    NodeIdentifier[] getNodeIdentifiers() {
+        NodeIdentifier[] result = new NodeIdentifier[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = new LocalNodeIdentifier(i);
+        }
+        return result;
+    }
+
+    synchronized LocalCommunicationLayer getNode(int rank) {
+        if (rank < 0 || rank >= size) {
+            return null;
+        }
+        return nodes[rank];
+    }
+
+    synchronized void left(int rank) {
+        nodes[rank] = null;
+    }
+
+    /**
+     * Returns the time at which a message sent now arrives, and reserves the link for the transfer.
+     *
+     * @param source
+     *            the rank of the sender
+     * @param destination
+     *            the rank of the receiver
+     * @param bytes
+     *            the size of the message
+     * @param now
+     *            the current time, in nanoseconds
+     * @return the time of arrival, in nanoseconds
+     */
+    synchronized long arrival(int source, int destination, long bytes, long now) {
+
+        long start = Math.max(now, linkFree[source][destination]);
+        long transfer = bandwidth == 0 ? 0 : (long) (bytes * 1e9 / bandwidth);
+
+        linkFree[source][destination] = start + transfer;
+        return start + transfer + latency;
+    }
+
+    synchronized NodeIdentifier elect(String tag, NodeIdentifier candidate) {
+
+        NodeIdentifier winner = elections.get(tag);
+
+        if (winner == null) {
+            winner = candidate;
+            elections.put(tag, winner);
+            notifyAll();
+        }
+
+        return winner;
+    }
+
+    // Like the Ibis registry, a timeout of 0 waits until there is a winner.
+    synchronized NodeIdentifier getElectionResult(String tag, long timeout) {
+
+        long deadline = System.currentTimeMillis() + timeout;
+        NodeIdentifier winner = elections.get(tag);
+
+        while (winner == null) {
+            long wait = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+
+            if (timeout != 0 && wait <= 0) {
+                return null;
+            }
+
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+
+            winner = elections.get(tag);
+        }
+
+        return winner;
+    }
+
+    synchronized void terminate() {
+        terminated = true;
+        notifyAll();
+    }
+
+    synchronized void waitUntilTerminated() {
+        while (!terminated) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication.local;
+
+import ibis.constellation.impl.pool.communication.NodeIdentifier;
+
+/**
+ * Identifies a node of a {@link LocalNetwork} by its rank.
+ */
+public class LocalNodeIdentifier implements NodeIdentifier {
+
+    private static final long serialVersionUID = -2263389716581377013L;
+
+    private final int rank;
+
+    public LocalNodeIdentifier(int rank) {
+        this.rank = rank;
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    @Override
+    public String name() {
+        return "local-" + rank;
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+
+    @Override
+    public int hashCode() {
+        return rank;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof LocalNodeIdentifier)) {
+            return false;
+        }
+        return rank == ((LocalNodeIdentifier) o).rank;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication.nio;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * A {@link NioRegistry} kept in a directory that is shared by all nodes of a run, which makes it suitable for clusters of
+ * processes on a single host (or on hosts sharing a file system). Ranks and election results are claimed by atomically creating
+ * files, so no registry server is needed.
+ *
+ * Runs may reuse the same directory one after the other. When a run terminates, the last node to notice (or the master, if it
+ * is the only node) removes the files of the run. A directory that still holds a terminated run, for instance because a node
+ * exited without noticing, is cleared by the first node of the next run, while the other nodes wait. The files of a run that
+ * crashed before it terminated can not be told apart from a run in progress, so they have to be removed by hand.
+ */
+public class FileRegistry implements NioRegistry {
+
+    /** Time between two looks at the directory while waiting, in milliseconds. */
+    private static final long POLL_INTERVAL = 10;
+
+    private static final String TERMINATED = "terminated";
+
+    private static final String CLEARING = "clearing";
+
+    private final Path directory;
+
+    /** The node that joined through this registry, or <code>null</code>. */
+    private NioNodeIdentifier self;
+
+    /**
+     * Creates a registry in the specified directory, which is created when it does not exist yet. A terminated run left in the
+     * directory is removed first.
+     *
+     * @param directory
+     *            the directory
+     * @throws IOException
+     *             when the directory could not be created
+     */
+    public FileRegistry(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        clearTerminated();
+    }
+
+    private void clearTerminated() throws IOException {
+        Path terminated = directory.resolve(TERMINATED);
+        Path clearing = directory.resolve(CLEARING);
+
+        while (true) {
+            if (Files.exists(terminated)) {
+                try {
+                    // Only one node can move the marker, and it clears the directory.
+                    Files.move(terminated, clearing, StandardCopyOption.ATOMIC_MOVE);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                for (Path p : list("")) {
+                    if (!p.equals(clearing)) {
+                        Files.deleteIfExists(p);
+                    }
+                }
+                Files.deleteIfExists(clearing);
+                return;
+            }
+            if (!Files.exists(clearing)) {
+                return;
+            }
+            pause();
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public NioNodeIdentifier join(String host, int port) throws IOException {
+        for (int rank = 0;; rank++) {
+            try {
+                Files.createFile(directory.resolve("rank-" + rank));
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            }
+            NioNodeIdentifier id = new NioNodeIdentifier(rank, host, port);
+            publish("node-" + rank, id);
+            self = id;
+            return id;
+        }
+    }
+
+    @Override
+    public int getPoolSize() throws IOException {
+        return list("node-").size();
+    }
+
+    @Override
+    public NioNodeIdentifier[] getNodes() throws IOException {
+        ArrayList<NioNodeIdentifier> result = new ArrayList<NioNodeIdentifier>();
+        for (Path p : list("node-")) {
+            result.add(read(p));
+        }
+        Collections.sort(result, new Comparator<NioNodeIdentifier>() {
+            @Override
+            public int compare(NioNodeIdentifier a, NioNodeIdentifier b) {
+                return Integer.compare(a.getRank(), b.getRank());
+            }
+        });
+        return result.toArray(new NioNodeIdentifier[result.size()]);
+    }
+
+    @Override
+    public NioNodeIdentifier elect(String tag, NioNodeIdentifier candidate) throws IOException {
+        try {
+            Files.createFile(directory.resolve("elect-" + encode(tag)));
+        } catch (FileAlreadyExistsException e) {
+            return getElectionResult(tag, 0);
+        }
+        publish("elected-" + encode(tag), candidate);
+        return candidate;
+    }
+
+    @Override
+    public NioNodeIdentifier getElectionResult(String tag, long timeout) throws IOException {
+        Path p = directory.resolve("elected-" + encode(tag));
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!Files.exists(p)) {
+            if (timeout > 0 && System.currentTimeMillis() >= deadline) {
+                return null;
+            }
+            pause();
+        }
+        return read(p);
+    }
+
+    @Override
+    public void terminate() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            // terminated and removed before
+            return;
+        }
+
+        try {
+            Files.createFile(directory.resolve(TERMINATED));
+        } catch (FileAlreadyExistsException e) {
+            // terminated before
+        }
+
+        removeIfNoticed();
+    }
+
+    @Override
+    public void waitUntilTerminated() throws IOException {
+        Path p = directory.resolve(TERMINATED);
+        while (!Files.exists(p)) {
+            if (!Files.isDirectory(directory)) {
+                // Removed already.
+                return;
+            }
+            pause();
+        }
+
+        if (self != null) {
+            try {
+                Files.createFile(directory.resolve("done-" + self.getRank()));
+            } catch (FileAlreadyExistsException | NoSuchFileException e) {
+                // noticed before, or removed already
+                return;
+            }
+        }
+
+        removeIfNoticed();
+    }
+
+    /**
+     * Removes the files of a terminated run once all nodes other than the master noticed that it terminated.
+     */
+    private void removeIfNoticed() throws IOException {
+        if (list("done-").size() >= list("node-").size() - 1) {
+            remove();
+        }
+    }
+
+    @Override
+    public void leave() throws IOException {
+        if (self != null) {
+            Files.deleteIfExists(directory.resolve("node-" + self.getRank()));
+            self = null;
+        }
+
+        // The last node to leave removes the files of the run.
+        if (list("node-").isEmpty()) {
+            remove();
+        }
+    }
+
+    /**
+     * Removes all files of the run, and the directory itself.
+     */
+    private void remove() throws IOException {
+        for (Path p : list("")) {
+            Files.deleteIfExists(p);
+        }
+        try {
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            // Not empty, for instance because the next run started already.
+        }
+    }
+
+    /**
+     * Writes an identifier to the specified file. The file is renamed into place, so readers never see it half written.
+     */
+    private void publish(String name, NioNodeIdentifier id) throws IOException {
+        Path tmp = Files.createTempFile(directory, "tmp-", ".tmp");
+        String line = id.getRank() + " " + id.getPort() + " " + id.getHost();
+        Files.write(tmp, line.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static NioNodeIdentifier read(Path p) throws IOException {
+        String line = new String(Files.readAllBytes(p), StandardCharsets.UTF_8).trim();
+        String[] parts = line.split(" ", 3);
+        if (parts.length != 3) {
+            throw new IOException("Corrupt registry entry " + p + ": " + line);
+        }
+        try {
+            return new NioNodeIdentifier(Integer.parseInt(parts[0]), parts[2], Integer.parseInt(parts[1]));
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt registry entry " + p + ": " + line, e);
+        }
+    }
+
+    private ArrayList<Path> list(String prefix) throws IOException {
+        ArrayList<Path> result = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*")) {
+            for (Path p : stream) {
+                result.add(p);
+            }
+        } catch (NoSuchFileException e) {
+            // no entries
+        }
+        return result;
+    }
+
+    private static String encode(String tag) throws IOException {
+        return URLEncoder.encode(tag, "UTF-8");
+    }
+
+    private static void pause() throws IOException {
+        try {
+            Thread.sleep(POLL_INTERVAL);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for the registry", e);
+        }
+    }
+}
@@ -0,0 +1,1075 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.constellation.ConstellationProperties;
+import ibis.constellation.impl.pool.Pool;
+import ibis.constellation.impl.pool.PoolCreationFailedException;
+import ibis.constellation.impl.pool.communication.CommunicationLayer;
+import ibis.constellation.impl.pool.communication.Compression;
+import ibis.constellation.impl.pool.communication.InboundDispatcher;
+import ibis.constellation.impl.pool.communication.Message;
+import ibis.constellation.impl.pool.communication.MessageAggregator;
+import ibis.constellation.impl.pool.communication.NodeIdentifier;
+import ibis.constellation.util.ByteBuffers;
+
+/**
+ * A communication layer built directly on {@link SocketChannel}s, as an alternative to the Ibis based one. Every node accepts
+ * connections on a server socket, and opens one blocking connection to each node it sends to. All incoming connections are
+ * read by a single selector thread.
+ *
+ * Every message is sent as a frame, consisting of a header, the encoded contents, and the {@link ByteBuffers} of the contents,
+ * if any. The frames of a message, or of a batch of aggregated messages, are written with a single gathering write, so the byte
+ * buffers are never copied into a stream. On the receiving side, the byte buffers are read directly into the buffers obtained
+ * from {@link Pool#receiveBuffers}. Ranks and elections are handled by a {@link NioRegistry}.
+ *
+ * When shared memory is enabled, messages to nodes on the same host go through a {@link SharedMemoryRing} instead. The socket
+ * connection is then only used to introduce the ring, which is polled by a separate thread of the receiver.
+ */
+public class NioCommunicationLayer implements CommunicationLayer {
+
+    private static final Logger logger = LoggerFactory.getLogger(NioCommunicationLayer.class);
+
+    private static final String MASTER_TAG = "Constellation Master";
+
+    /** Marks the first frame on a connection, which identifies the sender. Not used as opcode by the pool. */
+    private static final byte OPCODE_HELLO = -2;
+
+    /** Announces that further frames come through the shared memory ring named in the frame. Not used as opcode by the pool. */
+    private static final byte OPCODE_SHM = -3;
+
+    /**
+     * Size of the fixed part of a frame header: length, opcode, {@link Compression} flags, data length, and number of byte
+     * buffers. The sizes of the byte buffers follow, then the original data length if the data is packed, and the sizes of the
+     * byte buffers on the wire if they are sent as segments.
+     */
+    private static final int HEADER_SIZE = 4 + 1 + 1 + 4 + 4;
+
+    /** Time between two looks at the registry while waiting for a closed pool to fill, in milliseconds. */
+    private static final long POLL_INTERVAL = 10;
+
+    /** An outgoing connection. Writes are done while holding the lock on the connection. */
+    private static final class Connection {
+
+        final SocketChannel socket;
+
+        /** Where frames are written: the socket, or a shared memory ring. */
+        volatile GatheringByteChannel channel;
+
+        /** The direct buffer holding the frame headers of the message being written. */
+        ByteBuffer headers = ByteBuffer.allocateDirect(1024);
+
+        Connection(SocketChannel socket) {
+            this.socket = socket;
+            this.channel = socket;
+        }
+
+        void write(ByteBuffer[] buffers) throws IOException {
+            long remaining = 0;
+            for (ByteBuffer b : buffers) {
+                remaining += b.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        }
+    }
+
+    /**
+     * Reads the frames from an incoming connection or shared memory ring, as far as they are available. Only used by the
+     * selector thread or the shared memory poller.
+     */
+    private final class Reader {
+
+        private final ByteBuffer length = ByteBuffer.allocateDirect(4);
+
+        private ByteBuffer frame = ByteBuffer.allocateDirect(4096);
+
+        private boolean inFrame = false;
+
+        /** The buffers receiving the byte buffers of the current message, or <code>null</code> when not reading those. */
+        private ByteBuffer[] payload;
+
+        /** The destinations of the byte buffers, which differ from the payload buffers for compressed ones. */
+        private ByteBuffer[] targets;
+
+        /** The first payload buffer that is not full yet. */
+        private int next;
+
+        /** The message whose byte buffers are being read. */
+        private Message pending;
+
+        private NioNodeIdentifier source;
+
+        Reader(NioNodeIdentifier source) {
+            this.source = source;
+        }
+
+        /**
+         * Reads what is available, and delivers the completed frames.
+         *
+         * @return whether the connection is still open
+         */
+        boolean read(ReadableByteChannel channel) throws IOException, ClassNotFoundException {
+            while (true) {
+                if (payload != null) {
+                    while (next < payload.length && !payload[next].hasRemaining()) {
+                        next++;
+                    }
+                    if (next == payload.length) {
+                        complete();
+                        continue;
+                    }
+                    // The byte buffers are read directly into their destination.
+                    long n;
+                    if (channel instanceof ScatteringByteChannel) {
+                        n = ((ScatteringByteChannel) channel).read(payload, next, payload.length - next);
+                    } else {
+                        n = channel.read(payload[next]);
+                    }
+                    if (n < 0) {
+                        return false;
+                    }
+                    if (n == 0) {
+                        return true;
+                    }
+                    continue;
+                }
+                if (!inFrame) {
+                    if (channel.read(length) < 0) {
+                        return false;
+                    }
+                    if (length.hasRemaining()) {
+                        return true;
+                    }
+                    length.flip();
+                    int size = length.getInt();
+                    length.clear();
+                    if (size < HEADER_SIZE - 4) {
+                        throw new IOException("Corrupt frame of " + size + " bytes from " + source);
+                    }
+                    if (frame.capacity() < size) {
+                        frame = ByteBuffer.allocateDirect(Math.max(size, 2 * frame.capacity()));
+                    }
+                    frame.clear();
+                    frame.limit(size);
+                    inFrame = true;
+                }
+                if (channel.read(frame) < 0) {
+                    return false;
+                }
+                if (frame.hasRemaining()) {
+                    return true;
+                }
+                frame.flip();
+                inFrame = false;
+                process(frame);
+            }
+        }
+
+        private void process(ByteBuffer frame) throws IOException, ClassNotFoundException {
+            byte opcode = frame.get();
+            byte flags = frame.get();
+            byte[] data = new byte[frame.getInt()];
+            int[] sizes = new int[frame.getInt()];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = frame.getInt();
+            }
+            int length = (flags & Compression.FLAG_PACKED) != 0 ? frame.getInt() : data.length;
+            int[] wire = sizes;
+            if ((flags & Compression.FLAG_SEGMENTS) != 0) {
+                wire = new int[sizes.length];
+                for (int i = 0; i < wire.length; i++) {
+                    wire[i] = frame.getInt();
+                }
+            }
+            frame.get(data);
+
+            if (opcode == OPCODE_HELLO) {
+                String[] parts = new String(data, StandardCharsets.UTF_8).split(" ", 3);
+                source = new NioNodeIdentifier(Integer.parseInt(parts[0]), parts[2], Integer.parseInt(parts[1]));
+                if (logger.isInfoEnabled()) {
+                    logger.info("Accepted connection from " + source);
+                }
+                return;
+            }
+
+            if (source == null) {
+                throw new IOException("Got " + Pool.getString(opcode, "message") + " before hello");
+            }
+
+            if (opcode == OPCODE_SHM) {
+                attach(source, Paths.get(new String(data, StandardCharsets.UTF_8)));
+                return;
+            }
+
+            Message m = new Message(opcode, null);
+
+            if ((flags & Compression.FLAG_CONTENTS) != 0) {
+                try {
+                    if (data.length < length) {
+                        data = compression.decompress(data, length);
+                    }
+                    m.contents = Pool.decode(opcode, data);
+                } catch (ClassNotFoundException | IOException e) {
+                    logger.error("Got exception while decoding message", e);
+                    throw e;
+                }
+                if (m.contents instanceof ByteBuffers) {
+                    // The byte buffers follow the frame. Uncompressed ones are read directly into their destination.
+                    ArrayList<ByteBuffer> l = pool.receiveBuffers(m.contents, sizes);
+                    targets = l.toArray(new ByteBuffer[l.size()]);
+                    payload = new ByteBuffer[targets.length];
+                    for (int i = 0; i < targets.length; i++) {
+                        payload[i] = wire[i] < sizes[i] ? ByteBuffer.allocate(wire[i]) : targets[i];
+                    }
+                    next = 0;
+                    pending = m;
+                    return;
+                }
+            }
+
+            if (sizes.length > 0) {
+                throw new IOException("Got byte buffers with " + Pool.getString(opcode, "message"));
+            }
+
+            deliver(source, m);
+        }
+
+        private void complete() throws IOException {
+            ArrayList<ByteBuffer> l = new ArrayList<ByteBuffer>(targets.length);
+            for (int i = 0; i < targets.length; i++) {
+                ByteBuffer b = targets[i];
+                if (payload[i] != b) {
+                    compression.decompress(payload[i].array(), b);
+                }
+                b.position(0);
+                l.add(b);
+            }
+            Message m = pending;
+            payload = null;
+            targets = null;
+            pending = null;
+            ((ByteBuffers) m.contents).popByteBuffers(l);
+            deliver(source, m);
+        }
+    }
+
+    /** The reading end of a shared memory ring, with the reader of its frames. */
+    private static final class Inbound {
+
+        final SharedMemoryRing ring;
+        final Reader reader;
+
+        Inbound(SharedMemoryRing ring, Reader reader) {
+            this.ring = ring;
+            this.reader = reader;
+        }
+    }
+
+    /** A message being sent: its encoded contents, and the byte buffers following its frame. */
+    private static final class Outgoing {
+
+        final byte opcode;
+        byte flags = 0;
+
+        /** The encoded contents as sent, or <code>null</code>. */
+        byte[] data;
+
+        /** The length of the encoded contents before compression. */
+        int length;
+
+        List<ByteBuffer> payload = Collections.emptyList();
+
+        /** The byte buffers as sent, which may be compressed. */
+        ByteBuffer[] wire = new ByteBuffer[0];
+
+        Outgoing(byte opcode) {
+            this.opcode = opcode;
+        }
+
+        int headerSize() {
+            return HEADER_SIZE + 4 * payload.size() + ((flags & Compression.FLAG_PACKED) != 0 ? 4 : 0)
+                    + ((flags & Compression.FLAG_SEGMENTS) != 0 ? 4 * wire.length : 0);
+        }
+    }
+
+    /** A message received before the communication layer was activated. */
+    private static final class Held {
+
+        final NodeIdentifier source;
+        final Message message;
+
+        Held(NodeIdentifier source, Message message) {
+            this.source = source;
+            this.message = message;
+        }
+    }
+
+    private final ConstellationProperties properties;
+
+    private final Pool pool;
+
+    private final NioRegistry registry;
+
+    private final boolean closedPool;
+
+    private final NioNodeIdentifier local;
+
+    private final NioNodeIdentifier master;
+
+    private NioNodeIdentifier[] ids = null;
+
+    private final ServerSocketChannel server;
+
+    private final Selector selector;
+
+    private final Thread selectorThread;
+
+    private volatile boolean done = false;
+
+    private final ConcurrentHashMap<NioNodeIdentifier, Connection> connections = new ConcurrentHashMap<NioNodeIdentifier, Connection>();
+
+    /** Where shared memory rings are created, or <code>null</code> when shared memory is disabled. */
+    private final Path shmDirectory;
+
+    /** The rings through which co-located nodes send to this node. */
+    private final CopyOnWriteArrayList<Inbound> rings = new CopyOnWriteArrayList<Inbound>();
+
+    /** Polls the shared memory rings, or <code>null</code> when shared memory is disabled. */
+    private final Thread poller;
+
+    /** Numbers the rings created by this node, to give them unique names. */
+    private final AtomicInteger ringCount = new AtomicInteger();
+
+    /** The hello frame, sent on every new connection. */
+    private final byte[] hello;
+
+    // Protected by the lock on held.
+    private final ArrayList<Held> held = new ArrayList<Held>();
+    private boolean active = false;
+
+    /** Combines small messages, or <code>null</code> when aggregation is disabled. */
+    private final MessageAggregator aggregator;
+
+    /**
+     * Delivers received messages on separate threads. The selector thread and the shared memory poller never deliver messages
+     * themselves, as a delivery may send, and wait for a node that is itself waiting to send to this node.
+     */
+    private final InboundDispatcher dispatcher;
+
+    /** Connections that are not read until the dispatcher catches up. Only used by the selector thread. */
+    private final ArrayList<SelectionKey> paused = new ArrayList<SelectionKey>();
+
+    /** Compresses sent data, and decompresses received data. */
+    private final Compression compression;
+
+    /**
+     * Creates a communication layer using a {@link FileRegistry} in the directory given by the "nio.registry" property.
+     *
+     * @param properties
+     *            the properties
+     * @param pool
+     *            the pool receiving the messages
+     * @throws PoolCreationFailedException
+     *             when the communication layer could not be created
+     */
+    public NioCommunicationLayer(ConstellationProperties properties, Pool pool) throws PoolCreationFailedException {
+        this(properties, pool, createRegistry(properties));
+    }
+
+    /**
+     * Creates a communication layer using the specified registry.
+     *
+     * @param properties
+     *            the properties
+     * @param pool
+     *            the pool receiving the messages
+     * @param registry
+     *            the registry assigning ranks and running elections
+     * @throws PoolCreationFailedException
+     *             when the communication layer could not be created
+     */
+    public NioCommunicationLayer(ConstellationProperties properties, Pool pool, NioRegistry registry)
+            throws PoolCreationFailedException {
+
+        this.properties = properties;
+        this.pool = pool;
+        this.registry = registry;
+        this.compression = new Compression(properties);
+        closedPool = properties.CLOSED;
+
+        ServerSocketChannel ssc = null;
+        Selector sel = null;
+
+        try {
+            ssc = ServerSocketChannel.open();
+            ssc.bind(new InetSocketAddress(properties.NIO_HOST, 0));
+            ssc.configureBlocking(false);
+            sel = Selector.open();
+            ssc.register(sel, SelectionKey.OP_ACCEPT);
+
+            local = registry.join(properties.NIO_HOST, ((InetSocketAddress) ssc.getLocalAddress()).getPort());
+
+            if (properties.MASTER) {
+                master = registry.elect(MASTER_TAG, local);
+            } else {
+                master = registry.getElectionResult(MASTER_TAG, 0);
+            }
+
+            if (closedPool) {
+                if (properties.POOLSIZE <= 0) {
+                    throw new IllegalArgumentException("A closed pool needs a pool size");
+                }
+                while (registry.getPoolSize() < properties.POOLSIZE) {
+                    Thread.sleep(POLL_INTERVAL);
+                }
+                ids = registry.getNodes();
+            }
+        } catch (Throwable e) {
+            close(ssc);
+            close(sel);
+            throw new PoolCreationFailedException("Pool creation failed", e);
+        }
+
+        server = ssc;
+        selector = sel;
+        hello = (local.getRank() + " " + local.getPort() + " " + local.getHost()).getBytes(StandardCharsets.UTF_8);
+
+        dispatcher = new InboundDispatcher(new InboundDispatcher.Receiver() {
+            @Override
+            public void deliver(NodeIdentifier source, Message m) {
+                NioCommunicationLayer.this.pool.upcall(source, m);
+            }
+        }, properties.DISPATCH_DEPTH, Math.max(1, properties.DISPATCH_THREADS));
+
+        if (properties.AGGREGATE_SIZE > 1) {
+            aggregator = new MessageAggregator(new MessageAggregator.Sender() {
+                @Override
+                public boolean send(NodeIdentifier destination, List<Message> messages) {
+                    return NioCommunicationLayer.this.send(destination, messages);
+                }
+
+                @Override
+                public void failed(NodeIdentifier destination, List<Message> messages) {
+                    NioCommunicationLayer.this.pool.notSent(destination, messages);
+                }
+            }, properties.AGGREGATE_SIZE, properties.AGGREGATE_DELAY * 1000L);
+        } else {
+            aggregator = null;
+        }
+
+        selectorThread = new Thread("NioCommunicationLayer " + local.getRank()) {
+            @Override
+            public void run() {
+                select();
+            }
+        };
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+
+        if (properties.NIO_SHM) {
+            shmDirectory = Files.isDirectory(Paths.get(properties.NIO_SHM_DIRECTORY)) ? Paths.get(properties.NIO_SHM_DIRECTORY)
+                    : Paths.get(System.getProperty("java.io.tmpdir"));
+            if (logger.isInfoEnabled()) {
+                logger.info("Using shared memory rings of " + properties.NIO_SHM_SIZE + " bytes in " + shmDirectory);
+            }
+            poller = new Thread("NioCommunicationLayer " + local.getRank() + " shared memory") {
+                @Override
+                public void run() {
+                    poll();
+                }
+            };
+            poller.setDaemon(true);
+            poller.start();
+        } else {
+            shmDirectory = null;
+            poller = null;
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Node " + local + " joined, master is " + master);
+        }
+    }
+
+    private static NioRegistry createRegistry(ConstellationProperties properties) throws PoolCreationFailedException {
+        String dir = properties.NIO_REGISTRY;
+        if (dir == null) {
+            String name = properties.getProperty("ibis.pool.name");
+            if (name == null) {
+                throw new PoolCreationFailedException("Either the \"" + ConstellationProperties.S_NIO_REGISTRY
+                        + "\" or the \"ibis.pool.name\" property must be set");
+            }
+            dir = Paths.get(System.getProperty("java.io.tmpdir"), "constellation-" + name).toString();
+        }
+        try {
+            return new FileRegistry(Paths.get(dir));
+        } catch (IOException e) {
+            throw new PoolCreationFailedException("Could not create registry in " + dir, e);
+        }
+    }
+
+    @Override
+    public NodeIdentifier getMyIdentifier() {
+        return local;
+    }
+
+    @Override
+    public NodeIdentifier getMaster() {
+        return master;
+    }
+
+    @Override
+    public int getRank() {
+        return local.getRank();
+    }
+
+    @Override
+    public int getPoolSize() {
+        try {
+            return registry.getPoolSize();
+        } catch (IOException e) {
+            logger.warn("Could not read the registry", e);
+            return ids == null ? 0 : ids.length;
+        }
+    }
+
+    @Override
+    public NodeIdentifier[] getNodeIdentifiers() {
+        if (!closedPool) {
+            return null;
+        }
+        NodeIdentifier[] result = new NodeIdentifier[ids.length];
+        System.arraycopy(ids, 0, result, 0, ids.length);
+        return result;
+    }
+
+    @Override
+    public boolean sendMessage(NodeIdentifier destination, Message m) {
+
+        if (aggregator != null) {
+            // The message may be written later by another thread, so take its contents now.
+            try {
+                Pool.detach(m, properties.BYTEBUFFERS_REMAINING);
+            } catch (IOException e) {
+                logger.warn("Failed to encode message for " + destination, e);
+                return false;
+            }
+            return aggregator.send(destination, m, Pool.mayAggregate(m.opcode));
+        }
+
+        return send(destination, Collections.singletonList(m));
+    }
+
+    @Override
+    public void flush() {
+        if (aggregator != null) {
+            aggregator.flush();
+        }
+    }
+
+    /**
+     * Sends the messages as consecutive frames, with a single gathering write.
+     */
+    private boolean send(NodeIdentifier destination, List<Message> messages) {
+        NioNodeIdentifier dest = (NioNodeIdentifier) destination;
+
+        Connection c;
+        try {
+            c = getConnection(dest);
+        } catch (IOException e) {
+            logger.warn("POOL failed to connect to " + dest, e);
+            return false;
+        }
+
+        ArrayList<Outgoing> outgoing = new ArrayList<Outgoing>(messages.size());
+
+        try {
+            for (Message m : messages) {
+                outgoing.add(encode(m));
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to encode messages for " + dest, e);
+            return false;
+        }
+
+        try {
+            synchronized (c) {
+                c.write(frames(c, outgoing));
+            }
+        } catch (IOException e) {
+            logger.warn("Communication to " + dest + " gave exception", e);
+            cleanup(dest);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Encodes the contents of a message, and compresses them and its byte buffers when enabled and worthwhile.
+     */
+    private Outgoing encode(Message m) throws IOException {
+        Outgoing o = new Outgoing(m.opcode);
+        if (m.contents == null) {
+            return o;
+        }
+
+        o.flags = Compression.FLAG_CONTENTS;
+        o.data = m.encoded != null ? m.encoded : Pool.encode(m.opcode, m.contents);
+        o.length = o.data.length;
+        if (compression.isEnabled()) {
+            o.flags |= Compression.FLAG_PACKED;
+            byte[] packed = compression.compress(o.data, 0, o.data.length);
+            if (packed != null) {
+                o.data = packed;
+            }
+        }
+
+        if (m.contents instanceof ByteBuffers) {
+            o.payload = Pool.sendBuffers(m, properties.BYTEBUFFERS_REMAINING);
+            o.wire = o.payload.toArray(new ByteBuffer[o.payload.size()]);
+            if (compression.isEnabled()) {
+                o.flags |= Compression.FLAG_SEGMENTS;
+                for (int i = 0; i < o.wire.length; i++) {
+                    byte[] packed = compression.compress(o.wire[i]);
+                    if (packed != null) {
+                        o.wire[i] = ByteBuffer.wrap(packed);
+                    }
+                }
+            }
+        }
+        return o;
+    }
+
+    /**
+     * Lays out the frames of the messages for a gathering write. The headers are put in the direct buffer of the connection, so
+     * this must be called while holding its lock.
+     */
+    private static ByteBuffer[] frames(Connection c, List<Outgoing> messages) {
+
+        int headerBytes = 0;
+        int nBuffers = 0;
+        for (Outgoing o : messages) {
+            headerBytes += o.headerSize();
+            nBuffers += o.wire.length;
+        }
+
+        if (c.headers.capacity() < headerBytes) {
+            c.headers = ByteBuffer.allocateDirect(Math.max(headerBytes, 2 * c.headers.capacity()));
+        }
+        ByteBuffer headers = c.headers;
+        headers.clear();
+
+        ByteBuffer[] result = new ByteBuffer[2 * messages.size() + nBuffers];
+        int index = 0;
+
+        for (Outgoing o : messages) {
+            byte[] d = o.data;
+
+            int start = headers.position();
+            headers.putInt(o.headerSize() - 4 + (d == null ? 0 : d.length));
+            headers.put(o.opcode);
+            headers.put(o.flags);
+            headers.putInt(d == null ? 0 : d.length);
+            headers.putInt(o.payload.size());
+            for (ByteBuffer b : o.payload) {
+                headers.putInt(b.remaining());
+            }
+            if ((o.flags & Compression.FLAG_PACKED) != 0) {
+                headers.putInt(o.length);
+            }
+            if ((o.flags & Compression.FLAG_SEGMENTS) != 0) {
+                for (ByteBuffer b : o.wire) {
+                    headers.putInt(b.remaining());
+                }
+            }
+            ByteBuffer header = headers.duplicate();
+            header.limit(headers.position());
+            header.position(start);
+
+            result[index++] = header;
+            result[index++] = d == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(d);
+            for (ByteBuffer b : o.wire) {
+                result[index++] = b;
+            }
+        }
+        return result;
+    }
+
+    private Connection getConnection(NioNodeIdentifier id) throws IOException {
+
+        if (id.equals(local)) {
+            logger.error("POOL Sending to myself!", new Throwable());
+        }
+
+        Connection c = connections.get(id);
+
+        if (c == null) {
+            if (logger.isInfoEnabled()) {
+                logger.info("Connecting to " + id + " from " + local);
+            }
+
+            SocketChannel channel = SocketChannel.open(id.getAddress());
+            channel.socket().setTcpNoDelay(true);
+            c = new Connection(channel);
+
+            // Introduce ourselves, so the receiver knows where the messages come from.
+            synchronized (c) {
+                writeControl(c, OPCODE_HELLO, hello);
+                if (shmDirectory != null && id.getHost().equals(local.getHost())) {
+                    openRing(c, id);
+                }
+            }
+
+            Connection c2 = connections.putIfAbsent(id, c);
+
+            if (c2 != null) {
+                // Someone managed to sneak in between our get and put!
+                close(c);
+                c = c2;
+            }
+        }
+
+        return c;
+    }
+
+    private static void writeControl(Connection c, byte opcode, byte[] data) throws IOException {
+        Outgoing o = new Outgoing(opcode);
+        o.flags = Compression.FLAG_CONTENTS;
+        o.data = data;
+        o.length = data.length;
+        c.write(frames(c, Collections.singletonList(o)));
+    }
+
+    /**
+     * Creates a shared memory ring to a node on the same host, and announces it over the socket. When the ring cannot be
+     * created, the socket is used instead.
+     */
+    private void openRing(Connection c, NioNodeIdentifier id) throws IOException {
+        Path file = shmDirectory.resolve("constellation-" + local.getPort() + "-" + id.getPort() + "-"
+                + ringCount.getAndIncrement() + ".ring");
+        SharedMemoryRing ring;
+        try {
+            ring = SharedMemoryRing.create(file, properties.NIO_SHM_SIZE);
+        } catch (IOException e) {
+            logger.warn("Could not create shared memory ring " + file + ", using the socket to " + id, e);
+            return;
+        }
+        writeControl(c, OPCODE_SHM, file.toString().getBytes(StandardCharsets.UTF_8));
+        c.channel = ring;
+        if (logger.isInfoEnabled()) {
+            logger.info("Sending to " + id + " through " + file);
+        }
+    }
+
+    /** Starts reading a ring announced by a co-located node. Called by the selector thread. */
+    private void attach(NioNodeIdentifier source, Path file) throws IOException {
+        SharedMemoryRing ring = SharedMemoryRing.open(file);
+        // The mapping stays valid, so the file is no longer needed.
+        Files.deleteIfExists(file);
+        rings.add(new Inbound(ring, new Reader(source)));
+        if (logger.isInfoEnabled()) {
+            logger.info("Receiving from " + source + " through " + file);
+        }
+    }
+
+    private void poll() {
+        int idle = 0;
+
+        while (!done) {
+            if (dispatcher.isFull()) {
+                // Writers wait for space in their rings until the dispatcher catches up.
+                SharedMemoryRing.pause(idle++);
+                continue;
+            }
+
+            boolean progress = false;
+
+            for (Inbound in : rings) {
+                if (in.ring.available() == 0 && !in.ring.isWriterClosed()) {
+                    continue;
+                }
+                progress = true;
+                boolean open;
+                try {
+                    open = in.reader.read(in.ring);
+                } catch (Exception e) {
+                    logger.warn("Closing shared memory ring after exception", e);
+                    open = false;
+                }
+                if (!open) {
+                    rings.remove(in);
+                    in.ring.close();
+                }
+            }
+
+            if (progress) {
+                idle = 0;
+            } else {
+                SharedMemoryRing.pause(idle++);
+            }
+        }
+    }
+
+    private void select() {
+        while (!done) {
+            resume();
+
+            try {
+                if (paused.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.select(POLL_INTERVAL);
+                }
+            } catch (IOException e) {
+                logger.error("Selector failed", e);
+                return;
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                if (key.isAcceptable()) {
+                    try {
+                        SocketChannel channel = server.accept();
+                        if (channel != null) {
+                            channel.configureBlocking(false);
+                            channel.socket().setTcpNoDelay(true);
+                            channel.register(selector, SelectionKey.OP_READ, new Reader(null));
+                        }
+                    } catch (IOException e) {
+                        logger.warn("Could not accept connection", e);
+                    }
+                } else if (key.isReadable()) {
+                    if (dispatcher.isFull()) {
+                        // Stop reading from this connection, which makes its sender wait, until the dispatcher catches up.
+                        key.interestOps(0);
+                        paused.add(key);
+                        continue;
+                    }
+                    boolean open;
+                    try {
+                        open = ((Reader) key.attachment()).read((SocketChannel) key.channel());
+                    } catch (Exception e) {
+                        logger.warn("Closing connection after exception", e);
+                        open = false;
+                    }
+                    if (!open) {
+                        key.cancel();
+                        close(key.channel());
+                    }
+                }
+            }
+        }
+    }
+
+    private void resume() {
+        if (paused.isEmpty() || dispatcher.isFull()) {
+            return;
+        }
+        for (SelectionKey key : paused) {
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+        paused.clear();
+    }
+
+    private void deliver(NodeIdentifier source, Message m) {
+        synchronized (held) {
+            if (!active) {
+                held.add(new Held(source, m));
+                return;
+            }
+        }
+        upcall(source, m);
+    }
+
+    private void upcall(NodeIdentifier source, Message m) {
+        // Never waits, as the selector thread must keep serving the other connections.
+        dispatcher.enqueue(source, m, Pool.priority(m.opcode), false);
+    }
+
+    @Override
+    public void activate() {
+        synchronized (held) {
+            // Deliver while holding the lock, so that later messages cannot overtake the held ones.
+            for (Held h : held) {
+                upcall(h.source, h.message);
+            }
+            held.clear();
+            active = true;
+        }
+    }
+
+    /**
+     * Returns the dispatcher delivering received messages, which keeps statistics about its queues.
+     *
+     * @return the dispatcher
+     */
+    public InboundDispatcher getInboundDispatcher() {
+        return dispatcher;
+    }
+
+    @Override
+    public NodeIdentifier getElectionResult(String electTag, long timeout) throws IOException {
+        return registry.getElectionResult(electTag, timeout);
+    }
+
+    @Override
+    public NodeIdentifier elect(String electTag) throws IOException {
+        return registry.elect(electTag, local);
+    }
+
+    @Override
+    public void terminate() throws IOException {
+        if (!properties.CLOSED && properties.ALLOW_LEAVING) {
+            pool.notifyLeavingPool();
+            return;
+        }
+
+        if (local.equals(master)) {
+            registry.terminate();
+        } else {
+            registry.waitUntilTerminated();
+        }
+    }
+
+    @Override
+    public boolean end() {
+        if (!properties.CLOSED && properties.ALLOW_LEAVING) {
+            try {
+                registry.leave();
+            } catch (IOException e) {
+                logger.warn("Failed to leave the registry", e);
+            }
+            logger.info("Left pool");
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void cleanup() {
+        if (aggregator != null) {
+            aggregator.done();
+        }
+
+        logger.info("Closing connections");
+
+        for (NioNodeIdentifier id : connections.keySet()) {
+            cleanup(id);
+        }
+
+        done = true;
+        selector.wakeup();
+
+        try {
+            selectorThread.join(10000);
+        } catch (InterruptedException e) {
+            // ignore
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            close(key.channel());
+        }
+        close(selector);
+
+        if (poller != null) {
+            try {
+                poller.join(10000);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+            for (Inbound in : rings) {
+                in.ring.close();
+            }
+            rings.clear();
+        }
+
+        dispatcher.done();
+
+        compression.done();
+    }
+
+    @Override
+    public void cleanup(NodeIdentifier id) {
+        Connection c = connections.remove(id);
+        if (c != null) {
+            close(c);
+        }
+    }
+
+    private static void close(Connection c) {
+        // Not synchronized, as a writer may be waiting for space in the ring.
+        GatheringByteChannel channel = c.channel;
+        if (channel instanceof SharedMemoryRing) {
+            SharedMemoryRing ring = (SharedMemoryRing) channel;
+            ring.close();
+            try {
+                // Normally removed by the receiver already.
+                Files.deleteIfExists(ring.getFile());
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        close(c.socket);
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
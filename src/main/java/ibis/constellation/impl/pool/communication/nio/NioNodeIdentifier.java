@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication.nio;
+
+import java.net.InetSocketAddress;
+
+import ibis.constellation.impl.pool.communication.NodeIdentifier;
+
+/**
+ * Identifies a node using the {@link NioCommunicationLayer} by its rank and the address on which it accepts connections.
+ */
+public class NioNodeIdentifier implements NodeIdentifier {
+
+    private static final long serialVersionUID = 4510467392211870925L;
+
+    private final int rank;
+
+    private final String host;
+
+    private final int port;
+
+    public NioNodeIdentifier(int rank, String host, int port) {
+        this.rank = rank;
+        this.host = host;
+        this.port = port;
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(host, port);
+    }
+
+    @Override
+    public String name() {
+        return "nio-" + rank;
+    }
+
+    @Override
+    public String toString() {
+        return name() + "@" + host + ":" + port;
+    }
+
+    @Override
+    public int hashCode() {
+        return rank * 31 + port;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof NioNodeIdentifier)) {
+            return false;
+        }
+        NioNodeIdentifier other = (NioNodeIdentifier) o;
+        return rank == other.rank && port == other.port && host.equals(other.host);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication.nio;
+
+import java.io.IOException;
+
+/**
+ * Assigns ranks and runs elections for the nodes using the {@link NioCommunicationLayer}. The registry is pluggable: the
+ * communication layer can be given any implementation, the default being a {@link FileRegistry} in a directory shared by the
+ * nodes.
+ */
+public interface NioRegistry {
+
+    /**
+     * Adds a node accepting connections at the specified address, and assigns it the next free rank.
+     *
+     * @param host
+     *            the host the node accepts connections on
+     * @param port
+     *            the port the node accepts connections on
+     * @return the identifier of the node
+     * @throws IOException
+     *             when the registry could not be updated
+     */
+    public NioNodeIdentifier join(String host, int port) throws IOException;
+
+    /**
+     * Returns the number of nodes that have joined so far.
+     *
+     * @return the number of nodes
+     * @throws IOException
+     *             when the registry could not be read
+     */
+    public int getPoolSize() throws IOException;
+
+    /**
+     * Returns the nodes that have joined so far, ordered by rank.
+     *
+     * @return the nodes
+     * @throws IOException
+     *             when the registry could not be read
+     */
+    public NioNodeIdentifier[] getNodes() throws IOException;
+
+    /**
+     * Elects the specified candidate, unless another node was elected before under the same tag.
+     *
+     * @param tag
+     *            the election
+     * @param candidate
+     *            the node to elect
+     * @return the elected node
+     * @throws IOException
+     *             when the registry could not be updated
+     */
+    public NioNodeIdentifier elect(String tag, NioNodeIdentifier candidate) throws IOException;
+
+    /**
+     * Waits for the result of an election.
+     *
+     * @param tag
+     *            the election
+     * @param timeout
+     *            the maximum time to wait in milliseconds, or 0 to wait forever
+     * @return the elected node, or <code>null</code> when there is no result after the timeout
+     * @throws IOException
+     *             when the registry could not be read
+     */
+    public NioNodeIdentifier getElectionResult(String tag, long timeout) throws IOException;
+
+    /**
+     * Marks the run as terminated. Called by the master. Once all nodes noticed, the state of the run may be removed, so that the
+     * registry can be used for another run.
+     *
+     * @throws IOException
+     *             when the registry could not be updated
+     */
+    public void terminate() throws IOException;
+
+    /**
+     * Waits until the run is marked as terminated, and records that this node noticed.
+     *
+     * @throws IOException
+     *             when the registry could not be read
+     */
+    public void waitUntilTerminated() throws IOException;
+
+    /**
+     * Removes this node from the registry, when it leaves a run that is not terminated as a whole. The last node to leave may
+     * remove the state of the run.
+     *
+     * @throws IOException
+     *             when the registry could not be updated
+     */
+    public void leave() throws IOException;
+}
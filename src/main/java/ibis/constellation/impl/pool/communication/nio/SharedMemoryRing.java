@@ -0,0 +1,297 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication.nio;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+import sun.misc.Unsafe;
+
+/**
+ * A single-producer single-consumer byte stream between two processes on the same host, kept in a memory-mapped file. One
+ * process creates the ring and writes to it, the other opens it and reads from it. Writes wait while the ring is full, reads
+ * return 0 while it is empty, so the reading end can be polled together with other rings.
+ *
+ * The first 128 bytes of the file hold the total number of bytes written and read, each with a closed flag, on separate cache
+ * lines. The data follows. Java 8 offers no ordered access to mapped memory, so the fences of {@link Unsafe} order the accesses
+ * to the data and the positions: a store fence keeps the data (or the copying out of it) ahead of the position that publishes
+ * it (or releases its space), and a load fence keeps a loaded position ahead of the accesses to the data it covers.
+ */
+final class SharedMemoryRing implements GatheringByteChannel, ReadableByteChannel {
+
+    /** Size of the header preceding the data. */
+    static final int HEADER_SIZE = 128;
+
+    private static final int WRITE_POSITION = 0;
+    private static final int WRITER_CLOSED = 8;
+    private static final int READ_POSITION = 64;
+    private static final int READER_CLOSED = 72;
+
+    private static final Unsafe UNSAFE;
+
+    static {
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            UNSAFE = (Unsafe) f.get(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new IllegalStateException("Cannot access sun.misc.Unsafe", e);
+        }
+    }
+
+    private final Path file;
+
+    private final MappedByteBuffer map;
+
+    /** A view on the data, positioned for each copy. Only used by the thread owning this end of the ring. */
+    private final ByteBuffer window;
+
+    private final int capacity;
+
+    private final boolean writer;
+
+    private volatile boolean open = true;
+
+    private SharedMemoryRing(Path file, MappedByteBuffer map, boolean writer) {
+        this.file = file;
+        this.map = map;
+        this.writer = writer;
+        this.capacity = map.capacity() - HEADER_SIZE;
+        this.window = map.duplicate();
+    }
+
+    /**
+     * Creates a new ring file and returns its writing end.
+     *
+     * @param file
+     *            the file, which must not exist yet
+     * @param capacity
+     *            the number of bytes the ring can hold
+     * @return the writing end of the ring
+     * @throws IOException
+     *             when the file could not be created or mapped
+     */
+    static SharedMemoryRing create(Path file, int capacity) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Ring capacity must be positive: " + capacity);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return new SharedMemoryRing(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity), true);
+        }
+    }
+
+    /**
+     * Opens the reading end of an existing ring file. Once opened, the file may be removed.
+     *
+     * @param file
+     *            the file
+     * @return the reading end of the ring
+     * @throws IOException
+     *             when the file could not be mapped
+     */
+    static SharedMemoryRing open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() <= HEADER_SIZE) {
+                throw new IOException("Not a ring: " + file);
+            }
+            return new SharedMemoryRing(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()), false);
+        }
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of bytes that can be read without waiting.
+     *
+     * @return the number of bytes available
+     */
+    int available() {
+        return (int) (map.getLong(WRITE_POSITION) - map.getLong(READ_POSITION));
+    }
+
+    /**
+     * Returns whether the writing end has been closed.
+     *
+     * @return whether the writer has closed the ring
+     */
+    boolean isWriterClosed() {
+        return map.get(WRITER_CLOSED) != 0;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!writer) {
+            throw new IllegalStateException("Not the writing end of " + file);
+        }
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+
+        long w = map.getLong(WRITE_POSITION);
+        long free;
+
+        for (int round = 0;; round++) {
+            free = capacity - (w - map.getLong(READ_POSITION));
+            if (free > 0) {
+                break;
+            }
+            if (map.get(READER_CLOSED) != 0) {
+                throw new IOException("Ring " + file + " was closed by the reader");
+            }
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            pause(round);
+        }
+
+        // Overwrite the space only after it was released.
+        UNSAFE.loadFence();
+        long written = 0;
+
+        for (int i = offset; i < offset + length && free > 0; i++) {
+            ByteBuffer src = srcs[i];
+            int n = (int) Math.min(free, src.remaining());
+            copy(src, (int) ((w + written) % capacity), n);
+            written += n;
+            free -= n;
+        }
+
+        // Publish the data only after it has been copied.
+        UNSAFE.storeFence();
+        map.putLong(WRITE_POSITION, w + written);
+
+        return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (writer) {
+            throw new IllegalStateException("Not the reading end of " + file);
+        }
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+
+        boolean closed = isWriterClosed();
+        long r = map.getLong(READ_POSITION);
+        long available = map.getLong(WRITE_POSITION) - r;
+        // Read the data only after it was published.
+        UNSAFE.loadFence();
+
+        if (available == 0) {
+            return closed ? -1 : 0;
+        }
+
+        int n = (int) Math.min(available, dst.remaining());
+        int at = (int) (r % capacity);
+        int first = Math.min(n, capacity - at);
+
+        window.limit(HEADER_SIZE + at + first);
+        window.position(HEADER_SIZE + at);
+        dst.put(window);
+        if (first < n) {
+            window.limit(HEADER_SIZE + n - first);
+            window.position(HEADER_SIZE);
+            dst.put(window);
+        }
+
+        // Release the space only after the data has been copied out.
+        UNSAFE.storeFence();
+        map.putLong(READ_POSITION, r + n);
+
+        return n;
+    }
+
+    /**
+     * Copies n bytes from the source into the ring, starting at the specified offset in the data, wrapping around at the end.
+     */
+    private void copy(ByteBuffer src, int at, int n) {
+        int first = Math.min(n, capacity - at);
+        ByteBuffer part = src.duplicate();
+
+        part.limit(src.position() + first);
+        window.limit(HEADER_SIZE + at + first);
+        window.position(HEADER_SIZE + at);
+        window.put(part);
+
+        if (first < n) {
+            part.limit(src.position() + n);
+            window.limit(HEADER_SIZE + n - first);
+            window.position(HEADER_SIZE);
+            window.put(part);
+        }
+
+        src.position(src.position() + n);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closes this end of the ring. The reader sees the end of the stream once it has read all data; the writer gets an
+     * exception when it waits for space.
+     */
+    @Override
+    public void close() {
+        if (open) {
+            open = false;
+            UNSAFE.storeFence();
+            map.put(writer ? WRITER_CLOSED : READER_CLOSED, (byte) 1);
+        }
+    }
+
+    /**
+     * Backs off while polling: yields a few times, and then sleeps for increasingly long periods, up to a millisecond.
+     *
+     * @param round
+     *            the number of times polling found nothing so far
+     */
+    static void pause(int round) {
+        if (round < 16) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(Math.min(1000000L, 1000L << Math.min(10, round - 16)));
+        }
+    }
+}
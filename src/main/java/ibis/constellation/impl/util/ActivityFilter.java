@@ -0,0 +1,37 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.util;
+
+import ibis.constellation.AbstractContext;
+import ibis.constellation.StealStrategy;
+import ibis.constellation.impl.ActivityRecord;
+
+/**
+ * Selects which queued activities may be handed out by a {@link WorkQueue#steal(AbstractContext, StealStrategy, ActivityFilter)}.
+ * Filters only select among activities with an {@link ibis.constellation.Affinity}: activities without one are always handed
+ * out, and need not be offered to the filter.
+ */
+public interface ActivityFilter {
+
+    /**
+     * Returns whether the activity may be handed out.
+     *
+     * @param a
+     *            the record of the activity
+     * @return whether the activity may be handed out
+     */
+    boolean accept(ActivityRecord a);
+}
@@ -35,6 +35,9 @@ public class SimpleWorkQueue extends WorkQueue {
    
     private int size;
 
+    // The number of queued activities with an affinity. When there are none, filters are not needed.
+    private int affine;
+
     public SimpleWorkQueue(String id) {
         super(id);
     }
@@ -44,6 +47,28 @@ public class SimpleWorkQueue extends WorkQueue {
         return size;
     }
 
+    private int sizeRange(Context c) {
+        SortedRangeList tmp = lists.get(c.getName());
+        return tmp == null ? 0 : tmp.size();
+    }
+
+    @Override
+    public synchronized int size(AbstractContext c) {
+
+        if (c instanceof Context) {
+            return sizeRange((Context) c);
+        }
+
+        int result = 0;
+
+        for (Context rc : (OrContext) c) {
+            result += sizeRange(rc);
+        }
+
+        // An activity with an OrContext may be counted more than once.
+        return Math.min(result, size);
+    }
+
     private void enqueueRange(Context c, ActivityRecord a) { 
                 
         SortedRangeList tmp = lists.get(c.getName());
@@ -73,9 +98,17 @@ public class SimpleWorkQueue extends WorkQueue {
         } else { 
             enqueueOr((OrContext) c, a);
         }
+
+        if (a.getAffinity() != null) {
+            affine++;
+        }
     }
     
     private ActivityRecord stealRange(Context c, StealStrategy s) {
+        return stealRange(c, s, null);
+    }
+
+    private ActivityRecord stealRange(Context c, StealStrategy s, ActivityFilter f) {
         
         if (log.isDebugEnabled()) {
             log.debug("Matching context: " + c  + " (len = " + lists.size() + ")");
@@ -97,7 +130,13 @@ public class SimpleWorkQueue extends WorkQueue {
         
         ActivityRecord r = null;
         
-        if (StealStrategy.BIGGEST.equals(s)) { 
+        if (f != null) {
+            if (StealStrategy.BIGGEST.equals(s)) {
+                r = tmp.removeBiggestInRange(c.getRangeStart(), c.getRangeEnd(), f);
+            } else {
+                r = tmp.removeSmallestInRange(c.getRangeStart(), c.getRangeEnd(), f);
+            }
+        } else if (StealStrategy.BIGGEST.equals(s)) { 
             r = tmp.removeBiggestInRange(c.getRangeStart(), c.getRangeEnd());
         } else { 
             r = tmp.removeSmallestInRange(c.getRangeStart(), c.getRangeEnd());
@@ -117,6 +156,9 @@ public class SimpleWorkQueue extends WorkQueue {
                 }
             }
             size--;
+            if (r.getAffinity() != null) {
+                affine--;
+            }
         }
         
         return r;
@@ -134,14 +176,14 @@ public class SimpleWorkQueue extends WorkQueue {
         return tmp.removeByReference(r);
     }
     
-    private ActivityRecord stealOr(OrContext c, StealStrategy s) {
+    private ActivityRecord stealOr(OrContext c, StealStrategy s, ActivityFilter f) {
         
         ActivityRecord tmp = null;
         
         Iterator<Context> itt = c.iterator();
 
         while (tmp == null && itt.hasNext()) { 
-            tmp = stealRange(itt.next(), s);
+            tmp = stealRange(itt.next(), s, f);
         }
 
         if (tmp == null) {
@@ -164,7 +206,22 @@ public class SimpleWorkQueue extends WorkQueue {
         if (c instanceof Context) {
             return stealRange((Context) c, s);
         } else { 
-            return stealOr((OrContext) c, s);
+            return stealOr((OrContext) c, s, null);
+        }
+    }
+
+    @Override
+    public synchronized ActivityRecord steal(AbstractContext c, StealStrategy s, ActivityFilter f) {
+
+        // Without affine activities, the filter makes no difference.
+        if (affine == 0) {
+            return steal(c, s);
+        }
+
+        if (c instanceof Context) {
+            return stealRange((Context) c, s, f);
+        } else {
+            return stealOr((OrContext) c, s, f);
         }
     }
 }
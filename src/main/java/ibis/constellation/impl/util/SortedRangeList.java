@@ -177,7 +177,64 @@ public class SortedRangeList {
         return current.data;
     }
 
-    
+
+    private ActivityRecord remove(Node current) {
+        current.prev.next = current.next;
+        current.next.prev = current.prev;
+        size--;
+        return current.data;
+    }
+
+    /**
+     * Removes the element with the smallest range that overlaps the specified range, and is accepted by the filter.
+     *
+     * @param start
+     *            the start of the range
+     * @param end
+     *            the end of the range
+     * @param filter
+     *            selects the elements that may be removed
+     * @return the removed element, or <code>null</code>
+     */
+    public ActivityRecord removeSmallestInRange(long start, long end, ActivityFilter filter) {
+
+        Node current = head.next;
+
+        while (current.data != null && current.start <= end) {
+            if (current.end >= start && filter.accept(current.data)) {
+                return remove(current);
+            }
+            current = current.next;
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes the element with the biggest range that overlaps the specified range, and is accepted by the filter.
+     *
+     * @param start
+     *            the start of the range
+     * @param end
+     *            the end of the range
+     * @param filter
+     *            selects the elements that may be removed
+     * @return the removed element, or <code>null</code>
+     */
+    public ActivityRecord removeBiggestInRange(long start, long end, ActivityFilter filter) {
+
+        Node current = tail.prev;
+
+        while (current.data != null) {
+            if (current.start <= end && current.end >= start && filter.accept(current.data)) {
+                return remove(current);
+            }
+            current = current.prev;
+        }
+
+        return null;
+    }
+
     public String getName() {
         return name;
     }
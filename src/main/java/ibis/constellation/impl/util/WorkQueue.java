@@ -31,8 +31,31 @@ public abstract class WorkQueue {
 
     public abstract ActivityRecord steal(AbstractContext c, StealStrategy s);
 
+    /**
+     * Steals an activity that matches the specified context, and is accepted by the filter.
+     *
+     * @param c
+     *            the context to match
+     * @param s
+     *            the steal strategy
+     * @param f
+     *            selects the activities that may be stolen
+     * @return the stolen activity, or <code>null</code>
+     */
+    public abstract ActivityRecord steal(AbstractContext c, StealStrategy s, ActivityFilter f);
+
     public abstract int size();
 
+    /**
+     * Returns the number of queued activities that may match the specified context. This is an upper bound, as only the names
+     * of the contexts are taken into account, not their ranges.
+     *
+     * @param c
+     *            the context to match
+     * @return the number of queued activities that may match
+     */
+    public abstract int size(AbstractContext c);
+
     public void enqueue(ActivityRecord[] a) {
         for (ActivityRecord element : a) {
             enqueue(element);
@@ -53,6 +76,19 @@ public abstract class WorkQueue {
         return len;
     }
 
+    public int steal(AbstractContext c, StealStrategy s, ActivityFilter f, ActivityRecord[] dst, int off, int len) {
+
+        for (int i = off; i < off + len; i++) {
+            dst[i] = steal(c, s, f);
+
+            if (dst[i] == null) {
+                return (i - off);
+            }
+        }
+
+        return len;
+    }
+
     protected final String getId() {
         return id;
     }
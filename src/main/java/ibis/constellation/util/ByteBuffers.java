@@ -31,6 +31,10 @@ import ibis.constellation.Event;
  * ByteBuffers to be transferred, and transfer them. On the other side, it will, after deserialization, call
  * {@link #popByteBuffers(List)} to pop the corresponding ByteBuffers from the list.
  *
+ * By default, the whole capacity of each byte buffer is transferred. When the "byteBuffers.remaining" property is set, only the
+ * bytes between its position and limit are transferred. The byte buffers of the sender are not modified. The popped byte buffers
+ * have their position at 0 and their limit at the number of bytes received. They are taken from the {@link ByteBufferCache},
+ * unless the receiver registered its own buffers with {@link ReceiveBuffers}.
  */
 public interface ByteBuffers {
 
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.util;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import ibis.constellation.Activity;
+import ibis.constellation.Event;
+
+/**
+ * A <code>Codec</code> writes and reads objects of a specific class in an application-defined binary form. When a codec is
+ * registered for a class with {@link CodecRegistry#register(int, Class, Codec)}, constellation uses it instead of Java
+ * serialization whenever the data of an {@link Event} or an {@link Activity} of exactly that class is sent to another node. This
+ * is mostly useful for large numeric payloads, for which Java serialization is slow.
+ *
+ * @param <T>
+ *            the class of the objects handled by this codec
+ */
+public interface Codec<T> {
+
+    /**
+     * Writes the specified object to the output.
+     *
+     * @param out
+     *            the output to write to
+     * @param value
+     *            the object to write, not <code>null</code>
+     * @throws IOException
+     *             when writing fails
+     */
+    public void write(ObjectOutput out, T value) throws IOException;
+
+    /**
+     * Reads an object that was written by {@link #write(ObjectOutput, Object)}, in the same order.
+     *
+     * @param in
+     *            the input to read from
+     * @return the object read
+     * @throws IOException
+     *             when reading fails
+     * @throws ClassNotFoundException
+     *             when reading a serialized object fails because its class cannot be found
+     */
+    public T read(ObjectInput in) throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the {@link Codec}s registered by the application. Every codec is registered with a class and an identifier, and the
+ * identifier is what is sent over the wire to select the codec on the receiving side. All nodes must therefore register the same
+ * classes with the same identifiers, before the constellation is created. The easiest way to achieve this is to register all
+ * codecs in a static initializer or at the start of <code>main</code>. When a constellation is created, each node obtains the
+ * registrations of the master node, and adopts its identifiers if they differ, so that a mismatch can not silently select the
+ * wrong codec.
+ *
+ * Codecs are looked up by the exact class of an object; subclasses of a registered class are serialized as usual.
+ */
+public final class CodecRegistry {
+
+    private static final class Registration {
+        final int id;
+        final Class<?> type;
+        final Codec<?> codec;
+
+        Registration(int id, Class<?> type, Codec<?> codec) {
+            this.id = id;
+            this.type = type;
+            this.codec = codec;
+        }
+    }
+
+    private static final ConcurrentHashMap<Class<?>, Registration> byClass = new ConcurrentHashMap<Class<?>, Registration>();
+    private static final ConcurrentHashMap<Integer, Registration> byId = new ConcurrentHashMap<Integer, Registration>();
+
+    private CodecRegistry() {
+        // not used
+    }
+
+    /**
+     * Registers a codec for the specified class. Registering the same codec again for the same class and identifier is allowed.
+     *
+     * @param id
+     *            the identifier of the codec, which must be positive
+     * @param type
+     *            the class handled by the codec
+     * @param codec
+     *            the codec
+     * @param <T>
+     *            the class handled by the codec
+     * @throws IllegalArgumentException
+     *             when the identifier is not positive, the class or codec is <code>null</code>, or the identifier or class already
+     *             has a different registration
+     */
+    public static synchronized <T> void register(int id, Class<T> type, Codec<T> codec) {
+        if (id <= 0) {
+            throw new IllegalArgumentException("Codec identifier must be positive");
+        }
+        if (type == null || codec == null) {
+            throw new IllegalArgumentException("Class and codec may not be null");
+        }
+
+        Registration old = byId.get(id);
+
+        if (old == null) {
+            old = byClass.get(type);
+        }
+
+        if (old != null) {
+            if (old.id == id && old.type == type && old.codec == codec) {
+                return;
+            }
+            throw new IllegalArgumentException("Codec " + id + " for " + type.getName() + " conflicts with codec " + old.id
+                    + " for " + old.type.getName());
+        }
+
+        Registration r = new Registration(id, type, codec);
+        byId.put(id, r);
+        byClass.put(type, r);
+    }
+
+    /**
+     * Removes all registered codecs.
+     */
+    public static synchronized void clear() {
+        byId.clear();
+        byClass.clear();
+    }
+
+    /**
+     * Returns the identifier of the codec registered for the specified class.
+     *
+     * @param type
+     *            the class
+     * @return the identifier, or 0 when no codec is registered for this class
+     */
+    public static int getId(Class<?> type) {
+        Registration r = byClass.get(type);
+        return r == null ? 0 : r.id;
+    }
+
+    /**
+     * Returns the codec registered with the specified identifier.
+     *
+     * @param id
+     *            the identifier
+     * @return the codec, or <code>null</code> when no codec is registered with this identifier
+     */
+    public static Codec<?> getCodec(int id) {
+        Registration r = byId.get(id);
+        return r == null ? null : r.codec;
+    }
+
+    /**
+     * Returns the names of the classes of the registered codecs by identifier, so that the registrations of different nodes can
+     * be compared.
+     *
+     * @return the registrations, sorted by identifier
+     */
+    public static synchronized TreeMap<Integer, String> getMapping() {
+        TreeMap<Integer, String> result = new TreeMap<Integer, String>();
+
+        for (Registration r : byId.values()) {
+            result.put(r.id, r.type.getName());
+        }
+        return result;
+    }
+
+    /**
+     * Changes the identifiers of the registered codecs to the ones in the specified mapping, as obtained with
+     * {@link #getMapping()} on another node. A codec keeps its class, but gets the identifier with which the other node
+     * registered that class. Codecs for classes that the other node has no codec for are removed, so that objects of those
+     * classes are serialized as usual. Identifiers that the other node uses for classes we have no codec for stay unregistered, so
+     * decoding them fails instead of selecting the wrong codec.
+     *
+     * @param mapping
+     *            the names of the classes of the codecs of the other node, by identifier
+     * @return whether any registration changed
+     */
+    public static synchronized boolean adopt(Map<Integer, String> mapping) {
+
+        if (mapping.equals(getMapping())) {
+            return false;
+        }
+
+        HashMap<String, Registration> byName = new HashMap<String, Registration>();
+
+        for (Registration r : byClass.values()) {
+            byName.put(r.type.getName(), r);
+        }
+
+        byId.clear();
+        byClass.clear();
+
+        for (Map.Entry<Integer, String> e : mapping.entrySet()) {
+            Registration old = byName.get(e.getValue());
+
+            if (old != null) {
+                Registration r = new Registration(e.getKey(), old.type, old.codec);
+                byId.put(r.id, r);
+                byClass.put(r.type, r);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ibis.constellation.ActivityIdentifier;
+import ibis.constellation.Event;
+
+/**
+ * Keeps the byte buffers into which the {@link ByteBuffers} of received events are read, per target activity. Normally the
+ * byte buffers of a received event are obtained from the {@link ByteBufferCache}, and handed to the event data by
+ * {@link ByteBuffers#popByteBuffers}. When buffers are registered for the target activity of the event, the i-th byte buffer of
+ * the event is read directly into the i-th registered buffer instead, provided that its capacity suffices. The registered
+ * buffer is then handed to the event data, with its position at 0 and its limit at the number of bytes received.
+ *
+ * Registered buffers are reused for events to the activity, so the activity must be done with the contents when it returns from
+ * {@link ibis.constellation.Activity#process}. Receiving an event acquires the registered buffers under a token, and they are
+ * released with that token once the event is processed. In between, the byte buffers of other events to the activity come from
+ * the cache, so that they do not overwrite it. Only the node that delivers the event to the activity acquires the buffers; a
+ * node that forwards the event uses the cache. The registration is removed when the activity finishes. The buffers are only
+ * used for events received from other nodes; local events are passed on as they are.
+ */
+public final class ReceiveBuffers {
+
+    /** The buffers registered for an activity, with the token of the event holding them, if any. */
+    private static final class Registration {
+
+        final ByteBuffer[] buffers;
+
+        // Protected by the lock on this registration. 0 when the buffers are not in use.
+        long token;
+
+        Registration(ByteBuffer[] buffers) {
+            this.buffers = buffers;
+        }
+    }
+
+    private static final ConcurrentHashMap<ActivityIdentifier, Registration> buffers = new ConcurrentHashMap<ActivityIdentifier, Registration>();
+
+    private static final AtomicLong tokens = new AtomicLong();
+
+    private ReceiveBuffers() {
+        // not used
+    }
+
+    /**
+     * Registers the buffers into which the byte buffers of {@link Event events} for the specified activity are read, replacing
+     * any buffers registered before.
+     *
+     * @param target
+     *            the activity receiving the events
+     * @param b
+     *            the buffers, in the order in which the event data pushes its byte buffers
+     * @throws IllegalArgumentException
+     *             when the target is <code>null</code>, or no buffers or a <code>null</code> buffer are given
+     */
+    public static void register(ActivityIdentifier target, ByteBuffer... b) {
+        if (target == null) {
+            throw new IllegalArgumentException("Target activity may not be null");
+        }
+        if (b == null || b.length == 0) {
+            throw new IllegalArgumentException("No buffers given for " + target);
+        }
+        for (ByteBuffer buffer : b) {
+            if (buffer == null) {
+                throw new IllegalArgumentException("Buffer for " + target + " may not be null");
+            }
+        }
+        buffers.put(target, new Registration(b.clone()));
+    }
+
+    /**
+     * Removes the buffers registered for the specified activity.
+     *
+     * @param target
+     *            the activity
+     * @return the buffers that were registered, or <code>null</code> if there were none
+     */
+    public static ByteBuffer[] unregister(ActivityIdentifier target) {
+        Registration r = buffers.remove(target);
+        return r == null ? null : r.buffers;
+    }
+
+    /**
+     * Returns the buffers registered for the specified activity.
+     *
+     * @param target
+     *            the activity
+     * @return the buffers, or <code>null</code> if there are none
+     */
+    public static ByteBuffer[] get(ActivityIdentifier target) {
+        Registration r = buffers.get(target);
+        return r == null ? null : r.buffers;
+    }
+
+    /**
+     * Marks the buffers registered for the specified activity as in use by a received event. Once the event is processed, the
+     * buffers must be handed back with {@link #release(ActivityIdentifier, long)}.
+     *
+     * @param target
+     *            the activity
+     * @return the token under which the buffers are held, or 0 if there are none, or they are in use by another event
+     */
+    public static long acquire(ActivityIdentifier target) {
+        if (buffers.isEmpty()) {
+            return 0;
+        }
+        Registration r = buffers.get(target);
+        if (r == null) {
+            return 0;
+        }
+        synchronized (r) {
+            if (r.token != 0) {
+                return 0;
+            }
+            r.token = tokens.incrementAndGet();
+            return r.token;
+        }
+    }
+
+    /**
+     * Returns the buffers registered for the specified activity, provided that they are held under the specified token.
+     *
+     * @param target
+     *            the activity
+     * @param token
+     *            the token returned by {@link #acquire(ActivityIdentifier)}
+     * @return the buffers, or <code>null</code> if they were unregistered or replaced in the meantime
+     */
+    public static ByteBuffer[] get(ActivityIdentifier target, long token) {
+        Registration r = buffers.get(target);
+        if (r == null) {
+            return null;
+        }
+        synchronized (r) {
+            return token != 0 && r.token == token ? r.buffers : null;
+        }
+    }
+
+    /**
+     * Marks the buffers registered for the specified activity as no longer in use, if they are held under the specified token.
+     *
+     * @param target
+     *            the activity
+     * @param token
+     *            the token returned by {@link #acquire(ActivityIdentifier)}
+     */
+    public static void release(ActivityIdentifier target, long token) {
+        Registration r = buffers.get(target);
+        if (r != null) {
+            synchronized (r) {
+                if (r.token == token) {
+                    r.token = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all registered buffers.
+     */
+    public static void clear() {
+        buffers.clear();
+    }
+}
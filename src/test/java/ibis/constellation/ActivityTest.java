@@ -22,6 +22,7 @@ import ibis.constellation.impl.ImplUtil;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 
 /**
  * @version 1.0
@@ -115,6 +116,28 @@ public class ActivityTest {
         Activity a = new FakeActivity(new Context("TEST"), false);
         a.setIdentifier(new TestID()); // Should throw exception
     }
+
+    @Test
+    public void setAffinity() {
+        Activity a = new FakeActivity(new Context("TEST"), false);
+        Affinity f = Affinity.node(ImplUtil.createConstellationIdentifier(1, 0), true);
+        a.setAffinity(f);
+        assertEquals(f, a.getAffinity());
+    }
+
+    @Test
+    public void noAffinity() {
+        Activity a = new FakeActivity(new Context("TEST"), false);
+        assertNull(a.getAffinity());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void setAffinityAfterSubmit() {
+        ActivityIdentifier id = ImplUtil.createActivityIdentifier(22, 3, 44, false);
+        Activity a = new FakeActivity(new Context("TEST"), false);
+        a.setIdentifier(id);
+        a.setAffinity(Affinity.node(ImplUtil.createConstellationIdentifier(1, 0), true)); // Should throw exception
+    }
     
     
     
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ibis.constellation.impl.ImplUtil;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class AffinityTest {
+
+    static class TestCID implements ConstellationIdentifier {
+        @Override
+        public String toString() {
+            return "TestCID";
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nodeNull() {
+        Affinity.node(null, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void workerWrongType() {
+        Affinity.worker(new TestCID(), true);
+    }
+
+    @Test
+    public void node() {
+        ConstellationIdentifier target = ImplUtil.createConstellationIdentifier(2, 1);
+        Affinity f = Affinity.node(target, true);
+
+        assertEquals(target, f.getTarget());
+        assertFalse(f.isWorker());
+        assertTrue(f.isStrong());
+        assertTrue(f.matches(target));
+        assertTrue(f.matches(ImplUtil.createConstellationIdentifier(2, 5)));
+        assertFalse(f.matches(ImplUtil.createConstellationIdentifier(3, 1)));
+        assertFalse(f.matches(new TestCID()));
+    }
+
+    @Test
+    public void worker() {
+        ConstellationIdentifier target = ImplUtil.createConstellationIdentifier(2, 1);
+        Affinity f = Affinity.worker(target, false);
+
+        assertTrue(f.isWorker());
+        assertFalse(f.isStrong());
+        assertTrue(f.matches(ImplUtil.createConstellationIdentifier(2, 1)));
+        assertFalse(f.matches(ImplUtil.createConstellationIdentifier(2, 5)));
+    }
+
+    @Test
+    public void equality() {
+        ConstellationIdentifier target = ImplUtil.createConstellationIdentifier(2, 1);
+
+        assertEquals(Affinity.node(target, true), Affinity.node(ImplUtil.createConstellationIdentifier(2, 1), true));
+        assertEquals(Affinity.node(target, true).hashCode(), Affinity.node(target, true).hashCode());
+        assertNotEquals(Affinity.node(target, true), Affinity.node(target, false));
+        assertNotEquals(Affinity.node(target, true), Affinity.worker(target, true));
+    }
+
+    @Test
+    public void string() {
+        ConstellationIdentifier target = ImplUtil.createConstellationIdentifier(2, 1);
+
+        assertEquals("strong node 2", Affinity.node(target, true).toString());
+        assertEquals("weak worker CID:2:1", Affinity.worker(target, false).toString());
+    }
+}
@@ -17,6 +17,7 @@ package ibis.constellation;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Properties;
@@ -116,4 +117,204 @@ public class ConstellationPropertiesTest {
         /* ConstellationProperties cp = */ new ConstellationProperties(p);
     }
 
+
+    @Test
+    public void testLowWaterMarkDefault() {
+
+        ConstellationProperties cp = new ConstellationProperties(new Properties());
+
+        assertEquals(0, cp.REMOTESTEAL_LOW_WATER_MARK);
+    }
+
+    @Test
+    public void testLowWaterMark() {
+
+        Properties p = new Properties();
+        p.put("ibis.constellation.remotesteal.lowWaterMark", "32");
+
+        ConstellationProperties cp = new ConstellationProperties(p);
+
+        assertEquals(32, cp.REMOTESTEAL_LOW_WATER_MARK);
+    }
+
+    @Test
+    public void testStealHops() {
+
+        Properties p = new Properties();
+        p.put("ibis.constellation.remotesteal.hops", "2");
+
+        ConstellationProperties cp = new ConstellationProperties(p);
+
+        assertEquals(2, cp.REMOTESTEAL_HOPS);
+    }
+
+    @Test
+    public void testStealGroupSize() {
+
+        Properties p = new Properties();
+        p.put("ibis.constellation.stealing", "mw");
+        p.put("ibis.constellation.stealing.groupSize", "8");
+
+        ConstellationProperties cp = new ConstellationProperties(p);
+
+        assertEquals(8, cp.STEALSTRATEGY_GROUPSIZE);
+    }
+
+    @Test
+    public void testPushThreshold() {
+
+        Properties p = new Properties();
+        p.put("ibis.constellation.remotesteal.pushThreshold", "1000");
+
+        ConstellationProperties cp = new ConstellationProperties(p);
+
+        assertEquals(1000, cp.REMOTESTEAL_PUSH_THRESHOLD);
+    }
+
+    @Test
+    public void testLoadSummaries() {
+
+        Properties p = new Properties();
+        p.put("ibis.constellation.loadSummaries", "true");
+
+        ConstellationProperties cp = new ConstellationProperties(p);
+
+        assertTrue(cp.LOAD_SUMMARIES);
+    }
+
+    @Test
+    public void testSendQueue() {
+
+        Properties p = new Properties();
+        p.put("ibis.constellation.sendQueue.depth", "64");
+        p.put("ibis.constellation.sendQueue.writers", "4");
+        p.put("ibis.constellation.sendQueue.block", "false");
+
+        ConstellationProperties cp = new ConstellationProperties(p);
+
+        assertEquals(64, cp.SENDQUEUE_DEPTH);
+        assertEquals(4, cp.SENDQUEUE_WRITERS);
+        assertFalse(cp.SENDQUEUE_BLOCK);
+    }
+
+    @Test
+    public void testDispatch() {
+
+        Properties p = new Properties();
+        p.put("ibis.constellation.dispatch.threads", "2");
+        p.put("ibis.constellation.dispatch.depth", "16");
+
+        ConstellationProperties cp = new ConstellationProperties(p);
+
+        assertEquals(2, cp.DISPATCH_THREADS);
+        assertEquals(16, cp.DISPATCH_DEPTH);
+    }
+
+    @Test
+    public void testLocalNetwork() {
+
+        Properties p = new Properties();
+        p.put("ibis.constellation.local.latency", "50");
+        p.put("ibis.constellation.local.bandwidth", "100");
+
+        ConstellationProperties cp = new ConstellationProperties(p);
+
+        assertEquals(50, cp.LOCAL_LATENCY);
+        assertEquals(100, cp.LOCAL_BANDWIDTH);
+    }
+
+    @Test
+    public void testCommunication() {
+
+        Properties p = new Properties();
+        p.put("ibis.constellation.communication", "nio");
+        p.put("ibis.constellation.nio.registry", "/tmp/registry");
+
+        ConstellationProperties cp = new ConstellationProperties(p);
+
+        assertEquals("nio", cp.COMMUNICATION);
+        assertEquals("/tmp/registry", cp.NIO_REGISTRY);
+        assertEquals("127.0.0.1", cp.NIO_HOST);
+    }
+
+    @Test
+    public void testCommunicationDefault() {
+
+        ConstellationProperties cp = new ConstellationProperties(new Properties());
+
+        assertEquals("ibis", cp.COMMUNICATION);
+        assertNull(cp.NIO_REGISTRY);
+        assertFalse(cp.NIO_SHM);
+        assertEquals("/dev/shm", cp.NIO_SHM_DIRECTORY);
+        assertEquals(1024 * 1024, cp.NIO_SHM_SIZE);
+        assertFalse(cp.BYTEBUFFERS_REMAINING);
+        assertEquals("none", cp.COMPRESSION);
+        assertEquals(4096, cp.COMPRESSION_THRESHOLD);
+        assertEquals(1, cp.COMPRESSION_LEVEL);
+        assertEquals(1000, cp.AFFINITY_TIMEOUT);
+        assertEquals(1024, cp.ROUTE_CACHE_SIZE);
+    }
+
+    @Test
+    public void testSharedMemory() {
+
+        Properties p = new Properties();
+        p.put("ibis.constellation.nio.shm", "true");
+        p.put("ibis.constellation.nio.shm.directory", "/tmp");
+        p.put("ibis.constellation.nio.shm.size", "65536");
+
+        ConstellationProperties cp = new ConstellationProperties(p);
+
+        assertTrue(cp.NIO_SHM);
+        assertEquals("/tmp", cp.NIO_SHM_DIRECTORY);
+        assertEquals(65536, cp.NIO_SHM_SIZE);
+    }
+
+    @Test
+    public void testByteBuffersRemaining() {
+
+        Properties p = new Properties();
+        p.put("ibis.constellation.byteBuffers.remaining", "true");
+
+        ConstellationProperties cp = new ConstellationProperties(p);
+
+        assertTrue(cp.BYTEBUFFERS_REMAINING);
+    }
+
+    @Test
+    public void testCompression() {
+
+        Properties p = new Properties();
+        p.put("ibis.constellation.compression", "deflate");
+        p.put("ibis.constellation.compression.threshold", "512");
+        p.put("ibis.constellation.compression.level", "9");
+
+        ConstellationProperties cp = new ConstellationProperties(p);
+
+        assertEquals("deflate", cp.COMPRESSION);
+        assertEquals(512, cp.COMPRESSION_THRESHOLD);
+        assertEquals(9, cp.COMPRESSION_LEVEL);
+    }
+
+    @Test
+    public void testAffinityTimeout() {
+
+        Properties p = new Properties();
+        p.put("ibis.constellation.affinity.timeout", "250");
+
+        ConstellationProperties cp = new ConstellationProperties(p);
+
+        assertEquals(250, cp.AFFINITY_TIMEOUT);
+    }
+
+    @Test
+    public void testRouteCacheSize() {
+
+        Properties p = new Properties();
+        p.put("ibis.constellation.routeCache.size", "0");
+
+        ConstellationProperties cp = new ConstellationProperties(p);
+
+        assertEquals(0, cp.ROUTE_CACHE_SIZE);
+    }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ibis.constellation.Constellation;
+import ibis.constellation.Context;
+import ibis.constellation.Event;
+import ibis.constellation.FakeActivity;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class ActivityRecordCacheTest {
+
+    private ActivityRecord finishedRecord(ActivityRecordCache cache) {
+        Constellation fc = ImplUtil.createFakeConstellation();
+
+        FakeActivity a = new FakeActivity(new Context("A"));
+        ActivityIdentifierImpl id = (ActivityIdentifierImpl) ImplUtil.createActivityIdentifier(1, 42, 1001, true);
+        ActivityRecord r = cache.get(a, id);
+
+        r.enqueue(new Event(id, id, "Hello"));
+        r.run(fc);
+        r.run(fc);
+        r.run(fc);
+        return r;
+    }
+
+    @Test
+    public void testGetEmpty() {
+        ActivityRecordCache cache = new ActivityRecordCache();
+
+        FakeActivity a = new FakeActivity(new Context("A"));
+        ActivityIdentifierImpl id = (ActivityIdentifierImpl) ImplUtil.createActivityIdentifier(1, 42, 1001, true);
+        ActivityRecord r = cache.get(a, id);
+
+        assertEquals(id, r.identifier());
+        assertEquals(1, cache.getCreated());
+        assertEquals(0, cache.getReused());
+    }
+
+    @Test
+    public void testReuse() {
+        ActivityRecordCache cache = new ActivityRecordCache();
+
+        ActivityRecord r = finishedRecord(cache);
+
+        assertTrue(r.isDone());
+        assertTrue(cache.put(r));
+        assertEquals(1, cache.size());
+
+        FakeActivity a = new FakeActivity(new Context("B"));
+        ActivityIdentifierImpl id = (ActivityIdentifierImpl) ImplUtil.createActivityIdentifier(1, 42, 1002, true);
+        ActivityRecord r2 = cache.get(a, id);
+
+        assertSame(r, r2);
+        assertTrue(r2.isFresh());
+        assertEquals(id, r2.identifier());
+        assertEquals(0, r2.pendingEvents());
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getReused());
+    }
+
+    @Test
+    public void testBounded() {
+        ActivityRecordCache cache = new ActivityRecordCache(1);
+
+        ActivityRecord r1 = finishedRecord(cache);
+        ActivityRecord r2 = finishedRecord(cache);
+
+        assertTrue(cache.put(r1));
+        assertFalse(cache.put(r2));
+        assertEquals(1, cache.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPutNotDone() {
+        ActivityRecordCache cache = new ActivityRecordCache();
+
+        FakeActivity a = new FakeActivity(new Context("A"));
+        ActivityIdentifierImpl id = (ActivityIdentifierImpl) ImplUtil.createActivityIdentifier(1, 42, 1001, true);
+
+        cache.put(cache.get(a, id));
+    }
+}
@@ -17,15 +17,25 @@ package ibis.constellation.impl;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.junit.Test;
 
+import ibis.constellation.Affinity;
 import ibis.constellation.Constellation;
 import ibis.constellation.Context;
 import ibis.constellation.CrashActivity;
 import ibis.constellation.Event;
 import ibis.constellation.FakeActivity;
+import ibis.constellation.util.ByteBuffers;
+import ibis.constellation.util.ReceiveBuffers;
 
 /**
  * @version 1.0
@@ -34,6 +44,27 @@ import ibis.constellation.FakeActivity;
  */
 public class ActivityRecordTest {
 
+    private static class Buffer implements ByteBuffers, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient ByteBuffer b;
+
+        Buffer(ByteBuffer b) {
+            this.b = b;
+        }
+
+        @Override
+        public void pushByteBuffers(List<ByteBuffer> list) {
+            list.add(b);
+        }
+
+        @Override
+        public void popByteBuffers(List<ByteBuffer> list) {
+            b = list.remove(0);
+        }
+    }
+
     @Test
     public void testIdentifier() {
 
@@ -58,6 +89,42 @@ public class ActivityRecordTest {
         assertEquals(c, r.getContext());
     }
 
+    @Test
+    public void testAffinity() {
+
+        FakeActivity a = new FakeActivity(new Context("A"));
+        Affinity f = Affinity.worker(ImplUtil.createConstellationIdentifier(3, 1), false);
+        a.setAffinity(f);
+
+        ActivityIdentifierImpl id = (ActivityIdentifierImpl) ImplUtil.createActivityIdentifier(1, 42, 1001, true);
+        ActivityRecord r = new ActivityRecord(a, id);
+
+        assertEquals(f, r.getAffinity());
+        assertTrue(r.getSince() <= System.nanoTime());
+    }
+
+    @Test
+    public void testForwarders() {
+
+        FakeActivity a = new FakeActivity(new Context("A"));
+
+        ActivityIdentifierImpl id = (ActivityIdentifierImpl) ImplUtil.createActivityIdentifier(1, 42, 1001, true);
+        ActivityRecord r = new ActivityRecord(a, id);
+
+        ConstellationIdentifierImpl c1 = ImplUtil.createConstellationIdentifier(1, 0);
+        ConstellationIdentifierImpl c2 = ImplUtil.createConstellationIdentifier(2, 0);
+
+        assertNull(r.takeForwarders());
+
+        r.addForwarder(c1);
+        r.addForwarder(c2);
+        r.addForwarder(c1);
+        r.removeForwarder(c2);
+
+        assertEquals(Arrays.asList(c1), r.takeForwarders());
+        assertNull(r.takeForwarders());
+    }
+
     @Test
     public void testPendingEvents1() {
 
@@ -590,4 +657,131 @@ public class ActivityRecordTest {
         assertTrue(r.setRunnable());
     }
 
+    @Test
+    public void testEnqueueDequeueEventOrder() {
+
+        FakeActivity a = new FakeActivity(new Context("A"));
+
+        ActivityIdentifierImpl id = (ActivityIdentifierImpl) ImplUtil.createActivityIdentifier(1, 42, 1001, true);
+        ActivityRecord r = new ActivityRecord(a, id);
+
+        Event[] events = new Event[10];
+
+        for (int i = 0; i < events.length; i++) {
+            events[i] = new Event(id, id, i);
+            r.enqueue(events[i]);
+        }
+
+        assertEquals(events.length, r.pendingEvents());
+
+        for (Event e : events) {
+            assertEquals(e, r.dequeue());
+        }
+
+        assertEquals(null, r.dequeue());
+    }
+
+    @Test
+    public void testByteBuffersInQueue() {
+
+        FakeActivity a = new FakeActivity(new Context("A"));
+
+        ActivityIdentifierImpl id = (ActivityIdentifierImpl) ImplUtil.createActivityIdentifier(1, 42, 1001, true);
+        ActivityRecord r = new ActivityRecord(a, id);
+
+        ByteBuffer b1 = ByteBuffer.allocate(10);
+        ByteBuffer b2 = ByteBuffer.allocate(20);
+
+        r.enqueue(new Event(id, id, new Buffer(b1)));
+        r.enqueue(new Event(id, id, "Hello"));
+        r.enqueue(new Event(id, id, new Buffer(b2)));
+
+        ArrayList<ByteBuffer> list = new ArrayList<ByteBuffer>();
+        r.pushByteBuffers(list);
+
+        assertEquals(2, list.size());
+        assertEquals(b1, list.get(0));
+        assertEquals(b2, list.get(1));
+    }
+
+    @Test
+    public void testEstimatedSize() {
+
+        FakeActivity a = new FakeActivity(new Context("A"));
+
+        ActivityIdentifierImpl id = (ActivityIdentifierImpl) ImplUtil.createActivityIdentifier(1, 42, 1001, true);
+        ActivityRecord r = new ActivityRecord(a, id);
+
+        long base = r.estimatedSize();
+
+        r.enqueue(new Event(id, id, new Buffer(ByteBuffer.allocate(1000))));
+        r.enqueue(new Event(id, id, "Hello"));
+
+        assertEquals(base + 1000, r.estimatedSize());
+    }
+
+    @Test
+    public void testReinit() {
+
+        Constellation fc = ImplUtil.createFakeConstellation();
+
+        FakeActivity a = new FakeActivity(new Context("A"));
+
+        ActivityIdentifierImpl id = (ActivityIdentifierImpl) ImplUtil.createActivityIdentifier(1, 42, 1001, true);
+        ActivityRecord r = new ActivityRecord(a, id);
+
+        Event e = new Event(id, id, "Hello");
+        r.enqueue(e);
+        r.setStolen(true);
+
+        r.run(fc);
+        r.run(fc);
+        r.run(fc);
+
+        assertTrue(r.isDone());
+
+        r.clear();
+
+        FakeActivity a2 = new FakeActivity(new Context("B"), false, false);
+        ActivityIdentifierImpl id2 = (ActivityIdentifierImpl) ImplUtil.createActivityIdentifier(1, 42, 1002, false);
+        r.init(a2, id2);
+
+        assertTrue(r.isFresh());
+        assertFalse(r.isStolen());
+        assertTrue(r.isRestrictedToLocal());
+        assertEquals(id2, r.identifier());
+        assertEquals(new Context("B"), r.getContext());
+    }
+
+
+    @Test
+    public void testReceiveBuffersReleasedAfterProcessing() {
+
+        Constellation fc = ImplUtil.createFakeConstellation();
+
+        FakeActivity a = new FakeActivity(new Context("A"));
+
+        ActivityIdentifierImpl id = (ActivityIdentifierImpl) ImplUtil.createActivityIdentifier(1, 42, 1001, true);
+        ActivityRecord r = new ActivityRecord(a, id);
+        ReceiveBuffers.register(id, ByteBuffer.allocate(4));
+
+        try {
+            r.run(fc);
+
+            long token = ReceiveBuffers.acquire(id);
+            assertTrue(token != 0);
+            r.enqueue(new Event(id, id, "Hello"), token);
+
+            // Held until the event is processed.
+            assertEquals(0, ReceiveBuffers.acquire(id));
+
+            assertTrue(r.setRunnable());
+            r.run(fc);
+
+            assertTrue(a.gotEvent);
+            assertTrue(ReceiveBuffers.acquire(id) != 0);
+        } finally {
+            ReceiveBuffers.clear();
+        }
+    }
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ibis.constellation.Context;
+import ibis.constellation.StealPool;
+import ibis.constellation.StealStrategy;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class IdleNodesTest {
+
+    private static StealRequest request(int node) {
+        ConstellationIdentifierImpl cid = ImplUtil.createConstellationIdentifier(node, 0);
+        return new StealRequest(cid, new Context("DEFAULT", 0, 0), StealStrategy.SMALLEST, StealStrategy.BIGGEST,
+                StealStrategy.SMALLEST, StealPool.WORLD, 1);
+    }
+
+    @Test
+    public void testEmpty() {
+        IdleNodes idle = new IdleNodes(100);
+
+        assertTrue(idle.isEmpty());
+        assertNull(idle.take(0));
+    }
+
+    @Test
+    public void testOldestFirst() {
+        IdleNodes idle = new IdleNodes(100);
+
+        StealRequest a = request(1);
+        StealRequest b = request(2);
+
+        idle.add(a, 0);
+        idle.add(b, 10);
+
+        assertFalse(idle.isEmpty());
+        assertSame(a, idle.take(20).request);
+        assertSame(b, idle.take(20).request);
+        assertTrue(idle.isEmpty());
+    }
+
+    @Test
+    public void testReplace() {
+        IdleNodes idle = new IdleNodes(100);
+
+        StealRequest a = request(1);
+        StealRequest b = request(2);
+        StealRequest a2 = request(1);
+
+        idle.add(a, 0);
+        idle.add(b, 0);
+        idle.add(a2, 10);
+
+        assertEquals(2, idle.size());
+        assertSame(b, idle.take(20).request);
+
+        IdleNodes.Advertisement tmp = idle.take(20);
+        assertSame(a2, tmp.request);
+        assertEquals(110, tmp.deadline);
+    }
+
+    @Test
+    public void testExpired() {
+        IdleNodes idle = new IdleNodes(100);
+
+        StealRequest a = request(1);
+        StealRequest b = request(2);
+
+        idle.add(a, 0);
+        idle.add(b, 50);
+
+        assertSame(b, idle.take(120).request);
+        assertTrue(idle.isEmpty());
+    }
+
+    @Test
+    public void testOfferKeepsDeadline() {
+        IdleNodes idle = new IdleNodes(100);
+
+        idle.add(request(1), 0);
+
+        IdleNodes.Advertisement tmp = idle.take(10);
+        idle.offer(tmp);
+
+        assertEquals(100, idle.take(10).deadline);
+        idle.offer(tmp);
+        assertNull(idle.take(100));
+    }
+
+    @Test
+    public void testOfferKeepsNewer() {
+        IdleNodes idle = new IdleNodes(100);
+
+        idle.add(request(1), 0);
+
+        IdleNodes.Advertisement tmp = idle.take(10);
+
+        StealRequest newer = request(1);
+        idle.add(newer, 50);
+        idle.offer(tmp);
+
+        assertSame(newer, idle.take(60).request);
+    }
+
+    @Test
+    public void testRemove() {
+        IdleNodes idle = new IdleNodes(100);
+
+        StealRequest a = request(1);
+
+        idle.add(a, 0);
+        idle.remove(a.source);
+
+        assertTrue(idle.isEmpty());
+    }
+}
@@ -17,6 +17,7 @@ package ibis.constellation.impl;
 
 import ibis.constellation.AbstractContext;
 import ibis.constellation.ActivityIdentifier;
+import ibis.constellation.Affinity;
 import ibis.constellation.Constellation;
 import ibis.constellation.FakeActivity;
 
@@ -50,6 +51,12 @@ public class ImplUtil {
         FakeActivity t = new FakeActivity(c);
         return new ActivityRecord(t, (ActivityIdentifierImpl) createActivityIdentifier(0, 0, 0, true));
     }
+
+    public static ActivityRecord createActivityRecord(AbstractContext c, Affinity affinity, long aid) {
+        FakeActivity t = new FakeActivity(c);
+        t.setAffinity(affinity);
+        return new ActivityRecord(t, (ActivityIdentifierImpl) createActivityIdentifier(0, 0, aid, true));
+    }
     
 }
 
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+
+import ibis.constellation.Context;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class LoadSummaryTest {
+
+    private static byte[] serialize(Object o) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static LoadSummary summary() {
+        return new LoadSummary(3, 123456789L, 2,
+                new int[] { LoadSummary.contextId("A"), LoadSummary.contextId("B") }, new int[] { 5, 300 });
+    }
+
+    @Test
+    public void testQueued() {
+        LoadSummary s = summary();
+
+        assertEquals(3, s.getRank());
+        assertEquals(123456789L, s.getTimestamp());
+        assertEquals(2, s.getIdleWorkers());
+        assertEquals(5, s.getQueued(new Context("A")));
+        assertEquals(300, s.getQueued(new Context("B")));
+        assertEquals(0, s.getQueued(new Context("C")));
+        assertEquals(305, s.getQueued());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMismatch() {
+        new LoadSummary(0, 0, 0, new int[1], new int[2]);
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialize(summary())));
+        LoadSummary s = (LoadSummary) in.readObject();
+
+        assertEquals(3, s.getRank());
+        assertEquals(123456789L, s.getTimestamp());
+        assertEquals(2, s.getIdleWorkers());
+        assertEquals(5, s.getQueued(new Context("A")));
+        assertEquals(300, s.getQueued(new Context("B")));
+    }
+
+    @Test
+    public void testSerializationLargeValues() throws Exception {
+        LoadSummary orig = new LoadSummary(Integer.MAX_VALUE, -1, 0, new int[] { -7 }, new int[] { Integer.MAX_VALUE });
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialize(orig)));
+        LoadSummary s = (LoadSummary) in.readObject();
+
+        assertEquals(Integer.MAX_VALUE, s.getRank());
+        assertEquals(-1, s.getTimestamp());
+        assertEquals(Integer.MAX_VALUE, s.getQueued(-7));
+    }
+}
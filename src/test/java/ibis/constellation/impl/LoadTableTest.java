@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class LoadTableTest {
+
+    private static LoadSummary summary(int rank, long time) {
+        return new LoadSummary(rank, time, 0, new int[0], new int[0]);
+    }
+
+    @Test
+    public void testEmpty() {
+        LoadTable t = new LoadTable();
+
+        assertNull(t.get(0));
+        assertEquals(0, t.size());
+        assertTrue(t.getAll().isEmpty());
+    }
+
+    @Test
+    public void testMergeNewer() {
+        LoadTable t = new LoadTable();
+
+        LoadSummary a = summary(1, 10);
+        LoadSummary b = summary(1, 20);
+
+        assertTrue(t.merge(a));
+        assertTrue(t.merge(b));
+        assertSame(b, t.get(1));
+    }
+
+    @Test
+    public void testMergeOlder() {
+        LoadTable t = new LoadTable();
+
+        LoadSummary a = summary(1, 20);
+        LoadSummary b = summary(1, 10);
+
+        assertTrue(t.merge(a));
+        assertFalse(t.merge(b));
+        assertSame(a, t.get(1));
+    }
+
+    @Test
+    public void testMultipleNodes() {
+        LoadTable t = new LoadTable();
+
+        t.merge(summary(1, 20));
+        t.merge(summary(2, 10));
+
+        assertEquals(2, t.size());
+        assertEquals(2, t.getAll().size());
+
+        t.remove(1);
+
+        assertNull(t.get(1));
+        assertEquals(1, t.size());
+    }
+}
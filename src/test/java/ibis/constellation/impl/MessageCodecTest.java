@@ -0,0 +1,330 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ibis.constellation.ActivityIdentifier;
+import ibis.constellation.Context;
+import ibis.constellation.Event;
+import ibis.constellation.FakeActivity;
+import ibis.constellation.OrContext;
+import ibis.constellation.StealPool;
+import ibis.constellation.StealStrategy;
+import ibis.constellation.util.Codec;
+import ibis.constellation.util.CodecRegistry;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class MessageCodecTest {
+
+    private static class Doubles implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final double[] values;
+
+        Doubles(double[] values) {
+            this.values = values;
+        }
+    }
+
+    private static class DoublesCodec implements Codec<Doubles> {
+
+        int written;
+
+        @Override
+        public void write(ObjectOutput out, Doubles value) throws IOException {
+            written++;
+            out.writeInt(value.values.length);
+            for (double d : value.values) {
+                out.writeDouble(d);
+            }
+        }
+
+        @Override
+        public Doubles read(ObjectInput in) throws IOException {
+            double[] values = new double[in.readInt()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = in.readDouble();
+            }
+            return new Doubles(values);
+        }
+    }
+
+    private static class FakeActivityCodec implements Codec<FakeActivity> {
+
+        int read;
+
+        @Override
+        public void write(ObjectOutput out, FakeActivity value) throws IOException {
+            out.writeUTF(((Context) value.getContext()).getName());
+        }
+
+        @Override
+        public FakeActivity read(ObjectInput in) throws IOException {
+            read++;
+            return new FakeActivity(new Context(in.readUTF()));
+        }
+    }
+
+    @After
+    public void clearCodecs() {
+        CodecRegistry.clear();
+    }
+
+    private static byte[] serialize(Object o) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encode(AbstractMessage m) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        if (m instanceof StealRequest) {
+            MessageCodec.writeStealRequest(out, (StealRequest) m);
+        } else if (m instanceof StealReply) {
+            MessageCodec.writeStealReply(out, (StealReply) m);
+        } else if (m instanceof LocationUpdate) {
+            MessageCodec.writeLocationUpdate(out, (LocationUpdate) m);
+        } else {
+            MessageCodec.writeEventMessage(out, (EventMessage) m);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static ObjectInputStream input(byte[] bytes) throws Exception {
+        return new ObjectInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private static StealRequest stealRequest() {
+        ConstellationIdentifierImpl source = ImplUtil.createConstellationIdentifier(42, 43);
+        OrContext context = new OrContext(new Context("A", 1, 10), new Context("B"));
+        StealPool pool = StealPool.merge(new StealPool("X"), new StealPool("Y"));
+        return new StealRequest(source, context, StealStrategy.SMALLEST, StealStrategy.BIGGEST, StealStrategy.SMALLEST, pool, 4,
+                2);
+    }
+
+    @Test
+    public void testStealRequest() throws Exception {
+        StealRequest sr = stealRequest();
+        sr.forwardedBy(3);
+        sr.forwardedBy(7);
+        sr.setTarget(ImplUtil.createConstellationIdentifier(13, 14));
+        sr.setLoad(new LoadSummary(3, 1000L, 1, new int[] { LoadSummary.contextId("A") }, new int[] { 9 }));
+        sr.setRequestId(1234);
+
+        StealRequest copy = MessageCodec.readStealRequest(input(encode(sr)));
+
+        assertEquals(sr.source, copy.source);
+        assertEquals(sr.target, copy.target);
+        OrContext context = (OrContext) copy.context;
+        assertEquals(2, context.size());
+        assertEquals(new Context("A", 1, 10), context.get(0));
+        assertEquals(new Context("B"), context.get(1));
+        assertEquals(sr.localStrategy, copy.localStrategy);
+        assertEquals(sr.constellationStrategy, copy.constellationStrategy);
+        assertEquals(sr.remoteStrategy, copy.remoteStrategy);
+        assertEquals(sr.pool, copy.pool);
+        assertEquals(4, copy.size);
+        assertEquals(2, copy.idleSiblings);
+        assertArrayEquals(new int[] { 3, 7 }, copy.getVisited());
+        assertEquals(1234, copy.getRequestId());
+        assertEquals(9, copy.getLoad().getQueued(new Context("A")));
+        assertFalse(copy.isLocal());
+    }
+
+    @Test
+    public void testStealRequestWorld() throws Exception {
+        ConstellationIdentifierImpl source = ImplUtil.createConstellationIdentifier(1, 2);
+        StealRequest sr = new StealRequest(source, new Context("A", 5), StealStrategy.SMALLEST, StealStrategy.SMALLEST,
+                StealStrategy.SMALLEST, StealPool.WORLD, 1);
+
+        StealRequest copy = MessageCodec.readStealRequest(input(encode(sr)));
+
+        assertTrue(copy.pool == StealPool.WORLD);
+        assertEquals(new Context("A", 5), copy.context);
+        assertNull(copy.target);
+        assertNull(copy.getLoad());
+    }
+
+    @Test
+    public void testStealRequestSmaller() throws Exception {
+        StealRequest sr = stealRequest();
+        assertTrue(encode(sr).length < serialize(sr).length);
+    }
+
+    @Test
+    public void testStealReply() throws Exception {
+        ConstellationIdentifierImpl source = ImplUtil.createConstellationIdentifier(42, 43);
+        ConstellationIdentifierImpl target = ImplUtil.createConstellationIdentifier(13, 14);
+        StealReply sr = new StealReply(source, target, new StealPool("X"), new Context("A"), (ActivityRecord) null);
+
+        StealReply copy = MessageCodec.readStealReply(input(encode(sr)));
+
+        assertEquals(source, copy.source);
+        assertEquals(target, copy.target);
+        assertEquals(new StealPool("X"), copy.getPool());
+        assertEquals(new Context("A"), copy.getContext());
+        assertTrue(copy.isEmpty());
+        assertTrue(encode(sr).length < serialize(sr).length);
+    }
+
+    @Test
+    public void testStealReplyRequestId() throws Exception {
+        StealRequest request = stealRequest();
+        request.setRequestId(77);
+        StealReply sr = new StealReply(ImplUtil.createConstellationIdentifier(42, 43), request, (ActivityRecord[]) null);
+
+        StealReply copy = MessageCodec.readStealReply(input(encode(sr)));
+
+        assertEquals(77, copy.getRequestId());
+        assertEquals(request.source, copy.target);
+        assertEquals(request.pool, copy.getPool());
+    }
+
+    @Test
+    public void testEventMessage() throws Exception {
+        ConstellationIdentifierImpl source = ImplUtil.createConstellationIdentifier(42, 43);
+        ConstellationIdentifierImpl target = ImplUtil.createConstellationIdentifier(13, 14);
+        ActivityIdentifier id1 = ImplUtil.createActivityIdentifier(1, 0, 1, false);
+        ActivityIdentifier id2 = ImplUtil.createActivityIdentifier(2, 0, 2, true);
+        EventMessage m = new EventMessage(source, target, new Event(id1, id2, "data"));
+
+        EventMessage copy = MessageCodec.readEventMessage(input(encode(m)));
+
+        assertEquals(source, copy.source);
+        assertEquals(target, copy.target);
+        assertEquals(id1, copy.event.getSource());
+        assertEquals(id2, copy.event.getTarget());
+        assertTrue(((ActivityIdentifierImpl) copy.event.getTarget()).expectsEvents());
+        assertEquals("data", copy.event.getData());
+        assertFalse(copy.isRedirected());
+        assertTrue(encode(m).length < serialize(m).length);
+    }
+
+    @Test
+    public void testRedirectedEventMessage() throws Exception {
+        ConstellationIdentifierImpl source = ImplUtil.createConstellationIdentifier(42, 43);
+        ConstellationIdentifierImpl target = ImplUtil.createConstellationIdentifier(13, 14);
+        ActivityIdentifier id1 = ImplUtil.createActivityIdentifier(1, 0, 1, false);
+        ActivityIdentifier id2 = ImplUtil.createActivityIdentifier(2, 0, 2, true);
+        EventMessage m = new EventMessage(source, target, new Event(id1, id2, "data"));
+        m.setRedirected();
+
+        EventMessage copy = MessageCodec.readEventMessage(input(encode(m)));
+
+        assertTrue(copy.isRedirected());
+        assertEquals("data", copy.event.getData());
+    }
+
+    @Test
+    public void testLocationUpdate() throws Exception {
+        ConstellationIdentifierImpl source = ImplUtil.createConstellationIdentifier(42, 43);
+        ConstellationIdentifierImpl target = ImplUtil.createConstellationIdentifier(13, 14);
+        ActivityIdentifierImpl id = (ActivityIdentifierImpl) ImplUtil.createActivityIdentifier(1, 0, 7, true);
+        LocationUpdate m = new LocationUpdate(source, target, id, source);
+
+        LocationUpdate copy = MessageCodec.readLocationUpdate(input(encode(m)));
+
+        assertEquals(source, copy.source);
+        assertEquals(target, copy.target);
+        assertEquals(id, copy.activity);
+        assertEquals(source, copy.location);
+        assertFalse(copy.isFinished());
+    }
+
+    @Test
+    public void testLocationUpdateFinished() throws Exception {
+        ConstellationIdentifierImpl source = ImplUtil.createConstellationIdentifier(42, 43);
+        ConstellationIdentifierImpl target = ImplUtil.createConstellationIdentifier(13, 14);
+        ActivityIdentifierImpl id = (ActivityIdentifierImpl) ImplUtil.createActivityIdentifier(1, 0, 7, true);
+
+        LocationUpdate copy = MessageCodec.readLocationUpdate(input(encode(new LocationUpdate(source, target, id, null))));
+
+        assertEquals(id, copy.activity);
+        assertNull(copy.location);
+        assertTrue(copy.isFinished());
+    }
+
+    @Test
+    public void testEventPayloadCodec() throws Exception {
+        DoublesCodec codec = new DoublesCodec();
+        CodecRegistry.register(1, Doubles.class, codec);
+
+        ConstellationIdentifierImpl source = ImplUtil.createConstellationIdentifier(42, 43);
+        ConstellationIdentifierImpl target = ImplUtil.createConstellationIdentifier(13, 14);
+        ActivityIdentifier id1 = ImplUtil.createActivityIdentifier(1, 0, 1, false);
+        ActivityIdentifier id2 = ImplUtil.createActivityIdentifier(2, 0, 2, true);
+        EventMessage m = new EventMessage(source, target, new Event(id1, id2, new Doubles(new double[] { 1.0, 2.5 })));
+
+        EventMessage copy = MessageCodec.readEventMessage(input(encode(m)));
+
+        assertEquals(1, codec.written);
+        assertArrayEquals(new double[] { 1.0, 2.5 }, ((Doubles) copy.event.getData()).values, 0.0);
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownPayloadCodec() throws Exception {
+        CodecRegistry.register(1, Doubles.class, new DoublesCodec());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        MessageCodec.writePayload(out, new Doubles(new double[] { 1.0 }));
+        out.close();
+
+        CodecRegistry.clear();
+        MessageCodec.readPayload(input(bytes.toByteArray()));
+    }
+
+    @Test
+    public void testActivityCodec() throws Exception {
+        FakeActivityCodec codec = new FakeActivityCodec();
+        CodecRegistry.register(2, FakeActivity.class, codec);
+
+        ActivityIdentifierImpl id = (ActivityIdentifierImpl) ImplUtil.createActivityIdentifier(1, 42, 1001, false);
+        ActivityRecord r = new ActivityRecord(new FakeActivity(new Context("A")), id);
+
+        ActivityRecord copy = (ActivityRecord) input(serialize(r)).readObject();
+
+        assertEquals(1, codec.read);
+        assertEquals(id, copy.identifier());
+        assertEquals(new Context("A"), copy.getContext());
+    }
+}
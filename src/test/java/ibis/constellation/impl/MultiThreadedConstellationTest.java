@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import ibis.constellation.ConstellationConfiguration;
+import ibis.constellation.ConstellationProperties;
+import ibis.constellation.Context;
+import ibis.constellation.Event;
+import ibis.constellation.OrContext;
+import ibis.constellation.StealPool;
+import ibis.constellation.StealStrategy;
+import ibis.constellation.impl.pool.Pool;
+import ibis.constellation.util.ReceiveBuffers;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class MultiThreadedConstellationTest {
+
+    private static final Context CONTEXT = new Context("test");
+
+    private static MultiThreadedConstellation create(Properties p) throws Exception {
+        return new MultiThreadedConstellation(null, new ConstellationProperties(p), new ConstellationConfiguration[] {
+                new ConstellationConfiguration(CONTEXT), new ConstellationConfiguration(CONTEXT) });
+    }
+
+    private static void fill(SingleThreadedConstellation st, int count, long base) {
+        for (int i = 0; i < count; i++) {
+            ActivityRecord r = ImplUtil.createActivityRecord(CONTEXT, null, base + i);
+            st.doSubmit(r, CONTEXT, r.identifier());
+        }
+    }
+
+    private static StealRequest request(int size) {
+        return new StealRequest(ImplUtil.createConstellationIdentifier(1, 0), CONTEXT, StealStrategy.SMALLEST,
+                StealStrategy.SMALLEST, StealStrategy.SMALLEST, StealPool.WORLD, size, 0);
+    }
+
+    @Test
+    public void testGatherFromOneWorker() throws Exception {
+        MultiThreadedConstellation m = create(new Properties());
+        SingleThreadedConstellation[] w = m.getWorkers();
+        fill(w[0], 5, 0);
+
+        ArrayList<SingleThreadedConstellation> owners = new ArrayList<SingleThreadedConstellation>();
+        ActivityRecord[] work = m.gatherWork(request(3), 0, 3, owners);
+
+        assertEquals(3, work.length);
+        assertEquals(3, owners.size());
+        assertSame(w[0], owners.get(0));
+        assertEquals(2, w[0].queuedWork(CONTEXT));
+    }
+
+    @Test
+    public void testGatherAcrossWorkers() throws Exception {
+        MultiThreadedConstellation m = create(new Properties());
+        SingleThreadedConstellation[] w = m.getWorkers();
+        fill(w[0], 2, 0);
+        fill(w[1], 5, 100);
+
+        ArrayList<SingleThreadedConstellation> owners = new ArrayList<SingleThreadedConstellation>();
+        ActivityRecord[] work = m.gatherWork(request(4), 0, 4, owners);
+
+        assertEquals(4, work.length);
+        assertSame(w[0], owners.get(1));
+        assertSame(w[1], owners.get(2));
+        assertEquals(0, w[0].queuedWork(CONTEXT));
+        assertEquals(3, w[1].queuedWork(CONTEXT));
+    }
+
+    @Test
+    public void testGatherNothing() throws Exception {
+        MultiThreadedConstellation m = create(new Properties());
+
+        assertNull(m.gatherWork(request(2), 0, 2, new ArrayList<SingleThreadedConstellation>()));
+    }
+
+    @Test
+    public void testGatherAdaptiveCapped() throws Exception {
+        Properties p = new Properties();
+        p.put(ConstellationProperties.S_STEAL_ADAPTIVE, "true");
+        MultiThreadedConstellation m = create(p);
+        SingleThreadedConstellation[] w = m.getWorkers();
+        fill(w[0], 10, 0);
+
+        ArrayList<SingleThreadedConstellation> owners = new ArrayList<SingleThreadedConstellation>();
+        ActivityRecord[] work = m.gatherWork(request(2), 0, 2, owners);
+
+        // The worker hands out half of its queue, but the request only asked for two.
+        assertEquals(2, work.length);
+        assertEquals(2, owners.size());
+        assertEquals(8, w[0].queuedWork(CONTEXT));
+    }
+
+    @Test
+    public void testLoadSummaryOrContext() throws Exception {
+        Context a = new Context("A");
+        Context b = new Context("B");
+        MultiThreadedConstellation m = new MultiThreadedConstellation(null, new ConstellationProperties(new Properties()),
+                new ConstellationConfiguration[] { new ConstellationConfiguration(new OrContext(a, b)) });
+        SingleThreadedConstellation w = m.getWorkers()[0];
+
+        for (int i = 0; i < 5; i++) {
+            ActivityRecord r = ImplUtil.createActivityRecord(i < 3 ? a : b, null, i);
+            w.doSubmit(r, r.getContext(), r.identifier());
+        }
+
+        LoadSummary s = m.loadSummary(0, 0);
+
+        assertEquals(3, s.getQueued(a));
+        assertEquals(2, s.getQueued(b));
+        assertEquals(5, s.getQueued());
+    }
+
+    @Test
+    public void testReceiveBuffersForwarded() throws Exception {
+        MultiThreadedConstellation m = create(new Properties());
+        SingleThreadedConstellation w = m.getWorkers()[0];
+        ActivityRecord r = ImplUtil.createActivityRecord(CONTEXT, null, 7);
+        w.doSubmit(r, CONTEXT, r.identifier());
+
+        ByteBuffer registered = ByteBuffer.allocateDirect(64);
+        ReceiveBuffers.register(r.identifier(), registered);
+
+        try {
+            // An event that arrived earlier still holds the buffers when the activity is stolen.
+            r.enqueue(new Event(r.identifier(), r.identifier(), "first"), ReceiveBuffers.acquire(r.identifier()));
+
+            EventMessage msg = new EventMessage(ImplUtil.createConstellationIdentifier(1, 0), w.identifier(),
+                    new Event(r.identifier(), r.identifier(), "second"));
+            assertTrue(m.isDeliveredHere(msg));
+
+            assertEquals(1, m.gatherWork(request(1), 0, 1, new ArrayList<SingleThreadedConstellation>()).length);
+
+            // The activity left, so its buffers are no longer held here, and an event that is forwarded to it is read into
+            // buffers of the cache instead.
+            assertFalse(m.isDeliveredHere(msg));
+            assertNotSame(registered, Pool.receiveBuffers(msg, new int[] { 20 }, m.isDeliveredHere(msg)).get(0));
+            assertEquals(0, msg.takeReceiveToken());
+            assertTrue(ReceiveBuffers.acquire(r.identifier()) != 0);
+        } finally {
+            ReceiveBuffers.clear();
+        }
+    }
+}
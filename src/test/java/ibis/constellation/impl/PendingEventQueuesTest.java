@@ -0,0 +1,163 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ibis.constellation.ActivityIdentifier;
+import ibis.constellation.Event;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class PendingEventQueuesTest {
+
+    private static EventMessage message(int targetNode) {
+        ConstellationIdentifierImpl source = ImplUtil.createConstellationIdentifier(0, 0);
+        ConstellationIdentifierImpl target = ImplUtil.createConstellationIdentifier(targetNode, 0);
+
+        ActivityIdentifier id1 = ImplUtil.createActivityIdentifier(0, 0, 1, false);
+        ActivityIdentifier id2 = ImplUtil.createActivityIdentifier(targetNode, 0, 2, true);
+
+        return new EventMessage(source, target, new Event(id1, id2, null));
+    }
+
+    @Test
+    public void testEmpty() {
+        PendingEventQueues q = new PendingEventQueues(50, 800, 800);
+
+        assertFalse(q.hasPending(1));
+        assertNull(q.peek(1));
+        assertEquals(-1, q.nextDue(Long.MAX_VALUE - 1));
+        assertEquals(0, q.size());
+    }
+
+    @Test
+    public void testOrder() {
+        PendingEventQueues q = new PendingEventQueues(50, 800, 800);
+
+        EventMessage m1 = message(1);
+        EventMessage m2 = message(1);
+
+        q.add(m1, true, 0);
+        q.add(m2, true, 0);
+
+        assertTrue(q.hasPending(1));
+        assertEquals(2, q.size());
+        assertSame(m1, q.peek(1));
+        q.remove(1);
+        assertSame(m2, q.peek(1));
+        q.remove(1);
+        assertFalse(q.hasPending(1));
+    }
+
+    @Test
+    public void testUnresolvedWaitsForLookup() {
+        PendingEventQueues q = new PendingEventQueues(50, 800, 800);
+
+        q.add(message(1), true, 1000);
+
+        assertEquals(-1, q.nextDue(1799));
+        assertEquals(1, q.nextDue(1800));
+    }
+
+    @Test
+    public void testReadyIsImmediate() {
+        PendingEventQueues q = new PendingEventQueues(50, 800, 800);
+
+        q.add(message(1), true, 1000);
+        q.add(message(2), true, 1000);
+        q.ready(2);
+
+        assertEquals(2, q.nextDue(1000));
+        assertEquals(-1, q.nextDue(1000));
+    }
+
+    @Test
+    public void testBackoff() {
+        PendingEventQueues q = new PendingEventQueues(50, 800, 800);
+
+        q.add(message(1), false, 0);
+        assertEquals(-1, q.nextDue(49));
+        assertEquals(1, q.nextDue(50));
+
+        assertEquals(2, q.failed(1, false, 100));
+        assertEquals(-1, q.nextDue(199));
+        assertEquals(1, q.nextDue(200));
+
+        for (int i = 0; i < 10; i++) {
+            q.failed(1, false, 0);
+        }
+
+        // bounded by the maximum delay
+        assertEquals(1, q.nextDue(800));
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+        PendingEventQueues q = new PendingEventQueues(50, 800, 800);
+
+        q.add(message(1), false, 0);
+        q.add(message(1), false, 0);
+        q.failed(1, false, 0);
+        q.failed(1, false, 0);
+        q.remove(1);
+
+        assertEquals(1, q.failed(1, false, 0));
+    }
+
+    @Test
+    public void testUnresolvedFailuresCounted() {
+        PendingEventQueues q = new PendingEventQueues(50, 800, 800);
+
+        q.add(message(1), true, 0);
+
+        assertEquals(2, q.failed(1, true, 0));
+        assertEquals(3, q.failed(1, true, 0));
+    }
+
+    @Test
+    public void testStealReplyQueued() {
+        PendingEventQueues q = new PendingEventQueues(50, 800, 800);
+
+        EventMessage m = message(1);
+        StealReply sr = new StealReply(ImplUtil.createConstellationIdentifier(0, 1), ImplUtil.createConstellationIdentifier(1, 1),
+                null, null, ImplUtil.createActivityRecord());
+
+        q.add(sr, true, 0);
+        q.add(m, true, 0);
+
+        assertSame(sr, q.peek(1));
+        q.remove(1);
+        assertSame(m, q.peek(1));
+    }
+
+    @Test
+    public void testWaitForDue() {
+        PendingEventQueues q = new PendingEventQueues(50, 800, 800);
+
+        q.add(message(3), false, System.currentTimeMillis());
+        assertEquals(3, q.waitForDue());
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class RouteCacheTest {
+
+    private static ActivityIdentifierImpl activity(long aid) {
+        return (ActivityIdentifierImpl) ImplUtil.createActivityIdentifier(0, 0, aid, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeSize() {
+        new RouteCache(-1);
+    }
+
+    @Test
+    public void testUnknown() {
+        RouteCache c = new RouteCache(4);
+        assertNull(c.get(activity(1)));
+        assertEquals(1, c.getMisses());
+    }
+
+    @Test
+    public void testPutGet() {
+        RouteCache c = new RouteCache(4);
+        ConstellationIdentifierImpl cid = ImplUtil.createConstellationIdentifier(3, 1);
+        c.put(activity(1), cid);
+        assertEquals(cid, c.get(activity(1)));
+        assertEquals(1, c.getHits());
+    }
+
+    @Test
+    public void testUpdate() {
+        RouteCache c = new RouteCache(4);
+        ConstellationIdentifierImpl cid = ImplUtil.createConstellationIdentifier(3, 1);
+        c.put(activity(1), ImplUtil.createConstellationIdentifier(2, 1));
+        c.put(activity(1), cid);
+        assertEquals(cid, c.get(activity(1)));
+        assertEquals(1, c.size());
+    }
+
+    @Test
+    public void testRemove() {
+        RouteCache c = new RouteCache(4);
+        c.put(activity(1), ImplUtil.createConstellationIdentifier(3, 1));
+        c.remove(activity(1));
+        assertNull(c.get(activity(1)));
+        assertEquals(0, c.size());
+    }
+
+    @Test
+    public void testBounded() {
+        RouteCache c = new RouteCache(2);
+        ConstellationIdentifierImpl cid = ImplUtil.createConstellationIdentifier(3, 1);
+        c.put(activity(1), cid);
+        c.put(activity(2), cid);
+        // Makes activity 2 the least recently used one.
+        c.get(activity(1));
+        c.put(activity(3), cid);
+        assertEquals(2, c.size());
+        assertEquals(cid, c.get(activity(1)));
+        assertNull(c.get(activity(2)));
+        assertEquals(cid, c.get(activity(3)));
+    }
+
+    @Test
+    public void testDisabled() {
+        RouteCache c = new RouteCache(0);
+        c.put(activity(1), ImplUtil.createConstellationIdentifier(3, 1));
+        assertNull(c.get(activity(1)));
+        assertEquals(0, c.size());
+    }
+}
@@ -17,11 +17,18 @@ package ibis.constellation.impl;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.CyclicBarrier;
+
 import org.junit.Test;
 
+import ibis.constellation.Affinity;
 import ibis.constellation.ConstellationConfiguration;
 import ibis.constellation.ConstellationProperties;
 import ibis.constellation.Context;
+import ibis.constellation.FakeActivity;
+import ibis.constellation.StealPool;
 import ibis.constellation.StealStrategy;
 
 /**
@@ -89,6 +96,218 @@ public class SingleThreadedConstellationTest {
         
         assertEquals(StealStrategy.BIGGEST, st.getRemoteStealStrategy());
     }
+
+    @Test
+    public void testConcurrentSubmit() throws Exception {
+        ConstellationConfiguration config = new ConstellationConfiguration(new Context("test"));
+        Properties p = new Properties();
+        p.put(ConstellationProperties.S_QUEUED_JOB_LIMIT, "100000");
+        final SingleThreadedConstellation st = new SingleThreadedConstellation(config, new ConstellationProperties(p));
+
+        final int threads = 8;
+        final int count = 10000;
+        final Throwable[] failure = new Throwable[1];
+        final CyclicBarrier start = new CyclicBarrier(threads);
+
+        Thread[] submitters = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final FakeActivity[] activities = new FakeActivity[count];
+            for (int j = 0; j < count; j++) {
+                activities[j] = new FakeActivity(new Context("test"));
+            }
+            submitters[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (FakeActivity a : activities) {
+                            st.performSubmit(a);
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            submitters[i].start();
+        }
+        for (Thread t : submitters) {
+            t.join();
+        }
+
+        assertNull(failure[0]);
+        assertEquals(threads * count, st.getWrapper().stealableCount(new Context("test"), true));
+    }
+
+    private static SingleThreadedConstellation affinityConstellation(String timeout) throws Exception {
+        ConstellationConfiguration config = new ConstellationConfiguration(new Context("test"));
+        Properties p = new Properties();
+        p.put(ConstellationProperties.S_AFFINITY_TIMEOUT, timeout);
+        return new SingleThreadedConstellation(config, new ConstellationProperties(p));
+    }
+
+    private static ActivityRecord submit(SingleThreadedConstellation st, Affinity affinity, long aid) {
+        ActivityRecord r = ImplUtil.createActivityRecord(new Context("test"), affinity, aid);
+        st.doSubmit(r, r.getContext(), r.identifier());
+        return r;
+    }
+
+    private static ActivityRecord[] steal(SingleThreadedConstellation st, ConstellationIdentifierImpl thief, boolean local) {
+        return st.attemptSteal(new Context("test"), StealStrategy.SMALLEST, StealPool.WORLD, thief, 1, local);
+    }
+
+    @Test
+    public void testStealPrefersUnaffine() throws Exception {
+        SingleThreadedConstellation st = affinityConstellation("0");
+        ConstellationIdentifierImpl thief = ImplUtil.createConstellationIdentifier(1, 0);
+
+        ActivityRecord affine = submit(st, Affinity.node(st.identifier(), false), 1);
+        ActivityRecord free = submit(st, null, 2);
+
+        assertSame(free, steal(st, thief, false)[0]);
+        // Weakly affine activities may go when nothing else is left.
+        assertSame(affine, steal(st, thief, false)[0]);
+        assertNull(steal(st, thief, false));
+    }
+
+    @Test
+    public void testStealPrefersMatching() throws Exception {
+        SingleThreadedConstellation st = affinityConstellation("0");
+        ConstellationIdentifierImpl thief = ImplUtil.createConstellationIdentifier(1, 0);
+
+        submit(st, Affinity.node(st.identifier(), false), 1);
+        ActivityRecord matching = submit(st, Affinity.worker(thief, true), 2);
+
+        assertSame(matching, steal(st, thief, false)[0]);
+    }
+
+    @Test
+    public void testStrongAffinityKept() throws Exception {
+        SingleThreadedConstellation st = affinityConstellation("0");
+
+        ActivityRecord affine = submit(st, Affinity.node(st.identifier(), true), 1);
+
+        assertNull(steal(st, ImplUtil.createConstellationIdentifier(1, 0), false));
+        // A worker on the same node matches.
+        assertSame(affine, steal(st, ImplUtil.createConstellationIdentifier(0, 1), true)[0]);
+    }
+
+    @Test
+    public void testStrongAffinityTimeout() throws Exception {
+        SingleThreadedConstellation st = affinityConstellation("1");
+
+        ActivityRecord affine = submit(st, Affinity.worker(st.identifier(), true), 1);
+
+        Thread.sleep(10);
+
+        assertSame(affine, steal(st, ImplUtil.createConstellationIdentifier(1, 0), false)[0]);
+    }
+
+    private static StealRequest remoteRequest(ConstellationIdentifierImpl thief) {
+        StealRequest s = new StealRequest(thief, new Context("test"), StealStrategy.SMALLEST, StealStrategy.SMALLEST,
+                StealStrategy.SMALLEST, StealPool.WORLD, 4, 0);
+        s.setRemote();
+        return s;
+    }
+
+    private static FakeActivity submitToExecutor(SingleThreadedConstellation st, Affinity affinity) throws Exception {
+        FakeActivity a = new FakeActivity(new Context("test"));
+        a.setAffinity(affinity);
+        st.getWrapper().submit(a);
+        return a;
+    }
+
+    @Test
+    public void testPostedStealKeepsStrongAffinity() throws Exception {
+        SingleThreadedConstellation st = affinityConstellation("0");
+        ConstellationIdentifierImpl thief = ImplUtil.createConstellationIdentifier(1, 0);
+
+        submitToExecutor(st, Affinity.node(st.identifier(), true));
+        FakeActivity free = submitToExecutor(st, null);
+
+        ActivityRecord[] a = st.stealFromExecutor(remoteRequest(thief));
+
+        assertEquals(1, a.length);
+        assertEquals(free.identifier(), a[0].identifier());
+        assertNull(st.stealFromExecutor(remoteRequest(thief)));
+        assertEquals(1, st.getWrapper().stealableCount(new Context("test"), true));
+    }
+
+    @Test
+    public void testPostedStealPrefersMatching() throws Exception {
+        SingleThreadedConstellation st = affinityConstellation("0");
+        ConstellationIdentifierImpl thief = ImplUtil.createConstellationIdentifier(1, 0);
+
+        submitToExecutor(st, Affinity.node(st.identifier(), false));
+        FakeActivity matching = submitToExecutor(st, Affinity.node(thief, true));
+
+        StealRequest request = new StealRequest(thief, new Context("test"), StealStrategy.SMALLEST, StealStrategy.SMALLEST,
+                StealStrategy.SMALLEST, StealPool.WORLD, 1, 0);
+        request.setRemote();
+        ActivityRecord[] a = st.stealFromExecutor(request);
+
+        assertEquals(matching.identifier(), a[0].identifier());
+    }
+
+    @Test
+    public void testPostedStealAffinityTimeout() throws Exception {
+        SingleThreadedConstellation st = affinityConstellation("1");
+
+        FakeActivity affine = submitToExecutor(st, Affinity.worker(st.identifier(), true));
+
+        Thread.sleep(10);
+
+        ActivityRecord[] a = st.stealFromExecutor(remoteRequest(ImplUtil.createConstellationIdentifier(1, 0)));
+        assertEquals(affine.identifier(), a[0].identifier());
+    }
+
+    @Test
+    public void testStealRegistersForwarder() throws Exception {
+        SingleThreadedConstellation st = affinityConstellation("0");
+
+        ActivityRecord r = submit(st, null, 1);
+        assertSame(r, steal(st, ImplUtil.createConstellationIdentifier(1, 0), false)[0]);
+
+        assertTrue(st.hasExported(r.identifier()));
+        assertEquals(Arrays.asList(st.identifier()), r.takeForwarders());
+    }
+
+    @Test
+    public void testFinishedForgetsForwarding() throws Exception {
+        SingleThreadedConstellation st = affinityConstellation("0");
+
+        ActivityRecord r = submit(st, null, 1);
+        steal(st, ImplUtil.createConstellationIdentifier(1, 0), false);
+
+        st.activityFinished(r);
+
+        assertFalse(st.hasExported(r.identifier()));
+        assertNull(r.takeForwarders());
+    }
+
+    @Test
+    public void testForget() throws Exception {
+        SingleThreadedConstellation st = affinityConstellation("0");
+
+        ActivityRecord r = submit(st, null, 1);
+        steal(st, ImplUtil.createConstellationIdentifier(1, 0), false);
+
+        st.forget(r.identifier());
+
+        assertFalse(st.hasExported(r.identifier()));
+    }
+
+    @Test
+    public void testReclaimRemovesForwarder() throws Exception {
+        SingleThreadedConstellation st = affinityConstellation("0");
+
+        ActivityRecord r = submit(st, null, 1);
+        steal(st, ImplUtil.createConstellationIdentifier(1, 0), false);
+
+        st.reclaim(new ActivityRecord[] { r });
+
+        assertFalse(st.hasExported(r.identifier()));
+        assertNull(r.takeForwarders());
+    }
     
     
 
@@ -17,6 +17,7 @@ package ibis.constellation.impl;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -185,4 +186,54 @@ public class StealRequestTest {
 
         assertFalse(tmp.isLocal());
     }
+
+    @Test
+    public void createStealRequestIdleSiblings() {
+
+        ConstellationIdentifierImpl cid = ImplUtil.createConstellationIdentifier(0, 0);
+
+        Context exc = new Context("DEFAULT", 0, 0);
+
+        StealRequest tmp = new StealRequest(cid, exc, StealStrategy.SMALLEST, StealStrategy.BIGGEST, StealStrategy.SMALLEST,
+                StealPool.WORLD, 42, 3);
+
+        assertEquals(3, tmp.idleSiblings);
+    }
+
+    @Test
+    public void createStealRequestNoIdleSiblings() {
+
+        ConstellationIdentifierImpl cid = ImplUtil.createConstellationIdentifier(0, 0);
+
+        Context exc = new Context("DEFAULT", 0, 0);
+
+        StealRequest tmp = new StealRequest(cid, exc, StealStrategy.SMALLEST, StealStrategy.BIGGEST, StealStrategy.SMALLEST,
+                StealPool.WORLD, 42);
+
+        assertEquals(0, tmp.idleSiblings);
+    }
+
+    @Test
+    public void forwardStealRequest() {
+
+        ConstellationIdentifierImpl cid = ImplUtil.createConstellationIdentifier(1, 0);
+
+        Context exc = new Context("DEFAULT", 0, 0);
+
+        StealRequest tmp = new StealRequest(cid, exc, StealStrategy.SMALLEST, StealStrategy.BIGGEST, StealStrategy.SMALLEST,
+                StealPool.WORLD, 42);
+
+        assertEquals(0, tmp.getHops());
+        assertTrue(tmp.isVisited(1));
+        assertFalse(tmp.isVisited(2));
+
+        tmp.forwardedBy(2);
+        tmp.forwardedBy(3);
+
+        assertEquals(2, tmp.getHops());
+        assertTrue(tmp.isVisited(2));
+        assertTrue(tmp.isVisited(3));
+        assertFalse(tmp.isVisited(4));
+        assertEquals(2, tmp.getVisited().length);
+    }
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Test;
+
+import ibis.constellation.Context;
+import ibis.constellation.FakeActivity;
+import ibis.constellation.util.ByteBuffers;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class StealSizeTest {
+
+    private static class BufferActivity extends FakeActivity implements ByteBuffers {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient ByteBuffer b;
+
+        BufferActivity(int size) {
+            super(new Context("A"));
+            b = ByteBuffer.allocate(size);
+        }
+
+        @Override
+        public void pushByteBuffers(List<ByteBuffer> list) {
+            list.add(b);
+        }
+
+        @Override
+        public void popByteBuffers(List<ByteBuffer> list) {
+            b = list.remove(0);
+        }
+    }
+
+    private static ActivityRecord[] records(int count, int bytes) {
+        ActivityRecord[] result = new ActivityRecord[count];
+
+        for (int i = 0; i < count; i++) {
+            result[i] = new ActivityRecord(new BufferActivity(bytes),
+                    (ActivityIdentifierImpl) ImplUtil.createActivityIdentifier(0, 0, i, true));
+        }
+        return result;
+    }
+
+    @Test
+    public void testShareEmptyQueue() {
+        assertEquals(1, StealSize.share(1, 0, 0));
+    }
+
+    @Test
+    public void testShareSmallQueue() {
+        assertEquals(4, StealSize.share(4, 3, 5));
+    }
+
+    @Test
+    public void testShareHalf() {
+        assertEquals(10000, StealSize.share(1, 20000, 0));
+    }
+
+    @Test
+    public void testShareIdleSiblings() {
+        assertEquals(75, StealSize.share(1, 100, 2));
+    }
+
+    @Test
+    public void testShareAtLeastRequested() {
+        assertEquals(8, StealSize.share(8, 10, 0));
+    }
+
+    @Test
+    public void testBudgetUnlimited() {
+        assertEquals(5, StealSize.fitBudget(records(5, 1000000), 5, 0));
+    }
+
+    @Test
+    public void testBudgetAlwaysOne() {
+        assertEquals(1, StealSize.fitBudget(records(5, 1000000), 5, 1000));
+    }
+
+    @Test
+    public void testBudget() {
+        ActivityRecord[] a = records(10, 1000);
+        long size = a[0].estimatedSize();
+        assertEquals(3, StealSize.fitBudget(a, 10, 3 * size + 1));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ibis.constellation.AbstractContext;
+import ibis.constellation.Context;
+import ibis.constellation.OrContext;
+import ibis.constellation.StealPool;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class SubmitRoutingTableTest {
+
+    private static StealPool[] world(int n) {
+        StealPool[] result = new StealPool[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = StealPool.WORLD;
+        }
+        return result;
+    }
+
+    @Test
+    public void testNoMatch() {
+        AbstractContext[] c = new AbstractContext[] { new Context("A"), new Context("B") };
+        SubmitRoutingTable t = new SubmitRoutingTable(c, world(2));
+        assertEquals(-1, t.select(new Context("C"), -1));
+    }
+
+    @Test
+    public void testSingleMatch() {
+        AbstractContext[] c = new AbstractContext[] { new Context("A"), new Context("B") };
+        SubmitRoutingTable t = new SubmitRoutingTable(c, world(2));
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(1, t.select(new Context("B"), -1));
+        }
+    }
+
+    @Test
+    public void testRoundRobin() {
+        AbstractContext[] c = new AbstractContext[] { new Context("A"), new Context("B"), new Context("A") };
+        SubmitRoutingTable t = new SubmitRoutingTable(c, world(3));
+
+        int first = t.select(new Context("A"), -1);
+        int second = t.select(new Context("A"), -1);
+
+        assertTrue(first != second);
+        assertTrue(first == 0 || first == 2);
+        assertTrue(second == 0 || second == 2);
+        assertEquals(first, t.select(new Context("A"), -1));
+    }
+
+    @Test
+    public void testPreferred() {
+        AbstractContext[] c = new AbstractContext[] { new Context("A"), new Context("A"), new Context("A") };
+        SubmitRoutingTable t = new SubmitRoutingTable(c, world(3));
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(2, t.select(new Context("A"), 2));
+        }
+    }
+
+    @Test
+    public void testPreferredNoMatch() {
+        AbstractContext[] c = new AbstractContext[] { new Context("A"), new Context("B") };
+        SubmitRoutingTable t = new SubmitRoutingTable(c, world(2));
+        assertEquals(0, t.select(new Context("A"), 1));
+    }
+
+    @Test
+    public void testRange() {
+        AbstractContext[] c = new AbstractContext[] { new Context("A", 0, 9), new Context("A", 10, 19),
+                new Context("A", 20, 29) };
+        SubmitRoutingTable t = new SubmitRoutingTable(c, world(3));
+
+        assertEquals(1, t.select(new Context("A", 15), -1));
+        assertEquals(2, t.select(new Context("A", 25, 40), -1));
+        assertEquals(-1, t.select(new Context("A", 30, 40), -1));
+    }
+
+    @Test
+    public void testOrContextNoDuplicates() {
+        AbstractContext[] c = new AbstractContext[] { new OrContext(new Context("A"), new Context("B")), new Context("C") };
+        SubmitRoutingTable t = new SubmitRoutingTable(c, world(2));
+
+        OrContext or = new OrContext(new Context("A"), new Context("B"), new Context("C"));
+
+        int first = t.select(or, -1);
+        int second = t.select(or, -1);
+
+        assertTrue(first != second);
+        assertEquals(first, t.select(or, -1));
+    }
+
+    @Test
+    public void testFallbackWorld() {
+        AbstractContext[] c = new AbstractContext[] { new Context("A"), new Context("B"), new Context("C") };
+        StealPool[] pools = new StealPool[] { new StealPool("X"), StealPool.WORLD, new StealPool("Y") };
+        SubmitRoutingTable t = new SubmitRoutingTable(c, pools);
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(1, t.selectFallback());
+        }
+    }
+
+    @Test
+    public void testFallbackAny() {
+        AbstractContext[] c = new AbstractContext[] { new Context("A"), new Context("B") };
+        StealPool[] pools = new StealPool[] { new StealPool("X"), new StealPool("Y") };
+        SubmitRoutingTable t = new SubmitRoutingTable(c, pools);
+
+        int first = t.selectFallback();
+        int second = t.selectFallback();
+        assertTrue(first != second);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class MasterTreeTest {
+
+    @Test
+    public void testRootParentIsMaster() {
+        assertEquals(-1, MasterTree.parent(0, 4));
+    }
+
+    @Test
+    public void testParents() {
+        for (int r = 1; r <= 4; r++) {
+            assertEquals(0, MasterTree.parent(r, 4));
+        }
+        for (int r = 5; r <= 8; r++) {
+            assertEquals(1, MasterTree.parent(r, 4));
+        }
+        assertEquals(4, MasterTree.parent(20, 4));
+    }
+
+    @Test
+    public void testGroupSizeOne() {
+        assertEquals(4, MasterTree.parent(5, 1));
+    }
+
+    @Test
+    public void testDepth() {
+        assertEquals(1, MasterTree.depth(0, 4));
+        assertEquals(2, MasterTree.depth(4, 4));
+        assertEquals(3, MasterTree.depth(20, 4));
+        assertEquals(4, MasterTree.depth(21, 4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalGroupSize() {
+        MasterTree.parent(3, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalRank() {
+        MasterTree.parent(-1, 4);
+    }
+}
@@ -17,6 +17,7 @@ package ibis.constellation.impl.pool;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
@@ -296,4 +297,122 @@ public class PoolInfoTest {
         assertEquals(tmp.getMembers(), list);
     }
 
+    private static NodeIdentifier node(String name) {
+        return new NodeIdentifierImpl(new FakeIbisIdentifier(new Location("loc1"), name, "pool", "tag"));
+    }
+
+    @Test
+    public void testAddMemberDelta() {
+        NodeIdentifier id = node("ibis1");
+        NodeIdentifier id2 = node("ibis2");
+
+        PoolInfo tmp = new PoolInfo("Hello", id, true);
+        PoolDelta d = tmp.addMember(id2);
+
+        assertEquals("Hello", d.tag);
+        assertEquals(1, d.base);
+        assertEquals(2, d.timestamp);
+        assertEquals(id2, d.member);
+        assertTrue(d.added);
+    }
+
+    @Test
+    public void testRemoveMemberDelta() {
+        NodeIdentifier id = node("ibis1");
+        NodeIdentifier id2 = node("ibis2");
+
+        PoolInfo tmp = new PoolInfo("Hello", id, true);
+        tmp.addMember(id2);
+        PoolDelta d = tmp.removeMember(id2);
+
+        assertEquals(2, d.base);
+        assertEquals(3, d.timestamp);
+        assertFalse(d.added);
+        assertEquals(1, tmp.nMembers());
+    }
+
+    @Test
+    public void testRemoveUnknownMember() {
+        PoolInfo tmp = new PoolInfo("Hello", node("ibis1"), true);
+
+        assertNull(tmp.removeMember(node("ibis2")));
+        assertEquals(1, tmp.currentTimeStamp());
+    }
+
+    @Test
+    public void testApplyDeltas() {
+        NodeIdentifier id = node("ibis1");
+        NodeIdentifier id2 = node("ibis2");
+        NodeIdentifier id3 = node("ibis3");
+
+        PoolInfo master = new PoolInfo("Hello", id, true);
+        PoolInfo follower = new PoolInfo("Hello", id, false);
+
+        assertTrue(follower.apply(master.addMember(id2)));
+        assertTrue(follower.apply(master.addMember(id3)));
+        assertTrue(follower.apply(master.removeMember(id2)));
+
+        assertEquals(master.currentTimeStamp(), follower.currentTimeStamp());
+        assertEquals(master.getMembers(), follower.getMembers());
+    }
+
+    @Test
+    public void testApplyStaleDelta() {
+        NodeIdentifier id = node("ibis1");
+        NodeIdentifier id2 = node("ibis2");
+
+        PoolInfo master = new PoolInfo("Hello", id, true);
+        PoolDelta d = master.addMember(id2);
+
+        PoolInfo follower = new PoolInfo(master);
+
+        assertTrue(follower.apply(d));
+        assertEquals(2, follower.nMembers());
+    }
+
+    @Test
+    public void testApplyMissingDelta() {
+        NodeIdentifier id = node("ibis1");
+
+        PoolInfo master = new PoolInfo("Hello", id, true);
+        PoolInfo follower = new PoolInfo("Hello", id, false);
+
+        master.addMember(node("ibis2"));
+
+        assertFalse(follower.apply(master.addMember(node("ibis3"))));
+        assertEquals(1, follower.currentTimeStamp());
+        assertEquals(1, follower.nMembers());
+    }
+
+    @Test
+    public void testReplayEarlyDeltas() {
+        NodeIdentifier id = node("ibis1");
+
+        PoolInfo master = new PoolInfo("Hello", id, true);
+        ArrayList<PoolDelta> early = new ArrayList<PoolDelta>();
+
+        // Pushed to the follower before the reply to its update request.
+        early.add(master.addMember(node("ibis2")));
+        PoolInfo update = new PoolInfo(master);
+        early.add(master.addMember(node("ibis3")));
+
+        assertTrue(Pool.replay(update, early));
+        assertEquals(master.currentTimeStamp(), update.currentTimeStamp());
+        assertEquals(master.getMembers(), update.getMembers());
+    }
+
+    @Test
+    public void testReplayMissingDelta() {
+        NodeIdentifier id = node("ibis1");
+
+        PoolInfo master = new PoolInfo("Hello", id, true);
+        PoolInfo update = new PoolInfo(master);
+        ArrayList<PoolDelta> early = new ArrayList<PoolDelta>();
+
+        master.addMember(node("ibis2"));
+        early.add(master.addMember(node("ibis3")));
+
+        assertFalse(Pool.replay(update, early));
+        assertTrue(Pool.replay(update, null));
+    }
 }
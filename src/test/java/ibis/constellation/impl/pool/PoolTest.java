@@ -0,0 +1,220 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ibis.constellation.ActivityIdentifier;
+import ibis.constellation.Event;
+import ibis.constellation.impl.EventMessage;
+import ibis.constellation.impl.ImplUtil;
+import ibis.constellation.impl.pool.communication.Message;
+import ibis.constellation.util.ByteBuffers;
+import ibis.constellation.util.ReceiveBuffers;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class PoolTest {
+
+    @After
+    public void tearDown() {
+        ReceiveBuffers.clear();
+    }
+
+    private static class Data implements ByteBuffers, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        int value;
+        transient ByteBuffer buffer;
+
+        @Override
+        public void pushByteBuffers(List<ByteBuffer> list) {
+            list.add(buffer);
+        }
+
+        @Override
+        public void popByteBuffers(List<ByteBuffer> list) {
+            // not used
+        }
+    }
+
+    private static ByteBuffers data(final ByteBuffer... buffers) {
+        return new ByteBuffers() {
+            @Override
+            public void pushByteBuffers(List<ByteBuffer> list) {
+                for (ByteBuffer b : buffers) {
+                    list.add(b);
+                }
+            }
+
+            @Override
+            public void popByteBuffers(List<ByteBuffer> list) {
+                // not used
+            }
+        };
+    }
+
+    private static EventMessage event(ActivityIdentifier target) {
+        return new EventMessage(ImplUtil.createConstellationIdentifier(0, 1), ImplUtil.createConstellationIdentifier(1, 1),
+                new Event(ImplUtil.createActivityIdentifier(0, 1, 1, false), target, "data"));
+    }
+
+    @Test
+    public void testSendBuffersWholeCapacity() {
+        ByteBuffer b = ByteBuffer.allocate(100);
+        b.position(10);
+        b.limit(30);
+
+        ArrayList<ByteBuffer> list = Pool.sendBuffers(data(b), false);
+
+        assertEquals(1, list.size());
+        assertEquals(0, list.get(0).position());
+        assertEquals(100, list.get(0).remaining());
+        // The buffer of the application is left alone.
+        assertEquals(10, b.position());
+        assertEquals(30, b.limit());
+    }
+
+    @Test
+    public void testSendBuffersRemaining() {
+        ByteBuffer b = ByteBuffer.allocate(100);
+        b.position(10);
+        b.limit(30);
+
+        ArrayList<ByteBuffer> list = Pool.sendBuffers(data(b), true);
+
+        assertEquals(10, list.get(0).position());
+        assertEquals(20, list.get(0).remaining());
+        assertNotSame(b, list.get(0));
+    }
+
+    @Test
+    public void testReceiveBuffersFromCache() {
+        ArrayList<ByteBuffer> list = Pool.receiveBuffers("other", new int[] { 16, 32 }, true);
+
+        assertEquals(2, list.size());
+        assertEquals(16, list.get(0).remaining());
+        assertEquals(0, list.get(1).position());
+        assertEquals(32, list.get(1).limit());
+    }
+
+    @Test
+    public void testReceiveBuffersRegistered() {
+        ActivityIdentifier target = ImplUtil.createActivityIdentifier(1, 1, 7, true);
+        ByteBuffer large = ByteBuffer.allocateDirect(64);
+        ByteBuffer small = ByteBuffer.allocateDirect(8);
+        ReceiveBuffers.register(target, large, small);
+
+        ArrayList<ByteBuffer> list = Pool.receiveBuffers(event(target), new int[] { 20, 16, 4 }, true);
+
+        assertSame(large, list.get(0));
+        assertEquals(20, large.limit());
+        assertEquals(0, large.position());
+        // Too small, or not registered: taken from the cache.
+        assertNotSame(small, list.get(1));
+        assertEquals(16, list.get(1).remaining());
+        assertEquals(4, list.get(2).remaining());
+    }
+
+    @Test
+    public void testReceiveBuffersInUse() {
+        ActivityIdentifier target = ImplUtil.createActivityIdentifier(1, 1, 7, true);
+        ByteBuffer registered = ByteBuffer.allocateDirect(64);
+        ReceiveBuffers.register(target, registered);
+        EventMessage first = event(target);
+
+        assertSame(registered, Pool.receiveBuffers(first, new int[] { 20 }, true).get(0));
+        // The first event is not processed yet, so the second one must not overwrite its buffer.
+        assertNotSame(registered, Pool.receiveBuffers(event(target), new int[] { 20 }, true).get(0));
+
+        ReceiveBuffers.release(target, first.takeReceiveToken());
+        assertSame(registered, Pool.receiveBuffers(event(target), new int[] { 20 }, true).get(0));
+    }
+
+    @Test
+    public void testReceiveBuffersOtherTarget() {
+        ReceiveBuffers.register(ImplUtil.createActivityIdentifier(1, 1, 7, true), ByteBuffer.allocate(64));
+
+        ArrayList<ByteBuffer> list = Pool.receiveBuffers(event(ImplUtil.createActivityIdentifier(1, 1, 8, true)),
+                new int[] { 20 }, true);
+
+        assertEquals(20, list.get(0).capacity());
+    }
+
+    @Test
+    public void testReceiveBuffersForwarded() {
+        ActivityIdentifier target = ImplUtil.createActivityIdentifier(1, 1, 7, true);
+        ByteBuffer registered = ByteBuffer.allocateDirect(64);
+        ReceiveBuffers.register(target, registered);
+        EventMessage m = event(target);
+
+        // Not delivered here, so the registration is neither used nor held.
+        assertNotSame(registered, Pool.receiveBuffers(m, new int[] { 20 }, false).get(0));
+        assertEquals(0, m.takeReceiveToken());
+        assertTrue(ReceiveBuffers.acquire(target) != 0);
+    }
+
+    @Test
+    public void testReceiveBuffersUnusedReleased() {
+        ActivityIdentifier target = ImplUtil.createActivityIdentifier(1, 1, 7, true);
+        ReceiveBuffers.register(target, ByteBuffer.allocateDirect(8));
+        EventMessage m = event(target);
+
+        // The registered buffer is too small, so the token is given back at once.
+        assertEquals(20, Pool.receiveBuffers(m, new int[] { 20 }, true).get(0).capacity());
+        assertEquals(0, m.takeReceiveToken());
+        assertTrue(ReceiveBuffers.acquire(target) != 0);
+    }
+
+    @Test
+    public void testDetach() throws Exception {
+        Data d = new Data();
+        d.value = 42;
+        d.buffer = ByteBuffer.allocate(8);
+        d.buffer.putInt(0, 7);
+        Message m = new Message((byte) 1, d);
+
+        Pool.detach(m, false);
+
+        // The application changes its data after the send returned.
+        d.value = 43;
+        d.buffer.putInt(0, 8);
+
+        assertEquals(42, ((Data) Pool.decode((byte) 1, m.encoded)).value);
+        ArrayList<ByteBuffer> list = Pool.sendBuffers(m, false);
+        assertEquals(1, list.size());
+        assertEquals(8, list.get(0).remaining());
+        assertEquals(7, list.get(0).getInt(0));
+        // The copies can be sent more than once.
+        list.get(0).position(8);
+        assertEquals(8, Pool.sendBuffers(m, false).get(0).remaining());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import ibis.constellation.impl.pool.communication.NodeIdentifier;
+import ibis.constellation.impl.pool.communication.local.LocalNodeIdentifier;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class RankDistributorTest {
+
+    private static class Recorder extends RankDistributor {
+
+        final HashMap<NodeIdentifier, RankInfo[]> sent = new HashMap<NodeIdentifier, RankInfo[]>();
+
+        Recorder(RankTable table, NodeIdentifier local) {
+            super(table, local);
+        }
+
+        @Override
+        protected synchronized void send(NodeIdentifier dest, RankInfo[] ranks) {
+            if (sent.put(dest, ranks) != null) {
+                throw new AssertionError("Sent twice to " + dest);
+            }
+            notifyAll();
+        }
+
+        synchronized RankInfo[] waitFor(NodeIdentifier dest) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!sent.containsKey(dest) && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            return sent.get(dest);
+        }
+    }
+
+    private static RankInfo join(RankTable t, int rank) {
+        RankInfo info = new RankInfo(rank, new LocalNodeIdentifier(rank));
+        t.register(rank, info.id);
+        return info;
+    }
+
+    @Test
+    public void testDistribute() {
+        RankTable t = new RankTable(1000);
+        LocalNodeIdentifier master = new LocalNodeIdentifier(0);
+        t.register(0, master);
+        join(t, 1);
+        RankInfo info = join(t, 2);
+
+        Recorder r = new Recorder(t, master);
+        r.distribute(new RankInfo[] { info });
+
+        assertNull(r.sent.get(master));
+        // The existing node gets the new rank only.
+        RankInfo[] delta = r.sent.get(new LocalNodeIdentifier(1));
+        assertEquals(1, delta.length);
+        assertEquals(2, delta[0].rank);
+        // The new node gets all ranks.
+        assertEquals(3, r.sent.get(info.id).length);
+    }
+
+    @Test
+    public void testDistributeCombined() {
+        RankTable t = new RankTable(1000);
+        LocalNodeIdentifier master = new LocalNodeIdentifier(0);
+        t.register(0, master);
+        join(t, 1);
+        RankInfo info2 = join(t, 2);
+        RankInfo info3 = join(t, 3);
+
+        Recorder r = new Recorder(t, master);
+        r.distribute(new RankInfo[] { info2, info3 });
+
+        // A single message for each node, also for the new nodes, which do not get each other's rank twice.
+        assertEquals(3, r.sent.size());
+        assertEquals(2, r.sent.get(new LocalNodeIdentifier(1)).length);
+        assertEquals(4, r.sent.get(info2.id).length);
+        assertEquals(4, r.sent.get(info3.id).length);
+    }
+
+    @Test
+    public void testThread() throws Exception {
+        RankTable t = new RankTable(1000);
+        LocalNodeIdentifier master = new LocalNodeIdentifier(0);
+        t.register(0, master);
+        join(t, 1);
+
+        Recorder r = new Recorder(t, master);
+        r.start();
+        r.add(join(t, 2));
+
+        assertEquals(3, r.waitFor(new LocalNodeIdentifier(2)).length);
+        assertEquals(1, r.waitFor(new LocalNodeIdentifier(1)).length);
+
+        r.done();
+        r.join(10000);
+        assertEquals(false, r.isAlive());
+    }
+}
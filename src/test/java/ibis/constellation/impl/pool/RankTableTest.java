@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ibis.constellation.impl.pool.communication.local.LocalNodeIdentifier;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class RankTableTest {
+
+    @Test
+    public void testRegister() {
+        RankTable t = new RankTable(1000);
+        LocalNodeIdentifier id = new LocalNodeIdentifier(3);
+
+        assertNull(t.register(3, id));
+        assertEquals(id, t.register(3, id));
+        assertEquals(id, t.get(3));
+        assertTrue(t.contains(3));
+        assertFalse(t.contains(4));
+    }
+
+    @Test
+    public void testRemove() {
+        RankTable t = new RankTable(1000);
+        LocalNodeIdentifier id = new LocalNodeIdentifier(3);
+        t.register(3, id);
+
+        assertEquals(id, t.remove(3));
+        assertNull(t.get(3));
+    }
+
+    @Test
+    public void testToArray() {
+        RankTable t = new RankTable(1000);
+        t.register(1, new LocalNodeIdentifier(1));
+        t.register(2, new LocalNodeIdentifier(2));
+
+        RankInfo[] table = t.toArray();
+
+        assertEquals(2, table.length);
+        for (RankInfo info : table) {
+            assertEquals(new LocalNodeIdentifier(info.rank), info.id);
+        }
+    }
+
+    @Test
+    public void testLookupRateLimited() {
+        RankTable t = new RankTable(1000);
+
+        assertTrue(t.shouldLookup(5, 0));
+        assertFalse(t.shouldLookup(5, 500));
+        assertFalse(t.shouldLookup(5, 1000));
+        assertTrue(t.shouldLookup(5, 1001));
+        assertFalse(t.shouldLookup(5, 1500));
+    }
+
+    @Test
+    public void testLookupPerRank() {
+        RankTable t = new RankTable(1000);
+
+        assertTrue(t.shouldLookup(5, 0));
+        assertTrue(t.shouldLookup(6, 0));
+    }
+
+    @Test
+    public void testNoLookupWhenKnown() {
+        RankTable t = new RankTable(1000);
+        t.register(5, new LocalNodeIdentifier(5));
+
+        assertFalse(t.shouldLookup(5, 0));
+    }
+
+    @Test
+    public void testRegisterEndsLookup() {
+        RankTable t = new RankTable(1000);
+
+        assertTrue(t.shouldLookup(5, 0));
+        t.register(5, new LocalNodeIdentifier(5));
+        t.remove(5);
+
+        // The node left and may come back, so a new lookup is allowed right away.
+        assertTrue(t.shouldLookup(5, 1));
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ibis.constellation.impl.pool.communication.NodeIdentifier;
+import ibis.constellation.impl.pool.communication.ibis.NodeIdentifierImpl;
+import ibis.ipl.impl.Location;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class VictimSelectorTest {
+
+    private static NodeIdentifier node(String name) {
+        return new NodeIdentifierImpl(new FakeIbisIdentifier(new Location(name), "ibis", "pool", name));
+    }
+
+    private static ArrayList<NodeIdentifier> members(NodeIdentifier... ids) {
+        ArrayList<NodeIdentifier> result = new ArrayList<NodeIdentifier>();
+        for (NodeIdentifier id : ids) {
+            result.add(id);
+        }
+        return result;
+    }
+
+    @Test
+    public void testRandomOnlyLocal() {
+        NodeIdentifier a = node("a");
+        VictimSelector s = new RandomVictimSelector(new Random(1));
+        assertNull(s.select(members(a), a));
+    }
+
+    @Test
+    public void testRandomEmpty() {
+        VictimSelector s = new RandomVictimSelector(new Random(1));
+        assertNull(s.select(members(), node("a")));
+    }
+
+    @Test
+    public void testRandomNeverLocal() {
+        NodeIdentifier a = node("a");
+        NodeIdentifier b = node("b");
+        VictimSelector s = new RandomVictimSelector(new Random(1));
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(b, s.select(members(a, b), a));
+        }
+    }
+
+    @Test
+    public void testRandomNoPing() {
+        VictimSelector s = new RandomVictimSelector(new Random(1));
+        assertFalse(s.shouldPing(node("a"), 0));
+    }
+
+    @Test
+    public void testAdaptiveOnlyLocal() {
+        NodeIdentifier a = node("a");
+        VictimSelector s = new AdaptiveVictimSelector(new Random(1));
+        assertNull(s.select(members(a), a));
+    }
+
+    @Test
+    public void testAdaptiveNeverLocal() {
+        NodeIdentifier a = node("a");
+        NodeIdentifier b = node("b");
+        NodeIdentifier c = node("c");
+        VictimSelector s = new AdaptiveVictimSelector(new Random(1));
+
+        for (int i = 0; i < 100; i++) {
+            assertNotEquals(a, s.select(members(a, b, c), a));
+        }
+    }
+
+    @Test
+    public void testAdaptiveSuccess() {
+        NodeIdentifier b = node("b");
+        AdaptiveVictimSelector s = new AdaptiveVictimSelector(new Random(1));
+
+        s.stealReplyReceived(0, b, false, 0);
+        assertTrue(s.getSuccess(b) < AdaptiveVictimSelector.INITIAL_SUCCESS);
+
+        s.stealReplyReceived(0, b, true, 0);
+        s.stealReplyReceived(0, b, true, 0);
+        assertTrue(s.getSuccess(b) > AdaptiveVictimSelector.INITIAL_SUCCESS);
+    }
+
+    @Test
+    public void testAdaptiveRoundTripFromSteal() {
+        NodeIdentifier b = node("b");
+        AdaptiveVictimSelector s = new AdaptiveVictimSelector(new Random(1));
+
+        assertEquals(-1.0, s.getRoundTrip(b), 0.0);
+        s.stealRequestSent(1, b, 1000);
+        s.stealReplyReceived(1, b, true, 3000);
+        assertEquals(2000.0, s.getRoundTrip(b), 0.0);
+        assertEquals(0, s.getOutstanding());
+    }
+
+    @Test
+    public void testAdaptiveOutstandingRequests() {
+        NodeIdentifier b = node("b");
+        NodeIdentifier c = node("c");
+        AdaptiveVictimSelector s = new AdaptiveVictimSelector(new Random(1));
+
+        s.stealRequestSent(1, b, 1000);
+        s.stealRequestSent(2, c, 2000);
+        s.stealReplyReceived(2, c, true, 2500);
+        s.stealReplyReceived(1, b, true, 5000);
+
+        assertEquals(500.0, s.getRoundTrip(c), 0.0);
+        assertEquals(4000.0, s.getRoundTrip(b), 0.0);
+    }
+
+    @Test
+    public void testAdaptiveForwardedRequest() {
+        NodeIdentifier b = node("b");
+        NodeIdentifier c = node("c");
+        AdaptiveVictimSelector s = new AdaptiveVictimSelector(new Random(1));
+
+        s.stealRequestSent(1, b, 1000);
+        s.stealReplyReceived(1, c, true, 9000);
+
+        // Neither node gets the round trip of two hops, and b had no work.
+        assertEquals(-1.0, s.getRoundTrip(b), 0.0);
+        assertEquals(-1.0, s.getRoundTrip(c), 0.0);
+        assertTrue(s.getSuccess(b) < AdaptiveVictimSelector.INITIAL_SUCCESS);
+        assertTrue(s.getSuccess(c) > AdaptiveVictimSelector.INITIAL_SUCCESS);
+    }
+
+    @Test
+    public void testAdaptivePushedReply() {
+        NodeIdentifier b = node("b");
+        AdaptiveVictimSelector s = new AdaptiveVictimSelector(new Random(1));
+
+        s.stealRequestSent(1, b, 1000);
+        s.stealReplyReceived(0, b, true, 3000);
+
+        // The pushed reply does not answer the outstanding request.
+        assertEquals(-1.0, s.getRoundTrip(b), 0.0);
+        assertEquals(1, s.getOutstanding());
+
+        s.stealReplyReceived(1, b, false, 4000);
+        assertEquals(3000.0, s.getRoundTrip(b), 0.0);
+    }
+
+    @Test
+    public void testAdaptiveExpiredRequest() {
+        NodeIdentifier b = node("b");
+        AdaptiveVictimSelector s = new AdaptiveVictimSelector(new Random(1));
+
+        s.stealRequestSent(1, b, 0);
+        s.stealRequestSent(2, b, AdaptiveVictimSelector.REQUEST_TIMEOUT);
+        assertEquals(1, s.getOutstanding());
+
+        // A late reply to the expired request is not used as a sample.
+        s.stealReplyReceived(1, b, true, AdaptiveVictimSelector.REQUEST_TIMEOUT + 10);
+        assertEquals(-1.0, s.getRoundTrip(b), 0.0);
+    }
+
+    @Test
+    public void testAdaptivePrefersProductiveNodes() {
+        NodeIdentifier a = node("a");
+        NodeIdentifier b = node("b");
+        NodeIdentifier c = node("c");
+        AdaptiveVictimSelector s = new AdaptiveVictimSelector(new Random(1));
+
+        for (int i = 0; i < 10; i++) {
+            s.stealReplyReceived(0, b, false, 0);
+            s.stealReplyReceived(0, c, true, 0);
+        }
+
+        int countB = 0;
+        int countC = 0;
+
+        for (int i = 0; i < 1000; i++) {
+            NodeIdentifier id = s.select(members(a, b, c), a);
+            if (id.equals(b)) {
+                countB++;
+            } else if (id.equals(c)) {
+                countC++;
+            }
+        }
+
+        assertEquals(1000, countB + countC);
+        assertTrue(countC > 5 * countB);
+        // but b is still selected now and then
+        assertTrue(countB > 0);
+    }
+
+    @Test
+    public void testAdaptivePrefersNearbyNodes() {
+        NodeIdentifier a = node("a");
+        NodeIdentifier b = node("b");
+        NodeIdentifier c = node("c");
+        AdaptiveVictimSelector s = new AdaptiveVictimSelector(new Random(1));
+
+        s.roundTrip(b, 100000000L);
+        s.roundTrip(c, 100000L);
+
+        int countC = 0;
+
+        for (int i = 0; i < 1000; i++) {
+            if (s.select(members(a, b, c), a).equals(c)) {
+                countC++;
+            }
+        }
+
+        assertTrue(countC > 900);
+    }
+
+    @Test
+    public void testAdaptivePingInterval() {
+        NodeIdentifier b = node("b");
+        VictimSelector s = new AdaptiveVictimSelector(new Random(1));
+
+        assertTrue(s.shouldPing(b, 0));
+        assertFalse(s.shouldPing(b, 1));
+        assertTrue(s.shouldPing(b, AdaptiveVictimSelector.PING_INTERVAL));
+    }
+}
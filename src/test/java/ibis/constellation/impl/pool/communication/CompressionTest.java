@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class CompressionTest {
+
+    private static byte[] repetitive(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i % 7);
+        }
+        return data;
+    }
+
+    @Test
+    public void testDisabled() {
+        Compression c = new Compression("none", 0, 1);
+        assertFalse(c.isEnabled());
+        assertNull(c.compress(repetitive(10000), 0, 10000));
+        assertEquals(0, c.getCompressed());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownAlgorithm() {
+        new Compression("lz4", 0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeThreshold() {
+        new Compression("deflate", -1, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalLevel() {
+        new Compression("deflate", 0, 10);
+    }
+
+    @Test
+    public void testBelowThreshold() {
+        Compression c = new Compression("deflate", 4096, 1);
+        assertTrue(c.isEnabled());
+        assertNull(c.compress(repetitive(4095), 0, 4095));
+        assertNotNull(c.compress(repetitive(4096), 0, 4096));
+        assertEquals(1, c.getCompressed());
+        assertEquals(1, c.getSkipped());
+    }
+
+    @Test
+    public void testIncompressible() {
+        byte[] data = new byte[10000];
+        new Random(42).nextBytes(data);
+        Compression c = new Compression("deflate", 0, 1);
+        assertNull(c.compress(data, 0, data.length));
+        assertEquals(1, c.getSkipped());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] data = repetitive(10000);
+        Compression c = new Compression("deflate", 0, 9);
+        byte[] packed = c.compress(data, 100, 5000);
+        assertTrue(packed.length < 5000);
+
+        byte[] expected = new byte[5000];
+        System.arraycopy(data, 100, expected, 0, 5000);
+        assertArrayEquals(expected, c.decompress(packed, 5000));
+    }
+
+    @Test
+    public void testByteBufferRoundTrip() throws IOException {
+        ByteBuffer b = ByteBuffer.allocateDirect(10000);
+        b.put(repetitive(10000));
+        b.position(10);
+        b.limit(9010);
+        Compression c = new Compression("deflate", 0, 1);
+        byte[] packed = c.compress(b);
+        assertEquals(10, b.position());
+        assertEquals(9010, b.limit());
+
+        ByteBuffer out = ByteBuffer.allocate(9000);
+        c.decompress(packed, out);
+        assertFalse(out.hasRemaining());
+
+        b.position(10);
+        out.position(0);
+        assertEquals(b, out);
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongLength() throws IOException {
+        Compression c = new Compression("deflate", 0, 1);
+        byte[] packed = c.compress(repetitive(10000), 0, 10000);
+        c.decompress(packed, 9999);
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorrupt() throws IOException {
+        Compression c = new Compression("deflate", 0, 1);
+        byte[] packed = c.compress(repetitive(10000), 0, 10000);
+        packed[0] = (byte) ~packed[0];
+        c.decompress(packed, 10000);
+    }
+
+    @Test
+    public void testStatistics() {
+        Compression c = new Compression("deflate", 0, 1);
+        byte[] packed = c.compress(repetitive(10000), 0, 10000);
+        assertEquals(1, c.getCompressed());
+        assertEquals(10000, c.getBytesIn());
+        assertEquals(packed.length, c.getBytesOut());
+        assertEquals(10000.0 / packed.length, c.getRatio(), 1e-9);
+        if (ManagementFactory.getThreadMXBean().isCurrentThreadCpuTimeSupported()) {
+            assertTrue(c.getCompressTime() > 0);
+        }
+        assertEquals(0, c.getDecompressTime());
+        c.done();
+    }
+}
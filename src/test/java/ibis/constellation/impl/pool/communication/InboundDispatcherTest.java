@@ -0,0 +1,269 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import ibis.constellation.impl.pool.FakeIbisIdentifier;
+import ibis.constellation.impl.pool.communication.ibis.NodeIdentifierImpl;
+import ibis.ipl.impl.Location;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class InboundDispatcherTest {
+
+    /** Records delivered messages. Blocks on the first message until opened. */
+    private static class GatedReceiver implements InboundDispatcher.Receiver {
+
+        final ArrayList<Integer> delivered = new ArrayList<Integer>();
+        boolean open = true;
+        boolean started = false;
+
+        @Override
+        public synchronized void deliver(NodeIdentifier source, Message m) {
+            started = true;
+            notifyAll();
+            while (!open) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+            delivered.add((Integer) m.contents);
+        }
+
+        synchronized void waitForStart() throws InterruptedException {
+            while (!started) {
+                wait();
+            }
+        }
+
+        synchronized void open() {
+            open = true;
+            notifyAll();
+        }
+    }
+
+    /** Records the messages delivered per source, and whether messages of one source were ever delivered concurrently. */
+    private static class OrderReceiver implements InboundDispatcher.Receiver {
+
+        final HashMap<NodeIdentifier, ArrayList<Integer>> delivered = new HashMap<NodeIdentifier, ArrayList<Integer>>();
+        final HashSet<NodeIdentifier> busy = new HashSet<NodeIdentifier>();
+        boolean overlap = false;
+
+        @Override
+        public void deliver(NodeIdentifier source, Message m) {
+            synchronized (this) {
+                if (!busy.add(source)) {
+                    overlap = true;
+                }
+            }
+
+            // Give other dispatcher threads a chance to overtake.
+            Thread.yield();
+
+            synchronized (this) {
+                ArrayList<Integer> l = delivered.get(source);
+                if (l == null) {
+                    l = new ArrayList<Integer>();
+                    delivered.put(source, l);
+                }
+                l.add((Integer) m.contents);
+                busy.remove(source);
+            }
+        }
+    }
+
+    private static NodeIdentifier node(String name) {
+        return new NodeIdentifierImpl(new FakeIbisIdentifier(new Location("loc1"), name, "pool", "tag"));
+    }
+
+    private static final NodeIdentifier SOURCE = node("ibis1");
+
+    private static Message message(int i) {
+        return new Message((byte) 1, Integer.valueOf(i));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalDepth() {
+        new InboundDispatcher(new GatedReceiver(), 0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalPriority() {
+        InboundDispatcher d = new InboundDispatcher(new GatedReceiver(), 10, 1);
+        try {
+            d.enqueue(SOURCE, message(0), 3);
+        } finally {
+            d.done();
+        }
+    }
+
+    @Test
+    public void testOrder() {
+        GatedReceiver r = new GatedReceiver();
+        InboundDispatcher d = new InboundDispatcher(r, 4, 1);
+
+        for (int i = 0; i < 100; i++) {
+            d.enqueue(SOURCE, message(i), InboundDispatcher.PRIORITY_NORMAL);
+        }
+
+        d.done();
+
+        assertEquals(100, r.delivered.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), r.delivered.get(i));
+        }
+        assertEquals(100, d.getDispatched(InboundDispatcher.PRIORITY_NORMAL));
+        assertEquals(0, d.getDispatched(InboundDispatcher.PRIORITY_HIGH));
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        GatedReceiver r = new GatedReceiver();
+        r.open = false;
+        InboundDispatcher d = new InboundDispatcher(r, 10, 1);
+
+        d.enqueue(SOURCE, message(0), InboundDispatcher.PRIORITY_LOW);
+        // Wait until the dispatcher is stuck delivering the first message.
+        r.waitForStart();
+
+        // Priorities apply across sources.
+        d.enqueue(node("ibis2"), message(1), InboundDispatcher.PRIORITY_LOW);
+        d.enqueue(node("ibis3"), message(2), InboundDispatcher.PRIORITY_NORMAL);
+        d.enqueue(node("ibis4"), message(3), InboundDispatcher.PRIORITY_LOW);
+        d.enqueue(node("ibis5"), message(4), InboundDispatcher.PRIORITY_HIGH);
+
+        assertEquals(2, d.getQueueLength(InboundDispatcher.PRIORITY_LOW));
+        assertEquals(1, d.getQueueLength(InboundDispatcher.PRIORITY_NORMAL));
+        assertEquals(1, d.getQueueLength(InboundDispatcher.PRIORITY_HIGH));
+
+        r.open();
+        d.done();
+
+        assertEquals(5, r.delivered.size());
+        assertEquals(Integer.valueOf(0), r.delivered.get(0));
+        assertEquals(Integer.valueOf(4), r.delivered.get(1));
+        assertEquals(Integer.valueOf(2), r.delivered.get(2));
+        assertEquals(Integer.valueOf(1), r.delivered.get(3));
+        assertEquals(Integer.valueOf(3), r.delivered.get(4));
+        assertEquals(2, d.getMaxQueueLength(InboundDispatcher.PRIORITY_LOW));
+        assertEquals(0, d.getQueueLength(InboundDispatcher.PRIORITY_LOW));
+    }
+
+    @Test
+    public void testSourceOrderKept() throws Exception {
+        GatedReceiver r = new GatedReceiver();
+        r.open = false;
+        InboundDispatcher d = new InboundDispatcher(r, 10, 1);
+
+        d.enqueue(SOURCE, message(0), InboundDispatcher.PRIORITY_LOW);
+        r.waitForStart();
+
+        // A high priority message does not overtake earlier messages from the same source.
+        d.enqueue(SOURCE, message(1), InboundDispatcher.PRIORITY_LOW);
+        d.enqueue(SOURCE, message(2), InboundDispatcher.PRIORITY_HIGH);
+        d.enqueue(node("ibis2"), message(3), InboundDispatcher.PRIORITY_NORMAL);
+
+        assertEquals(1, d.getQueueLength(InboundDispatcher.PRIORITY_LOW));
+        assertEquals(1, d.getQueueLength(InboundDispatcher.PRIORITY_HIGH));
+
+        r.open();
+        d.done();
+
+        assertEquals(Integer.valueOf(0), r.delivered.get(0));
+        assertEquals(Integer.valueOf(3), r.delivered.get(1));
+        assertEquals(Integer.valueOf(1), r.delivered.get(2));
+        assertEquals(Integer.valueOf(2), r.delivered.get(3));
+        assertEquals(1, d.getDispatched(InboundDispatcher.PRIORITY_HIGH));
+    }
+
+    @Test
+    public void testOrderManyThreads() {
+        OrderReceiver r = new OrderReceiver();
+        InboundDispatcher d = new InboundDispatcher(r, 8, 4);
+        NodeIdentifier[] sources = new NodeIdentifier[] { node("ibis1"), node("ibis2"), node("ibis3") };
+        int count = 1000;
+
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < sources.length; j++) {
+                d.enqueue(sources[j], message(i), (i + j) % 3);
+            }
+        }
+
+        d.done();
+
+        assertFalse(r.overlap);
+        for (NodeIdentifier n : sources) {
+            ArrayList<Integer> l = r.delivered.get(n);
+            assertEquals(count, l.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals(Integer.valueOf(i), l.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testEnqueueWithoutWaiting() throws Exception {
+        GatedReceiver r = new GatedReceiver();
+        r.open = false;
+        InboundDispatcher d = new InboundDispatcher(r, 2, 1);
+
+        d.enqueue(SOURCE, message(0), InboundDispatcher.PRIORITY_NORMAL);
+        r.waitForStart();
+        d.enqueue(SOURCE, message(1), InboundDispatcher.PRIORITY_NORMAL);
+        assertFalse(d.isFull());
+        d.enqueue(SOURCE, message(2), InboundDispatcher.PRIORITY_NORMAL);
+        assertTrue(d.isFull());
+
+        // Queued beyond the maximum, instead of waiting for the blocked receiver.
+        d.enqueue(SOURCE, message(3), InboundDispatcher.PRIORITY_NORMAL, false);
+        assertEquals(3, d.getQueueLength(InboundDispatcher.PRIORITY_NORMAL));
+
+        r.open();
+        d.done();
+
+        assertFalse(d.isFull());
+        assertEquals(4, r.delivered.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i), r.delivered.get(i));
+        }
+    }
+
+    @Test
+    public void testDone() {
+        GatedReceiver r = new GatedReceiver();
+        InboundDispatcher d = new InboundDispatcher(r, 10, 2);
+        d.done();
+
+        // Delivered by the calling thread.
+        d.enqueue(SOURCE, message(7), InboundDispatcher.PRIORITY_HIGH);
+
+        assertEquals(1, r.delivered.size());
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import ibis.constellation.impl.pool.FakeIbisIdentifier;
+import ibis.constellation.impl.pool.communication.ibis.NodeIdentifierImpl;
+import ibis.ipl.impl.Location;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class MessageAggregatorTest {
+
+    private static class RecordingSender implements MessageAggregator.Sender {
+
+        final ArrayList<List<Message>> sent = new ArrayList<List<Message>>();
+        final ArrayList<Message> failed = new ArrayList<Message>();
+        boolean fail = false;
+
+        @Override
+        public synchronized boolean send(NodeIdentifier destination, List<Message> messages) {
+            if (fail) {
+                return false;
+            }
+            sent.add(new ArrayList<Message>(messages));
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public synchronized void failed(NodeIdentifier destination, List<Message> messages) {
+            failed.addAll(messages);
+        }
+
+        synchronized void waitForBatches(int n, long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (sent.size() < n && System.currentTimeMillis() < deadline) {
+                wait(10);
+            }
+        }
+    }
+
+    private static NodeIdentifier node(String name) {
+        return new NodeIdentifierImpl(new FakeIbisIdentifier(new Location("loc1"), name, "pool", "tag"));
+    }
+
+    private static Message message(int i) {
+        return new Message((byte) 1, Integer.valueOf(i));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalSize() {
+        new MessageAggregator(new RecordingSender(), 1, 1000);
+    }
+
+    @Test
+    public void testFlushOnSize() {
+        RecordingSender s = new RecordingSender();
+        MessageAggregator a = new MessageAggregator(s, 3, 60000000000L);
+        NodeIdentifier n = node("ibis1");
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(a.send(n, message(i), true));
+        }
+
+        assertEquals(1, s.sent.size());
+        assertEquals(3, s.sent.get(0).size());
+        a.done();
+    }
+
+    @Test
+    public void testFlushOnTimer() throws Exception {
+        RecordingSender s = new RecordingSender();
+        MessageAggregator a = new MessageAggregator(s, 100, 200000000L);
+        NodeIdentifier n = node("ibis1");
+
+        a.send(n, message(0), true);
+        a.send(n, message(1), true);
+
+        s.waitForBatches(1, 10000);
+
+        assertEquals(1, s.sent.size());
+        assertEquals(2, s.sent.get(0).size());
+        a.done();
+    }
+
+    @Test
+    public void testExplicitFlush() {
+        RecordingSender s = new RecordingSender();
+        MessageAggregator a = new MessageAggregator(s, 100, 60000000000L);
+
+        a.send(node("ibis1"), message(0), true);
+        a.send(node("ibis2"), message(1), true);
+
+        assertTrue(s.sent.isEmpty());
+
+        a.flush();
+
+        assertEquals(2, s.sent.size());
+        a.done();
+    }
+
+    @Test
+    public void testOrderPreserved() {
+        RecordingSender s = new RecordingSender();
+        MessageAggregator a = new MessageAggregator(s, 100, 60000000000L);
+        NodeIdentifier n = node("ibis1");
+
+        a.send(n, message(0), true);
+        a.send(n, message(1), true);
+        a.send(n, message(2), false);
+
+        assertEquals(2, s.sent.size());
+        assertEquals(0, s.sent.get(0).get(0).contents);
+        assertEquals(1, s.sent.get(0).get(1).contents);
+        assertEquals(2, s.sent.get(1).get(0).contents);
+        a.done();
+    }
+
+    @Test
+    public void testFailed() {
+        RecordingSender s = new RecordingSender();
+        MessageAggregator a = new MessageAggregator(s, 2, 60000000000L);
+        NodeIdentifier n = node("ibis1");
+
+        s.fail = true;
+
+        assertTrue(a.send(n, message(0), true));
+        assertTrue(a.send(n, message(1), true));
+        assertFalse(a.send(n, message(2), false));
+
+        assertEquals(2, s.failed.size());
+        a.done();
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import ibis.constellation.impl.pool.FakeIbisIdentifier;
+import ibis.constellation.impl.pool.communication.ibis.NodeIdentifierImpl;
+import ibis.ipl.impl.Location;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class SendQueuesTest {
+
+    private static class GatedSender implements MessageAggregator.Sender {
+
+        final ArrayList<Message> sent = new ArrayList<Message>();
+        final ArrayList<Message> failed = new ArrayList<Message>();
+        boolean fail = false;
+        boolean open = true;
+        int writing = 0;
+
+        @Override
+        public synchronized boolean send(NodeIdentifier destination, List<Message> messages) {
+            writing++;
+            notifyAll();
+            while (!open) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+            if (fail) {
+                return false;
+            }
+            sent.addAll(messages);
+            return true;
+        }
+
+        @Override
+        public synchronized void failed(NodeIdentifier destination, List<Message> messages) {
+            failed.addAll(messages);
+        }
+
+        synchronized void waitForWriting(int n) throws InterruptedException {
+            while (writing < n) {
+                wait();
+            }
+        }
+
+        synchronized void open() {
+            open = true;
+            notifyAll();
+        }
+    }
+
+    private static NodeIdentifier node(String name) {
+        return new NodeIdentifierImpl(new FakeIbisIdentifier(new Location("loc1"), name, "pool", "tag"));
+    }
+
+    private static List<Message> message(int i) {
+        List<Message> l = new ArrayList<Message>();
+        l.add(new Message((byte) 1, Integer.valueOf(i)));
+        return l;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalDepth() {
+        new SendQueues(new GatedSender(), 0, 1, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalWriters() {
+        new SendQueues(new GatedSender(), 1, 0, true);
+    }
+
+    @Test
+    public void testOrder() {
+        GatedSender s = new GatedSender();
+        SendQueues q = new SendQueues(s, 4, 3, true);
+        NodeIdentifier n = node("ibis1");
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(q.send(n, message(i)));
+        }
+
+        q.done();
+
+        assertEquals(100, s.sent.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), s.sent.get(i).contents);
+        }
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        GatedSender s = new GatedSender();
+        s.open = false;
+        SendQueues q = new SendQueues(s, 2, 1, false);
+        NodeIdentifier n = node("ibis1");
+
+        assertTrue(q.send(n, message(0)));
+        // Wait until the writer is stuck writing the first message.
+        s.waitForWriting(1);
+
+        assertTrue(q.send(n, message(1)));
+        assertTrue(q.send(n, message(2)));
+        assertFalse(q.send(n, message(3)));
+        assertEquals(2, q.size(n));
+
+        // Other destinations have their own queue.
+        assertTrue(q.send(node("ibis2"), message(4)));
+
+        s.open();
+        q.done();
+
+        assertEquals(4, s.sent.size());
+        assertEquals(0, q.size(n));
+    }
+
+    @Test
+    public void testReceiverDoesNotWait() throws Exception {
+        GatedSender s = new GatedSender();
+        s.open = false;
+        SendQueues q = new SendQueues(s, 1, 1, true);
+        NodeIdentifier n = node("ibis1");
+
+        assertTrue(q.send(n, message(0)));
+        s.waitForWriting(1);
+        assertTrue(q.send(n, message(1)));
+
+        // The queue is full, but a receiving thread must not wait for the writer.
+        assertTrue(q.send(n, message(2), false));
+        assertEquals(2, q.size(n));
+
+        s.open();
+        q.done();
+
+        assertEquals(3, s.sent.size());
+        assertEquals(Integer.valueOf(2), s.sent.get(2).contents);
+    }
+
+    @Test
+    public void testFailed() {
+        GatedSender s = new GatedSender();
+        s.fail = true;
+        SendQueues q = new SendQueues(s, 10, 1, true);
+        NodeIdentifier n = node("ibis1");
+
+        assertTrue(q.send(n, message(0)));
+        assertTrue(q.send(n, message(1)));
+
+        q.done();
+
+        assertTrue(s.sent.isEmpty());
+        assertEquals(2, s.failed.size());
+    }
+
+    @Test
+    public void testDone() {
+        SendQueues q = new SendQueues(new GatedSender(), 10, 1, true);
+        q.done();
+        assertFalse(q.send(node("ibis1"), message(0)));
+    }
+}
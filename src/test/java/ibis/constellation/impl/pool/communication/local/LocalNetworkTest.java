@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class LocalNetworkTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalSize() {
+        new LocalNetwork(0, 0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalLatency() {
+        new LocalNetwork(2, -1, 0);
+    }
+
+    @Test
+    public void testArrivalUnlimited() {
+        LocalNetwork n = new LocalNetwork(2, 100, 0);
+        assertEquals(1000 + 100000, n.arrival(0, 1, 1000000, 1000));
+        // Links are independent, and no bandwidth means no transfer time.
+        assertEquals(1000 + 100000, n.arrival(0, 1, 1000000, 1000));
+    }
+
+    @Test
+    public void testArrivalBandwidth() {
+        // 1 MB/s, so a megabyte takes a second.
+        LocalNetwork n = new LocalNetwork(2, 10, 1);
+        long mb = 1024 * 1024;
+
+        assertEquals(1000000000L + 10000, n.arrival(0, 1, mb, 0));
+        // The second message waits for the first one to be transferred.
+        assertEquals(2000000000L + 10000, n.arrival(0, 1, mb, 0));
+        // The reverse link is free.
+        assertEquals(1000000000L + 10000, n.arrival(1, 0, mb, 0));
+    }
+
+    @Test
+    public void testElection() {
+        LocalNetwork n = new LocalNetwork(2, 0, 0);
+
+        assertNull(n.getElectionResult("pool", 1));
+        assertEquals(new LocalNodeIdentifier(1), n.elect("pool", new LocalNodeIdentifier(1)));
+        assertEquals(new LocalNodeIdentifier(1), n.elect("pool", new LocalNodeIdentifier(0)));
+        assertEquals(new LocalNodeIdentifier(1), n.getElectionResult("pool", 1));
+    }
+
+    @Test
+    public void testIdentifiers() {
+        LocalNetwork n = new LocalNetwork(3, 0, 0);
+
+        assertEquals(3, n.getNodeIdentifiers().length);
+        assertEquals(new LocalNodeIdentifier(2), n.getNodeIdentifiers()[2]);
+        assertEquals("local-2", n.getNodeIdentifiers()[2].name());
+        assertNull(n.getNode(2));
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class FileRegistryTest {
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("registry");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path p : stream) {
+                Files.delete(p);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testJoinAssignsRanks() throws IOException {
+        FileRegistry a = new FileRegistry(directory);
+        FileRegistry b = new FileRegistry(directory);
+
+        NioNodeIdentifier first = a.join("127.0.0.1", 5000);
+        NioNodeIdentifier second = b.join("127.0.0.1", 5001);
+
+        assertEquals(0, first.getRank());
+        assertEquals(1, second.getRank());
+        assertEquals(2, a.getPoolSize());
+        assertArrayEquals(new NioNodeIdentifier[] { first, second }, b.getNodes());
+    }
+
+    @Test
+    public void testElectFirstWins() throws IOException {
+        FileRegistry r = new FileRegistry(directory);
+        NioNodeIdentifier first = r.join("127.0.0.1", 5000);
+        NioNodeIdentifier second = r.join("127.0.0.1", 5001);
+
+        assertEquals(first, r.elect("master", first));
+        assertEquals(first, r.elect("master", second));
+        assertEquals(first, new FileRegistry(directory).getElectionResult("master", 0));
+    }
+
+    @Test
+    public void testElectionTags() throws IOException {
+        FileRegistry r = new FileRegistry(directory);
+        NioNodeIdentifier first = r.join("127.0.0.1", 5000);
+        NioNodeIdentifier second = r.join("127.0.0.1", 5001);
+
+        r.elect("Constellation Master", first);
+
+        assertEquals(second, r.elect("a/b", second));
+    }
+
+    @Test
+    public void testElectionResultTimeout() throws IOException {
+        assertNull(new FileRegistry(directory).getElectionResult("nobody", 50));
+    }
+
+    /** Waits until the run terminates, as a node other than the master does. */
+    private static class Waiter extends Thread {
+
+        private final FileRegistry registry;
+
+        private volatile IOException error;
+
+        Waiter(FileRegistry registry) {
+            this.registry = registry;
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                registry.waitUntilTerminated();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        void finish() throws Exception {
+            join(10000);
+            assertFalse(isAlive());
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    @Test
+    public void testTerminate() throws Exception {
+        FileRegistry r = new FileRegistry(directory);
+        FileRegistry other = new FileRegistry(directory);
+        r.join("127.0.0.1", 5000);
+        other.join("127.0.0.1", 5001);
+
+        r.terminate();
+        assertTrue(Files.exists(directory));
+
+        // The last node to notice removes the files of the run.
+        other.waitUntilTerminated();
+        assertFalse(Files.exists(directory));
+        r.terminate();
+    }
+
+    @Test
+    public void testTwoRuns() throws Exception {
+        for (int run = 0; run < 2; run++) {
+            FileRegistry a = new FileRegistry(directory);
+            FileRegistry b = new FileRegistry(directory);
+            NioNodeIdentifier first = a.join("127.0.0.1", 5000 + 2 * run);
+            NioNodeIdentifier second = b.join("127.0.0.1", 5001 + 2 * run);
+
+            // Nothing of the previous run is left.
+            assertEquals(0, first.getRank());
+            assertEquals(2, a.getPoolSize());
+            assertArrayEquals(new NioNodeIdentifier[] { first, second }, b.getNodes());
+            assertEquals(first, a.elect("master", first));
+            assertEquals(first, b.getElectionResult("master", 0));
+
+            Waiter w = new Waiter(b);
+            Thread.sleep(50);
+            assertTrue(w.isAlive());
+
+            a.terminate();
+            w.finish();
+        }
+    }
+
+    @Test
+    public void testTerminatedRunCleared() throws IOException {
+        Files.createFile(directory.resolve("terminated"));
+        Files.createFile(directory.resolve("rank-0"));
+        Files.createFile(directory.resolve("node-0"));
+        Files.createFile(directory.resolve("elect-master"));
+
+        FileRegistry r = new FileRegistry(directory);
+
+        assertEquals(0, r.getPoolSize());
+        assertNull(r.getElectionResult("master", 50));
+        assertEquals(0, r.join("127.0.0.1", 5000).getRank());
+    }
+
+    @Test
+    public void testLeave() throws IOException {
+        FileRegistry a = new FileRegistry(directory);
+        FileRegistry b = new FileRegistry(directory);
+        a.join("127.0.0.1", 5000);
+        b.join("127.0.0.1", 5001);
+
+        a.leave();
+        assertEquals(1, b.getPoolSize());
+
+        // The last node to leave removes the files of the run.
+        b.leave();
+        assertFalse(Files.exists(directory));
+    }
+}
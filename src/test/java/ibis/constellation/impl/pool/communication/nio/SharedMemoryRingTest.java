@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.impl.pool.communication.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class SharedMemoryRingTest {
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("ring", ".ring");
+        Files.delete(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private static byte[] bytes(int n, int offset) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte) (i + offset);
+        }
+        return b;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalCapacity() throws IOException {
+        SharedMemoryRing.create(file, 0);
+    }
+
+    @Test
+    public void testGatheringWrite() throws IOException {
+        SharedMemoryRing w = SharedMemoryRing.create(file, 64);
+        SharedMemoryRing r = SharedMemoryRing.open(file);
+
+        assertEquals(64, r.capacity());
+        assertEquals(0, r.read(ByteBuffer.allocate(8)));
+
+        assertEquals(12, w.write(new ByteBuffer[] { ByteBuffer.wrap(bytes(4, 0)), ByteBuffer.wrap(bytes(8, 4)) }));
+        assertEquals(12, r.available());
+
+        ByteBuffer dst = ByteBuffer.allocate(12);
+        assertEquals(12, r.read(dst));
+        assertArrayEquals(bytes(12, 0), dst.array());
+    }
+
+    @Test
+    public void testPartialWriteWhenNearlyFull() throws IOException {
+        SharedMemoryRing w = SharedMemoryRing.create(file, 16);
+        SharedMemoryRing r = SharedMemoryRing.open(file);
+
+        ByteBuffer src = ByteBuffer.wrap(bytes(24, 0));
+        assertEquals(16, w.write(src));
+        assertEquals(16, src.position());
+
+        ByteBuffer dst = ByteBuffer.allocate(24);
+        assertEquals(16, r.read(dst));
+        assertEquals(8, w.write(src));
+        assertEquals(8, r.read(dst));
+        assertArrayEquals(bytes(24, 0), dst.array());
+    }
+
+    @Test
+    public void testWrapAround() throws IOException {
+        SharedMemoryRing w = SharedMemoryRing.create(file, 10);
+        SharedMemoryRing r = SharedMemoryRing.open(file);
+
+        for (int i = 0; i < 20; i++) {
+            w.write(ByteBuffer.wrap(bytes(7, i)));
+            ByteBuffer dst = ByteBuffer.allocate(7);
+            assertEquals(7, r.read(dst));
+            assertArrayEquals(bytes(7, i), dst.array());
+        }
+    }
+
+    @Test
+    public void testWriterWaitsForReader() throws Exception {
+        final SharedMemoryRing w = SharedMemoryRing.create(file, 8);
+        SharedMemoryRing r = SharedMemoryRing.open(file);
+
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ByteBuffer src = ByteBuffer.wrap(bytes(100, 0));
+                    while (src.hasRemaining()) {
+                        w.write(src);
+                    }
+                    w.close();
+                } catch (IOException e) {
+                    // fails the test below
+                }
+            }
+        };
+        t.start();
+
+        ByteBuffer dst = ByteBuffer.allocate(100);
+        while (r.read(dst) >= 0) {
+            Thread.yield();
+        }
+        t.join();
+
+        assertArrayEquals(bytes(100, 0), dst.array());
+    }
+
+    @Test
+    public void testEndOfStream() throws IOException {
+        SharedMemoryRing w = SharedMemoryRing.create(file, 16);
+        SharedMemoryRing r = SharedMemoryRing.open(file);
+
+        w.write(ByteBuffer.wrap(bytes(4, 0)));
+        w.close();
+
+        assertTrue(r.isWriterClosed());
+        assertEquals(4, r.read(ByteBuffer.allocate(16)));
+        assertEquals(-1, r.read(ByteBuffer.allocate(16)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReaderClosed() throws IOException {
+        SharedMemoryRing w = SharedMemoryRing.create(file, 4);
+        SharedMemoryRing r = SharedMemoryRing.open(file);
+
+        w.write(ByteBuffer.wrap(bytes(4, 0)));
+        r.close();
+        w.write(ByteBuffer.wrap(bytes(4, 0)));
+    }
+}
@@ -21,6 +21,7 @@ import static org.junit.Assert.assertNull;
 
 import org.junit.Test;
 
+import ibis.constellation.Affinity;
 import ibis.constellation.Context;
 import ibis.constellation.OrContext;
 import ibis.constellation.StealStrategy;
@@ -160,4 +161,101 @@ public class WorkQueueTest {
         ActivityRecord tmp2 = q.steal(a, StealStrategy.BIGGEST);
         assertEquals(tmp2, tmp1);
     }
+
+    @Test
+    public void testSizeContext() {
+        Context a = new Context("A");
+        Context b = new Context("B");
+
+        WorkQueue q = new SimpleWorkQueue("queue");
+        q.enqueue(ImplUtil.createActivityRecord(new Context("A", 1)));
+        q.enqueue(ImplUtil.createActivityRecord(new Context("A", 2)));
+        q.enqueue(ImplUtil.createActivityRecord(new OrContext(a, b)));
+
+        assertEquals(3, q.size(a));
+        assertEquals(1, q.size(b));
+        assertEquals(0, q.size(new Context("C")));
+        assertEquals(q.size(), q.size(new OrContext(a, b)));
+    }
+
+    private static final ActivityFilter NO_AFFINITY = new ActivityFilter() {
+        @Override
+        public boolean accept(ActivityRecord a) {
+            return a.getAffinity() == null;
+        }
+    };
+
+    @Test
+    public void testStealFiltered() {
+        Context a = new Context("A");
+        Affinity f = Affinity.node(ImplUtil.createConstellationIdentifier(0, 0), true);
+        ActivityRecord ra1 = ImplUtil.createActivityRecord(new Context("A", 1), f, 1);
+        ActivityRecord ra2 = ImplUtil.createActivityRecord(new Context("A", 2), null, 2);
+        ActivityRecord ra3 = ImplUtil.createActivityRecord(new Context("A", 3), f, 3);
+
+        WorkQueue q = new SimpleWorkQueue("queue");
+        q.enqueue(ra1);
+        q.enqueue(ra2);
+        q.enqueue(ra3);
+
+        assertEquals(ra2, q.steal(a, StealStrategy.SMALLEST, NO_AFFINITY));
+        assertNull(q.steal(a, StealStrategy.BIGGEST, NO_AFFINITY));
+        assertEquals(2, q.size());
+        assertEquals(ra3, q.steal(a, StealStrategy.BIGGEST));
+    }
+
+    @Test
+    public void testStealFilteredOr() {
+        Context a = new Context("A");
+        Context b = new Context("B");
+        Affinity f = Affinity.node(ImplUtil.createConstellationIdentifier(0, 0), false);
+        ActivityRecord rab = ImplUtil.createActivityRecord(new OrContext(a, b), f, 1);
+        ActivityRecord rb = ImplUtil.createActivityRecord(b, null, 2);
+
+        WorkQueue q = new SimpleWorkQueue("queue");
+        q.enqueue(rab);
+        q.enqueue(rb);
+
+        assertNull(q.steal(a, StealStrategy.SMALLEST, NO_AFFINITY));
+        assertEquals(rb, q.steal(new OrContext(a, b), StealStrategy.SMALLEST, NO_AFFINITY));
+        assertEquals(rab, q.steal(b, StealStrategy.SMALLEST));
+        assertEquals(0, q.size(a));
+    }
+
+    @Test
+    public void testStealFilteredBatch() {
+        Context a = new Context("A");
+        Affinity f = Affinity.worker(ImplUtil.createConstellationIdentifier(0, 0), true);
+
+        WorkQueue q = new SimpleWorkQueue("queue");
+        for (int i = 0; i < 6; i++) {
+            q.enqueue(ImplUtil.createActivityRecord(new Context("A", i), i % 2 == 0 ? f : null, i));
+        }
+
+        ActivityRecord[] dst = new ActivityRecord[6];
+        assertEquals(3, q.steal(a, StealStrategy.SMALLEST, NO_AFFINITY, dst, 0, 6));
+        for (int i = 0; i < 3; i++) {
+            assertNull(dst[i].getAffinity());
+        }
+        assertEquals(3, q.size());
+    }
+
+    @Test
+    public void testStealFilteredWithoutAffinity() {
+        Context a = new Context("A");
+        ActivityRecord ra = ImplUtil.createActivityRecord(a, null, 1);
+
+        WorkQueue q = new SimpleWorkQueue("queue");
+        q.enqueue(ra);
+
+        // Activities without affinity need not be offered to the filter.
+        ActivityFilter none = new ActivityFilter() {
+            @Override
+            public boolean accept(ActivityRecord r) {
+                return false;
+            }
+        };
+
+        assertEquals(ra, q.steal(a, StealStrategy.SMALLEST, none));
+    }
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class CodecRegistryTest {
+
+    private static class StringCodec implements Codec<String> {
+
+        @Override
+        public void write(ObjectOutput out, String value) {
+            // not used
+        }
+
+        @Override
+        public String read(ObjectInput in) {
+            return null;
+        }
+    }
+
+    @After
+    public void clearCodecs() {
+        CodecRegistry.clear();
+    }
+
+    @Test
+    public void testRegister() {
+        StringCodec codec = new StringCodec();
+        CodecRegistry.register(7, String.class, codec);
+
+        assertEquals(7, CodecRegistry.getId(String.class));
+        assertTrue(CodecRegistry.getCodec(7) == codec);
+    }
+
+    @Test
+    public void testUnregistered() {
+        assertEquals(0, CodecRegistry.getId(String.class));
+        assertNull(CodecRegistry.getCodec(7));
+    }
+
+    @Test
+    public void testRegisterTwice() {
+        StringCodec codec = new StringCodec();
+        CodecRegistry.register(7, String.class, codec);
+        CodecRegistry.register(7, String.class, codec);
+
+        assertEquals(7, CodecRegistry.getId(String.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateId() {
+        CodecRegistry.register(7, String.class, new StringCodec());
+        CodecRegistry.register(7, String.class, new StringCodec());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateClass() {
+        StringCodec codec = new StringCodec();
+        CodecRegistry.register(7, String.class, codec);
+        CodecRegistry.register(8, String.class, codec);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalId() {
+        CodecRegistry.register(0, String.class, new StringCodec());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullCodec() {
+        CodecRegistry.register(1, String.class, null);
+    }
+
+    @Test
+    public void testGetMapping() {
+        CodecRegistry.register(7, String.class, new StringCodec());
+
+        TreeMap<Integer, String> mapping = CodecRegistry.getMapping();
+
+        assertEquals(1, mapping.size());
+        assertEquals("java.lang.String", mapping.get(7));
+    }
+
+    @Test
+    public void testAdoptSame() {
+        CodecRegistry.register(7, String.class, new StringCodec());
+
+        assertFalse(CodecRegistry.adopt(CodecRegistry.getMapping()));
+        assertEquals(7, CodecRegistry.getId(String.class));
+    }
+
+    @Test
+    public void testAdoptDifferentId() {
+        StringCodec codec = new StringCodec();
+        CodecRegistry.register(7, String.class, codec);
+
+        TreeMap<Integer, String> master = new TreeMap<Integer, String>();
+        master.put(3, "java.lang.String");
+        master.put(7, "some.other.Type");
+
+        assertTrue(CodecRegistry.adopt(master));
+        assertEquals(3, CodecRegistry.getId(String.class));
+        assertTrue(CodecRegistry.getCodec(3) == codec);
+        // The codec of the master for id 7 is unknown here, so decoding it must fail.
+        assertNull(CodecRegistry.getCodec(7));
+    }
+
+    @Test
+    public void testAdoptUnknownToMaster() {
+        CodecRegistry.register(7, String.class, new StringCodec());
+
+        assertTrue(CodecRegistry.adopt(new TreeMap<Integer, String>()));
+        assertEquals(0, CodecRegistry.getId(String.class));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.constellation.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ibis.constellation.ActivityIdentifier;
+import ibis.constellation.impl.ImplUtil;
+
+/**
+ * @version 1.0
+ * @since 1.0
+ *
+ */
+public class ReceiveBuffersTest {
+
+    private final ActivityIdentifier target = ImplUtil.createActivityIdentifier(0, 1, 2, true);
+
+    @After
+    public void tearDown() {
+        ReceiveBuffers.clear();
+    }
+
+    @Test
+    public void testRegister() {
+        ByteBuffer[] b = new ByteBuffer[] { ByteBuffer.allocate(4), ByteBuffer.allocate(8) };
+        ReceiveBuffers.register(target, b);
+        assertArrayEquals(b, ReceiveBuffers.get(target));
+    }
+
+    @Test
+    public void testRegisterCopiesArray() {
+        ByteBuffer[] b = new ByteBuffer[] { ByteBuffer.allocate(4) };
+        ReceiveBuffers.register(target, b);
+        b[0] = null;
+        assertNotNull(ReceiveBuffers.get(target)[0]);
+    }
+
+    @Test
+    public void testUnregister() {
+        ByteBuffer b = ByteBuffer.allocate(4);
+        ReceiveBuffers.register(target, b);
+        assertArrayEquals(new ByteBuffer[] { b }, ReceiveBuffers.unregister(target));
+        assertNull(ReceiveBuffers.get(target));
+        assertNull(ReceiveBuffers.unregister(target));
+    }
+
+    @Test
+    public void testAcquireInUse() {
+        ByteBuffer b = ByteBuffer.allocate(4);
+        ReceiveBuffers.register(target, b);
+
+        long first = ReceiveBuffers.acquire(target);
+        assertTrue(first != 0);
+        assertArrayEquals(new ByteBuffer[] { b }, ReceiveBuffers.get(target, first));
+        // In use until the first event is processed.
+        assertEquals(0, ReceiveBuffers.acquire(target));
+
+        ReceiveBuffers.release(target, first);
+        long second = ReceiveBuffers.acquire(target);
+        assertTrue(second != 0);
+        assertTrue(second != first);
+        assertArrayEquals(new ByteBuffer[] { b }, ReceiveBuffers.get(target, second));
+    }
+
+    @Test
+    public void testReleaseStaleToken() {
+        ReceiveBuffers.register(target, ByteBuffer.allocate(4));
+
+        long first = ReceiveBuffers.acquire(target);
+        ReceiveBuffers.release(target, first);
+        long second = ReceiveBuffers.acquire(target);
+
+        // A late release of the first token must not free the buffers held under the second.
+        ReceiveBuffers.release(target, first);
+        assertNull(ReceiveBuffers.get(target, first));
+        assertNotNull(ReceiveBuffers.get(target, second));
+        assertEquals(0, ReceiveBuffers.acquire(target));
+    }
+
+    @Test
+    public void testReregisterDropsToken() {
+        ReceiveBuffers.register(target, ByteBuffer.allocate(4));
+        long token = ReceiveBuffers.acquire(target);
+
+        ByteBuffer b = ByteBuffer.allocate(8);
+        ReceiveBuffers.register(target, b);
+
+        assertNull(ReceiveBuffers.get(target, token));
+        ReceiveBuffers.release(target, token);
+        assertArrayEquals(new ByteBuffer[] { b }, ReceiveBuffers.get(target, ReceiveBuffers.acquire(target)));
+    }
+
+    @Test
+    public void testAcquireNotRegistered() {
+        assertEquals(0, ReceiveBuffers.acquire(target));
+        assertNull(ReceiveBuffers.get(target, 1));
+        ReceiveBuffers.release(target, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullTarget() {
+        ReceiveBuffers.register(null, ByteBuffer.allocate(4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoBuffers() {
+        ReceiveBuffers.register(target);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullBuffer() {
+        ReceiveBuffers.register(target, ByteBuffer.allocate(4), null);
+    }
+}